@@ -1,12 +1,18 @@
 import edu.umn.shibboleth.sp.ShibbolethAuthenticationEntryPoint
+import edu.umn.shibboleth.sp.ShibbolethCachingUserDetailsService
 import edu.umn.shibboleth.sp.ShibbolethUserDetailsService
 import edu.umn.shibboleth.sp.ShibbolethAuthenticationProvider
 import edu.umn.shibboleth.sp.ShibbolethAuthenticationFilter
 import edu.umn.shibboleth.sp.ShibbolethLogoutFilter
+import edu.umn.shibboleth.sp.ShibbolethMetrics
+import edu.umn.shibboleth.sp.ShibbolethSecurityContextRepository
+import edu.umn.shibboleth.sp.GroupMembershipIndex
+import edu.umn.shibboleth.sp.LdapUserDnResolver
 import org.codehaus.groovy.grails.plugins.springsecurity.SecurityFilterPosition
 import org.codehaus.groovy.grails.plugins.springsecurity.SpringSecurityUtils
 import org.codehaus.groovy.grails.plugins.springsecurity.GormUserDetailsService
 import org.codehaus.groovy.grails.plugins.springsecurity.ldap.GrailsLdapAuthoritiesPopulator
+import org.springframework.security.web.context.HttpSessionSecurityContextRepository
 
 class SpringSecurityShibbolethNativeSpGrailsPlugin {
     // the plugin version
@@ -50,6 +56,11 @@ class SpringSecurityShibbolethNativeSpGrailsPlugin {
 
 		println 'Configuring Spring Security Shibboleth Native SP ...'
 
+		// load roles from LDAP if the LDAP plugin is enabled, set to retrieve groups, and can find the users
+		boolean ldapUserSearch = conf.ldap.active && conf.shibboleth.ldapUserSearch.active
+		boolean ldapRoles = conf.ldap.active && conf.ldap.authorities.retrieveGroupRoles &&
+			(ldapUserSearch || conf.ldap.usernameMapper.userDnBase)
+
 		//Ensure all 'extra attributes' are where they need to be
 		if (conf.roles.attribute && !conf.extraAttributes.contains(conf.roles.attribute)) {
 			conf.extraAttributes.add(conf.roles.attribute)
@@ -61,9 +72,18 @@ class SpringSecurityShibbolethNativeSpGrailsPlugin {
 			conf.extraAttributes.add(conf.fullName.attribute)
 		}
 
+		// timers and rejection counters, exposed through JMX
+		if (conf.shibboleth.metrics.active) {
+			shibbolethMetrics(ShibbolethMetrics) {
+				objectName = conf.shibboleth.metrics.objectName ?:
+					"edu.umn.shibboleth.sp:type=ShibbolethMetrics,application=${application.metadata['app.name']}"
+			}
+		}
+
 		// shibboleth authentication entry point                                                                               
 		authenticationEntryPoint(ShibbolethAuthenticationEntryPoint) {
 			loginUrl = conf.shibboleth.loginUrl
+			loginUrls = conf.shibboleth.loginUrls
 		}
 
 		// shibboleth user details service
@@ -76,17 +96,60 @@ class SpringSecurityShibbolethNativeSpGrailsPlugin {
 			authenticationMethodRoles = conf.shibboleth.authenticationMethod.roles
 			identityProviderRoles = conf.shibboleth.identityProvider.roles
 			ipAddressRoles = conf.remoteAddress.roles
+			if (conf.shibboleth.roleMappings.file) {
+				roleMappingsFile = conf.shibboleth.roleMappings.file
+			}
+			registeredUsersMaxEntries = conf.shibboleth.registeredUsers.maxEntries
+			registeredUsersTimeToLive = conf.shibboleth.registeredUsers.timeToLive
+			if (conf.shibboleth.metrics.active) {
+				metrics = ref('shibbolethMetrics')
+			}
 
-			if (conf.ldap.active && conf.ldap.authorities.retrieveGroupRoles && conf.ldap.usernameMapper.userDnBase) {
-				userDnBase = conf.ldap.usernameMapper.userDnBase
+			if (conf.shibboleth.groupIndex.active) {
+				groupMembershipIndex = ref('shibbolethGroupMembershipIndex')
+			} else if (ldapRoles) {
+				if (ldapUserSearch) {
+					userDnResolver = ref('shibbolethLdapUserDnResolver')
+				} else {
+					userDnBase = conf.ldap.usernameMapper.userDnBase
+				}
 				ldapAuthoritiesPopulator = ref('ldapAuthoritiesPopulator')
+				ldapCacheMaxEntries = conf.shibboleth.ldapCache.maxEntries
+				ldapCacheTimeToLive = conf.shibboleth.ldapCache.timeToLive
+				ldapCacheRefreshAfterWrite = conf.shibboleth.ldapCache.refreshAfterWrite
 			}
 
-			if (conf.roles.loadFromUserDetailsService) {
-				userDetailsService = ref('userDetailsService')
+			if (conf.shibboleth.roles.loadFromUserDetailsService) {
+				if (conf.shibboleth.userDetailsServiceCache.maxEntries) {
+					userDetailsService = ref('shibbolethCachingUserDetailsService')
+				} else {
+					userDetailsService = ref('userDetailsService')
+				}
 			}
+
+			roleSourceThreads = conf.shibboleth.roleSources.threads
+			roleSourceQueueSize = conf.shibboleth.roleSources.queueSize
+			ldapTimeout = conf.shibboleth.roleSources.ldapTimeout
+			userDetailsServiceTimeout = conf.shibboleth.roleSources.userDetailsServiceTimeout
+			roleSourceFailurePolicy = conf.shibboleth.roleSources.failurePolicy
+			coalesceRoleLookups = conf.shibboleth.roleSources.coalesce
+			circuitBreakerFailureThreshold = conf.shibboleth.roleSources.circuitBreaker.failureThreshold
+			circuitBreakerSlowCallThreshold = conf.shibboleth.roleSources.circuitBreaker.slowCallThreshold
+			circuitBreakerOpenDuration = conf.shibboleth.roleSources.circuitBreaker.openDuration
+			staleRolesMaxEntries = conf.shibboleth.roleSources.staleRoles.maxEntries
+			staleRolesTimeToLive = conf.shibboleth.roleSources.staleRoles.timeToLive
 		}       
 
+		// cache of the users loaded from the user details service for their roles
+		if (conf.shibboleth.roles.loadFromUserDetailsService && conf.shibboleth.userDetailsServiceCache.maxEntries) {
+			shibbolethCachingUserDetailsService(ShibbolethCachingUserDetailsService) {
+				userDetailsService = ref('userDetailsService')
+				maxEntries = conf.shibboleth.userDetailsServiceCache.maxEntries
+				timeToLive = conf.shibboleth.userDetailsServiceCache.timeToLive
+				notFoundTimeToLive = conf.shibboleth.userDetailsServiceCache.notFoundTimeToLive
+			}
+		}
+
 		// shibboleth authentication provider
 		shibbolethAuthenticationProvider(ShibbolethAuthenticationProvider) {
 			if (conf.shibboleth.useShibbolethUserDetails) {
@@ -94,6 +157,11 @@ class SpringSecurityShibbolethNativeSpGrailsPlugin {
 			} else {
 				userDetailsService = ref('userDetailsService')
 			}
+			authenticationCacheMaxEntries = conf.shibboleth.authenticationCache.maxEntries
+			authenticationCacheTimeToLive = conf.shibboleth.authenticationCache.timeToLive
+			if (conf.shibboleth.metrics.active) {
+				metrics = ref('shibbolethMetrics')
+			}
 		}   
 
 		// shibboleth authentication filter 
@@ -111,9 +179,28 @@ class SpringSecurityShibbolethNativeSpGrailsPlugin {
 
 			usernameAttribute = conf.shibboleth.username.attribute
 			authenticationInstantAttribute = conf.shibboleth.authenticationInstant.attribute                               
+			sessionIdAttribute = conf.shibboleth.sessionId.attribute
 			extraAttributes = conf.shibboleth.extraAttributes
 
 			usernameStripAtDomain = conf.shibboleth.username.stripAtDomain
+			stateless = conf.shibboleth.stateless.active
+			passive = conf.shibboleth.passive.active
+			if (conf.shibboleth.metrics.active) {
+				metrics = ref('shibbolethMetrics')
+			}
+		}
+
+		// in stateless mode the security context is rebuilt on each request,
+		// so never create a session for it, or save it in one
+		if (conf.shibboleth.stateless.active) {
+			shibbolethSessionSecurityContextRepository(HttpSessionSecurityContextRepository) {
+				allowSessionCreation = conf.scr.allowSessionCreation
+				disableUrlRewriting = conf.scr.disableUrlRewriting
+			}
+			securityContextRepository(ShibbolethSecurityContextRepository) {
+				sessionRepository = ref('shibbolethSessionSecurityContextRepository')
+				authenticationFilter = ref('shibbolethAuthenticationFilter')
+			}
 		}
 
 		// shibboleth logout filter
@@ -123,10 +210,27 @@ class SpringSecurityShibbolethNativeSpGrailsPlugin {
 			principalUsernameAttribute = conf.shibboleth.principalUsername.attribute
 			authenticationMethodAttribute = conf.shibboleth.authenticationMethod.attribute
 			identityProviderAttribute = conf.shibboleth.identityProvider.attribute
+			sessionIdAttribute = conf.shibboleth.sessionId.attribute
+		}
+
+		// group membership roles loaded from an LDIF or CSV export, in place of LDAP
+		if (conf.shibboleth.groupIndex.active) {
+			shibbolethGroupMembershipIndex(GroupMembershipIndex) {
+				snapshotFile = conf.shibboleth.groupIndex.file
+				if (conf.shibboleth.groupIndex.deltaDirectory) {
+					deltaDirectory = conf.shibboleth.groupIndex.deltaDirectory
+				}
+				if (conf.shibboleth.groupIndex.format) {
+					format = conf.shibboleth.groupIndex.format
+				}
+				reloadInterval = conf.shibboleth.groupIndex.reloadInterval
+				rolePrefix = conf.shibboleth.groupIndex.rolePrefix
+				groupRoleAttribute = conf.shibboleth.groupIndex.groupRoleAttribute
+			}
 		}
 
 		// If LDAP is configured, then load authorities from LDAP
-		if (conf.ldap.active && conf.ldap.authorities.retrieveGroupRoles && conf.ldap.usernameMapper.userDnBase) {
+		if (ldapRoles) {
 			// If the LDAP plugin is installed, enabled, and set to retreive groups, then allow loading roles from LDAP
 
 			// Due to limitations in the LDAP user details service, only roles will be loaded
@@ -147,8 +251,20 @@ class SpringSecurityShibbolethNativeSpGrailsPlugin {
 			}
 		}
 
+		// DNs of the users found with the LDAP plugin's user search
+		if (ldapRoles && ldapUserSearch) {
+			shibbolethLdapUserDnResolver(LdapUserDnResolver) {
+				userSearch = ref('ldapUserSearch')
+				maxEntries = conf.shibboleth.ldapUserSearch.maxEntries
+				timeToLive = conf.shibboleth.ldapUserSearch.timeToLive
+				notFoundTimeToLive = conf.shibboleth.ldapUserSearch.notFoundTimeToLive
+			}
+		}
+
 		SpringSecurityUtils.registerProvider 'shibbolethAuthenticationProvider'
-		//SpringSecurityUtils.registerFilter 'shibbolethLogoutFilter', SecurityFilterPosition.LOGOUT_FILTER.getOrder() + 10
+		if (conf.shibboleth.logoutFilter.active) {
+			SpringSecurityUtils.registerFilter 'shibbolethLogoutFilter', SecurityFilterPosition.LOGOUT_FILTER.getOrder() + 10
+		}
 		SpringSecurityUtils.registerFilter 'shibbolethAuthenticationFilter', SecurityFilterPosition.CAS_FILTER.getOrder() - 10
 
 		println '...finished configuring Spring Security Shibboleth Native SP'
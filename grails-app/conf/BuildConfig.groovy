@@ -17,7 +17,7 @@ grails.project.dependency.resolution = {
         // uncomment the below to enable remote dependency resolution
         // from public Maven repositories
         //mavenLocal()
-        //mavenCentral()
+        mavenCentral()
         //mavenRepo "http://snapshots.repository.codehaus.org"
         //mavenRepo "http://repository.codehaus.org"
         //mavenRepo "http://download.java.net/maven/2/"
@@ -27,6 +27,17 @@ grails.project.dependency.resolution = {
         // specify dependencies here under either 'build', 'compile', 'runtime', 'test' or 'provided' scopes eg.
 
         // runtime 'mysql:mysql-connector-java:5.1.13'
+
+        // in-process LDAP server for the LDAP user search tests
+        test('org.apache.directory.server:apacheds-core:1.5.5',
+             'org.apache.directory.server:apacheds-server-jndi:1.5.5') {
+            excludes 'slf4j-api', 'bouncycastle'
+        }
+
+        // embedded servlet container for the load test harness, Grails provides the servlet API
+        test('org.eclipse.jetty:jetty-servlet:7.6.21.v20160908') {
+            excludes 'javax.servlet'
+        }
     }
 	plugins {
 		// compile ':spring-security-core:1.2.7.2'
@@ -27,6 +27,8 @@ log4j = {
            'net.sf.ehcache.hibernate'
 
     warn   'org.mortbay.log'
+
+    info   'edu.umn.shibboleth.sp.benchmark' // benchmark and load test reports
 }
 
 grails.doc.license = 'GNU General Public License v3'
@@ -5,10 +5,14 @@ security {
 
 		// Used by Controllers
 		loginUrl = '/Shibboleth.sso/Login?target={0}'
+		// login URLs for virtual hosts with their own SP handler, e.g.
+		// [ 'apps.example.edu': '/apps/Shibboleth.sso/Login?target={0}' ]
+		loginUrls = [:]
 
 		// Token Attributes
 		principalUsername.attribute = 'eppn'
 		authenticationInstant.attribute = 'Shib-Authentication-Instant'
+		sessionId.attribute = 'Shib-Session-ID'
 		username{
 			attribute = 'eppn' // sometimes this is 'uid'
 			stripAtDomain = false // remove the '@domain.edu' from the username attribute.
@@ -39,6 +43,90 @@ security {
 			// user details service
 			loadFromUserDetailsService = false
 		}
+		// A file of role mappings (roles.*, authenticationMethod.roles,
+		// identityProvider.roles and remoteAddress.roles, laid out as they are
+		// here) read at startup, and reloaded with the reloadRoleMappings JMX
+		// operation of the metrics MBean
+		roleMappings.file = null
+
+		// Users remembered for the RememberMeService after they log in
+		registeredUsers {
+			maxEntries = 10000
+			timeToLive = 28800 // seconds after the Shibboleth authentication instant
+		}
+
+		// Cache of the users loaded from the userDetailsService when
+		// roles.loadFromUserDetailsService is enabled.  Opt in, since role
+		// changes aren't seen on new logins until a user's entry expires
+		userDetailsServiceCache {
+			maxEntries = 0 // 0 disables the cache, e.g. 10000
+			timeToLive = 300 // seconds
+			notFoundTimeToLive = 60 // seconds, 0 disables caching of unknown users
+		}
+
+		// Cache of the roles loaded from LDAP, used when the LDAP plugin is set
+		// to retrieve group roles.  Opt in, since a user removed from a group
+		// keeps its role on new logins until their entry expires
+		ldapCache {
+			maxEntries = 0 // 0 disables the cache, e.g. 10000
+			timeToLive = 600 // seconds
+			refreshAfterWrite = 300 // seconds, 0 disables the background refresh
+		}
+
+		// Find users' LDAP entries with the LDAP plugin's user search (ldap.search.*)
+		// to look up their groups, rather than building their DNs from
+		// ldap.usernameMapper.userDnBase.  Opt in, since it changes which DNs
+		// existing installs look up groups for
+		ldapUserSearch {
+			active = false
+			maxEntries = 10000 // 0 disables the cache
+			timeToLive = 3600 // seconds
+			notFoundTimeToLive = 300 // seconds, 0 disables caching of unknown users
+		}
+
+		// Group membership roles loaded from an LDIF or CSV export of the
+		// directory, used instead of searching LDAP on each login
+		groupIndex {
+			active = false
+			file = null // the .ldif or .csv export
+			format = null // 'ldif' or 'csv', defaults to the file extension
+			deltaDirectory = null // .delta files applied on top of the export
+			reloadInterval = 300 // seconds, 0 never reloads
+			rolePrefix = 'ROLE_'
+			groupRoleAttribute = 'cn'
+		}
+
+		// Cache of authenticated users, keyed by their Shibboleth session, so a
+		// Shibboleth session that logs in again in a new servlet session reuses
+		// the roles it was first given
+		authenticationCache {
+			maxEntries = 10000 // 0 disables the cache
+			timeToLive = 300 // seconds
+		}
+
+		// Threads the LDAP and user details service roles are looked up on, at
+		// the same time, and how long to wait for each
+		roleSources {
+			threads = 8 // 0 looks them up on the request thread, one after the other
+			queueSize = 100
+			ldapTimeout = 5000 // milliseconds, 0 waits for ever
+			userDetailsServiceTimeout = 5000 // milliseconds, 0 waits for ever
+			failurePolicy = 'fail' // or 'partial' to log in without the roles of a source that fails
+			coalesce = true // logins of the same user at the same time share one lookup of each source
+
+			// Stop calling a source that keeps failing, and use the last roles it
+			// returned for each user while it is down
+			circuitBreaker {
+				failureThreshold = 5 // failures in a row, 0 disables the circuit breakers
+				slowCallThreshold = 2000 // milliseconds before a lookup counts as failed, 0 for no limit
+				openDuration = 30 // seconds before a lookup is let through again
+			}
+			staleRoles {
+				maxEntries = 10000 // 0 keeps none
+				timeToLive = 86400 // seconds
+			}
+		}
+
 		extraAttributes = [ 'Shib-Session-Index', 'Shib-Session-ID', 'Shib-AuthnContext-Class', 'Shib-Application-ID' ]
 
 		// Whether to user a shibboleth user details service, or a
@@ -46,6 +134,24 @@ security {
 		useShibbolethUserDetails = true
 
 
+		// Timers and rejection counters for each stage of authentication, exposed
+		// as a JMX MBean
+		metrics {
+			active = true
+			objectName = null // defaults to 'edu.umn.shibboleth.sp:type=ShibbolethMetrics,application=<app name>'
+		}
+
+		// Authenticate every request from its Shibboleth attributes, without
+		// keeping the authentication in the HttpSession
+		stateless.active = false
+
+		// Log users in on whatever URL they come back from the IdP to, rather
+		// than redirecting them through login.filterProcessesUrl
+		passive.active = false
+
+		// Log users out when their Shibboleth session no longer matches their login
+		logoutFilter.active = false
+
 		login.filterProcessesUrl = "/j_spring_shibboleth_native_sp_security_check"
 	}
 
@@ -0,0 +1,337 @@
+package edu.umn.shibboleth.sp;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * A bounded, expiring, thread safe cache used by the Shibboleth services.
+ *
+ * The cache is split in to lock striped segments, each of which is a small
+ * access ordered {@link LinkedHashMap}, so the least recently used entries
+ * are evicted once a segment is full.  Entries expire a fixed time after they
+ * are written, or at an explicit instant given to {@link #put(Object, Object, long)}.
+ *
+ * When a refresh interval is set, an entry read through {@link #get(Object, Loader)}
+ * that is older than the refresh interval is returned immediately and reloaded
+ * in the background, so callers only wait on a load when the entry is missing
+ * or has fully expired.
+ *
+ * @author <a href="mailto:ajz@umn.edu">Aaron J. Zirbes</a>
+ */
+class ExpiringCache<K, V> {
+
+	/** Loads a value for a key that is missing from the cache */
+	public interface Loader<K, V> {
+		V load(K key) throws Exception;
+	}
+
+	private static final int SEGMENT_COUNT = 16;
+
+	private final Logger logger = Logger.getLogger(this.getClass());
+
+	private final Segment<K, V>[] segments;
+	private final int maximumSize;
+	private final long timeToLive;
+	private final long refreshAfterWrite;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong loadCount = new AtomicLong();
+	private final AtomicLong loadFailureCount = new AtomicLong();
+	private final AtomicLong refreshCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	private Executor refreshExecutor;
+	private ExecutorService ownedRefreshExecutor;
+
+	/**
+	 * @param maximumSize the maximum number of entries to hold
+	 * @param timeToLive how long, in milliseconds, an entry lives after it is written
+	 * @param refreshAfterWrite how long, in milliseconds, before an entry is reloaded
+	 *		in the background when it is read, or 0 to never refresh
+	 */
+	@SuppressWarnings("unchecked")
+	public ExpiringCache(int maximumSize, long timeToLive, long refreshAfterWrite) {
+		if (maximumSize <= 0) { throw new IllegalArgumentException("maximumSize must be positive"); }
+		if (timeToLive <= 0) { throw new IllegalArgumentException("timeToLive must be positive"); }
+
+		this.maximumSize = maximumSize;
+		this.timeToLive = timeToLive;
+		this.refreshAfterWrite = (refreshAfterWrite > 0 && refreshAfterWrite < timeToLive) ? refreshAfterWrite : 0;
+
+		// spread the maximum size over the segments, so they add up to exactly maximumSize
+		int segmentCount = Math.min(SEGMENT_COUNT, maximumSize);
+		this.segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			int segmentSize = maximumSize / segmentCount + ((i < maximumSize % segmentCount) ? 1 : 0);
+			segments[i] = new Segment<K, V>(segmentSize, evictionCount);
+		}
+	}
+
+	/** Returns the cached value, or null if it is missing or expired */
+	public V get(K key) {
+		CacheEntry<V> entry = getEntry(key, System.currentTimeMillis());
+		if (entry == null) {
+			missCount.incrementAndGet();
+			return null;
+		}
+		hitCount.incrementAndGet();
+		return entry.value;
+	}
+
+	/**
+	 * Returns the cached value, loading it if it is missing or expired.  Values
+	 * that are due to be refreshed are returned as is, and reloaded in the background.
+	 * Null values returned by the loader are not cached.
+	 */
+	public V get(final K key, final Loader<K, V> loader) throws Exception {
+		long now = System.currentTimeMillis();
+		final CacheEntry<V> entry = getEntry(key, now);
+
+		if (entry != null) {
+			hitCount.incrementAndGet();
+			if (refreshAfterWrite > 0 && now - entry.written >= refreshAfterWrite
+					&& entry.refreshing.compareAndSet(false, true)) {
+				refresh(key, entry, loader);
+			}
+			return entry.value;
+		}
+
+		missCount.incrementAndGet();
+		V value = load(key, loader);
+		if (value != null) {
+			put(key, value);
+		}
+		return value;
+	}
+
+	/** Adds a value that expires after the configured time to live */
+	public void put(K key, V value) {
+		long now = System.currentTimeMillis();
+		put(key, value, now, now + timeToLive);
+	}
+
+	/** Adds a value that expires at the given time (in milliseconds since the epoch) */
+	public void put(K key, V value, long expiresAt) {
+		put(key, value, System.currentTimeMillis(), expiresAt);
+	}
+
+	private void put(K key, V value, long written, long expiresAt) {
+		if (key == null || value == null) { return; }
+		Segment<K, V> segment = segmentFor(key);
+		synchronized (segment) {
+			segment.put(key, new CacheEntry<V>(value, written, expiresAt));
+		}
+	}
+
+	/** Removes a single entry */
+	public void invalidate(K key) {
+		if (key == null) { return; }
+		Segment<K, V> segment = segmentFor(key);
+		synchronized (segment) {
+			segment.remove(key);
+		}
+	}
+
+	/** Removes every entry */
+	public void invalidateAll() {
+		for (Segment<K, V> segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	/** Removes every expired entry */
+	public void cleanUp() {
+		long now = System.currentTimeMillis();
+		for (Segment<K, V> segment : segments) {
+			synchronized (segment) {
+				for (Iterator<CacheEntry<V>> iter = segment.values().iterator(); iter.hasNext();) {
+					if (iter.next().expiresAt <= now) {
+						iter.remove();
+						evictionCount.incrementAndGet();
+					}
+				}
+			}
+		}
+	}
+
+	/** Returns the number of entries, including any expired entries not yet removed */
+	public int size() {
+		int size = 0;
+		for (Segment<K, V> segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	public int getMaximumSize() { return maximumSize; }
+	public long getTimeToLive() { return timeToLive; }
+	public long getRefreshAfterWrite() { return refreshAfterWrite; }
+
+	public long getHitCount() { return hitCount.get(); }
+	public long getMissCount() { return missCount.get(); }
+	public long getLoadCount() { return loadCount.get(); }
+	public long getLoadFailureCount() { return loadFailureCount.get(); }
+	public long getRefreshCount() { return refreshCount.get(); }
+	public long getEvictionCount() { return evictionCount.get(); }
+
+	/** Returns the hit, miss and eviction statistics */
+	public String getStatistics() {
+		return "size=" + size() + ", hits=" + hitCount.get() + ", misses=" + missCount.get() +
+			", loads=" + loadCount.get() + ", loadFailures=" + loadFailureCount.get() +
+			", refreshes=" + refreshCount.get() + ", evictions=" + evictionCount.get();
+	}
+
+	public String toString() {
+		return "ExpiringCache[" + getStatistics() + "]";
+	}
+
+	/**
+	 * Sets the executor used for background refreshes.  If none is set, a single
+	 * daemon thread is started the first time an entry is refreshed.
+	 */
+	public void setRefreshExecutor(final Executor refreshExecutor) {
+		this.refreshExecutor = refreshExecutor;
+	}
+
+	/** Stops the refresh thread started by this cache, if any */
+	public synchronized void shutdown() {
+		if (ownedRefreshExecutor != null) {
+			ownedRefreshExecutor.shutdownNow();
+			ownedRefreshExecutor = null;
+		}
+	}
+
+	private CacheEntry<V> getEntry(K key, long now) {
+		if (key == null) { return null; }
+		Segment<K, V> segment = segmentFor(key);
+		synchronized (segment) {
+			CacheEntry<V> entry = segment.get(key);
+			if (entry != null && entry.expiresAt <= now) {
+				segment.remove(key);
+				evictionCount.incrementAndGet();
+				entry = null;
+			}
+			return entry;
+		}
+	}
+
+	private V load(K key, Loader<K, V> loader) throws Exception {
+		try {
+			V value = loader.load(key);
+			loadCount.incrementAndGet();
+			return value;
+		} catch (Exception ex) {
+			loadFailureCount.incrementAndGet();
+			throw ex;
+		}
+	}
+
+	private void refresh(final K key, final CacheEntry<V> entry, final Loader<K, V> loader) {
+		try {
+			getRefreshExecutor().execute(new Runnable() {
+				public void run() {
+					try {
+						V value = load(key, loader);
+						refreshCount.incrementAndGet();
+						if (value != null) {
+							put(key, value);
+						}
+					} catch (Exception ex) {
+						logger.debug("unable to refresh cache entry for " + key, ex);
+					} finally {
+						entry.refreshing.set(false);
+					}
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			// the refresh queue is full; the next read will try again
+			entry.refreshing.set(false);
+		}
+	}
+
+	private synchronized Executor getRefreshExecutor() {
+		if (refreshExecutor != null) {
+			return refreshExecutor;
+		}
+		if (ownedRefreshExecutor == null) {
+			ownedRefreshExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(1024), new DaemonThreadFactory("shibboleth-cache-refresh"));
+		}
+		return ownedRefreshExecutor;
+	}
+
+	private Segment<K, V> segmentFor(Object key) {
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);
+		return segments[(hash & 0x7fffffff) % segments.length];
+	}
+
+	/** A cached value, and when it was written */
+	private static final class CacheEntry<V> {
+		private final V value;
+		private final long written;
+		private final long expiresAt;
+		private final AtomicBoolean refreshing = new AtomicBoolean();
+
+		private CacheEntry(V value, long written, long expiresAt) {
+			this.value = value;
+			this.written = written;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	/** One lock stripe of the cache, evicting its least recently used entry when full */
+	private static final class Segment<K, V> extends LinkedHashMap<K, CacheEntry<V>> {
+		private static final long serialVersionUID = 1L;
+
+		private final int maximumSize;
+		private final AtomicLong evictionCount;
+
+		private Segment(int maximumSize, AtomicLong evictionCount) {
+			super(16, 0.75f, true);
+			this.maximumSize = maximumSize;
+			this.evictionCount = evictionCount;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+			if (size() > maximumSize) {
+				evictionCount.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/** Creates named daemon threads, so background work never holds up a shutdown */
+	static final class DaemonThreadFactory implements ThreadFactory {
+		private final String name;
+		private final AtomicLong count = new AtomicLong();
+
+		DaemonThreadFactory(String name) {
+			this.name = name;
+		}
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,566 @@
+package edu.umn.shibboleth.sp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.util.Assert;
+
+/**
+ * An in-memory index of group membership roles, loaded from an LDIF or CSV
+ * export of the directory, to use in place of an LDAP search on every login.
+ *
+ * The snapshot file is either LDIF (a {@code .ldif} file), with an entry per
+ * group holding its name in {@code groupRoleAttribute} and its members in
+ * {@code member}, {@code uniqueMember} (as DNs, whose first value is the
+ * username) or {@code memberUid} attributes, or CSV, with a line per user
+ * holding the username followed by one or more group names.
+ *
+ * Delta files in {@code deltaDirectory} (files ending in {@code .delta}) are
+ * applied on top of the snapshot, in name order.  Each line is a CSV line
+ * prefixed with {@code +} to add the groups to the user, or {@code -} to
+ * remove them.  Lines starting with {@code #} are comments.
+ *
+ * The index is rebuilt off to the side and swapped in whole, so a lookup
+ * always sees one consistent snapshot, and is a single hash probe.  Every
+ * {@code reloadInterval} seconds the snapshot is reloaded if it has changed,
+ * and otherwise any new delta files are applied.  A changed snapshot is only
+ * reloaded once its size and modification time are the same at two reloads in
+ * a row, so an export that is still being written isn't loaded.  A file that
+ * can't be read or parsed leaves the current index in place.
+ *
+ * Group names become roles as they do with the LDAP plugin: upper cased, with
+ * spaces and dashes replaced by underscores, and prefixed with {@code rolePrefix}.
+ * The roles are registered in {@link ShibbolethAuthorities}, and the users of a
+ * snapshot share one authority per role, even once the registry is full.
+ *
+ * @author <a href="mailto:ajz@umn.edu">Aaron J. Zirbes</a>
+ */
+class GroupMembershipIndex implements InitializingBean, DisposableBean {
+
+	private final Logger logger = Logger.getLogger(this.getClass());
+
+	private static final GrantedAuthority[] NO_ROLES = new GrantedAuthority[0];
+	private static final String DELTA_SUFFIX = ".delta";
+	private static final String BASE64_DIGITS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+	private File snapshotFile;
+	private File deltaDirectory;
+	private String format;
+	private String groupRoleAttribute = "cn";
+	private String rolePrefix = "ROLE_";
+	private long reloadInterval = 300;
+
+	/** The roles of each user, swapped whole on every reload */
+	private volatile Index index = new Index(Collections.<String, GrantedAuthority[]>emptyMap(),
+		Collections.<String, GrantedAuthority>emptyMap(), 0, 0, 0);
+
+	private long snapshotLastModified;
+	private long snapshotLength;
+	/** The modification time and size of a changed snapshot at the last refresh, waiting to be loaded */
+	private long pendingLastModified = -1;
+	private long pendingLength = -1;
+	private final Map<String, Long> appliedDeltas = new HashMap<String, Long>();
+	private ScheduledExecutorService reloadExecutor;
+
+	/** Loads the snapshot and deltas, and schedules the reloads */
+	public void afterPropertiesSet() throws IOException {
+		Assert.notNull(snapshotFile, "snapshotFile must be set");
+		Assert.isTrue(format == null || "csv".equalsIgnoreCase(format) || "ldif".equalsIgnoreCase(format),
+			"format must be 'csv' or 'ldif'");
+
+		reload();
+
+		if (reloadInterval > 0) {
+			reloadExecutor = Executors.newSingleThreadScheduledExecutor(
+				new ExpiringCache.DaemonThreadFactory("shibboleth-group-index"));
+			reloadExecutor.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						refresh();
+					} catch (Exception ex) {
+						logger.error("unable to reload the group membership index, keeping the current one", ex);
+					}
+				}
+			}, reloadInterval, reloadInterval, TimeUnit.SECONDS);
+		}
+	}
+
+	/** Stops the reloads */
+	public void destroy() {
+		if (reloadExecutor != null) {
+			reloadExecutor.shutdownNow();
+			reloadExecutor = null;
+		}
+	}
+
+	/** Returns the roles of the user, which must not be modified */
+	public GrantedAuthority[] findRoles(String username) {
+		if (username == null) { return NO_ROLES; }
+
+		GrantedAuthority[] roles = index.roles.get(username.toLowerCase(Locale.ENGLISH));
+		return (roles != null) ? roles : NO_ROLES;
+	}
+
+	/** Returns the number of users with roles */
+	public int size() {
+		return index.roles.size();
+	}
+
+	/** Returns the size of the index, and when and how it was last loaded */
+	public String getStatistics() {
+		Index current = index;
+		return "users=" + current.roles.size() + ", distinctRoleSets=" + current.roleSets
+			+ ", deltasApplied=" + current.deltas + ", loadedAt=" + current.loadedAt;
+	}
+
+	/**
+	 * Reloads the snapshot if it has changed, and hasn't changed again since the
+	 * last refresh, or else applies any new delta files
+	 */
+	public synchronized void refresh() throws IOException {
+		long lastModified = snapshotFile.lastModified();
+		long length = snapshotFile.length();
+		if (lastModified != snapshotLastModified || length != snapshotLength) {
+			if (lastModified == pendingLastModified && length == pendingLength) {
+				pendingLastModified = -1;
+				pendingLength = -1;
+				reload();
+			} else {
+				// it may still be being written, so wait until it stays the same for a refresh
+				pendingLastModified = lastModified;
+				pendingLength = length;
+				if (logger.isDebugEnabled()) { logger.debug(snapshotFile + " has changed, reloading it if it is the same at the next refresh"); }
+			}
+			return;
+		}
+
+		Index current = index;
+		Map<String, Long> applied = new HashMap<String, Long>(appliedDeltas);
+		Map<String, GrantedAuthority[]> roles = new HashMap<String, GrantedAuthority[]>(current.roles);
+		Map<String, GrantedAuthority> authorities = new HashMap<String, GrantedAuthority>(current.authorities);
+		int deltas = applyDeltas(roles, authorities, applied, snapshotLastModified);
+		if (deltas > 0) {
+			swap(new Index(roles, authorities, current.roleSets, current.deltas + deltas, System.currentTimeMillis()), applied);
+			if (logger.isInfoEnabled()) { logger.info("applied " + deltas + " group membership deltas: " + getStatistics()); }
+		}
+	}
+
+	/** Loads the snapshot and every delta file, and swaps them in if they could all be parsed */
+	public synchronized void reload() throws IOException {
+		long lastModified = snapshotFile.lastModified();
+		long length = snapshotFile.length();
+		Map<String, Set<String>> groups = isLdif() ? readLdif(snapshotFile) : readCsv(snapshotFile);
+
+		Map<String, GrantedAuthority[]> roles = new HashMap<String, GrantedAuthority[]>(groups.size() * 4 / 3 + 1);
+		Map<List<String>, GrantedAuthority[]> roleSets = new HashMap<List<String>, GrantedAuthority[]>();
+		Map<String, GrantedAuthority> authorities = new HashMap<String, GrantedAuthority>();
+		for (Map.Entry<String, Set<String>> entry : groups.entrySet()) {
+			roles.put(entry.getKey(), roleSet(entry.getValue(), roleSets, authorities));
+		}
+
+		Map<String, Long> applied = new HashMap<String, Long>();
+		int deltas = applyDeltas(roles, authorities, applied, lastModified);
+
+		snapshotLastModified = lastModified;
+		snapshotLength = length;
+		swap(new Index(roles, authorities, roleSets.size(), deltas, System.currentTimeMillis()), applied);
+		if (logger.isInfoEnabled()) { logger.info("loaded the group membership index from " + snapshotFile + ": " + getStatistics()); }
+	}
+
+	/** Publishes a fully built index, and remembers the delta files that went in to it */
+	private void swap(Index loaded, Map<String, Long> applied) {
+		index = loaded;
+		appliedDeltas.clear();
+		appliedDeltas.putAll(applied);
+	}
+
+	/**
+	 * Applies the delta files to the roles that aren't in {@code applied} yet, and returns how many were.
+	 * Delta files older than the snapshot are taken to be part of it already.  The roles they add
+	 * share the authorities of the snapshot.
+	 */
+	private int applyDeltas(Map<String, GrantedAuthority[]> roles, Map<String, GrantedAuthority> authorities,
+			Map<String, Long> applied, long snapshotModified) throws IOException {
+		File[] files = (deltaDirectory != null) ? deltaDirectory.listFiles() : null;
+		if (files == null) { return 0; }
+		Arrays.sort(files);
+
+		int count = 0;
+		for (File file : files) {
+			if (!file.isFile() || !file.getName().endsWith(DELTA_SUFFIX)) { continue; }
+
+			Long lastModified = Long.valueOf(file.lastModified());
+			if (lastModified.equals(applied.get(file.getName()))) { continue; }
+
+			if (lastModified.longValue() >= snapshotModified) {
+				applyDelta(file, roles, authorities);
+				count++;
+			}
+			applied.put(file.getName(), lastModified);
+		}
+		return count;
+	}
+
+	/** Applies the additions and removals of a delta file */
+	private void applyDelta(File file, Map<String, GrantedAuthority[]> roles, Map<String, GrantedAuthority> authorities)
+			throws IOException {
+		BufferedReader reader = open(file);
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.length() == 0 || line.charAt(0) == '#') { continue; }
+
+				boolean remove = line.charAt(0) == '-';
+				if (remove || line.charAt(0) == '+') { line = line.substring(1); }
+
+				List<String> fields = splitCsv(line, file, lineNumber);
+				if (fields.size() < 2) { continue; }
+
+				String username = fields.get(0).toLowerCase(Locale.ENGLISH);
+				Set<GrantedAuthority> userRoles = new LinkedHashSet<GrantedAuthority>();
+				GrantedAuthority[] existing = roles.get(username);
+				if (existing != null) { userRoles.addAll(Arrays.asList(existing)); }
+				for (String group : fields.subList(1, fields.size())) {
+					GrantedAuthority role = role(roleName(group), authorities);
+					if (remove) {
+						userRoles.remove(role);
+					} else {
+						userRoles.add(role);
+					}
+				}
+
+				if (userRoles.isEmpty()) {
+					roles.remove(username);
+				} else {
+					roles.put(username, userRoles.toArray(new GrantedAuthority[userRoles.size()]));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/** Reads a CSV file of a username followed by group names on each line */
+	Map<String, Set<String>> readCsv(File file) throws IOException {
+		Map<String, Set<String>> groups = new LinkedHashMap<String, Set<String>>();
+		BufferedReader reader = open(file);
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.length() == 0 || line.charAt(0) == '#') { continue; }
+
+				List<String> fields = splitCsv(line, file, lineNumber);
+				for (int i = 1; i < fields.size(); i++) {
+					addMember(groups, fields.get(0), fields.get(i));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return groups;
+	}
+
+	/** Reads an LDIF file of group entries */
+	Map<String, Set<String>> readLdif(File file) throws IOException {
+		Map<String, Set<String>> groups = new LinkedHashMap<String, Set<String>>();
+		BufferedReader reader = open(file);
+		try {
+			List<String> group = new ArrayList<String>();
+			List<String> members = new ArrayList<String>();
+			String line;
+			String attribute = null;
+			int lineNumber = 0;
+			int attributeLineNumber = 0;
+			do {
+				line = reader.readLine();
+				lineNumber++;
+
+				// a line starting with a space continues the one before it
+				if (line != null && line.length() > 0 && line.charAt(0) == ' ' && attribute != null) {
+					attribute += line.substring(1);
+					continue;
+				}
+
+				if (attribute != null) {
+					readLdifAttribute(attribute, group, members, file, attributeLineNumber);
+					attribute = null;
+				}
+
+				if (line == null || line.length() == 0) {
+					// the end of an entry
+					for (String name : group) {
+						for (String member : members) {
+							addMember(groups, member, name);
+						}
+					}
+					group.clear();
+					members.clear();
+				} else if (line.charAt(0) != '#') {
+					attribute = line;
+					attributeLineNumber = lineNumber;
+				}
+			} while (line != null);
+		} finally {
+			reader.close();
+		}
+		return groups;
+	}
+
+	/** Collects the group name or member held by an LDIF attribute line */
+	private void readLdifAttribute(String line, List<String> group, List<String> members, File file, int lineNumber)
+			throws IOException {
+		int colon = line.indexOf(':');
+		if (colon <= 0) { throw parseError(file, lineNumber, "not an attribute"); }
+
+		String name = line.substring(0, colon);
+		String value;
+		if (line.length() > colon + 1 && line.charAt(colon + 1) == ':') {
+			value = decodeBase64(line.substring(colon + 2).trim());
+			if (value == null) { throw parseError(file, lineNumber, "the value of " + name + " is not base64"); }
+		} else {
+			value = line.substring(colon + 1).trim();
+		}
+		if (value.length() == 0) { return; }
+
+		if (name.equalsIgnoreCase(groupRoleAttribute)) {
+			group.add(value);
+		} else if (name.equalsIgnoreCase("member") || name.equalsIgnoreCase("uniqueMember")) {
+			String username = firstRdnValue(value);
+			if (username != null) { members.add(username); }
+		} else if (name.equalsIgnoreCase("memberUid")) {
+			members.add(value);
+		}
+	}
+
+	/** Returns the value of the first part of a DN, e.g. 'jdoe' for 'uid=jdoe,ou=people,dc=example,dc=edu' */
+	static String firstRdnValue(String dn) {
+		int equals = dn.indexOf('=');
+		if (equals < 0) { return null; }
+
+		StringBuilder value = new StringBuilder();
+		for (int i = equals + 1; i < dn.length(); i++) {
+			char c = dn.charAt(i);
+			if (c == '\\' && i + 1 < dn.length()) {
+				value.append(dn.charAt(++i));
+			} else if (c == ',' || c == '+') {
+				break;
+			} else {
+				value.append(c);
+			}
+		}
+		String username = value.toString().trim();
+		return (username.length() > 0) ? username : null;
+	}
+
+	/** Splits a CSV line of a file, allowing fields in double quotes */
+	private static List<String> splitCsv(String line, File file, int lineNumber) throws IOException {
+		List<String> fields = splitCsv(line);
+		if (fields == null) { throw parseError(file, lineNumber, "a quoted field is not closed"); }
+		return fields;
+	}
+
+	/** Splits a CSV line, allowing fields in double quotes, or returns null if a quote isn't closed */
+	static List<String> splitCsv(String line) {
+		List<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					field.append('"');
+					i++;
+				} else if (c == '"') {
+					quoted = false;
+				} else {
+					field.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				addField(fields, field);
+			} else {
+				field.append(c);
+			}
+		}
+		if (quoted) { return null; }
+		addField(fields, field);
+		return fields;
+	}
+
+	/** The error for a line that can't be parsed, which keeps the current index */
+	private static IOException parseError(File file, int lineNumber, String problem) {
+		return new IOException("unable to parse line " + lineNumber + " of " + file + ": " + problem);
+	}
+
+	private static void addField(List<String> fields, StringBuilder field) {
+		String value = field.toString().trim();
+		if (value.length() > 0) { fields.add(value); }
+		field.setLength(0);
+	}
+
+	/** Turns a group name in to a role name, as the LDAP plugin does */
+	String roleName(String group) {
+		String role = group.trim().toUpperCase(Locale.ENGLISH).replace(' ', '_').replace('-', '_');
+		return (rolePrefix != null && !role.startsWith(rolePrefix)) ? rolePrefix + role : role;
+	}
+
+	/** Returns the shared array of roles for the groups, so users in the same groups share one */
+	private GrantedAuthority[] roleSet(Set<String> groups, Map<List<String>, GrantedAuthority[]> roleSets,
+			Map<String, GrantedAuthority> authorities) {
+		List<String> names = new ArrayList<String>(groups.size());
+		for (String group : groups) {
+			String role = roleName(group);
+			if (!names.contains(role)) { names.add(role); }
+		}
+
+		GrantedAuthority[] roles = roleSets.get(names);
+		if (roles == null) {
+			roles = new GrantedAuthority[names.size()];
+			for (int i = 0; i < roles.length; i++) {
+				roles[i] = role(names.get(i), authorities);
+			}
+			roleSets.put(names, roles);
+		}
+		return roles;
+	}
+
+	/** Returns the authority for the role that the users being loaded share */
+	private static GrantedAuthority role(String name, Map<String, GrantedAuthority> authorities) {
+		GrantedAuthority role = authorities.get(name);
+		if (role == null) {
+			role = ShibbolethAuthorities.register(name);
+			authorities.put(name, role);
+		}
+		return role;
+	}
+
+	private static void addMember(Map<String, Set<String>> groups, String username, String group) {
+		String key = username.toLowerCase(Locale.ENGLISH);
+		Set<String> userGroups = groups.get(key);
+		if (userGroups == null) {
+			userGroups = new LinkedHashSet<String>();
+			groups.put(key, userGroups);
+		}
+		userGroups.add(group);
+	}
+
+	private boolean isLdif() {
+		if (format != null) { return "ldif".equalsIgnoreCase(format); }
+		return snapshotFile.getName().toLowerCase(Locale.ENGLISH).endsWith(".ldif");
+	}
+
+	private static BufferedReader open(File file) throws IOException {
+		Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+		return new BufferedReader(reader);
+	}
+
+	/**
+	 * Decodes a base64 LDIF value, which is UTF-8 text, or returns null if it isn't base64.
+	 * This is done here since javax.xml.bind is no longer part of the JDK.
+	 */
+	static String decodeBase64(String value) {
+		byte[] bytes = new byte[value.length() * 3 / 4 + 1];
+		int length = 0;
+		int buffer = 0;
+		int bits = 0;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '=') { break; }
+			if (Character.isWhitespace(c)) { continue; }
+
+			int digit = BASE64_DIGITS.indexOf(c);
+			if (digit < 0) { return null; }
+
+			buffer = (buffer << 6) | digit;
+			bits += 6;
+			if (bits >= 8) {
+				bits -= 8;
+				bytes[length++] = (byte) (buffer >> bits);
+				buffer &= (1 << bits) - 1;
+			}
+		}
+
+		try {
+			return new String(bytes, 0, length, "UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/** The LDIF or CSV snapshot of the group memberships */
+	public void setSnapshotFile(final File snapshotFile) {
+		this.snapshotFile = snapshotFile;
+	}
+
+	/** The directory of {@code .delta} files to apply on top of the snapshot, if any */
+	public void setDeltaDirectory(final File deltaDirectory) {
+		this.deltaDirectory = deltaDirectory;
+	}
+
+	/** 'ldif' or 'csv', by default worked out from the snapshot file name */
+	public void setFormat(final String format) {
+		this.format = format;
+	}
+
+	/** The LDIF attribute holding the group name, usually 'cn' */
+	public void setGroupRoleAttribute(final String groupRoleAttribute) {
+		this.groupRoleAttribute = groupRoleAttribute;
+	}
+
+	/** The prefix of the role names, usually 'ROLE_' */
+	public void setRolePrefix(final String rolePrefix) {
+		this.rolePrefix = rolePrefix;
+	}
+
+	/** How often, in seconds, to look for a new snapshot or delta files, 0 never reloads */
+	public void setReloadInterval(final long reloadInterval) {
+		this.reloadInterval = reloadInterval;
+	}
+
+	/** One immutable load of the index */
+	private static final class Index {
+		private final Map<String, GrantedAuthority[]> roles;
+		/** The authority of each role, shared by the snapshot's users and the roles deltas add */
+		private final Map<String, GrantedAuthority> authorities;
+		private final int roleSets;
+		private final int deltas;
+		private final long loadedAt;
+
+		private Index(Map<String, GrantedAuthority[]> roles, Map<String, GrantedAuthority> authorities,
+				int roleSets, int deltas, long loadedAt) {
+			this.roles = roles;
+			this.authorities = authorities;
+			this.roleSets = roleSets;
+			this.deltas = deltas;
+			this.loadedAt = loadedAt;
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package edu.umn.shibboleth.sp;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A pre-compiled index of the {@code remoteAddress.roles} configuration.
+ *
+ * The configured CIDR ranges are parsed once, and stored in a binary prefix
+ * trie (one for IPv4 and one for IPv6).  A lookup walks the bits of the remote
+ * address a single time, collecting the roles of every range that contains it,
+ * rather than building a new {@link org.springframework.security.web.util.IpAddressMatcher}
+ * for every configured range on every login.
+ *
+ * Matching follows the same rules as {@code IpAddressMatcher}: a range without
+ * a mask only matches the exact address, and IPv4 ranges never match IPv6
+ * addresses (or vice versa).
+ *
+ * @author <a href="mailto:ajz@umn.edu">Aaron J. Zirbes</a>
+ */
+class IpAddressRoleIndex {
+
+	private final Node ipv4Root = new Node();
+	private final Node ipv6Root = new Node();
+	private final int rangeCount;
+
+	/**
+	 * Compiles a map of role names to a collection of IP address ranges
+	 * (e.g. {@code [ 'ROLE_IP_UMN_VPN': ['134.84.0.0/23'] ]}).
+	 *
+	 * @throws IllegalArgumentException if any of the ranges can not be parsed
+	 */
+	public IpAddressRoleIndex(Map<String, ? extends Object> ipAddressRoles) {
+		int ranges = 0;
+		if (ipAddressRoles != null) {
+			for (Map.Entry<String, ? extends Object> entry : ipAddressRoles.entrySet()) {
+				String role = entry.getKey();
+				Object value = entry.getValue();
+				if (value instanceof Collection) {
+					for (Object range : (Collection<?>) value) {
+						addRange(role, range.toString());
+						ranges++;
+					}
+				} else if (value != null) {
+					addRange(role, value.toString());
+					ranges++;
+				}
+			}
+		}
+		this.rangeCount = ranges;
+	}
+
+	/** Returns true if no ranges were configured */
+	public boolean isEmpty() {
+		return rangeCount == 0;
+	}
+
+	/** Returns the number of ranges compiled into this index */
+	public int size() {
+		return rangeCount;
+	}
+
+	/**
+	 * Returns every role whose ranges contain the given remote address.  A role is
+	 * returned once for each of its ranges that matched.
+	 *
+	 * @throws IllegalArgumentException if the remote address can not be parsed
+	 */
+	public List<String> findRoles(String remoteAddress) {
+		List<String> roles = null;
+
+		long ipv4 = parseIpv4(remoteAddress);
+		if (ipv4 >= 0) {
+			Node node = ipv4Root;
+			for (int bit = 31; node != null; bit--) {
+				roles = collect(node, roles);
+				if (bit < 0) { break; }
+				node = node.children[(int) (ipv4 >>> bit) & 1];
+			}
+		} else {
+			byte[] address = parseAddress(remoteAddress);
+			Node node = (address.length == 4) ? ipv4Root : ipv6Root;
+			int bits = address.length * 8;
+			for (int bit = 0; node != null; bit++) {
+				roles = collect(node, roles);
+				if (bit >= bits) { break; }
+				node = node.children[bitAt(address, bit)];
+			}
+		}
+
+		if (roles == null) {
+			return Collections.emptyList();
+		}
+		return roles;
+	}
+
+	private static List<String> collect(Node node, List<String> roles) {
+		if (node.roles != null) {
+			if (roles == null) { roles = new ArrayList<String>(); }
+			for (String role : node.roles) {
+				roles.add(role);
+			}
+		}
+		return roles;
+	}
+
+	private void addRange(String role, String range) {
+		String address = range;
+		int maskBits = -1;
+
+		int slash = range.indexOf('/');
+		if (slash > 0) {
+			address = range.substring(0, slash);
+			try {
+				maskBits = Integer.parseInt(range.substring(slash + 1).trim());
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("Invalid mask in IP address range '" + range + "' for " + role);
+			}
+		}
+
+		byte[] network = parseAddress(address.trim());
+		int bits = network.length * 8;
+		if (maskBits < 0) {
+			maskBits = bits;
+		} else if (maskBits > bits) {
+			throw new IllegalArgumentException("Mask is too long in IP address range '" + range + "' for " + role);
+		}
+
+		Node node = (network.length == 4) ? ipv4Root : ipv6Root;
+		for (int bit = 0; bit < maskBits; bit++) {
+			int branch = bitAt(network, bit);
+			if (node.children[branch] == null) {
+				node.children[branch] = new Node();
+			}
+			node = node.children[branch];
+		}
+		node.addRole(role);
+	}
+
+	private static int bitAt(byte[] address, int bit) {
+		return (address[bit >> 3] >> (7 - (bit & 7))) & 1;
+	}
+
+	private static byte[] parseAddress(String address) {
+		try {
+			return InetAddress.getByName(address).getAddress();
+		} catch (UnknownHostException ex) {
+			throw new IllegalArgumentException("Failed to parse address '" + address + "'", ex);
+		}
+	}
+
+	/**
+	 * Parses a dotted quad IPv4 address without allocating.
+	 * Returns -1 if the address is not a plain dotted quad.
+	 */
+	private static long parseIpv4(String address) {
+		if (address == null) { return -1; }
+		int length = address.length();
+		if (length < 7 || length > 15) { return -1; }
+
+		long result = 0;
+		int octet = 0;
+		int digits = 0;
+		int dots = 0;
+		for (int i = 0; i < length; i++) {
+			char c = address.charAt(i);
+			if (c >= '0' && c <= '9') {
+				octet = octet * 10 + (c - '0');
+				digits++;
+				if (digits > 3 || octet > 255) { return -1; }
+			} else if (c == '.' && digits > 0 && dots < 3) {
+				result = (result << 8) | octet;
+				octet = 0;
+				digits = 0;
+				dots++;
+			} else {
+				return -1;
+			}
+		}
+		if (dots != 3 || digits == 0) { return -1; }
+		return (result << 8) | octet;
+	}
+
+	/** A node in the prefix trie, holding the roles for the range ending here */
+	private static final class Node {
+		private final Node[] children = new Node[2];
+		private String[] roles;
+
+		private void addRole(String role) {
+			if (roles == null) {
+				roles = new String[] { role };
+			} else {
+				String[] expanded = new String[roles.length + 1];
+				System.arraycopy(roles, 0, expanded, 0, roles.length);
+				expanded[roles.length] = role;
+				roles = expanded;
+			}
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package edu.umn.shibboleth.sp;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.ldap.core.DirContextOperations;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.security.ldap.search.LdapUserSearch;
+import org.springframework.util.Assert;
+
+/**
+ * Resolves usernames to the DNs of their LDAP entries, using the LDAP plugin's
+ * user search, so the group membership roles can be found for users anywhere
+ * in the directory rather than only those directly under {@code userDnBase}.
+ *
+ * DNs are cached, and usernames the search can't find are remembered for a
+ * (usually shorter) time as well, so a login whose LDAP roles aren't cached
+ * only has to search for the user's groups, and a user who isn't in the
+ * directory doesn't cost a search at all.
+ *
+ * @author <a href="mailto:ajz@umn.edu">Aaron J. Zirbes</a>
+ */
+class LdapUserDnResolver implements InitializingBean {
+
+	private final Logger logger = Logger.getLogger(this.getClass());
+
+	/** Stands in for a user the search could not find */
+	private static final String NOT_FOUND = new String("");
+
+	private LdapUserSearch userSearch;
+	private int maxEntries = 10000;
+	private long timeToLive = 3600;
+	private long notFoundTimeToLive = 300;
+
+	private ExpiringCache<String, String> cache;
+
+	/** Ensure all configuration settings are set */
+	public void afterPropertiesSet() {
+		Assert.notNull(userSearch, "userSearch cannot be null");
+		Assert.isTrue(maxEntries >= 0, "maxEntries cannot be negative");
+		Assert.isTrue(timeToLive > 0, "timeToLive must be positive");
+
+		if (maxEntries > 0) {
+			cache = new ExpiringCache<String, String>(maxEntries, timeToLive * 1000, 0);
+		}
+	}
+
+	/** Returns the DN of the user's entry, or null if the user is not in the directory */
+	public String resolveDn(String username) {
+		if (cache != null) {
+			String cached = cache.get(username);
+			if (cached == NOT_FOUND) {
+				return null;
+			} else if (cached != null) {
+				return cached;
+			}
+		}
+
+		String userDn;
+		try {
+			DirContextOperations user = userSearch.searchForUser(username);
+			userDn = user.getNameInNamespace();
+		} catch (UsernameNotFoundException ex) {
+			if (logger.isDebugEnabled()) { logger.debug("no LDAP entry for " + username); }
+			if (cache != null && notFoundTimeToLive > 0) {
+				cache.put(username, NOT_FOUND, System.currentTimeMillis() + notFoundTimeToLive * 1000);
+			}
+			return null;
+		}
+
+		if (cache != null) {
+			cache.put(username, userDn);
+		}
+		return userDn;
+	}
+
+	/** Removes a user from the cache, e.g. after their entry is moved */
+	public void evict(String username) {
+		if (cache != null) { cache.invalidate(username); }
+	}
+
+	/** Removes every user from the cache */
+	public void evictAll() {
+		if (cache != null) { cache.invalidateAll(); }
+	}
+
+	/** Returns the hit, miss and eviction statistics of the cache */
+	public String getStatistics() {
+		return (cache != null) ? cache.getStatistics() : "disabled";
+	}
+
+	/** The LDAP plugin's user search, usually the {@code ldapUserSearch} bean */
+	public void setUserSearch(final LdapUserSearch userSearch) {
+		this.userSearch = userSearch;
+	}
+
+	/** The maximum number of DNs to cache, 0 searches on every lookup */
+	public void setMaxEntries(final int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	/** How long, in seconds, to cache DNs for */
+	public void setTimeToLive(final long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	/** How long, in seconds, to remember users that were not found, 0 to never remember them */
+	public void setNotFoundTimeToLive(final long notFoundTimeToLive) {
+		this.notFoundTimeToLive = notFoundTimeToLive;
+	}
+}
@@ -0,0 +1,254 @@
+package edu.umn.shibboleth.sp;
+
+import groovy.util.ConfigObject;
+import groovy.util.ConfigSlurper;
+import java.io.File;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.springframework.security.core.GrantedAuthority;
+
+/**
+ * The role mapping settings of the {@link ShibbolethUserDetailsService},
+ * compiled into the indexes a login looks its roles up in.
+ *
+ * A snapshot is never changed once it is built: changing a setting builds a
+ * new snapshot, which the user details service publishes in one step, so a
+ * login sees either all of the old settings or all of the new ones without
+ * taking a lock.
+ *
+ * {@link #withConfig} applies a file in the same layout as the plugin's
+ * security config, read with a {@link ConfigSlurper}, e.g.
+ * <pre>
+ * roles {
+ *     attribute = 'Shib-Roles'
+ *     separator = ','
+ *     prefix = 'SHIB_'
+ * }
+ * authenticationMethod.roles = [ 'ROLE_MKEY': 'https://www.umn.edu/shibboleth/classes/authncontext/mkey' ]
+ * identityProvider.roles = [ 'ROLE_IDP_UMN': 'https://idp2.shib.umn.edu/idp/shibboleth' ]
+ * remoteAddress.roles = [ 'ROLE_IP_UMN_VPN': [ '134.84.0.0/23' ] ]
+ * </pre>
+ * Settings the file leaves out keep their current values.
+ *
+ * @author <a href="mailto:ajz@umn.edu">Aaron J. Zirbes</a>
+ */
+final class RoleMappings {
+
+	static final String ROLES_ATTRIBUTE = "roles.attribute";
+	static final String ROLES_SEPARATOR = "roles.separator";
+	static final String ROLES_PREFIX = "roles.prefix";
+	static final String AUTHENTICATION_METHOD_ROLES = "authenticationMethod.roles";
+	static final String IDENTITY_PROVIDER_ROLES = "identityProvider.roles";
+	static final String IP_ADDRESS_ROLES = "remoteAddress.roles";
+
+	/** A setting the config file leaves out */
+	private static final Object NOT_SET = new Object();
+
+	/** This is the exposed attribute that contains the user's roles */
+	final String rolesAttribute;
+	/** This is the delimiter for the roles attribute value */
+	final String rolesSeparator;
+	/** This is the prefix to apply to all the roles loaded from the exposed roles attribute */
+	final String rolesPrefix;
+	/** Splits the roles attribute, null unless the attribute, separator and prefix are all set */
+	final RolesTokenizer rolesTokenizer;
+
+	final Map<String, String> authenticationMethodRoles;
+	/** The {@code authenticationMethodRoles} inverted into authentication method to roles */
+	final Map<String, GrantedAuthority[]> authenticationMethodIndex;
+
+	final Map<String, String> identityProviderRoles;
+	/** The {@code identityProviderRoles} inverted into identity provider to roles */
+	final Map<String, GrantedAuthority[]> identityProviderIndex;
+
+	final Map<String, ? extends Object> ipAddressRoles;
+	/** The {@code ipAddressRoles} compiled into a prefix trie, null if there are none */
+	final IpAddressRoleIndex ipAddressRoleIndex;
+
+	/** The mappings of a user details service that hasn't been configured */
+	RoleMappings(String rolesAttribute, String rolesSeparator, String rolesPrefix) {
+		this(rolesAttribute, rolesSeparator, rolesPrefix, null, null, null);
+	}
+
+	/**
+	 * Compiles the settings
+	 *
+	 * @throws IllegalArgumentException if any of the IP address ranges can not be parsed
+	 */
+	private RoleMappings(String rolesAttribute, String rolesSeparator, String rolesPrefix,
+			Map<String, String> authenticationMethodRoles, Map<String, String> identityProviderRoles,
+			Map<String, ? extends Object> ipAddressRoles) {
+		this.rolesAttribute = rolesAttribute;
+		this.rolesSeparator = rolesSeparator;
+		this.rolesPrefix = rolesPrefix;
+		this.rolesTokenizer = (hasLength(rolesAttribute) && hasLength(rolesSeparator) && hasLength(rolesPrefix))
+			? new RolesTokenizer(rolesSeparator, rolesPrefix) : null;
+
+		this.authenticationMethodRoles = copy(authenticationMethodRoles);
+		this.authenticationMethodIndex = invertRoles(authenticationMethodRoles);
+		this.identityProviderRoles = copy(identityProviderRoles);
+		this.identityProviderIndex = invertRoles(identityProviderRoles);
+
+		this.ipAddressRoles = (ipAddressRoles != null) ? copy(ipAddressRoles) : null;
+		IpAddressRoleIndex index = (ipAddressRoles != null) ? new IpAddressRoleIndex(ipAddressRoles) : null;
+		this.ipAddressRoleIndex = (index != null && !index.isEmpty()) ? index : null;
+	}
+
+	RoleMappings withRolesAttribute(String rolesAttribute) {
+		return new RoleMappings(rolesAttribute, rolesSeparator, rolesPrefix,
+			authenticationMethodRoles, identityProviderRoles, ipAddressRoles);
+	}
+
+	RoleMappings withRolesSeparator(String rolesSeparator) {
+		return new RoleMappings(rolesAttribute, rolesSeparator, rolesPrefix,
+			authenticationMethodRoles, identityProviderRoles, ipAddressRoles);
+	}
+
+	RoleMappings withRolesPrefix(String rolesPrefix) {
+		return new RoleMappings(rolesAttribute, rolesSeparator, rolesPrefix,
+			authenticationMethodRoles, identityProviderRoles, ipAddressRoles);
+	}
+
+	RoleMappings withAuthenticationMethodRoles(Map<String, String> authenticationMethodRoles) {
+		return new RoleMappings(rolesAttribute, rolesSeparator, rolesPrefix,
+			authenticationMethodRoles, identityProviderRoles, ipAddressRoles);
+	}
+
+	RoleMappings withIdentityProviderRoles(Map<String, String> identityProviderRoles) {
+		return new RoleMappings(rolesAttribute, rolesSeparator, rolesPrefix,
+			authenticationMethodRoles, identityProviderRoles, ipAddressRoles);
+	}
+
+	RoleMappings withIpAddressRoles(Map<String, ? extends Object> ipAddressRoles) {
+		return new RoleMappings(rolesAttribute, rolesSeparator, rolesPrefix,
+			authenticationMethodRoles, identityProviderRoles, ipAddressRoles);
+	}
+
+	/**
+	 * Reads the file with a {@link ConfigSlurper}, and returns these mappings
+	 * with the settings it has replaced
+	 *
+	 * @throws IllegalArgumentException if the file can not be read, or a setting is not valid
+	 */
+	RoleMappings withConfig(File file) {
+		if (!file.isFile()) { throw new IllegalArgumentException("unable to read role mappings from " + file); }
+
+		Map<?, ?> config;
+		try {
+			config = new ConfigSlurper().parse(file.toURI().toURL());
+		} catch (MalformedURLException ex) {
+			throw new IllegalArgumentException("unable to read role mappings from " + file, ex);
+		} catch (RuntimeException ex) {
+			throw new IllegalArgumentException("unable to parse role mappings from " + file + ": " + ex.getMessage(), ex);
+		}
+
+		Object attribute = setting(config, ROLES_ATTRIBUTE);
+		Object separator = setting(config, ROLES_SEPARATOR);
+		Object prefix = setting(config, ROLES_PREFIX);
+		Object authenticationMethods = setting(config, AUTHENTICATION_METHOD_ROLES);
+		Object identityProviders = setting(config, IDENTITY_PROVIDER_ROLES);
+		Object ipAddresses = setting(config, IP_ADDRESS_ROLES);
+
+		return new RoleMappings(
+			(attribute != NOT_SET) ? string(attribute) : rolesAttribute,
+			(separator != NOT_SET) ? string(separator) : rolesSeparator,
+			(prefix != NOT_SET) ? string(prefix) : rolesPrefix,
+			(authenticationMethods != NOT_SET)
+				? stringMap(AUTHENTICATION_METHOD_ROLES, authenticationMethods) : authenticationMethodRoles,
+			(identityProviders != NOT_SET)
+				? stringMap(IDENTITY_PROVIDER_ROLES, identityProviders) : identityProviderRoles,
+			(ipAddresses != NOT_SET) ? map(IP_ADDRESS_ROLES, ipAddresses) : ipAddressRoles);
+	}
+
+	@Override
+	public String toString() {
+		return "authenticationMethodRoles=" + authenticationMethodRoles.size()
+			+ ", identityProviderRoles=" + identityProviderRoles.size()
+			+ ", ipAddressRoles=" + ((ipAddressRoles != null) ? ipAddressRoles.size() : 0)
+			+ ", rolesAttribute=" + rolesAttribute;
+	}
+
+	/**
+	 * Returns the value of a dotted setting, or {@link #NOT_SET} if the file
+	 * leaves it out.  An empty block, which is also what reading a missing
+	 * setting in the file leaves behind, is not set.
+	 */
+	private static Object setting(Map<?, ?> config, String name) {
+		Object value = config;
+		for (String key : name.split("\\.")) {
+			if (!(value instanceof Map) || !((Map<?, ?>) value).containsKey(key)) { return NOT_SET; }
+			value = ((Map<?, ?>) value).get(key);
+		}
+		return (value instanceof ConfigObject && ((ConfigObject) value).isEmpty()) ? NOT_SET : value;
+	}
+
+	private static Map<String, ? extends Object> map(String name, Object value) {
+		if (value == null) { return null; }
+		if (!(value instanceof Map)) {
+			throw new IllegalArgumentException(name + " must be a map of role name to value, not " + value);
+		}
+
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+			map.put(String.valueOf(entry.getKey()), entry.getValue());
+		}
+		return map;
+	}
+
+	private static Map<String, String> stringMap(String name, Object value) {
+		Map<String, ? extends Object> map = map(name, value);
+		if (map == null) { return null; }
+
+		Map<String, String> strings = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, ? extends Object> entry : map.entrySet()) {
+			strings.put(entry.getKey(), string(entry.getValue()));
+		}
+		return strings;
+	}
+
+	private static String string(Object value) {
+		return (value != null) ? value.toString() : null;
+	}
+
+	private static <V> Map<String, V> copy(Map<String, V> map) {
+		if (map == null || map.isEmpty()) { return Collections.emptyMap(); }
+		return Collections.unmodifiableMap(new LinkedHashMap<String, V>(map));
+	}
+
+	/**
+	 * Inverts a map of role name to value (IdP or authentication method) into
+	 * a map of value to the roles it grants.
+	 */
+	private static Map<String, GrantedAuthority[]> invertRoles(Map<String, String> roles) {
+		if (roles == null || roles.isEmpty()) {
+			return Collections.emptyMap();
+		}
+
+		Map<String, List<GrantedAuthority>> grouped = new HashMap<String, List<GrantedAuthority>>();
+		for (Map.Entry<String, String> entry : roles.entrySet()) {
+			if (entry.getValue() == null) { continue; }
+			String value = String.valueOf(entry.getValue());
+			List<GrantedAuthority> granted = grouped.get(value);
+			if (granted == null) {
+				granted = new ArrayList<GrantedAuthority>(1);
+				grouped.put(value, granted);
+			}
+			granted.add(ShibbolethAuthorities.register(String.valueOf(entry.getKey())));
+		}
+
+		Map<String, GrantedAuthority[]> index = new HashMap<String, GrantedAuthority[]>();
+		for (Map.Entry<String, List<GrantedAuthority>> entry : grouped.entrySet()) {
+			index.put(entry.getKey(), entry.getValue().toArray(new GrantedAuthority[entry.getValue().size()]));
+		}
+		return index;
+	}
+
+	private static boolean hasLength(String value) {
+		return value != null && value.length() > 0;
+	}
+}
@@ -0,0 +1,132 @@
+package edu.umn.shibboleth.sp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * A circuit breaker around an external role source, e.g. LDAP, so a source
+ * that is failing or slow is left alone for a while rather than holding up
+ * every login.
+ *
+ * The breaker opens after {@code failureThreshold} failures in a row, where
+ * a lookup that takes longer than {@code slowCallThreshold} counts as a
+ * failure.  While it is open lookups are not made at all.  After
+ * {@code openDuration} it lets a single probe through: if that succeeds the
+ * breaker closes again, and if it fails it stays open for another
+ * {@code openDuration}.
+ *
+ * A closed breaker takes no locks, so it costs next to nothing while the
+ * source is healthy.
+ *
+ * @author <a href="mailto:ajz@umn.edu">Aaron J. Zirbes</a>
+ */
+class RoleSourceCircuitBreaker {
+
+	private final Logger logger = Logger.getLogger(this.getClass());
+
+	/** The states of the breaker */
+	enum State { CLOSED, OPEN, HALF_OPEN }
+
+	private final String name;
+	private final int failureThreshold;
+	private final long slowCallThreshold;
+	private final long openDuration;
+
+	private volatile State state = State.CLOSED;
+	private volatile int consecutiveFailures = 0;
+	/** When the breaker last opened, or the probe was let through */
+	private long changedAt;
+	private boolean probing;
+
+	private final AtomicLong openedCount = new AtomicLong();
+	private final AtomicLong closedCount = new AtomicLong();
+	private final AtomicLong shortCircuitedCount = new AtomicLong();
+
+	/**
+	 * @param name the name of the role source, for the log
+	 * @param failureThreshold the number of failures in a row that open the breaker
+	 * @param slowCallThreshold how long, in milliseconds, before a lookup counts as failed, 0 for no limit
+	 * @param openDuration how long, in milliseconds, the breaker stays open before it lets a probe through
+	 */
+	RoleSourceCircuitBreaker(String name, int failureThreshold, long slowCallThreshold, long openDuration) {
+		if (failureThreshold <= 0) { throw new IllegalArgumentException("failureThreshold must be positive"); }
+		if (openDuration <= 0) { throw new IllegalArgumentException("openDuration must be positive"); }
+
+		this.name = name;
+		this.failureThreshold = failureThreshold;
+		this.slowCallThreshold = slowCallThreshold;
+		this.openDuration = openDuration;
+	}
+
+	/** Returns true if a lookup may be made, or false if the breaker is open */
+	boolean allowRequest() {
+		if (state == State.CLOSED) { return true; }
+
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			if (state == State.CLOSED) {
+				return true;
+			} else if (now - changedAt < openDuration) {
+				shortCircuitedCount.incrementAndGet();
+				return false;
+			} else if (state == State.OPEN || !probing) {
+				transition(State.HALF_OPEN);
+			}
+
+			// let one probe through, or another one if the last never finished
+			changedAt = now;
+			probing = true;
+			return true;
+		}
+	}
+
+	/** Records a lookup that finished, in the given number of milliseconds */
+	void recordSuccess(long elapsed) {
+		if (slowCallThreshold > 0 && elapsed > slowCallThreshold) {
+			recordFailure();
+			return;
+		}
+		if (state == State.CLOSED && consecutiveFailures == 0) { return; }
+
+		synchronized (this) {
+			consecutiveFailures = 0;
+			probing = false;
+			if (state != State.CLOSED) {
+				transition(State.CLOSED);
+			}
+		}
+	}
+
+	/** Records a lookup that failed or timed out */
+	synchronized void recordFailure() {
+		consecutiveFailures++;
+		probing = false;
+		if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+			changedAt = System.currentTimeMillis();
+			transition(State.OPEN);
+		}
+	}
+
+	private void transition(State to) {
+		if (to == State.OPEN) {
+			openedCount.incrementAndGet();
+			logger.warn("the " + name + " role source failed " + consecutiveFailures
+				+ " times in a row, leaving it alone for " + openDuration + "ms");
+		} else if (to == State.CLOSED) {
+			closedCount.incrementAndGet();
+			logger.warn("the " + name + " role source has recovered");
+		}
+		state = to;
+	}
+
+	State getState() { return state; }
+	long getOpenedCount() { return openedCount.get(); }
+	long getClosedCount() { return closedCount.get(); }
+	long getShortCircuitedCount() { return shortCircuitedCount.get(); }
+
+	@Override
+	public String toString() {
+		return name + "=" + state + " (opened=" + openedCount.get() + ", closed=" + closedCount.get()
+			+ ", shortCircuited=" + shortCircuitedCount.get() + ")";
+	}
+}
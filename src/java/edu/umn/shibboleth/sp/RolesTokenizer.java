@@ -0,0 +1,113 @@
+package edu.umn.shibboleth.sp;
+
+import java.util.Collection;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.util.Assert;
+
+/**
+ * Splits the value of the roles attribute into role authorities.
+ *
+ * The value is split on the configured separator, which is matched literally
+ * rather than as a regular expression, and on the {@code ;} the Shibboleth SP
+ * uses to join the values of a multi-valued attribute.  A {@code \;} is an
+ * escaped semicolon inside a value.  Each value is trimmed, empty values are
+ * skipped, and the rest are upper-cased and prefixed with {@code ROLE_} and the
+ * roles prefix.  The roles are written straight into the authority set, so no
+ * intermediate arrays or collections are built.
+ *
+ * @author <a href="mailto:ajz@umn.edu">Aaron J. Zirbes</a>
+ */
+final class RolesTokenizer {
+
+	/** The Shibboleth SP separates multiple attribute values with this */
+	private static final char MULTI_VALUE_SEPARATOR = ';';
+	/** The Shibboleth SP escapes a separator inside an attribute value with this */
+	private static final char ESCAPE = '\\';
+
+	private final String separator;
+	private final String rolePrefix;
+
+	/** Builds a tokenizer for the roles separator and prefix */
+	RolesTokenizer(String separator, String prefix) {
+		Assert.hasLength(separator, "separator cannot be empty");
+
+		this.separator = separator;
+		this.rolePrefix = "ROLE_" + ((prefix != null) ? prefix : "");
+	}
+
+	/** Adds the roles in the attribute value to the authorities, and returns how many values were found */
+	int addRoles(String value, Collection<GrantedAuthority> authorities) {
+		if (value == null) { return 0; }
+
+		int length = value.length();
+		int separatorLength = separator.length();
+		char separatorStart = separator.charAt(0);
+		StringBuilder role = null;
+		int roles = 0;
+		int start = 0;
+		boolean escaped = false;
+
+		int i = 0;
+		while (i <= length) {
+			int next;
+			if (i == length) {
+				next = i + 1;
+			} else {
+				char c = value.charAt(i);
+				if (c == ESCAPE && i + 1 < length && value.charAt(i + 1) == MULTI_VALUE_SEPARATOR) {
+					escaped = true;
+					i += 2;
+					continue;
+				} else if (c == MULTI_VALUE_SEPARATOR) {
+					next = i + 1;
+				} else if (c == separatorStart && value.startsWith(separator, i)) {
+					next = i + separatorLength;
+				} else {
+					i++;
+					continue;
+				}
+			}
+
+			if (role == null) { role = new StringBuilder(rolePrefix.length() + 32).append(rolePrefix); }
+			if (appendRole(value, start, i, escaped, role)) {
+				authorities.add(ShibbolethAuthorities.share(role.toString()));
+				roles++;
+			}
+
+			start = next;
+			i = next;
+			escaped = false;
+		}
+		return roles;
+	}
+
+	/**
+	 * Replaces whatever follows the role prefix in the builder with the trimmed,
+	 * upper-cased value between start and end.  Returns false if the value is empty.
+	 */
+	private boolean appendRole(String value, int start, int end, boolean escaped, StringBuilder role) {
+		while (start < end && value.charAt(start) <= ' ') { start++; }
+		while (end > start && value.charAt(end - 1) <= ' ') { end--; }
+		if (start == end) { return false; }
+
+		role.setLength(rolePrefix.length());
+		for (int i = start; i < end; i++) {
+			char c = value.charAt(i);
+			if (escaped && c == ESCAPE && i + 1 < end && value.charAt(i + 1) == MULTI_VALUE_SEPARATOR) {
+				continue;
+			} else if (c >= 'a' && c <= 'z') {
+				role.append((char) (c - ('a' - 'A')));
+			} else if (c < 128) {
+				role.append(c);
+			} else {
+				// leave anything outside of ASCII to the locale aware String.toUpperCase()
+				String token = value.substring(start, end);
+				if (escaped) { token = token.replace("\\;", ";"); }
+				role.setLength(rolePrefix.length());
+				role.append(token.toUpperCase());
+				return true;
+			}
+		}
+		return true;
+	}
+}
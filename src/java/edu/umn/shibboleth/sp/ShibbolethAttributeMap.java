@@ -0,0 +1,201 @@
+package edu.umn.shibboleth.sp;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An immutable map of the extra attributes read from a request.
+ *
+ * The keys are the configured extra attribute names, shared by every map the
+ * {@link ShibbolethAuthenticationFilter} builds, and the values are held in an
+ * array of the same length.  Attributes that were not set on the request have
+ * a {@code null} value and are not part of the map.  With only a handful of
+ * attributes a scan of the keys is as fast as hashing, and far smaller than a
+ * {@code HashMap} held for the whole session.
+ *
+ * The values are kept as the SP sent them.  {@link #getValues} splits a
+ * multi-valued attribute into a list the first time it is asked for, and keeps
+ * the list for as long as the map, so only the attributes that are read are
+ * ever split.
+ *
+ * @author <a href="mailto:ajz@umn.edu">Aaron J. Zirbes</a>
+ */
+final class ShibbolethAttributeMap extends AbstractMap<String, String> implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/** The Shibboleth SP separates multiple attribute values with this */
+	private static final char MULTI_VALUE_SEPARATOR = ';';
+	/** The Shibboleth SP escapes a separator inside an attribute value with this */
+	private static final char ESCAPE = '\\';
+
+	/** A map without any attributes */
+	static final ShibbolethAttributeMap EMPTY = new ShibbolethAttributeMap(new String[0], new String[0], 0);
+
+	private final String[] keys;
+	private final String[] values;
+	private final int size;
+	/** The values split into lists, by key index, created the first time any are asked for */
+	private transient volatile AtomicReferenceArray<List<String>> splitCache;
+
+	/**
+	 * Wraps the keys and values, which must not be modified afterwards.
+	 * {@code size} is the number of non-null values.
+	 */
+	ShibbolethAttributeMap(String[] keys, String[] values, int size) {
+		this.keys = keys;
+		this.values = values;
+		this.size = size;
+	}
+
+	@Override
+	public String get(Object key) {
+		int index = indexOf(key);
+		return (index >= 0) ? values[index] : null;
+	}
+
+	/**
+	 * Returns the unmodifiable list of the attribute's values, or an empty list
+	 * if it isn't set.  The list is built the first time it is asked for.
+	 */
+	List<String> getValues(String key) {
+		int index = indexOf(key);
+		if (index < 0) { return Collections.emptyList(); }
+
+		AtomicReferenceArray<List<String>> cache = splitCache;
+		if (cache == null) {
+			// two threads may both create one, which only costs a split
+			cache = new AtomicReferenceArray<List<String>>(keys.length);
+			splitCache = cache;
+		}
+
+		List<String> list = cache.get(index);
+		if (list == null) {
+			list = splitValues(values[index]);
+			cache.set(index, list);
+		}
+		return list;
+	}
+
+	/**
+	 * Returns the values of an attribute in the map, split as {@link #getValues} does,
+	 * only keeping them if the map is one of these
+	 */
+	static List<String> getValues(Map<String, String> attributes, String key) {
+		if (attributes instanceof ShibbolethAttributeMap) { return ((ShibbolethAttributeMap) attributes).getValues(key); }
+		return splitValues((attributes != null) ? attributes.get(key) : null);
+	}
+
+	/**
+	 * Splits an attribute value on the {@code ;} the Shibboleth SP joins
+	 * multiple values with, unescaping any {@code \;} inside a value.  Empty
+	 * values are skipped.
+	 */
+	static List<String> splitValues(String value) {
+		if (value == null || value.length() == 0) { return Collections.emptyList(); }
+		if (value.indexOf(MULTI_VALUE_SEPARATOR) < 0) { return Collections.singletonList(value); }
+
+		List<String> split = new ArrayList<String>(4);
+		StringBuilder escaped = null;
+		int start = 0;
+		int length = value.length();
+		for (int i = 0; i <= length; i++) {
+			if (i < length && value.charAt(i) != MULTI_VALUE_SEPARATOR) { continue; }
+
+			if (i < length && i > start && value.charAt(i - 1) == ESCAPE) {
+				// an escaped separator is part of the value
+				if (escaped == null) { escaped = new StringBuilder(); }
+				escaped.append(value, start, i - 1).append(MULTI_VALUE_SEPARATOR);
+				start = i + 1;
+				continue;
+			}
+
+			if (escaped != null) {
+				split.add(escaped.append(value, start, i).toString());
+				escaped = null;
+			} else if (i > start) {
+				split.add(value.substring(start, i));
+			}
+			start = i + 1;
+		}
+		return (split.size() == 1) ? Collections.singletonList(split.get(0)) : Collections.unmodifiableList(split);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public Set<Map.Entry<String, String>> entrySet() {
+		return new AbstractSet<Map.Entry<String, String>>() {
+			@Override
+			public Iterator<Map.Entry<String, String>> iterator() {
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	/** Returns the index of the key, or -1 if it isn't in the map */
+	private int indexOf(Object key) {
+		if (key == null) { return -1; }
+
+		for (int i = 0; i < keys.length; i++) {
+			if (values[i] != null && keys[i].equals(key)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/** Iterates over the attributes that have a value */
+	private final class EntryIterator implements Iterator<Map.Entry<String, String>> {
+
+		private int next = advance(0);
+
+		public boolean hasNext() {
+			return next < keys.length;
+		}
+
+		public Map.Entry<String, String> next() {
+			if (next >= keys.length) { throw new NoSuchElementException(); }
+
+			Map.Entry<String, String> entry = new AbstractMap.SimpleImmutableEntry<String, String>(keys[next], values[next]);
+			next = advance(next + 1);
+			return entry;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException("attributes are immutable");
+		}
+
+		private int advance(int index) {
+			while (index < keys.length && values[index] == null) { index++; }
+			return index;
+		}
+	}
+}
@@ -2,6 +2,10 @@ package edu.umn.shibboleth.sp;
 
 import java.io.IOException;
 import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -14,24 +18,46 @@ import org.apache.log4j.Logger;
 /**
 	Processes a login request and redirects to shibboleth login
 
+	The redirect only depends on the scheme, host, port and context path of the
+	request, so it is built once for each of them and cached.  Virtual hosts
+	served by different SP handlers can be given their own login URL in
+	{@code loginUrls}, keyed by host name.
+
 	@author <a href="mailto:ajz@umn.edu">Aaron J. Zirbes</a>
 */
 class ShibbolethAuthenticationEntryPoint implements AuthenticationEntryPoint, InitializingBean {
 
 	private final Logger logger = Logger.getLogger(this.getClass());
 
-	/** This is the SP login URL, typically this is '/Shibboleth.sso/Login', but you 
+	private static final int DEFAULT_REDIRECT_CACHE_MAX_ENTRIES = 1000;
+	private static final long DEFAULT_REDIRECT_CACHE_TIME_TO_LIVE = 3600;
+
+	/** This is the SP login URL, typically this is '/Shibboleth.sso/Login', but you
 	can change it if your implementation is different */
 	private String loginUrl = "/Shibboleth.sso/Login?target={0}";
+	private LoginUrlTemplate loginUrlTemplate = new LoginUrlTemplate(loginUrl);
+
+	/** SP login URLs for virtual hosts with their own SP handler, keyed by lower case host name */
+	private Map<String, LoginUrlTemplate> loginUrlTemplates = Collections.emptyMap();
 
 	/** Set the URL encoding UTF */
-	private String utfEncoding = "ISO-8859-1";
+	private String utfEncoding = "UTF-8";
 
 	/** This is where we should come back to after logging in via Shiboleth */
 	private static final String securityCheckUri = "/j_spring_shibboleth_native_sp_security_check";
 
+	/** The maximum number of hosts to cache redirects for */
+	private int redirectCacheMaxEntries = DEFAULT_REDIRECT_CACHE_MAX_ENTRIES;
+	/** The redirect for each scheme, host, port and context path */
+	private ExpiringCache<String, String> redirectUrls = new ExpiringCache<String, String>(
+		DEFAULT_REDIRECT_CACHE_MAX_ENTRIES, DEFAULT_REDIRECT_CACHE_TIME_TO_LIVE * 1000, 0);
+
 	public void afterPropertiesSet() throws Exception {
 		Assert.hasLength(loginUrl, "loginUrl must be specified");
+		Assert.isTrue(redirectCacheMaxEntries > 0, "redirectCacheMaxEntries must be positive");
+
+		redirectUrls = new ExpiringCache<String, String>(redirectCacheMaxEntries,
+			DEFAULT_REDIRECT_CACHE_TIME_TO_LIVE * 1000, 0);
 	}
 
 	public final void commence(final HttpServletRequest servletRequest, final HttpServletResponse response,
@@ -41,11 +67,23 @@ class ShibbolethAuthenticationEntryPoint implements AuthenticationEntryPoint, In
 
 		preCommence(servletRequest, response);
 
-		logger.debug("redirecting to: " + redirectUrl);
+		if (logger.isDebugEnabled()) { logger.debug("redirecting to: " + redirectUrl); }
 		response.sendRedirect(redirectUrl);
 	}
 
 	private String createRedirectUrl(final HttpServletRequest request) {
+		String key = request.getScheme() + "://" + request.getServerName() + ":" + request.getServerPort()
+			+ request.getContextPath();
+
+		String redirectUrl = redirectUrls.get(key);
+		if (redirectUrl == null) {
+			redirectUrl = buildRedirectUrl(request);
+			redirectUrls.put(key, redirectUrl);
+		}
+		return redirectUrl;
+	}
+
+	private String buildRedirectUrl(final HttpServletRequest request) {
 		// Build the full redirect URL
 		String server = request.getRequestURL().toString();
 		// https:// == 7 characters, start looking for the trailing slash after that.
@@ -61,11 +99,17 @@ class ShibbolethAuthenticationEntryPoint implements AuthenticationEntryPoint, In
 		String uri = server + request.getContextPath() + this.securityCheckUri;
 		String returnUrl = uri;
 		try {
-			returnUrl = URLEncoder.encode(uri.toString(), utfEncoding);
+			returnUrl = URLEncoder.encode(uri, utfEncoding);
 		} catch (java.io.UnsupportedEncodingException ex) {
 			logger.debug("unable to encode URL using " + utfEncoding);
 		}
-		return this.loginUrl.replace("{0}", returnUrl);
+
+		LoginUrlTemplate template = loginUrlTemplate;
+		if (!loginUrlTemplates.isEmpty() && request.getServerName() != null) {
+			LoginUrlTemplate hostTemplate = loginUrlTemplates.get(request.getServerName().toLowerCase(Locale.ENGLISH));
+			if (hostTemplate != null) { template = hostTemplate; }
+		}
+		return template.format(returnUrl);
 	}
 
 	/**
@@ -77,11 +121,74 @@ class ShibbolethAuthenticationEntryPoint implements AuthenticationEntryPoint, In
 	protected void preCommence(final HttpServletRequest request, final HttpServletResponse response) {
 	}
 
+	/** Returns the hit, miss and eviction statistics of the redirect cache */
+	public String getRedirectCacheStatistics() {
+		return redirectUrls.getStatistics();
+	}
+
 	public void setUtfEncoding(final String utfEncoding) {
 		this.utfEncoding = utfEncoding;
+		redirectUrls.invalidateAll();
 	}
 
 	public void setLoginUrl(final String loginUrl) {
 		this.loginUrl = loginUrl;
+		this.loginUrlTemplate = new LoginUrlTemplate(loginUrl);
+		redirectUrls.invalidateAll();
+	}
+
+	/** SP login URLs, keyed by host name, for virtual hosts that don't use the default {@code loginUrl} */
+	public void setLoginUrls(final Map<String, String> loginUrls) {
+		Map<String, LoginUrlTemplate> templates = new HashMap<String, LoginUrlTemplate>();
+		if (loginUrls != null) {
+			for (Map.Entry<String, String> entry : loginUrls.entrySet()) {
+				Assert.hasLength(entry.getValue(), "the loginUrl for " + entry.getKey() + " must be specified");
+				templates.put(entry.getKey().toLowerCase(Locale.ENGLISH), new LoginUrlTemplate(entry.getValue()));
+			}
+		}
+		this.loginUrlTemplates = templates;
+		redirectUrls.invalidateAll();
+	}
+
+	/** The maximum number of scheme, host, port and context path combinations to cache redirects for */
+	public void setRedirectCacheMaxEntries(final int redirectCacheMaxEntries) {
+		this.redirectCacheMaxEntries = redirectCacheMaxEntries;
+	}
+
+	/** A login URL split around its {0} placeholders, so it is only parsed once */
+	private static final class LoginUrlTemplate {
+		private static final String PLACEHOLDER = "{0}";
+
+		private final String[] parts;
+		private final int length;
+
+		private LoginUrlTemplate(String loginUrl) {
+			String url = (loginUrl != null) ? loginUrl : "";
+			int count = 0;
+			for (int i = url.indexOf(PLACEHOLDER); i >= 0; i = url.indexOf(PLACEHOLDER, i + PLACEHOLDER.length())) {
+				count++;
+			}
+
+			parts = new String[count + 1];
+			int start = 0;
+			for (int i = 0; i < count; i++) {
+				int end = url.indexOf(PLACEHOLDER, start);
+				parts[i] = url.substring(start, end);
+				start = end + PLACEHOLDER.length();
+			}
+			parts[count] = url.substring(start);
+			length = url.length() - count * PLACEHOLDER.length();
+		}
+
+		private String format(String target) {
+			if (parts.length == 1) { return parts[0]; }
+
+			StringBuilder url = new StringBuilder(length + (parts.length - 1) * target.length());
+			url.append(parts[0]);
+			for (int i = 1; i < parts.length; i++) {
+				url.append(target).append(parts[i]);
+			}
+			return url.toString();
+		}
 	}
 }
@@ -2,20 +2,48 @@ package edu.umn.shibboleth.sp;
 
 import java.io.IOException;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 import org.apache.log4j.Logger;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.authentication.event.InteractiveAuthenticationSuccessEvent;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.web.authentication.AbstractAuthenticationProcessingFilter;
+import org.springframework.security.web.authentication.RememberMeServices;
+import org.springframework.security.web.authentication.session.SessionAuthenticationStrategy;
 import org.springframework.util.Assert;
 
 
 /**
 	Processes a {@link ShibbolethAuthenticationToken}, and authenticates via Shibboleth if available.
+	<p/>
+	The configured attribute names are compiled into an {@link ExtractionPlan} when
+	the filter is set up, so each request only reads the attributes it needs and
+	builds the token's attributes as a {@link ShibbolethAttributeMap}.
+	<p/>
+	In {@code stateless} mode every request that mod_shib has asserted a user for
+	is authenticated from its own attributes, unless it already carries a matching
+	authentication, and the {@code SecurityContext} is restored once the request is
+	done.  The {@link ShibbolethSecurityContextRepository} never saves the context
+	of these requests, so nothing needs to be kept in, or replicated with, the
+	HttpSession.  The provider's authentication cache keeps the cost of each
+	request low.  Requests to {@code filterProcessesUrl} still log in as usual.
+	<p/>
+	In {@code passive} mode a request mod_shib has asserted a user for, on any
+	URL, is logged in where it is when there is no authentication in the
+	{@code SecurityContext} yet, and carries on down the chain, rather than being
+	sent to {@code filterProcessesUrl} and then redirected back.  Once logged in,
+	each request only checks that the Shibboleth session still matches.
 
 	@author <a href="mailto:ajz@umn.edu">Aaron J. Zirbes</a>
 */
@@ -29,8 +57,21 @@ class ShibbolethAuthenticationFilter extends AbstractAuthenticationProcessingFil
 	private String authenticationMethodAttribute;
 	private String identityProviderAttribute;
 	private String authenticationInstantAttribute;
+	private String sessionIdAttribute = "Shib-Session-ID";
 	private boolean usernameStripAtDomain;
 	private Collection<String> extraAttributes;
+	private boolean stateless = false;
+	private boolean passive = false;
+	private SessionAuthenticationStrategy sessionStrategy;
+
+	/** The prefix of the filter's timers and rejection counters */
+	static final String METRICS_PREFIX = "filter.";
+
+	private ShibbolethMetrics metrics;
+	private ShibbolethMetrics.Timer extractionTimer;
+
+	/** The attribute configuration, compiled by afterPropertiesSet() */
+	private volatile ExtractionPlan extractionPlan;
 
 	/** Ensure all configuration settings are set */
 	@Override
@@ -44,6 +85,8 @@ class ShibbolethAuthenticationFilter extends AbstractAuthenticationProcessingFil
 		Assert.notNull(identityProviderAttribute, "identityProviderAttribute cannot be null");
 		Assert.notNull(authenticationInstantAttribute, "authenticationInstantAttribute cannot be null");
 		Assert.notNull(extraAttributes, "extraAttributes cannot be null");
+
+		extractionPlan = new ExtractionPlan(this);
 	}
 
 	/** The default constructor */
@@ -57,14 +100,144 @@ class ShibbolethAuthenticationFilter extends AbstractAuthenticationProcessingFil
 		this.setFilterProcessesUrl(filterProcessesUrl);
 	}
 
+	/**
+	 * Authenticates every request in stateless mode, any request without an
+	 * authentication in passive mode, otherwise only requests to {@code filterProcessesUrl}
+	 */
+	@Override
+	public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain)
+			throws IOException, ServletException {
+
+		HttpServletRequest request = (HttpServletRequest) req;
+		HttpServletResponse response = (HttpServletResponse) res;
+
+		if (isStatelessRequest(request, response)) {
+			authenticateStateless(request, response, chain);
+		} else if (!passive || request.getRemoteUser() == null || requiresAuthentication(request, response)) {
+			super.doFilter(req, res, chain);
+		} else {
+			authenticatePassive(request, response, chain);
+		}
+	}
+
+	/** Returns true if the request is authenticated from its own attributes, and its context is never saved */
+	boolean isStatelessRequest(HttpServletRequest request, HttpServletResponse response) {
+		return stateless && request.getRemoteUser() != null && !requiresAuthentication(request, response);
+	}
+
+	/** Authenticates the request for as long as it runs */
+	private void authenticateStateless(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+			throws IOException, ServletException {
+
+		SecurityContext previous = SecurityContextHolder.getContext();
+		Authentication current = previous.getAuthentication();
+		if (current instanceof ShibbolethAuthenticationToken && current.isAuthenticated()
+				&& matchesRequest(request, (ShibbolethAuthenticationToken) current)) {
+			// already logged in, e.g. at filterProcessesUrl, as the same Shibboleth session
+			chain.doFilter(request, response);
+			return;
+		}
+
+		Authentication authentication = null;
+		try {
+			authentication = attemptAuthentication(request, response);
+		} catch (AuthenticationException ex) {
+			// carry on unauthenticated, and leave it to the access rules to turn the request away
+			if (logger.isDebugEnabled()) { logger.debug("stateless authentication failed: " + ex.getMessage()); }
+		}
+
+		if (authentication == null && current == null) {
+			chain.doFilter(request, response);
+			return;
+		}
+
+		// a login in the session that doesn't match the request never runs it, even if this one failed
+		SecurityContext context = SecurityContextHolder.createEmptyContext();
+		if (authentication != null) { context.setAuthentication(authentication); }
+		SecurityContextHolder.setContext(context);
+		try {
+			chain.doFilter(request, response);
+		} finally {
+			// never let the authentication outlive the request
+			if (current == null) {
+				SecurityContextHolder.clearContext();
+			} else {
+				SecurityContextHolder.setContext(previous);
+			}
+		}
+	}
+
+	/** Logs the request in where it is, if it isn't already, and carries on down the chain */
+	private void authenticatePassive(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+			throws IOException, ServletException {
+
+		Authentication current = SecurityContextHolder.getContext().getAuthentication();
+		boolean authenticate;
+		if (current == null || current instanceof AnonymousAuthenticationToken) {
+			authenticate = true;
+		} else if (current instanceof ShibbolethAuthenticationToken) {
+			// someone else logged in to the SP, so log them in instead
+			authenticate = !matchesRequest(request, (ShibbolethAuthenticationToken) current);
+			if (authenticate) {
+				// and never let the request run as the previous user, even if their login fails
+				if (logger.isDebugEnabled()) { logger.debug("the Shibboleth user changed, logging out " + current.getName()); }
+				SecurityContextHolder.clearContext();
+				HttpSession session = request.getSession(false);
+				if (session != null) { session.invalidate(); }
+			}
+		} else {
+			// logged in some other way, e.g. remember me
+			authenticate = false;
+		}
+
+		if (authenticate && "shibboleth".equals(request.getAuthType())) {
+			try {
+				Authentication authentication = attemptAuthentication(request, response);
+				if (authentication != null) {
+					if (sessionStrategy != null) { sessionStrategy.onAuthentication(authentication, request, response); }
+					SecurityContextHolder.getContext().setAuthentication(authentication);
+
+					RememberMeServices rememberMeServices = getRememberMeServices();
+					if (rememberMeServices != null) { rememberMeServices.loginSuccess(request, response, authentication); }
+					if (eventPublisher != null) {
+						eventPublisher.publishEvent(new InteractiveAuthenticationSuccessEvent(authentication, this.getClass()));
+					}
+				}
+			} catch (AuthenticationException ex) {
+				// carry on as before, and leave it to the access rules to send the user to log in
+				if (logger.isDebugEnabled()) { logger.debug("passive authentication failed: " + ex.getMessage()); }
+			}
+		}
+
+		chain.doFilter(request, response);
+	}
+
+	/** Returns true if the request is from the same Shibboleth session, or at least the same user, as the token */
+	private boolean matchesRequest(HttpServletRequest request, ShibbolethAuthenticationToken token) {
+		ExtractionPlan plan = getExtractionPlan();
+
+		Object eppn = (plan.principalUsernameAttribute != null) ? request.getAttribute(plan.principalUsernameAttribute) : null;
+		if (eppn == null) { eppn = request.getRemoteUser(); }
+
+		if (token.getSessionFingerprint() != null && plan.sessionIdAttribute != null) {
+			Object sessionId = request.getAttribute(plan.sessionIdAttribute);
+			if (sessionId != null) { return token.matchesSessionFingerprint(sessionId.toString(), eppn.toString()); }
+		}
+		return eppn.toString().equals(token.getEppn());
+	}
+
 	/** Try logging in the user via Shibboleth Native SP */
 	@Override
 	public Authentication attemptAuthentication(HttpServletRequest request, HttpServletResponse response) 
 			throws AuthenticationException, IOException, ServletException {
 
 		Authentication token = null;
+		boolean debug = logger.isDebugEnabled();
 
-		logger.debug("attemptAuthentication():: invocation");
+		if (debug) { logger.debug("attemptAuthentication():: invocation"); }
+
+		ExtractionPlan plan = getExtractionPlan();
+		long start = (metrics != null) ? System.nanoTime() : 0;
 
 		// These are set by mod_shib22 in Apache and passed through mod_jk 
 		// to the servlet (Tomcat, Glassfish, etc..)
@@ -72,45 +245,21 @@ class ShibbolethAuthenticationFilter extends AbstractAuthenticationProcessingFil
 		// turn Apache, and in turn mod_shib22, and in turn the Shibboleth SP (shibd)
 		// This is often referred to as "pre-authentication"
 		String eppn = request.getRemoteUser();
-		if (eppn != null) { logger.debug("request.getRemoteUser() = " + eppn); }
+		if (debug && eppn != null) { logger.debug("request.getRemoteUser() = " + eppn); }
 		String username = eppn;
 		String remoteAddress = request.getRemoteAddr();
 		String authType = request.getAuthType();
 
-		// These are configurable attributes to load
-
-		// set defauts
-		String authenticationMethod = "";
-		String identityProvider = "";
-		String authenticationInstant = "";
-
-		// get attributes
-		Object authenticationMethodObject = request.getAttribute(this.authenticationMethodAttribute);
-		Object identityProviderObject = request.getAttribute(this.identityProviderAttribute);
-		Object principalUsernameObject = request.getAttribute(this.principalUsernameAttribute);
-		Object authenticationInstantObject = request.getAttribute(this.authenticationInstantAttribute);
-		Object usernameObject = request.getAttribute(this.usernameAttribute);
-
-		// if they are non-null, convert to string, and overwrite defaults
-		if (authenticationMethodObject != null) {
-			authenticationMethod = authenticationMethodObject.toString();
-		} else { logger.debug("could not read session property " + this.authenticationMethodAttribute); }
-		if (identityProviderObject  != null) {
-			identityProvider = identityProviderObject.toString();
-		} else { logger.debug("could not read session property " + this.identityProviderAttribute); }
-		if (principalUsernameObject  != null) {
-			eppn = principalUsernameObject.toString();
-		} else { logger.debug("could not read session property " + this.principalUsernameAttribute + " for eppn"); }
-
-		if (authenticationInstantObject  != null) {
-			authenticationInstant = authenticationInstantObject.toString();
-		} else { logger.debug("could not read session property " + this.authenticationInstantAttribute); }
-		if (usernameObject != null) {
-			username = usernameObject.toString();
-		} else { logger.debug("could not read session property " + this.usernameAttribute + " for username"); }
+		// These are configurable attributes to load, if they are non-null
+		// convert to string, and overwrite the defaults
+		String authenticationMethod = readAttribute(request, plan.authenticationMethodAttribute, "", debug);
+		String identityProvider = readAttribute(request, plan.identityProviderAttribute, "", debug);
+		eppn = readAttribute(request, plan.principalUsernameAttribute, eppn, debug);
+		String authenticationInstant = readAttribute(request, plan.authenticationInstantAttribute, "", debug);
+		username = readAttribute(request, plan.usernameAttribute, username, debug);
 
 		// support stripping of the @domain.edu part of the username if the app doesn't want to use it.
-		if (usernameStripAtDomain && username != null) {
+		if (plan.usernameStripAtDomain && username != null) {
 			// look for an @
 			int atPosition = username.indexOf('@');
 			// If it's at least after the first character...
@@ -119,76 +268,202 @@ class ShibbolethAuthenticationFilter extends AbstractAuthenticationProcessingFil
 			}
 		}
 
-		HashMap<String, String> attributes = new HashMap<String, String>();
-
-		// load any extra attributes
-		for (Iterator iter = this.extraAttributes.iterator(); iter.hasNext();) {
-			String key = (String) iter.next();
-			Object valObject = request.getAttribute(key);
-			if (valObject != null) {
-				String val = valObject.toString();
-				attributes.put(key, val);
-			}
-		}
-
 		// INFO: authType is not configurable, as this plugin 
 		// is meant to be used with the Shibboleth Native SP that 
 		// integrates with Apache
 		if (eppn == null) {
-			logger.debug("eppn is null.  No valid shibboleth session found.");
+			rejected("eppnNull", "eppn is null.  No valid shibboleth session found.", start, debug);
 		} else if ( eppn.length() <= 0 ) {
-			logger.debug("eppn is empty.  No valid shibboleth session found.");
+			rejected("eppnEmpty", "eppn is empty.  No valid shibboleth session found.", start, debug);
 		} else if (username == null) {
-			logger.debug("username is null.  No valid shibboleth session found.");
+			rejected("usernameNull", "username is null.  No valid shibboleth session found.", start, debug);
 		} else if ( username.length() <= 0 ) {
-			logger.debug("username is empty.  No valid shibboleth session found.");
+			rejected("usernameEmpty", "username is empty.  No valid shibboleth session found.", start, debug);
 		} else if ( authType == null ) {
-			logger.debug("authType is null.   No valid shibboleth session found.");
+			rejected("authTypeNull", "authType is null.   No valid shibboleth session found.", start, debug);
 		} else if ( ! authType.equals("shibboleth") ) {
-			logger.debug("authType is not 'shibboleth'.  No valid shibboleth session found.");
+			rejected("authTypeNotShibboleth", "authType is not 'shibboleth'.  No valid shibboleth session found.", start, debug);
 		} else {
+			// load any extra attributes
+			ShibbolethAttributeMap attributes = plan.readExtraAttributes(request);
+
 			// create the token
 			// principal is set to eppn because the default string convert (toString)
 			// for the AbstractAuthenticationProcessingFilter class is principal.toString()
 
-			logger.debug("building a shibboleth token");
+			if (debug) { logger.debug("building a shibboleth token"); }
 
 			ShibbolethAuthenticationToken shibbolethAuthenticationToken = new
 				ShibbolethAuthenticationToken(eppn, username, authType, authenticationMethod, 
 					identityProvider, authenticationInstant, remoteAddress, attributes);
 
-			logger.debug("calling authenticate()");
+			// remember the Shibboleth session, so the logout filter can cheaply check it hasn't changed
+			if (plan.sessionIdAttribute != null) {
+				Object sessionId = request.getAttribute(plan.sessionIdAttribute);
+				if (sessionId != null) {
+					shibbolethAuthenticationToken.setSessionFingerprint(
+						ShibbolethAuthenticationToken.sessionFingerprint(sessionId.toString(), eppn));
+				}
+			}
+
+			if (metrics != null) { extractionTimer.stop(start); }
+
+			if (debug) { logger.debug("calling authenticate()"); }
 			token = this.getAuthenticationManager().authenticate(shibbolethAuthenticationToken);
 		}
 
 		return token;
 	}
 
+	/** Reads an attribute as a string, or returns the default if it isn't set */
+	private String readAttribute(HttpServletRequest request, String name, String defaultValue, boolean debug) {
+		Object value = (name != null) ? request.getAttribute(name) : null;
+		if (value != null) { return value.toString(); }
+
+		if (debug) { logger.debug("could not read session property " + name); }
+		return defaultValue;
+	}
+
+	/** Counts and logs the reason there is no valid Shibboleth session */
+	private void rejected(String reason, String message, long start, boolean debug) {
+		if (metrics != null) {
+			extractionTimer.stop(start);
+			metrics.reject(METRICS_PREFIX + reason);
+		}
+		if (debug) { logger.debug(message); }
+	}
+
+	/** Returns the compiled attribute configuration, compiling it if afterPropertiesSet() was not called */
+	private ExtractionPlan getExtractionPlan() {
+		ExtractionPlan plan = extractionPlan;
+		if (plan == null) {
+			plan = new ExtractionPlan(this);
+			extractionPlan = plan;
+		}
+		return plan;
+	}
+
+	/** Kept here too, for the logins made in passive mode */
+	@Override
+	public void setSessionAuthenticationStrategy(final SessionAuthenticationStrategy sessionStrategy) {
+		super.setSessionAuthenticationStrategy(sessionStrategy);
+		this.sessionStrategy = sessionStrategy;
+	}
+
 	public void setPrincipalUsernameAttribute(final String principalUsernameAttribute) {
 	   this.principalUsernameAttribute = principalUsernameAttribute;
+		this.extractionPlan = null;
 	}
 
 	public void setUsernameAttribute(final String usernameAttribute) {
 		this.usernameAttribute = usernameAttribute;
+		this.extractionPlan = null;
 	}
 
 	public void setAuthenticationMethodAttribute(final String authenticationMethodAttribute) {
 	   this.authenticationMethodAttribute = authenticationMethodAttribute;
+		this.extractionPlan = null;
 	}
 
 	public void setIdentityProviderAttribute(final String identityProviderAttribute) {
 	   this.identityProviderAttribute = identityProviderAttribute;
+		this.extractionPlan = null;
 	}
 
 	public void setAuthenticationInstantAttribute(final String authenticationInstantAttribute) {
 	   this.authenticationInstantAttribute = authenticationInstantAttribute;
+		this.extractionPlan = null;
+	}
+
+	/** The attribute holding the Shibboleth session ID, usually 'Shib-Session-ID' */
+	public void setSessionIdAttribute(final String sessionIdAttribute) {
+		this.sessionIdAttribute = sessionIdAttribute;
+		this.extractionPlan = null;
+	}
+
+	/** Records the attribute extraction time and rejections */
+	public void setMetrics(final ShibbolethMetrics metrics) {
+		this.metrics = metrics;
+		if (metrics != null) {
+			this.extractionTimer = metrics.timer(METRICS_PREFIX + "attributeExtraction");
+			metrics.registerRejections(METRICS_PREFIX + "eppnNull", METRICS_PREFIX + "eppnEmpty", METRICS_PREFIX + "usernameNull",
+				METRICS_PREFIX + "usernameEmpty", METRICS_PREFIX + "authTypeNull", METRICS_PREFIX + "authTypeNotShibboleth");
+		}
 	}
 
 	public void setUsernameStripAtDomain(final boolean usernameStripAtDomain) {
 		this.usernameStripAtDomain = usernameStripAtDomain;
+		this.extractionPlan = null;
 	}
 
 	public void setExtraAttributes(final Collection<String> extraAttributes) {
 	   this.extraAttributes = extraAttributes;
+		this.extractionPlan = null;
+	}
+
+	/**
+	 * Whether to authenticate every request from its Shibboleth attributes, rather
+	 * than keeping the authentication in the HttpSession
+	 */
+	public void setStateless(final boolean stateless) {
+		this.stateless = stateless;
+	}
+
+	/**
+	 * Whether to log in requests with a Shibboleth session on any URL, rather than
+	 * only at {@code filterProcessesUrl}
+	 */
+	public void setPassive(final boolean passive) {
+		this.passive = passive;
+	}
+
+	/**
+	 * The attribute names the filter reads, fixed when the filter is set up.  The
+	 * extra attribute names are de-duplicated into an array that is shared by
+	 * every {@link ShibbolethAttributeMap} the plan builds.
+	 */
+	static final class ExtractionPlan {
+
+		final String principalUsernameAttribute;
+		final String usernameAttribute;
+		final String authenticationMethodAttribute;
+		final String identityProviderAttribute;
+		final String authenticationInstantAttribute;
+		final String sessionIdAttribute;
+		final boolean usernameStripAtDomain;
+		final String[] extraAttributes;
+
+		ExtractionPlan(ShibbolethAuthenticationFilter filter) {
+			this.principalUsernameAttribute = filter.principalUsernameAttribute;
+			this.usernameAttribute = filter.usernameAttribute;
+			this.authenticationMethodAttribute = filter.authenticationMethodAttribute;
+			this.identityProviderAttribute = filter.identityProviderAttribute;
+			this.authenticationInstantAttribute = filter.authenticationInstantAttribute;
+			this.sessionIdAttribute = filter.sessionIdAttribute;
+			this.usernameStripAtDomain = filter.usernameStripAtDomain;
+
+			Set<String> names = new LinkedHashSet<String>();
+			if (filter.extraAttributes != null) {
+				for (Object name : filter.extraAttributes) {
+					if (name != null) { names.add(name.toString()); }
+				}
+			}
+			this.extraAttributes = names.toArray(new String[names.size()]);
+		}
+
+		/** Reads the extra attributes that are set on the request */
+		ShibbolethAttributeMap readExtraAttributes(HttpServletRequest request) {
+			String[] values = null;
+			int size = 0;
+			for (int i = 0; i < extraAttributes.length; i++) {
+				Object value = request.getAttribute(extraAttributes[i]);
+				if (value != null) {
+					if (values == null) { values = new String[extraAttributes.length]; }
+					values[i] = value.toString();
+					size++;
+				}
+			}
+			return (size > 0) ? new ShibbolethAttributeMap(extraAttributes, values, size) : ShibbolethAttributeMap.EMPTY;
+		}
 	}
 }
@@ -1,6 +1,7 @@
 package edu.umn.shibboleth.sp;
 
 import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.security.authentication.AuthenticationProvider;
@@ -21,6 +22,15 @@ import org.springframework.util.Assert;
  * {@link ShibbolethAuthenticationToken} requests which contain an
  * eppn name equal to HttpServletRequest.remoteUser
  * 
+ * When {@code authenticationCacheMaxEntries} is set, authenticated tokens are
+ * cached by their Shibboleth session, eppn, authentication instant and remote
+ * address.  A Shibboleth session that arrives again in a new servlet session
+ * (e.g. after a restart, a fail over, or in another tab on another node) then
+ * reuses the user details and authorities it was first given, rather than
+ * loading them from LDAP and the user details service again.  The cache is
+ * cleared when a {@link ShibbolethUserDetailsService} it loads the user details
+ * from reloads its role mappings.
+ * 
  * @author <a href="mailto:ajz@umn.edu">Aaron J. Zirbes</a>
  */
 class ShibbolethAuthenticationProvider implements AuthenticationProvider, InitializingBean {
@@ -32,6 +42,22 @@ class ShibbolethAuthenticationProvider implements AuthenticationProvider, Initia
 	// Support for Shibboleth User Details Service
 	private AuthenticationUserDetailsService authenticationUserDetailsService;
 	private UserDetailsService userDetailsService;
+
+	/** The maximum number of authenticated tokens to cache, 0 disables the cache */
+	private int authenticationCacheMaxEntries = 0;
+	/** How long, in seconds, authenticated tokens are cached for */
+	private long authenticationCacheTimeToLive = 300;
+	/** Authenticated tokens, keyed by {@link #authenticationCacheKey} */
+	private ExpiringCache<String, ShibbolethAuthenticationToken> authenticationCache = null;
+	/** The number of times the cache was cleared, so a login that loaded its roles before a clear isn't cached after it */
+	private final AtomicLong authenticationCacheClears = new AtomicLong();
+
+	/** The prefix of the provider's timers and rejection counters */
+	static final String METRICS_PREFIX = "provider.";
+
+	private ShibbolethMetrics metrics;
+	private ShibbolethMetrics.Timer validationTimer;
+	private ShibbolethMetrics.Timer authenticateTimer;
 	// TODO: Support DAO Details Service if configured
 	// TODO: Support LDAP Details Service if plugin installed and configured
 	// TODO: Support Active Directory Details Service if configured
@@ -41,6 +67,31 @@ class ShibbolethAuthenticationProvider implements AuthenticationProvider, Initia
 	public void afterPropertiesSet() throws Exception {
 		boolean oneIsSet = (authenticationUserDetailsService != null || userDetailsService != null);
 		Assert.isTrue(oneIsSet, "An authenticationUserDetailsService or userDetailsService must be set");
+
+		if (authenticationCacheMaxEntries > 0) {
+			Assert.isTrue(authenticationCacheTimeToLive > 0, "authenticationCacheTimeToLive must be positive");
+			authenticationCache = new ExpiringCache<String, ShibbolethAuthenticationToken>(
+				authenticationCacheMaxEntries, authenticationCacheTimeToLive * 1000, 0);
+		} else {
+			authenticationCache = null;
+		}
+
+		if (authenticationUserDetailsService instanceof ShibbolethUserDetailsService) {
+			((ShibbolethUserDetailsService) authenticationUserDetailsService).addAuthenticationProvider(this);
+		}
+	}
+
+	/** Returns the hit, miss and eviction statistics of the authentication cache */
+	public String getAuthenticationCacheStatistics() {
+		return (authenticationCache != null) ? authenticationCache.getStatistics() : null;
+	}
+
+	/** Removes every cached authentication, e.g. after the role mappings change */
+	public void clearAuthenticationCache() {
+		authenticationCacheClears.incrementAndGet();
+		if (authenticationCache != null) {
+			authenticationCache.invalidateAll();
+		}
 	}
 
 	public ShibbolethAuthenticationProvider() {
@@ -60,40 +111,62 @@ class ShibbolethAuthenticationProvider implements AuthenticationProvider, Initia
 			return null;
 		}
 
-		boolean authenticationValid = false;
+		long start = (metrics != null) ? System.nanoTime() : 0;
+		try {
+			return authenticate((ShibbolethAuthenticationToken) authentication, start);
+		} finally {
+			if (metrics != null) { authenticateTimer.stop(start); }
+		}
+	}
 
-		// cast token to a ShibbolethAuthenticationToken
-		ShibbolethAuthenticationToken shibToken = (ShibbolethAuthenticationToken) authentication;
+	/** Validates the token, and loads the user details for it */
+	private Authentication authenticate(ShibbolethAuthenticationToken shibToken, long start) {
+
+		boolean authenticationValid = false;
 
 		if (shibToken.getAuthenticationType() == null) {
-			throw new BadCredentialsException("authenticationType is null");
+			throw rejected("authenticationTypeNull", "authenticationType is null");
 		} else if (shibToken.getAuthenticationType().length() == 0) {
-			throw new BadCredentialsException("authenticationType is empty");
+			throw rejected("authenticationTypeEmpty", "authenticationType is empty");
 		} else if ( ! shibToken.getAuthenticationType().equals("shibboleth") ) {
-			throw new BadCredentialsException("authenticationType, '" + shibToken.getAuthenticationType() + "' != 'shibboleth'");
+			throw rejected("authenticationTypeNotShibboleth", "authenticationType, '" + shibToken.getAuthenticationType() + "' != 'shibboleth'");
 		} else if (shibToken.getEppn() == null) {
-			throw new BadCredentialsException("eppn is null");
+			throw rejected("eppnNull", "eppn is null");
 		} else if (shibToken.getEppn().length() == 0) {
-			throw new BadCredentialsException("eppn is empty");
+			throw rejected("eppnEmpty", "eppn is empty");
 		} else if (shibToken.getIdentityProvider() == null) {
-			throw new BadCredentialsException("identityProvider is null");
+			throw rejected("identityProviderNull", "identityProvider is null");
 		} else if (shibToken.getIdentityProvider().length() == 0) {
-			throw new BadCredentialsException("identityProvider is empty");
+			throw rejected("identityProviderEmpty", "identityProvider is empty");
 		} else if (shibToken.getAuthenticationInstant() == null) {
-			throw new BadCredentialsException("authenticationInstant is null");
+			throw rejected("authenticationInstantNull", "authenticationInstant is null");
 		} else if (shibToken.getAuthenticationInstant().length() == 0) {
-			throw new BadCredentialsException("authenticationInstant is empty");
+			throw rejected("authenticationInstantEmpty", "authenticationInstant is empty");
 		} else if (shibToken.getAuthenticationMethod() == null) {
-			throw new BadCredentialsException("authenticationMethod is null");
+			throw rejected("authenticationMethodNull", "authenticationMethod is null");
 		} else if (shibToken.getAuthenticationMethod().length() == 0) {
-			throw new BadCredentialsException("authenticationMethod is empty");
+			throw rejected("authenticationMethodEmpty", "authenticationMethod is empty");
 		} else {
 			authenticationValid = true;
 		}
 
+		if (metrics != null) { validationTimer.stop(start); }
+
 		// Return new authentication object if authenticated
 		if (authenticationValid) {
 
+			// reuse the user details this Shibboleth session was first given
+			String cacheKey = (authenticationCache != null) ? authenticationCacheKey(shibToken) : null;
+			if (cacheKey != null) {
+				ShibbolethAuthenticationToken cached = authenticationCache.get(cacheKey);
+				if (cached != null) {
+					logger.debug("Reusing the authentication of Shibboleth session for eppn='" + shibToken.getEppn() + "'");
+					return authenticatedToken(shibToken, cached.getPrincipal(), cached.getAuthorities());
+				}
+			}
+
+			long clears = authenticationCacheClears.get();
+
 			// set default principal and authorities
 			Object principal = shibToken.getEppn();
 			Collection<GrantedAuthority> authorities = shibToken.getAuthorities();
@@ -115,17 +188,62 @@ class ShibbolethAuthenticationProvider implements AuthenticationProvider, Initia
 
 			logger.debug("Authenticated Shibboleth Token: [eppn='" + shibToken.getEppn() + "', username='" + shibToken.getUsername() + "']");
 
-			return new ShibbolethAuthenticationToken(authorities,
-					shibToken.getDetails(), principal, shibToken.getEppn(), shibToken.getUsername(),
-					shibToken.getAuthenticationType(), shibToken.getAuthenticationMethod(),
-					shibToken.getIdentityProvider(), shibToken.getAuthenticationInstant(),
-					shibToken.getRemoteAddress(), shibToken.getAttributes());
+			ShibbolethAuthenticationToken authenticatedToken = authenticatedToken(shibToken, principal, authorities);
+			// a login missing the roles of a failed role source tries them again next time
+			boolean rolesIncomplete = (principal instanceof ShibbolethUserDetails)
+				&& ((ShibbolethUserDetails) principal).isRolesIncomplete();
+			// as are the roles of a login that was loading while the cache was cleared
+			if (cacheKey != null && !rolesIncomplete && clears == authenticationCacheClears.get()) {
+				authenticationCache.put(cacheKey, authenticatedToken);
+			}
+
+			return authenticatedToken;
 
 		} else {
 			return null;
 		}
 	}
 
+	/**
+	 * Builds the authenticated token, with the principal and authorities given,
+	 * and the details and attributes of the request being authenticated
+	 */
+	private ShibbolethAuthenticationToken authenticatedToken(ShibbolethAuthenticationToken shibToken,
+			Object principal, Collection<GrantedAuthority> authorities) {
+		ShibbolethAuthenticationToken authenticatedToken = new ShibbolethAuthenticationToken(authorities,
+				shibToken.getDetails(), principal, shibToken.getEppn(), shibToken.getUsername(),
+				shibToken.getAuthenticationType(), shibToken.getAuthenticationMethod(),
+				shibToken.getIdentityProvider(), shibToken.getAuthenticationInstant(),
+				shibToken.getRemoteAddress(), shibToken.getAttributes());
+		authenticatedToken.setSessionFingerprint(shibToken.getSessionFingerprint());
+		return authenticatedToken;
+	}
+
+	/**
+	 * Returns the authentication cache key of the token, or null if it has no
+	 * Shibboleth session to key it by.  The remote address is part of the key,
+	 * as the IP address roles depend on it.
+	 */
+	static String authenticationCacheKey(ShibbolethAuthenticationToken shibToken) {
+		String fingerprint = shibToken.getSessionFingerprint();
+		if (fingerprint == null) { return null; }
+
+		String remoteAddress = shibToken.getRemoteAddress();
+		StringBuilder key = new StringBuilder(fingerprint.length() + shibToken.getAuthenticationInstant().length()
+			+ ((remoteAddress != null) ? remoteAddress.length() : 0) + 2);
+		key.append(fingerprint).append('|').append(shibToken.getAuthenticationInstant()).append('|');
+		if (remoteAddress != null) { key.append(remoteAddress); }
+		return key.toString();
+	}
+
+	/** Counts the rejection, and returns the exception to throw for it */
+	private BadCredentialsException rejected(String reason, String message) {
+		if (metrics != null) {
+			metrics.reject(METRICS_PREFIX + reason);
+		}
+		return new BadCredentialsException(message);
+	}
+
 	/** Returns true if the Authentication implementation passed is supported
 	 * by the {@code ShibbolethAuthenticationProvider#authenticate} method.
 	 */
@@ -146,4 +264,35 @@ class ShibbolethAuthenticationProvider implements AuthenticationProvider, Initia
 	public void setAuthenticationUserDetailsService(final AuthenticationUserDetailsService authenticationUserDetailsService) {
 		this.authenticationUserDetailsService = authenticationUserDetailsService;
 	}
+
+	/** The maximum number of authenticated tokens to cache, 0 disables the cache */
+	public void setAuthenticationCacheMaxEntries(final int authenticationCacheMaxEntries) {
+		this.authenticationCacheMaxEntries = authenticationCacheMaxEntries;
+	}
+
+	/** How long, in seconds, authenticated tokens are cached for */
+	public void setAuthenticationCacheTimeToLive(final long authenticationCacheTimeToLive) {
+		this.authenticationCacheTimeToLive = authenticationCacheTimeToLive;
+	}
+
+	/** Records the validation and authentication times, and rejections */
+	public void setMetrics(final ShibbolethMetrics metrics) {
+		this.metrics = metrics;
+		if (metrics != null) {
+			this.validationTimer = metrics.timer(METRICS_PREFIX + "validation");
+			this.authenticateTimer = metrics.timer(METRICS_PREFIX + "authenticate");
+			metrics.registerRejections(
+				METRICS_PREFIX + "authenticationInstantEmpty",
+				METRICS_PREFIX + "authenticationInstantNull",
+				METRICS_PREFIX + "authenticationMethodEmpty",
+				METRICS_PREFIX + "authenticationMethodNull",
+				METRICS_PREFIX + "authenticationTypeEmpty",
+				METRICS_PREFIX + "authenticationTypeNotShibboleth",
+				METRICS_PREFIX + "authenticationTypeNull",
+				METRICS_PREFIX + "eppnEmpty",
+				METRICS_PREFIX + "eppnNull",
+				METRICS_PREFIX + "identityProviderEmpty",
+				METRICS_PREFIX + "identityProviderNull");
+		}
+	}
 }
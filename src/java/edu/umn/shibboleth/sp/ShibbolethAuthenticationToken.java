@@ -1,10 +1,13 @@
 package edu.umn.shibboleth.sp;
 
+import java.io.ObjectStreamException;
 import java.io.Serializable;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.List;
 import java.util.Map;
 import java.util.Collection;
-import org.springframework.security.core.authority.AuthorityUtils;
+import java.util.TimeZone;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.authentication.AbstractAuthenticationToken;
 
@@ -15,17 +18,23 @@ import org.springframework.security.authentication.AbstractAuthenticationToken;
  * This <code>ShibbolethAuthenticationToken</code> is capable of loading an {@link Authentication}
  * from an eppn provided by the shibboleth native SP.
  * 
+ * The authorities are held in a {@link ShibbolethAuthoritySet}, which an
+ * authenticated token shares with its {@link ShibbolethUserDetails}.
+ * 
+ * Tokens are serialized in the compact {@link ShibbolethSerializedForm}.
+ * Only that form is read, so tokens serialized by an earlier release, e.g.
+ * in a replicated session, aren't restored and their user logs in again.
+ * 
  * @author <a href="mailto:ajz@umn.edu">Aaron J. Zirbes</a>
  */
 class ShibbolethAuthenticationToken extends AbstractAuthenticationToken implements Serializable {
 
-
 	/**
 	 * Some Spring Security classes (e.g. RoleHierarchyVoter) expect at least one role, so
 	 * we give a user with no granted roles this one which gets past that restriction but
 	 * doesn't grant anything.
 	 */
-	private static final List<GrantedAuthority> DEFAULT_AUTHORITIES = AuthorityUtils.createAuthorityList("ROLE_USER");
+	private static final ShibbolethAuthoritySet DEFAULT_AUTHORITIES = ShibbolethAuthoritySet.DEFAULT_AUTHORITIES;
 
 	// Extra token attributes for Shibboleth
 	// These are all things that need to be pulled in from the
@@ -40,6 +49,10 @@ class ShibbolethAuthenticationToken extends AbstractAuthenticationToken implemen
 	private String authenticationInstant;
 	private String remoteAddress;
 	private Map<String, String> attributes;
+	/** The Shibboleth session ID and eppn the token was built from, see {@link #sessionFingerprint} */
+	private String sessionFingerprint;
+	/** The authorities, held here rather than copied into a list by AbstractAuthenticationToken */
+	private ShibbolethAuthoritySet authorities;
 
 	/** Constructor used by the authentication filter */
 	public ShibbolethAuthenticationToken(String eppn, String username,
@@ -47,8 +60,9 @@ class ShibbolethAuthenticationToken extends AbstractAuthenticationToken implemen
 			String identityProvider, String authenticationInstant, 
 			String remoteAddress, Map<String, String> attributes) {
 
-		super(DEFAULT_AUTHORITIES);
+		super(null);
 
+		this.authorities = DEFAULT_AUTHORITIES;
 		this.details = null;
 		this.principal = username;
 		this.eppn = eppn;
@@ -70,8 +84,10 @@ class ShibbolethAuthenticationToken extends AbstractAuthenticationToken implemen
 			String identityProvider, String authenticationInstant, 
 			String remoteAddress, Map<String, String> attributes) {
 
-		super(authorities);
+		super(null);
 
+		// the token is kept for the whole session, so hold on to the shared authorities
+		this.authorities = (authorities != null) ? ShibbolethAuthoritySet.of(authorities) : ShibbolethAuthoritySet.EMPTY;
 		this.details = details;
 		this.principal = principal;
 		this.eppn = eppn;
@@ -87,7 +103,30 @@ class ShibbolethAuthenticationToken extends AbstractAuthenticationToken implemen
 	}
 
 	public String toString() {
-		return super.toString() + ", eppn: '" + this.eppn + "'";
+		// AbstractAuthenticationToken only sees the empty list it was given, so the authorities are listed here
+		return getClass().getName() + '@' + Integer.toHexString(hashCode())
+			+ ": Principal: " + getPrincipal() + "; Credentials: [PROTECTED]; Authenticated: " + isAuthenticated()
+			+ "; Details: " + getDetails() + "; Granted Authorities: " + authorities
+			+ ", eppn: '" + this.eppn + "'";
+	}
+
+	public boolean equals(Object obj) {
+		return obj instanceof ShibbolethAuthenticationToken && super.equals(obj)
+			&& authorities.equals(((ShibbolethAuthenticationToken) obj).authorities);
+	}
+
+	public int hashCode() {
+		return super.hashCode() ^ authorities.hashCode();
+	}
+
+	/** Getter for authorities */
+	public Collection<GrantedAuthority> getAuthorities() {
+		return authorities;
+	}
+
+	/** Serializes the token in its compact form */
+	private Object writeReplace() throws ObjectStreamException {
+		return new ShibbolethSerializedForm(this);
 	}
 
 	/** username just returns eppn */
@@ -135,6 +174,25 @@ class ShibbolethAuthenticationToken extends AbstractAuthenticationToken implemen
 		return authenticationInstant;
 	}
 
+	/**
+	 * Returns the authenticationInstant as milliseconds since the epoch, or -1 if
+	 * it is not a SAML date time, e.g. '2012-01-16T03:52:19.890Z'
+	 */
+	public long getAuthenticationInstantTime() {
+		if (authenticationInstant == null) { return -1; }
+
+		String pattern = (authenticationInstant.indexOf('.') > 0) ? 
+			"yyyy-MM-dd'T'HH:mm:ss.SSS'Z'" : "yyyy-MM-dd'T'HH:mm:ss'Z'";
+		SimpleDateFormat format = new SimpleDateFormat(pattern);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		format.setLenient(false);
+		try {
+			return format.parse(authenticationInstant).getTime();
+		} catch (ParseException ex) {
+			return -1;
+		}
+	}
+
 	/** Getter for remoteAddress */
 	public String getRemoteAddress() {
 		return remoteAddress;
@@ -144,4 +202,48 @@ class ShibbolethAuthenticationToken extends AbstractAuthenticationToken implemen
 	public Map<String, String> getAttributes() {
 		return attributes;
 	}
+
+	/**
+	 * Returns the values of a multi-valued attribute, split on the {@code ;} the
+	 * SP joins them with, or an empty list if it isn't set.  Each attribute is
+	 * only split the first time it is asked for.
+	 */
+	public List<String> getAttributeValues(String name) {
+		return ShibbolethAttributeMap.getValues(attributes, name);
+	}
+
+	/** Getter for sessionFingerprint */
+	public String getSessionFingerprint() {
+		return sessionFingerprint;
+	}
+
+	/** Sets the fingerprint of the Shibboleth session the token was built from */
+	void setSessionFingerprint(String sessionFingerprint) {
+		this.sessionFingerprint = sessionFingerprint;
+	}
+
+	/**
+	 * Builds the fingerprint of a Shibboleth session, which is the session ID and
+	 * eppn separated by a '|', or null if either is missing
+	 */
+	static String sessionFingerprint(String sessionId, String eppn) {
+		if (sessionId == null || sessionId.length() == 0 || eppn == null) { return null; }
+		return sessionId + '|' + eppn;
+	}
+
+	/**
+	 * Returns true if the session ID and eppn are the ones the token was built
+	 * from.  This compares them with the fingerprint in place, so nothing is
+	 * allocated on each request.
+	 */
+	public boolean matchesSessionFingerprint(String sessionId, String eppn) {
+		String fingerprint = sessionFingerprint;
+		if (fingerprint == null || sessionId == null || sessionId.length() == 0 || eppn == null) { return false; }
+
+		int separator = sessionId.length();
+		return fingerprint.length() == separator + 1 + eppn.length()
+			&& fingerprint.charAt(separator) == '|'
+			&& fingerprint.startsWith(sessionId)
+			&& fingerprint.regionMatches(separator + 1, eppn, 0, eppn.length());
+	}
 }
@@ -0,0 +1,211 @@
+package edu.umn.shibboleth.sp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.GrantedAuthorityImpl;
+
+/**
+ * A canonicalizing registry of {@link GrantedAuthority} instances.
+ *
+ * Every login grants mostly the same handful of roles, and the authorities are
+ * held by the {@link ShibbolethUserDetails} and the authentication token for the
+ * whole session.  Rather than allocating new authorities on each login, the
+ * role sources ask this registry, which hands out one shared immutable
+ * {@link GrantedAuthorityImpl} per registered role name.
+ *
+ * Only roles from trusted sources are registered, with {@link #register},
+ * since the registry is never emptied: the configured role mappings, LDAP, the
+ * user details service and the group membership index.  Roles the IdP or the
+ * user name in the roles attribute aren't registered, and a
+ * {@link ShibbolethAuthoritySet} holds them apart from its bits.  They are still
+ * shared, by {@link #share}, from a bounded cache of the most recently used
+ * ones, which any role can be evicted from.  The registry is also capped, and
+ * logs a warning the first time a role is turned away.
+ *
+ * Each shared role is also numbered, in the order it was registered, which
+ * lets a {@link ShibbolethAuthoritySet} hold a session's roles as bits.
+ *
+ * @author <a href="mailto:ajz@umn.edu">Aaron J. Zirbes</a>
+ */
+final class ShibbolethAuthorities {
+
+	/** The most distinct role names that will be shared */
+	static final int MAXIMUM_SIZE = 10000;
+
+	private static final Logger logger = Logger.getLogger(ShibbolethAuthorities.class);
+
+	private static final ConcurrentMap<String, Role> ROLES = new ConcurrentHashMap<String, Role>(256);
+
+	/** The shared authorities by their number, only grown while holding the class lock */
+	private static volatile GrantedAuthority[] byId = new GrantedAuthority[256];
+
+	/** The most recently used roles that aren't registered, shared without being numbered */
+	private static final ExpiringCache<String, GrantedAuthority> UNREGISTERED =
+		new ExpiringCache<String, GrantedAuthority>(MAXIMUM_SIZE, TimeUnit.HOURS.toMillis(1), 0);
+
+	/** The number of roles that weren't registered because the registry was full */
+	private static final AtomicLong REJECTED = new AtomicLong();
+
+	/** The role given to users that have not been granted any other roles */
+	static final GrantedAuthority ROLE_USER = register("ROLE_USER");
+
+	/** An unmodifiable list of only {@code ROLE_USER} */
+	static final List<GrantedAuthority> DEFAULT_AUTHORITIES = Collections.singletonList(ROLE_USER);
+
+	private ShibbolethAuthorities() { }
+
+	/**
+	 * Registers a role from a trusted source, if there is room, and returns its
+	 * shared authority
+	 */
+	static GrantedAuthority register(String role) {
+		Role shared = ROLES.get(role);
+		return (shared != null) ? shared.authority : intern(role, new GrantedAuthorityImpl(role));
+	}
+
+	/**
+	 * Registers the role of an authority from a trusted source, if there is room,
+	 * and returns its shared authority.  The first instance seen of a role becomes
+	 * the shared one, so nothing is allocated.  Authorities that aren't plain
+	 * roles are returned as is.
+	 */
+	static GrantedAuthority register(GrantedAuthority authority) {
+		if (!isPlain(authority)) { return authority; }
+
+		String role = authority.getAuthority();
+		Role shared = ROLES.get(role);
+		return (shared != null) ? shared.authority : intern(role, authority);
+	}
+
+	/**
+	 * Returns the shared authority for a role from an untrusted source, e.g. the
+	 * roles attribute, without registering it
+	 */
+	static GrantedAuthority share(String role) {
+		Role registered = ROLES.get(role);
+		if (registered != null) { return registered.authority; }
+
+		GrantedAuthority shared = UNREGISTERED.get(role);
+		if (shared == null) {
+			shared = new GrantedAuthorityImpl(role);
+			UNREGISTERED.put(role, shared);
+		}
+		return shared;
+	}
+
+	/** Returns the shared authority for the role name, or a new one if it isn't registered */
+	static GrantedAuthority get(String role) {
+		Role shared = ROLES.get(role);
+		return (shared != null) ? shared.authority : new GrantedAuthorityImpl(role);
+	}
+
+	/**
+	 * Returns the shared authority equal to the given authority, or the
+	 * authority itself if it isn't registered.  Only plain
+	 * {@link GrantedAuthorityImpl} roles are shared, other authorities (e.g. the
+	 * switch user authority) carry more than their name and are returned as is.
+	 */
+	static GrantedAuthority get(GrantedAuthority authority) {
+		if (!isPlain(authority)) { return authority; }
+
+		Role shared = ROLES.get(authority.getAuthority());
+		return (shared != null) ? shared.authority : authority;
+	}
+
+	/**
+	 * Returns the number of the registered role equal to the given authority, or
+	 * -1 if it is not a plain role or isn't registered
+	 */
+	static int id(GrantedAuthority authority) {
+		return isPlain(authority) ? id(authority.getAuthority()) : -1;
+	}
+
+	/** Returns the number of the shared role, or -1 if it has not been registered */
+	static int id(String role) {
+		Role shared = (role != null) ? ROLES.get(role) : null;
+		return (shared != null) ? shared.id : -1;
+	}
+
+	/** Returns the shared authority with the number given by {@link #id} */
+	static GrantedAuthority get(int id) {
+		return byId[id];
+	}
+
+	/**
+	 * Returns a list of the shared authorities equal to the given authorities,
+	 * or {@code null} if the authorities are {@code null}
+	 */
+	static List<GrantedAuthority> canonicalize(Collection<? extends GrantedAuthority> authorities) {
+		if (authorities == null) { return null; }
+
+		List<GrantedAuthority> shared = new ArrayList<GrantedAuthority>(authorities.size());
+		for (GrantedAuthority authority : authorities) {
+			shared.add((authority != null) ? get(authority) : null);
+		}
+		return shared;
+	}
+
+	/** Returns how many role names are currently shared */
+	static int size() {
+		return ROLES.size();
+	}
+
+	/** Returns how many roles weren't registered because the registry was full */
+	static long rejected() {
+		return REJECTED.get();
+	}
+
+	/** Returns true if the authority is a role that is shared, and so numbered */
+	private static boolean isPlain(GrantedAuthority authority) {
+		return authority.getClass() == GrantedAuthorityImpl.class && authority.getAuthority() != null;
+	}
+
+	/**
+	 * Registers a role that wasn't found.  This only happens the first time a
+	 * configured role is seen, so it is simply done under the class lock, which
+	 * keeps the numbers dense.
+	 */
+	private static synchronized GrantedAuthority intern(String role, GrantedAuthority authority) {
+		Role existing = ROLES.get(role);
+		if (existing != null) { return existing.authority; }
+
+		int id = ROLES.size();
+		if (id >= MAXIMUM_SIZE) {
+			if (REJECTED.getAndIncrement() == 0) {
+				logger.warn("the role registry is full, with " + MAXIMUM_SIZE + " roles, so " + role
+					+ " and any other new roles won't be shared");
+			}
+			return authority;
+		}
+
+		// the authority is in place before its number is handed out through ROLES
+		GrantedAuthority[] authorities = byId;
+		if (id == authorities.length) {
+			authorities = Arrays.copyOf(authorities, Math.min(id * 2, MAXIMUM_SIZE));
+		}
+		authorities[id] = authority;
+		byId = authorities;
+		ROLES.put(role, new Role(id, authority));
+		return authority;
+	}
+
+	/** A shared role and its number */
+	private static final class Role {
+		final int id;
+		final GrantedAuthority authority;
+
+		Role(int id, GrantedAuthority authority) {
+			this.id = id;
+			this.authority = authority;
+		}
+	}
+}
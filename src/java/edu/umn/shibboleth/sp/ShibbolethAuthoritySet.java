@@ -0,0 +1,202 @@
+package edu.umn.shibboleth.sp;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import org.springframework.security.core.GrantedAuthority;
+
+/**
+ * An immutable set of authorities, held for the whole session by the
+ * {@link ShibbolethUserDetails} and the authentication token.
+ *
+ * The roles registered by {@link ShibbolethAuthorities} are held as one bit per
+ * role number, so a session's roles take a few words rather than a tree or
+ * hash node each, and checking for a role is a bit test.  Anything else, i.e.
+ * roles from the IdP controlled roles attribute, roles that came after
+ * the registry filled up and authorities that aren't plain roles, is kept in
+ * an ordinary set alongside.
+ *
+ * The shared roles are iterated in the order they were registered, followed by
+ * the others in the order they were given.  Role numbers only mean something
+ * in this JVM, so the set is serialized as its authorities.
+ *
+ * @author <a href="mailto:ajz@umn.edu">Aaron J. Zirbes</a>
+ */
+final class ShibbolethAuthoritySet extends AbstractSet<GrantedAuthority> implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final long[] NO_WORDS = new long[0];
+
+	/** The set with no authorities */
+	static final ShibbolethAuthoritySet EMPTY = new ShibbolethAuthoritySet(0, NO_WORDS, null);
+
+	/** The set of only {@code ROLE_USER} */
+	static final ShibbolethAuthoritySet DEFAULT_AUTHORITIES = of(ShibbolethAuthorities.DEFAULT_AUTHORITIES);
+
+	/** The index of the first of the {@code words}, so the leading empty words aren't held */
+	private final int offset;
+	/** The bits of the shared role numbers, from role number {@code 64 * offset} */
+	private final long[] words;
+	/** The authorities that aren't numbered, null if there are none */
+	private final Set<GrantedAuthority> others;
+	private final int size;
+
+	private ShibbolethAuthoritySet(int offset, long[] words, Set<GrantedAuthority> others) {
+		this.offset = offset;
+		this.words = words;
+		this.others = others;
+
+		int count = (others != null) ? others.size() : 0;
+		for (long word : words) {
+			count += Long.bitCount(word);
+		}
+		this.size = count;
+	}
+
+	/**
+	 * Returns a set of the given authorities, which is the collection itself if
+	 * it is already one of these sets
+	 *
+	 * @throws IllegalArgumentException if the collection is null or contains a null
+	 */
+	static ShibbolethAuthoritySet of(Collection<? extends GrantedAuthority> authorities) {
+		if (authorities instanceof ShibbolethAuthoritySet) { return (ShibbolethAuthoritySet) authorities; }
+		if (authorities == null) {
+			throw new IllegalArgumentException("Cannot pass a null GrantedAuthority collection");
+		}
+		if (authorities.isEmpty()) { return EMPTY; }
+
+		int[] ids = new int[authorities.size()];
+		int count = 0;
+		int min = Integer.MAX_VALUE;
+		int max = -1;
+		Set<GrantedAuthority> others = null;
+		for (GrantedAuthority authority : authorities) {
+			if (authority == null) {
+				throw new IllegalArgumentException("GrantedAuthority list cannot contain any null elements");
+			}
+
+			int id = ShibbolethAuthorities.id(authority);
+			if (id >= 0) {
+				ids[count++] = id;
+				min = Math.min(min, id);
+				max = Math.max(max, id);
+			} else {
+				if (others == null) { others = new LinkedHashSet<GrantedAuthority>(2); }
+				others.add(authority);
+			}
+		}
+
+		if (count == 0) { return new ShibbolethAuthoritySet(0, NO_WORDS, Collections.unmodifiableSet(others)); }
+
+		int offset = min >>> 6;
+		long[] words = new long[(max >>> 6) - offset + 1];
+		for (int i = 0; i < count; i++) {
+			words[(ids[i] >>> 6) - offset] |= 1L << ids[i];
+		}
+		return new ShibbolethAuthoritySet(offset, words,
+			(others != null) ? Collections.unmodifiableSet(others) : null);
+	}
+
+	/** Returns true if the set holds an authority for the role name */
+	boolean containsRole(String role) {
+		if (role == null) { return false; }
+		return hasId(ShibbolethAuthorities.id(role)) || (others != null && containsOther(role));
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if (!(o instanceof GrantedAuthority)) { return false; }
+
+		// equal authorities have the same role name, so look the shared role up by its name
+		GrantedAuthority authority = (GrantedAuthority) o;
+		return hasId(ShibbolethAuthorities.id(authority.getAuthority())) || (others != null && others.contains(o));
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public Iterator<GrantedAuthority> iterator() {
+		return new Iterator<GrantedAuthority>() {
+			private int word = 0;
+			private long bits = (words.length > 0) ? words[0] : 0L;
+			private Iterator<GrantedAuthority> rest = null;
+
+			public boolean hasNext() {
+				while (bits == 0 && word + 1 < words.length) {
+					bits = words[++word];
+				}
+				if (bits != 0) { return true; }
+
+				if (rest == null) {
+					rest = (others != null) ? others.iterator() : Collections.<GrantedAuthority>emptySet().iterator();
+				}
+				return rest.hasNext();
+			}
+
+			public GrantedAuthority next() {
+				if (!hasNext()) { throw new NoSuchElementException(); }
+				if (bits == 0) { return rest.next(); }
+
+				int bit = Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				return ShibbolethAuthorities.get(((offset + word) << 6) + bit);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private boolean hasId(int id) {
+		if (id < 0) { return false; }
+
+		int index = (id >>> 6) - offset;
+		return index >= 0 && index < words.length && (words[index] & (1L << id)) != 0;
+	}
+
+	private boolean containsOther(String role) {
+		for (GrantedAuthority authority : others) {
+			if (role.equals(authority.getAuthority())) { return true; }
+		}
+		return false;
+	}
+
+	/** Serializes the set as its authorities, since the role numbers are only good in this JVM */
+	private Object writeReplace() throws ObjectStreamException {
+		return new SerializedForm(toArray(new GrantedAuthority[size]));
+	}
+
+	/** The serialized form of the set */
+	private static final class SerializedForm implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final GrantedAuthority[] authorities;
+
+		SerializedForm(GrantedAuthority[] authorities) {
+			this.authorities = authorities;
+		}
+
+		private Object readResolve() throws ObjectStreamException {
+			return of(Arrays.asList(authorities));
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package edu.umn.shibboleth.sp;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.util.Assert;
+
+/**
+ * A caching {@link UserDetailsService} that wraps the user details service roles
+ * are loaded from when {@code shibboleth.roles.loadFromUserDetailsService} is enabled.
+ *
+ * Users are cached for a fixed time, and users that the wrapped service can not
+ * find are remembered for a (usually shorter) time as well, so the wrapped
+ * service, e.g. the GORM user details service, is only queried once per user
+ * in that time.  Call {@link #evict(String)} after changing a user's roles to
+ * have them reloaded on the next login.
+ *
+ * @author <a href="mailto:ajz@umn.edu">Aaron J. Zirbes</a>
+ */
+class ShibbolethCachingUserDetailsService implements UserDetailsService, InitializingBean {
+
+	private final Logger logger = Logger.getLogger(this.getClass());
+
+	/** Stands in for a user the wrapped service could not find */
+	private static final Object NOT_FOUND = new Object();
+
+	private UserDetailsService userDetailsService;
+	private int maxEntries = 10000;
+	private long timeToLive = 300;
+	private long notFoundTimeToLive = 60;
+
+	private ExpiringCache<String, Object> cache;
+
+	/** Ensure all configuration settings are set */
+	public void afterPropertiesSet() throws Exception {
+		Assert.notNull(userDetailsService, "userDetailsService cannot be null");
+		Assert.isTrue(maxEntries > 0, "maxEntries must be positive");
+		Assert.isTrue(timeToLive > 0, "timeToLive must be positive");
+
+		cache = new ExpiringCache<String, Object>(maxEntries, timeToLive * 1000, 0);
+	}
+
+	/**
+	 * Returns the cached user, or loads the user from the wrapped service
+	 * if it's not cached.
+	 */
+	public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
+		Object cached = getCache().get(username);
+
+		if (cached == NOT_FOUND) {
+			throw new UsernameNotFoundException("User not found: " + username, username);
+		} else if (cached != null) {
+			return (UserDetails) cached;
+		}
+
+		UserDetails user;
+		try {
+			user = userDetailsService.loadUserByUsername(username);
+		} catch (UsernameNotFoundException ex) {
+			if (notFoundTimeToLive > 0) {
+				getCache().put(username, NOT_FOUND, System.currentTimeMillis() + notFoundTimeToLive * 1000);
+			}
+			throw ex;
+		}
+
+		if (user != null) {
+			getCache().put(username, user);
+		}
+		return user;
+	}
+
+	/** Removes a user from the cache, so they are reloaded on their next login */
+	public void evict(String username) {
+		logger.debug("evicting cached user " + username);
+		getCache().invalidate(username);
+	}
+
+	/** Removes every user from the cache */
+	public void evictAll() {
+		logger.debug("evicting all cached users");
+		getCache().invalidateAll();
+	}
+
+	/** Returns the hit, miss and eviction statistics of the cache */
+	public String getStatistics() {
+		return getCache().getStatistics();
+	}
+
+	private ExpiringCache<String, Object> getCache() {
+		Assert.state(cache != null, "afterPropertiesSet() has not been called");
+		return cache;
+	}
+
+	/** The user details service to load users from */
+	public void setUserDetailsService(final UserDetailsService userDetailsService) {
+		this.userDetailsService = userDetailsService;
+	}
+
+	/** The maximum number of users to cache */
+	public void setMaxEntries(final int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	/** How long, in seconds, to cache users for */
+	public void setTimeToLive(final long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	/** How long, in seconds, to remember users that were not found, 0 to never remember them */
+	public void setNotFoundTimeToLive(final long notFoundTimeToLive) {
+		this.notFoundTimeToLive = notFoundTimeToLive;
+	}
+}
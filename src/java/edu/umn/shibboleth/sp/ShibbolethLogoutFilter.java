@@ -18,7 +18,12 @@ import org.springframework.util.Assert;
 
 
 /**
-	Processes a {@link ShibbolethAuthenticationToken}, and authenticates via Shibboleth if available.
+	Logs out a user whose Shibboleth session no longer matches their {@link ShibbolethAuthenticationToken}.
+	<p/>
+	This runs on every request, so the Shibboleth session ID and eppn are first
+	checked against the fingerprint stored in the token at login.  Only when they
+	don't match (or the token has no fingerprint) are the eppn, authentication
+	type, authentication method and identity provider compared in full.
 
 	@author <a href="mailto:ajz@umn.edu">Aaron J. Zirbes</a>
 */
@@ -32,6 +37,7 @@ class ShibbolethLogoutFilter extends LogoutFilter {
 	private String principalUsernameAttribute;
 	private String authenticationMethodAttribute;
 	private String identityProviderAttribute;
+	private String sessionIdAttribute = "Shib-Session-ID";
 
 	/** Ensure all configuration settings are set */
 	@Override
@@ -61,8 +67,10 @@ class ShibbolethLogoutFilter extends LogoutFilter {
 				logger.debug("Logging out user '" + auth + "' silently");
 			}
 
-			for (LogoutHandler handler : _handlers) {
-				handler.logout(request, response, auth);
+			if (_handlers != null) {
+				for (LogoutHandler handler : _handlers) {
+					handler.logout(request, response, auth);
+				}
 			}
 		}
 
@@ -81,13 +89,19 @@ class ShibbolethLogoutFilter extends LogoutFilter {
 		} else if ( ShibbolethAuthenticationToken.class.isAssignableFrom(auth.getClass())) {
 			ShibbolethAuthenticationToken token = (ShibbolethAuthenticationToken) auth;
 
+			// Fast path: the same Shibboleth session for the same user
+			if (sessionMatches(request, token)) {
+				return false;
+			}
+
 			// These are set by mod_shib22 in Apache and passed through mod_jk 
 			// to the servlet (Tomcat, Glassfish, etc..)
 			// This means you MUST trust the assertions chain made by mod_jk, and in 
 			// turn Apache, and in turn mod_shib22, and in turn the Shibboleth SP (shibd)
 			// This is often referred to as "pre-authentication"
+			boolean debug = logger.isDebugEnabled();
 			String eppn = request.getRemoteUser();
-			if (eppn != null) { logger.debug("request.getRemoteUser() = " + eppn); }
+			if (eppn != null && debug) { logger.debug("request.getRemoteUser() = " + eppn); }
 			String authenticationType = request.getAuthType();
 
 			// These are configurable attributes to load
@@ -104,47 +118,64 @@ class ShibbolethLogoutFilter extends LogoutFilter {
 			// if they are non-null, convert to string, and overwrite defaults
 			if (authenticationMethodObject != null) {
 				authenticationMethod = authenticationMethodObject.toString();
-			} else { logger.debug("could not read session property " + this.authenticationMethodAttribute); }
+			} else if (debug) { logger.debug("could not read session property " + this.authenticationMethodAttribute); }
 			if (identityProviderObject  != null) {
 				identityProvider = identityProviderObject.toString();
-			} else { logger.debug("could not read session property " + this.identityProviderAttribute); }
+			} else if (debug) { logger.debug("could not read session property " + this.identityProviderAttribute); }
 			if (principalUsernameObject  != null) {
 				eppn = principalUsernameObject.toString();
-			} else { logger.debug("could not read session property " + this.principalUsernameAttribute); }
+			} else if (debug) { logger.debug("could not read session property " + this.principalUsernameAttribute); }
 
 			// INFO: authType is not configurable, as this plugin 
 			// is meant to be used with the Shibboleth Native SP that 
 			// integrates with Apache
 			if (eppn == null) {
 				logout = true;
-				logger.debug("eppn is null, forcing logout");
+				if (debug) { logger.debug("eppn is null, forcing logout"); }
 			} else if ( ! token.getEppn().equals(eppn) ) {
 				logout = true;
-				logger.debug("eppn mismatch, expected '" + token.getEppn() + "', but have '" + eppn + "', forcing logout");
+				if (debug) { logger.debug("eppn mismatch, expected '" + token.getEppn() + "', but have '" + eppn + "', forcing logout"); }
 			} else if ( authenticationType == null ) {
 				logout = true;
-				logger.debug("authenticationType is null, forcing logout");
+				if (debug) { logger.debug("authenticationType is null, forcing logout"); }
 			} else if ( ! token.getAuthenticationType().equals(authenticationType) ) {
 				logout = true;
-				logger.debug("authenticationType mismatch, expected '" + token.getAuthenticationType() + "', but got '" + authenticationType + "', forcing logout");
+				if (debug) { logger.debug("authenticationType mismatch, expected '" + token.getAuthenticationType() + "', but got '" + authenticationType + "', forcing logout"); }
 			} else if ( authenticationMethod == null) {
 				logout = true;
-				logger.debug("authenticationMethod is null, forcing logout");
+				if (debug) { logger.debug("authenticationMethod is null, forcing logout"); }
 			} else if ( ! token.getAuthenticationMethod().equals(authenticationMethod) ) {
 				logout = true;
-				logger.debug("authenticationMethod mismatch, expected '" + token.getAuthenticationMethod() + "', but got '" + authenticationMethod + "', forcing logout");
+				if (debug) { logger.debug("authenticationMethod mismatch, expected '" + token.getAuthenticationMethod() + "', but got '" + authenticationMethod + "', forcing logout"); }
 			} else if ( identityProvider == null) {
 				logout = true;
-				logger.debug("identityProvider is null, forcing logout");
+				if (debug) { logger.debug("identityProvider is null, forcing logout"); }
 			} else if ( ! token.getIdentityProvider().equals(identityProvider) ) {
 				logout = true;
-				logger.debug("identityProvider mismatch, expected '" + token.getIdentityProvider() + "', but got '" + identityProvider + "', forcing logout");
+				if (debug) { logger.debug("identityProvider mismatch, expected '" + token.getIdentityProvider() + "', but got '" + identityProvider + "', forcing logout"); }
 			}
 		}
 		
 		return logout;
 	}
 
+	/**
+	 * Returns true if the request's Shibboleth session ID and eppn match the
+	 * fingerprint in the token, reading just those two values
+	 */
+	private boolean sessionMatches(HttpServletRequest request, ShibbolethAuthenticationToken token) {
+		if (sessionIdAttribute == null || token.getSessionFingerprint() == null) { return false; }
+
+		Object sessionId = request.getAttribute(sessionIdAttribute);
+		if (sessionId == null) { return false; }
+
+		Object eppn = (principalUsernameAttribute != null) ? request.getAttribute(principalUsernameAttribute) : null;
+		if (eppn == null) { eppn = request.getRemoteUser(); }
+		if (eppn == null) { return false; }
+
+		return token.matchesSessionFingerprint(sessionId.toString(), eppn.toString());
+	}
+
 	public void setPrincipalUsernameAttribute(final String principalUsernameAttribute) {
 		logger.debug("reading principalUsername from property: " + principalUsernameAttribute);
 	   this.principalUsernameAttribute = principalUsernameAttribute;
@@ -160,6 +191,11 @@ class ShibbolethLogoutFilter extends LogoutFilter {
 	   this.identityProviderAttribute = identityProviderAttribute;
 	}
 
+	/** The attribute holding the Shibboleth session ID, usually 'Shib-Session-ID' */
+	public void setSessionIdAttribute(final String sessionIdAttribute) {
+		this.sessionIdAttribute = sessionIdAttribute;
+	}
+
 	public void setHandlers(final List<LogoutHandler> handlers) {
 		_handlers = handlers;
 	}
@@ -0,0 +1,363 @@
+package edu.umn.shibboleth.sp;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Timers and rejection counters for each stage of a Shibboleth login, exposed
+ * as a JMX MBean.
+ *
+ * A {@link Timer} keeps the count, total and maximum time of a stage, and a
+ * histogram of power of two microsecond buckets the percentiles are estimated
+ * from.  Rejection counters count each reason a login is turned away for,
+ * which is otherwise only logged at debug level.
+ *
+ * When {@code objectName} is set the metrics register themselves with the
+ * platform MBean server, with an attribute for each timer statistic (e.g.
+ * {@code provider.authenticate.p99Micros}) and rejection counter (e.g.
+ * {@code rejected.filter.eppnNull}) and gauge (e.g. {@code userDetails.ldapCircuit.state}),
+ * a {@code reset} operation, and any operations the other beans add, e.g.
+ * {@code reloadRoleMappings}.
+ *
+ * @author <a href="mailto:ajz@umn.edu">Aaron J. Zirbes</a>
+ */
+class ShibbolethMetrics implements DynamicMBean, InitializingBean, DisposableBean {
+
+	private final Logger logger = Logger.getLogger(this.getClass());
+
+	/** The prefix of the rejection counter attributes */
+	static final String REJECTED = "rejected.";
+
+	private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+	private final ConcurrentMap<String, AtomicLong> rejections = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+	private final ConcurrentMap<String, MBeanOperationInfo> operationInfo = new ConcurrentHashMap<String, MBeanOperationInfo>();
+	private final ConcurrentMap<String, Operation> operations = new ConcurrentHashMap<String, Operation>();
+
+	private String objectName;
+	private ObjectName registeredName;
+
+	/** Registers the MBean if an object name is set */
+	public void afterPropertiesSet() throws Exception {
+		if (objectName == null || objectName.length() == 0) { return; }
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(objectName);
+		try {
+			server.registerMBean(this, name);
+			registeredName = name;
+		} catch (InstanceAlreadyExistsException ex) {
+			// e.g. two applications in the same container, which shouldn't stop the application starting
+			logger.warn("an MBean named " + objectName + " is already registered, set "
+				+ "shibboleth.metrics.objectName to a unique name to expose these metrics");
+		}
+	}
+
+	/** Unregisters the MBean */
+	public void destroy() throws Exception {
+		if (registeredName != null) {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+			registeredName = null;
+		}
+	}
+
+	/** Returns the timer with the name, creating it if needed */
+	Timer timer(String name) {
+		Timer timer = timers.get(name);
+		if (timer == null) {
+			Timer created = new Timer();
+			timer = timers.putIfAbsent(name, created);
+			if (timer == null) { timer = created; }
+		}
+		return timer;
+	}
+
+	/** Makes sure the rejection counters exist, so they are listed before the first rejection */
+	void registerRejections(String... reasons) {
+		for (String reason : reasons) {
+			rejectionCounter(reason);
+		}
+	}
+
+	/** Counts a rejection */
+	void reject(String reason) {
+		rejectionCounter(reason).incrementAndGet();
+	}
+
+	/** Returns the number of rejections for the reason */
+	long getRejections(String reason) {
+		AtomicLong counter = rejections.get(reason);
+		return (counter != null) ? counter.get() : 0;
+	}
+
+	/** Exposes a value that is read each time the metrics are, e.g. the state of a circuit breaker */
+	void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/** Exposes an operation without parameters, e.g. to reload a bean's settings */
+	void operation(String name, String description, Operation operation) {
+		operationInfo.put(name, new MBeanOperationInfo(name, description,
+			new MBeanParameterInfo[0], "java.lang.String", MBeanOperationInfo.ACTION));
+		operations.put(name, operation);
+	}
+
+	/** Resets every timer and counter */
+	public void reset() {
+		for (Timer timer : timers.values()) {
+			timer.reset();
+		}
+		for (AtomicLong counter : rejections.values()) {
+			counter.set(0);
+		}
+	}
+
+	/** Returns every statistic, keyed by its attribute name */
+	SortedMap<String, Object> snapshot() {
+		SortedMap<String, Object> snapshot = new TreeMap<String, Object>();
+		for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+			entry.getValue().snapshot(entry.getKey(), snapshot);
+		}
+		for (Map.Entry<String, AtomicLong> entry : rejections.entrySet()) {
+			snapshot.put(REJECTED + entry.getKey(), Long.valueOf(entry.getValue().get()));
+		}
+		for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+			Object value = entry.getValue().getValue();
+			if (value != null) { snapshot.put(entry.getKey(), value); }
+		}
+		return snapshot;
+	}
+
+	private AtomicLong rejectionCounter(String reason) {
+		AtomicLong counter = rejections.get(reason);
+		if (counter == null) {
+			AtomicLong created = new AtomicLong();
+			counter = rejections.putIfAbsent(reason, created);
+			if (counter == null) { counter = created; }
+		}
+		return counter;
+	}
+
+	/**
+	 * Returns a single statistic, keyed by its attribute name, or null if there
+	 * isn't one.  Only the timer, counter or gauge it belongs to is read, so a
+	 * JMX console polling a few attributes doesn't take a whole snapshot for each.
+	 */
+	Object value(String attribute) {
+		if (attribute == null) { return null; }
+
+		// in the same order as the snapshot, where a gauge wins over a counter and a counter over a timer
+		Gauge gauge = gauges.get(attribute);
+		if (gauge != null) {
+			Object value = gauge.getValue();
+			if (value != null) { return value; }
+		}
+
+		if (attribute.startsWith(REJECTED)) {
+			AtomicLong counter = rejections.get(attribute.substring(REJECTED.length()));
+			if (counter != null) { return Long.valueOf(counter.get()); }
+		}
+
+		int dot = attribute.lastIndexOf('.');
+		if (dot < 0) { return null; }
+		Timer timer = timers.get(attribute.substring(0, dot));
+		return (timer != null) ? timer.statistic(attribute.substring(dot + 1)) : null;
+	}
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Object value = value(attribute);
+		if (value == null) { throw new AttributeNotFoundException(attribute); }
+		return value;
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			Object value = value(attribute);
+			if (value != null) { list.add(new Attribute(attribute, value)); }
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("metrics are read only: " + attribute.getName());
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException, ReflectionException {
+		if ("reset".equals(actionName)) {
+			reset();
+			return null;
+		}
+
+		Operation operation = operations.get(actionName);
+		if (operation == null) { throw new ReflectionException(new NoSuchMethodException(actionName)); }
+		try {
+			Object result = operation.invoke();
+			return (result != null) ? result.toString() : null;
+		} catch (Exception ex) {
+			// only the message, so the JMX client doesn't need our exception classes
+			throw new MBeanException(new Exception(ex.getMessage()), actionName + " failed: " + ex.getMessage());
+		}
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (Map.Entry<String, Object> entry : snapshot().entrySet()) {
+			attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+				entry.getKey(), true, false, false));
+		}
+		List<MBeanOperationInfo> operations = new ArrayList<MBeanOperationInfo>();
+		operations.add(new MBeanOperationInfo("reset", "Resets every timer and counter",
+			new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION));
+		operations.addAll(operationInfo.values());
+
+		return new MBeanInfo(this.getClass().getName(), "Shibboleth authentication metrics",
+			attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+			operations.toArray(new MBeanOperationInfo[operations.size()]), null);
+	}
+
+	/** The JMX object name to register the metrics under, none if not set */
+	public void setObjectName(final String objectName) {
+		this.objectName = objectName;
+	}
+
+	/** A value read when the metrics are */
+	interface Gauge {
+		Object getValue();
+	}
+
+	/** An operation invoked through JMX, returning a summary of what it did */
+	interface Operation {
+		Object invoke() throws Exception;
+	}
+
+	/**
+	 * Times a stage of authentication.  Recording a time is a handful of atomic
+	 * increments, so timers are cheap enough to use on every login.
+	 */
+	static final class Timer {
+
+		/** Bucket i counts the times of less than 2^i microseconds */
+		private static final int BUCKETS = 40;
+
+		/** The statistics exposed for each timer */
+		private static final String[] STATISTICS = { "count", "meanMicros", "maxMicros", "p50Micros", "p95Micros", "p99Micros" };
+
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+		private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+		/** Records the time since {@code startNanos}, a value of {@code System.nanoTime()} */
+		void stop(long startNanos) {
+			record(System.nanoTime() - startNanos);
+		}
+
+		/** Records a time */
+		void record(long nanos) {
+			if (nanos < 0) { nanos = 0; }
+
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			long max = maxNanos.get();
+			while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+				max = maxNanos.get();
+			}
+
+			long micros = nanos / 1000;
+			int bucket = 64 - Long.numberOfLeadingZeros(micros);
+			histogram.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+		}
+
+		long getCount() {
+			return count.get();
+		}
+
+		double getMeanMicros() {
+			long n = count.get();
+			return (n > 0) ? totalNanos.get() / 1000.0 / n : 0.0;
+		}
+
+		double getMaxMicros() {
+			return maxNanos.get() / 1000.0;
+		}
+
+		/**
+		 * Estimates a percentile, between 0 and 1, as the upper bound of the
+		 * histogram bucket it falls in, capped at the maximum time
+		 */
+		double getPercentileMicros(double percentile) {
+			long n = 0;
+			long[] buckets = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets[i] = histogram.get(i);
+				n += buckets[i];
+			}
+			if (n == 0) { return 0.0; }
+
+			long rank = (long) Math.ceil(percentile * n);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets[i];
+				if (seen >= rank) {
+					return Math.min((double) (1L << i), getMaxMicros());
+				}
+			}
+			return getMaxMicros();
+		}
+
+		void reset() {
+			count.set(0);
+			totalNanos.set(0);
+			maxNanos.set(0);
+			for (int i = 0; i < BUCKETS; i++) {
+				histogram.set(i, 0);
+			}
+		}
+
+		/** Returns the statistic with the name, e.g. {@code p99Micros}, or null if there isn't one */
+		Object statistic(String statistic) {
+			if ("count".equals(statistic)) { return Long.valueOf(getCount()); }
+			if ("meanMicros".equals(statistic)) { return Double.valueOf(getMeanMicros()); }
+			if ("maxMicros".equals(statistic)) { return Double.valueOf(getMaxMicros()); }
+			if ("p50Micros".equals(statistic)) { return Double.valueOf(getPercentileMicros(0.50)); }
+			if ("p95Micros".equals(statistic)) { return Double.valueOf(getPercentileMicros(0.95)); }
+			if ("p99Micros".equals(statistic)) { return Double.valueOf(getPercentileMicros(0.99)); }
+			return null;
+		}
+
+		private void snapshot(String name, Map<String, Object> snapshot) {
+			for (String statistic : STATISTICS) {
+				snapshot.put(name + "." + statistic, statistic(statistic));
+			}
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package edu.umn.shibboleth.sp;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.web.context.HttpRequestResponseHolder;
+import org.springframework.security.web.context.HttpSessionSecurityContextRepository;
+import org.springframework.security.web.context.SecurityContextRepository;
+import org.springframework.util.Assert;
+
+
+/**
+	Keeps the {@code SecurityContext} of the requests the
+	{@link ShibbolethAuthenticationFilter} authenticates statelessly out of the
+	HttpSession, and leaves every other request to the session repository.
+	<p/>
+	A stateless request reads the context an earlier login left in an existing
+	session, without creating one, so a user logged in at {@code filterProcessesUrl}
+	isn't authenticated again.  Its response isn't wrapped and its context is never
+	saved, so the per-request authentication can't be written to the session, even
+	when the response is committed in the middle of the chain.
+
+	@author <a href="mailto:ajz@umn.edu">Aaron J. Zirbes</a>
+*/
+class ShibbolethSecurityContextRepository implements SecurityContextRepository, InitializingBean {
+
+	/** Marks a request as stateless when its context is loaded, so it is never saved */
+	static final String STATELESS_REQUEST = ShibbolethSecurityContextRepository.class.getName() + ".STATELESS";
+
+	private SecurityContextRepository sessionRepository;
+	private ShibbolethAuthenticationFilter authenticationFilter;
+
+	/** Ensure all configuration settings are set */
+	public void afterPropertiesSet() {
+		Assert.notNull(sessionRepository, "sessionRepository cannot be null");
+		Assert.notNull(authenticationFilter, "authenticationFilter cannot be null");
+	}
+
+	public SecurityContext loadContext(HttpRequestResponseHolder requestResponseHolder) {
+		HttpServletRequest request = requestResponseHolder.getRequest();
+		HttpServletResponse response = requestResponseHolder.getResponse();
+		if (!authenticationFilter.isStatelessRequest(request, response)) {
+			return sessionRepository.loadContext(requestResponseHolder);
+		}
+
+		request.setAttribute(STATELESS_REQUEST, Boolean.TRUE);
+		HttpSession session = request.getSession(false);
+		Object context = (session != null)
+			? session.getAttribute(HttpSessionSecurityContextRepository.SPRING_SECURITY_CONTEXT_KEY) : null;
+		return (context instanceof SecurityContext) ? (SecurityContext) context : SecurityContextHolder.createEmptyContext();
+	}
+
+	public void saveContext(SecurityContext context, HttpServletRequest request, HttpServletResponse response) {
+		if (request.getAttribute(STATELESS_REQUEST) == null) {
+			sessionRepository.saveContext(context, request, response);
+		}
+	}
+
+	/** Stateless requests count as having a context, so the per-request authentication isn't taken for a new login */
+	public boolean containsContext(HttpServletRequest request) {
+		return request.getAttribute(STATELESS_REQUEST) != null || sessionRepository.containsContext(request);
+	}
+
+	/** The repository of every request that isn't stateless, usually a {@link HttpSessionSecurityContextRepository} */
+	public void setSessionRepository(final SecurityContextRepository sessionRepository) {
+		this.sessionRepository = sessionRepository;
+	}
+
+	/** The filter that decides which requests are authenticated statelessly */
+	public void setAuthenticationFilter(final ShibbolethAuthenticationFilter authenticationFilter) {
+		this.authenticationFilter = authenticationFilter;
+	}
+}
@@ -0,0 +1,384 @@
+package edu.umn.shibboleth.sp;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.ObjectStreamException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.GrantedAuthorityImpl;
+
+/**
+ * The compact serialized form of a {@link ShibbolethAuthenticationToken} or
+ * {@link ShibbolethUserDetails}, which both replace themselves with one when
+ * they are serialized, e.g. when Tomcat replicates a session.
+ *
+ * Default serialization writes a class descriptor for every object in the
+ * graph, the whole attributes map, and a {@code GrantedAuthorityImpl} per role.
+ * This form writes the fields as strings, once: the username and principal are
+ * only written when they differ from the eppn, the session fingerprint is
+ * written as the session ID, and a token's user details share its authorities
+ * and attributes.  Authorities are read back through {@link ShibbolethAuthorities},
+ * so they are shared with every other session again.
+ *
+ * The form starts with a version number.  Version 2 is
+ * <pre>
+ * byte    version (2)
+ * byte    type (1 = token, 2 = user details)
+ * token:
+ *   byte    flags (authenticated, username is the eppn, authentication type is 'shibboleth')
+ *   string  eppn, username (if not the eppn), authentication type (if not 'shibboleth'),
+ *           authentication method, identity provider, authentication instant, remote address
+ *   string  session ID of the session fingerprint
+ *   attributes
+ *   authorities
+ *   object  details
+ *   byte    principal (0 = null, 1 = the username, 2 = user details, 3 = an object)
+ *           followed by the user details or object
+ * user details:
+ *   byte    flags (username is the eppn, authorities are the token's, attributes are the token's,
+ *           eppn is the token's, roles are incomplete)
+ *   string  eppn (unless the token's), username (if not the eppn), email, full name
+ *   attributes (unless the token's)
+ *   authorities (unless the token's)
+ * string:      byte 0 for null, 1 followed by modified UTF-8, or 2 followed by a length and chars
+ * attributes:  int count (-1 for null), followed by the name and value of each
+ * authorities: int count, followed by a byte 0 and the role, or 1 and an object, for each
+ * </pre>
+ * Version 1 is the same, without the user details' roles are incomplete flag.
+ * Readers must keep reading every earlier version of this form, i.e. version 1.
+ * Sessions serialized before this form was introduced aren't read at all.
+ *
+ * @author <a href="mailto:ajz@umn.edu">Aaron J. Zirbes</a>
+ */
+final class ShibbolethSerializedForm implements Externalizable {
+
+	private static final long serialVersionUID = 1L;
+
+	/** The version written */
+	static final int VERSION = 2;
+
+	static final int TOKEN = 1;
+	static final int USER_DETAILS = 2;
+
+	private static final int AUTHENTICATED = 1;
+	private static final int USERNAME_IS_EPPN = 2;
+	private static final int SHIBBOLETH_TYPE = 4;
+	private static final int TOKEN_AUTHORITIES = 8;
+	private static final int TOKEN_ATTRIBUTES = 16;
+	private static final int TOKEN_EPPN = 32;
+	private static final int ROLES_INCOMPLETE = 64;
+
+	private static final int PRINCIPAL_NULL = 0;
+	private static final int PRINCIPAL_USERNAME = 1;
+	private static final int PRINCIPAL_USER_DETAILS = 2;
+	private static final int PRINCIPAL_OBJECT = 3;
+
+	private static final int STRING_NULL = 0;
+	private static final int STRING_UTF = 1;
+	private static final int STRING_CHARS = 2;
+	/** Strings up to this length always fit in writeUTF's 65535 bytes */
+	private static final int MAX_UTF_LENGTH = 65535 / 3;
+
+	private static final int AUTHORITY_ROLE = 0;
+	private static final int AUTHORITY_OBJECT = 1;
+
+	private static final String SHIBBOLETH = "shibboleth";
+
+	/** The token or user details written, or read */
+	private Object object;
+
+	/** Used by deserialization only */
+	public ShibbolethSerializedForm() {
+	}
+
+	ShibbolethSerializedForm(Object object) {
+		this.object = object;
+	}
+
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeByte(VERSION);
+		if (object instanceof ShibbolethAuthenticationToken) {
+			out.writeByte(TOKEN);
+			writeToken(out, (ShibbolethAuthenticationToken) object);
+		} else {
+			out.writeByte(USER_DETAILS);
+			writeUserDetails(out, (ShibbolethUserDetails) object, null);
+		}
+	}
+
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		int version = in.readUnsignedByte();
+		if (version < 1 || version > VERSION) {
+			throw new InvalidObjectException("unsupported Shibboleth serialized form version " + version);
+		}
+
+		int type = in.readUnsignedByte();
+		if (type == TOKEN) {
+			object = readToken(in, version);
+		} else if (type == USER_DETAILS) {
+			object = readUserDetails(in, version, null, null, null);
+		} else {
+			throw new InvalidObjectException("unknown Shibboleth serialized form type " + type);
+		}
+	}
+
+	/** Returns the token or user details that were read */
+	private Object readResolve() throws ObjectStreamException {
+		return object;
+	}
+
+	private static void writeToken(ObjectOutput out, ShibbolethAuthenticationToken token) throws IOException {
+		String eppn = token.getEppn();
+		String username = token.getUsername();
+		boolean usernameIsEppn = equal(username, eppn);
+		boolean shibbolethType = SHIBBOLETH.equals(token.getAuthenticationType());
+
+		out.writeByte((token.isAuthenticated() ? AUTHENTICATED : 0)
+			| (usernameIsEppn ? USERNAME_IS_EPPN : 0)
+			| (shibbolethType ? SHIBBOLETH_TYPE : 0));
+		writeString(out, eppn);
+		if (!usernameIsEppn) { writeString(out, username); }
+		if (!shibbolethType) { writeString(out, token.getAuthenticationType()); }
+		writeString(out, token.getAuthenticationMethod());
+		writeString(out, token.getIdentityProvider());
+		writeString(out, token.getAuthenticationInstant());
+		writeString(out, token.getRemoteAddress());
+		writeString(out, sessionId(token.getSessionFingerprint(), eppn));
+		writeAttributes(out, token.getAttributes());
+		writeAuthorities(out, token.getAuthorities());
+		out.writeObject(token.getDetails());
+
+		Object principal = token.getPrincipal();
+		if (principal == null) {
+			out.writeByte(PRINCIPAL_NULL);
+		} else if (principal.equals(username)) {
+			out.writeByte(PRINCIPAL_USERNAME);
+		} else if (principal.getClass() == ShibbolethUserDetails.class) {
+			out.writeByte(PRINCIPAL_USER_DETAILS);
+			writeUserDetails(out, (ShibbolethUserDetails) principal, token);
+		} else {
+			out.writeByte(PRINCIPAL_OBJECT);
+			out.writeObject(principal);
+		}
+	}
+
+	private static ShibbolethAuthenticationToken readToken(ObjectInput in, int version)
+			throws IOException, ClassNotFoundException {
+		int flags = in.readUnsignedByte();
+		String eppn = readString(in);
+		String username = ((flags & USERNAME_IS_EPPN) != 0) ? eppn : readString(in);
+		String authenticationType = ((flags & SHIBBOLETH_TYPE) != 0) ? SHIBBOLETH : readString(in);
+		String authenticationMethod = readString(in);
+		String identityProvider = readString(in);
+		String authenticationInstant = readString(in);
+		String remoteAddress = readString(in);
+		String sessionId = readString(in);
+		Map<String, String> attributes = readAttributes(in);
+		Collection<GrantedAuthority> authorities = readAuthorities(in);
+		Object details = in.readObject();
+
+		Object principal;
+		int principalType = in.readUnsignedByte();
+		if (principalType == PRINCIPAL_NULL) {
+			principal = null;
+		} else if (principalType == PRINCIPAL_USERNAME) {
+			principal = username;
+		} else if (principalType == PRINCIPAL_USER_DETAILS) {
+			principal = readUserDetails(in, version, eppn, attributes, authorities);
+		} else if (principalType == PRINCIPAL_OBJECT) {
+			principal = in.readObject();
+		} else {
+			throw new InvalidObjectException("unknown principal type " + principalType);
+		}
+
+		ShibbolethAuthenticationToken token;
+		if ((flags & AUTHENTICATED) != 0) {
+			token = new ShibbolethAuthenticationToken(authorities, details, principal, eppn, username,
+				authenticationType, authenticationMethod, identityProvider, authenticationInstant,
+				remoteAddress, attributes);
+		} else {
+			token = new ShibbolethAuthenticationToken(eppn, username, authenticationType,
+				authenticationMethod, identityProvider, authenticationInstant, remoteAddress, attributes);
+		}
+		token.setSessionFingerprint(ShibbolethAuthenticationToken.sessionFingerprint(sessionId, eppn));
+		return token;
+	}
+
+	/** Writes user details, sharing the token's eppn, authorities and attributes if it has the same ones */
+	private static void writeUserDetails(ObjectOutput out, ShibbolethUserDetails userDetails,
+			ShibbolethAuthenticationToken token) throws IOException {
+		String eppn = userDetails.getEppn();
+		boolean usernameIsEppn = equal(userDetails.getUsername(), eppn);
+		boolean tokenAuthorities = token != null && sameAuthorities(userDetails.getAuthorities(), token.getAuthorities());
+		boolean tokenAttributes = token != null && userDetails.getAttributes() == token.getAttributes();
+		boolean tokenEppn = token != null && eppn != null && eppn.equals(token.getEppn());
+
+		out.writeByte((usernameIsEppn ? USERNAME_IS_EPPN : 0)
+			| (tokenAuthorities ? TOKEN_AUTHORITIES : 0)
+			| (tokenAttributes ? TOKEN_ATTRIBUTES : 0)
+			| (tokenEppn ? TOKEN_EPPN : 0)
+			| (userDetails.isRolesIncomplete() ? ROLES_INCOMPLETE : 0));
+		if (!tokenEppn) { writeString(out, eppn); }
+		if (!usernameIsEppn) { writeString(out, userDetails.getUsername()); }
+		writeString(out, userDetails.getEmail());
+		writeString(out, userDetails.getFullName());
+		if (!tokenAttributes) { writeAttributes(out, userDetails.getAttributes()); }
+		if (!tokenAuthorities) { writeAuthorities(out, userDetails.getAuthorities()); }
+	}
+
+	private static ShibbolethUserDetails readUserDetails(ObjectInput in, int version, String tokenEppn,
+			Map<String, String> tokenAttributes, Collection<GrantedAuthority> tokenAuthorities)
+			throws IOException, ClassNotFoundException {
+		int flags = in.readUnsignedByte();
+		String eppn = ((flags & TOKEN_EPPN) != 0) ? tokenEppn : readString(in);
+		String username = ((flags & USERNAME_IS_EPPN) != 0) ? eppn : readString(in);
+		String email = readString(in);
+		String fullName = readString(in);
+		Map<String, String> attributes = ((flags & TOKEN_ATTRIBUTES) != 0) ? tokenAttributes : readAttributes(in);
+		Collection<GrantedAuthority> authorities = ((flags & TOKEN_AUTHORITIES) != 0) ? tokenAuthorities : readAuthorities(in);
+
+		// version 1 didn't have the flag
+		boolean rolesIncomplete = version >= 2 && (flags & ROLES_INCOMPLETE) != 0;
+
+		return new ShibbolethUserDetails(username, email, fullName, authorities, eppn, attributes, rolesIncomplete);
+	}
+
+	private static void writeAttributes(ObjectOutput out, Map<String, String> attributes) throws IOException {
+		if (attributes == null) {
+			out.writeInt(-1);
+			return;
+		}
+
+		// only names with a value are kept, as in the maps the filter builds
+		int count = 0;
+		for (Map.Entry<String, String> entry : attributes.entrySet()) {
+			if (entry.getKey() != null && entry.getValue() != null) { count++; }
+		}
+		out.writeInt(count);
+		for (Map.Entry<String, String> entry : attributes.entrySet()) {
+			if (entry.getKey() != null && entry.getValue() != null) {
+				writeString(out, entry.getKey());
+				writeString(out, entry.getValue());
+			}
+		}
+	}
+
+	private static Map<String, String> readAttributes(ObjectInput in) throws IOException {
+		int count = in.readInt();
+		if (count < 0) { return null; }
+		if (count == 0) { return ShibbolethAttributeMap.EMPTY; }
+
+		String[] keys = new String[count];
+		String[] values = new String[count];
+		for (int i = 0; i < count; i++) {
+			keys[i] = readString(in);
+			values[i] = readString(in);
+		}
+		return new ShibbolethAttributeMap(keys, values, count);
+	}
+
+	private static void writeAuthorities(ObjectOutput out, Collection<GrantedAuthority> authorities) throws IOException {
+		if (authorities == null) {
+			out.writeInt(0);
+			return;
+		}
+
+		out.writeInt(authorities.size());
+		for (GrantedAuthority authority : authorities) {
+			// anything other than a plain role, e.g. a switch user authority, keeps its own form
+			if (authority.getClass() == GrantedAuthorityImpl.class) {
+				out.writeByte(AUTHORITY_ROLE);
+				writeString(out, authority.getAuthority());
+			} else {
+				out.writeByte(AUTHORITY_OBJECT);
+				out.writeObject(authority);
+			}
+		}
+	}
+
+	/** Reads authorities into a set, which a token and its user details can both hold */
+	private static Collection<GrantedAuthority> readAuthorities(ObjectInput in) throws IOException, ClassNotFoundException {
+		int count = in.readInt();
+		List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>(count);
+		for (int i = 0; i < count; i++) {
+			int type = in.readUnsignedByte();
+			if (type == AUTHORITY_ROLE) {
+				authorities.add(ShibbolethAuthorities.get(readString(in)));
+			} else if (type == AUTHORITY_OBJECT) {
+				authorities.add((GrantedAuthority) in.readObject());
+			} else {
+				throw new InvalidObjectException("unknown authority type " + type);
+			}
+		}
+		return ShibbolethAuthoritySet.of(authorities);
+	}
+
+	private static void writeString(ObjectOutput out, String value) throws IOException {
+		if (value == null) {
+			out.writeByte(STRING_NULL);
+		} else if (value.length() <= MAX_UTF_LENGTH) {
+			out.writeByte(STRING_UTF);
+			out.writeUTF(value);
+		} else {
+			out.writeByte(STRING_CHARS);
+			out.writeInt(value.length());
+			out.writeChars(value);
+		}
+	}
+
+	private static String readString(ObjectInput in) throws IOException {
+		int type = in.readUnsignedByte();
+		if (type == STRING_NULL) {
+			return null;
+		} else if (type == STRING_UTF) {
+			return in.readUTF();
+		} else if (type == STRING_CHARS) {
+			char[] chars = new char[in.readInt()];
+			for (int i = 0; i < chars.length; i++) {
+				chars[i] = in.readChar();
+			}
+			return new String(chars);
+		}
+		throw new InvalidObjectException("unknown string type " + type);
+	}
+
+	/** Returns the session ID of a fingerprint for the eppn, see {@link ShibbolethAuthenticationToken#sessionFingerprint} */
+	private static String sessionId(String fingerprint, String eppn) {
+		if (fingerprint == null || eppn == null) { return null; }
+
+		int separator = fingerprint.length() - eppn.length() - 1;
+		if (separator > 0 && fingerprint.charAt(separator) == '|' && fingerprint.endsWith(eppn)) {
+			return fingerprint.substring(0, separator);
+		}
+		return null;
+	}
+
+	/** Returns true if both hold the same authorities, in the same order */
+	private static boolean sameAuthorities(Collection<GrantedAuthority> a, Collection<GrantedAuthority> b) {
+		if (a == b) { return true; }
+		if (a == null || b == null || a.size() != b.size()) { return false; }
+
+		Iterator<GrantedAuthority> iterA = a.iterator();
+		Iterator<GrantedAuthority> iterB = b.iterator();
+		while (iterA.hasNext()) {
+			GrantedAuthority authorityA = iterA.next();
+			GrantedAuthority authorityB = iterB.next();
+			if (authorityA.getClass() != GrantedAuthorityImpl.class || authorityB.getClass() != GrantedAuthorityImpl.class
+					|| !authorityA.getAuthority().equals(authorityB.getAuthority())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean equal(String a, String b) {
+		return (a == null) ? b == null : a.equals(b);
+	}
+}
@@ -1,6 +1,9 @@
 package edu.umn.shibboleth.sp;
 
+import java.io.ObjectStreamException;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.userdetails.User;
@@ -10,6 +13,14 @@ import org.springframework.security.core.userdetails.User;
  * 
  * This adds support for eppn to the {@link User} class.
  * 
+ * The authorities are held in a {@link ShibbolethAuthoritySet} rather than the
+ * sorted set {@link User} would build, so {@link #getAuthorities} iterates them
+ * in role registration order.
+ * 
+ * User details are serialized in the compact {@link ShibbolethSerializedForm}.
+ * Only that form is read, so user details serialized by an earlier release, e.g.
+ * in a replicated session, aren't restored and their user logs in again.
+ * 
  * @author <a href="mailto:ajz@umn.edu">Aaron J. Zirbes</a>
  */
 class ShibbolethUserDetails extends User {
@@ -18,6 +29,8 @@ class ShibbolethUserDetails extends User {
 	private String fullName;
 	private String email;
 	private Map<String, String> attributes;
+	private boolean rolesIncomplete;
+	private ShibbolethAuthoritySet authorities;
 
 	/** constructor for ShibbolethUserDetails */
 	public ShibbolethUserDetails(String username, 
@@ -25,14 +38,32 @@ class ShibbolethUserDetails extends User {
 			Collection<GrantedAuthority> authorities, String eppn, 
 			Map<String, String> attributes) {
 
-		super(username, "", true, true, true, true, authorities);
+		this(username, email, fullName, authorities, eppn, attributes, false);
+	}
+
+	/** constructor for ShibbolethUserDetails missing the roles of a role source that failed */
+	public ShibbolethUserDetails(String username, 
+			String email, String fullName, 
+			Collection<GrantedAuthority> authorities, String eppn, 
+			Map<String, String> attributes, boolean rolesIncomplete) {
+
+		super(username, "", true, true, true, true, Collections.<GrantedAuthority>emptyList());
 
+		this.authorities = ShibbolethAuthoritySet.of(authorities);
 		this.eppn = eppn;
 		this.email = email;
 		this.fullName = fullName;
 		this.attributes = attributes;
+		this.rolesIncomplete = rolesIncomplete;
 	}
 
+	/** returns the granted authorities */
+	@Override
+	public Collection<GrantedAuthority> getAuthorities() { return authorities; }
+
+	/** returns true if the user has been granted the role */
+	public boolean hasRole(String role) { return authorities.containsRole(role); }
+
 	/** returns the eppn */
 	public String getEppn() { return eppn; }
 
@@ -45,4 +76,26 @@ class ShibbolethUserDetails extends User {
 	/** returns the extra attributes */
 	public Map<String, String> getAttributes() { return attributes; }
 
+	/** returns the values of a multi-valued extra attribute, or an empty list */
+	public List<String> getAttributeValues(String name) { return ShibbolethAttributeMap.getValues(attributes, name); }
+
+	/** returns true if a role source timed out or failed, and its roles are missing */
+	public boolean isRolesIncomplete() { return rolesIncomplete; }
+
+	@Override
+	public String toString() {
+		// User only sees the empty list it was given, so the authorities are listed here
+		return getClass().getName() + '@' + Integer.toHexString(hashCode())
+			+ ": Username: " + getUsername() + "; Password: [PROTECTED]; Enabled: " + isEnabled()
+			+ "; AccountNonExpired: " + isAccountNonExpired()
+			+ "; credentialsNonExpired: " + isCredentialsNonExpired()
+			+ "; AccountNonLocked: " + isAccountNonLocked()
+			+ "; Granted Authorities: " + authorities;
+	}
+
+	/** Serializes the user details in their compact form */
+	private Object writeReplace() throws ObjectStreamException {
+		return new ShibbolethSerializedForm(this);
+	}
+
 }
@@ -0,0 +1,1087 @@
+package edu.umn.shibboleth.sp;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.userdetails.AuthenticationUserDetailsService;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.security.ldap.userdetails.DefaultLdapAuthoritiesPopulator;
+import org.springframework.util.Assert;
+
+/**
+	Uses the provided Shibboleth assertion to construct a new
+	{@link ShibbolethUserDetails} object.  This generally is most useful when
+	combined with additional exposed attributes returned to the Shibboleth
+	native SP from the IdP.
+	<p/>
+	The role mappings are compiled when they are set: the identity provider and
+	authentication method maps are inverted into value to role indexes, and the IP
+	address ranges are compiled into an {@link IpAddressRoleIndex}, so each login
+	does a single lookup per role source.  They are held in an immutable
+	{@link RoleMappings} snapshot that is swapped in whole, so the mappings can be
+	reloaded from {@code roleMappingsFile} while users are logging in, and each
+	login reads them with a single volatile read.
+	<p/>
+	When {@code roleSourceThreads} is set, the LDAP and user details service
+	lookups run at the same time on a bounded pool of daemon threads, while the
+	in-memory sources are checked on the request thread, so a login waits for
+	the slowest source rather than the sum of them.  Each lookup has its own
+	timeout, so a hung LDAP server can't hold on to a request thread.  A lookup
+	that times out or fails either fails the login, or with the {@code partial}
+	{@code roleSourceFailurePolicy} the user is logged in without its roles, and
+	{@link ShibbolethUserDetails#isRolesIncomplete} is set.
+	<p/>
+	Logins of the same user that overlap, e.g. the several requests a browser
+	sends at once after an IdP outage, share one LDAP and one user details
+	service lookup: the first starts it, and the rest wait on it rather than
+	query the directory again, unless {@code coalesceRoleLookups} is turned off.
+	<p/>
+	With {@code circuitBreakerFailureThreshold} set, each of those sources has a
+	{@link RoleSourceCircuitBreaker}, and the last roles it returned for each user
+	are kept.  While a source is failing, or its breaker is open, users get their
+	last known roles from it, or only the roles of the other sources if it has
+	none for them, and {@link ShibbolethUserDetails#isRolesIncomplete} is set.
+	<p/>
+	Reference Documentation
+	<ul>
+	<li><a href="http://static.springsource.org/spring-security/site/reference.html">Spring Security Documentation</a></li>
+	<li><a href="http://grails-plugins.github.com/grails-spring-security-core/">Grails Spring Security Core Documentation</a></li>
+	</ul>
+
+	@author <a href="mailto:ajz@umn.edu">Aaron J. Zirbes</a>
+*/
+class ShibbolethUserDetailsService implements UserDetailsService, AuthenticationUserDetailsService,
+		InitializingBean, DisposableBean {
+
+	private final Logger logger = Logger.getLogger(this.getClass());
+
+	/**
+	 * Some Spring Security classes (e.g. RoleHierarchyVoter) expect at least one role, so
+	 * we give a user with no granted roles this one which gets past that restriction but
+	 * doesn't grant anything.
+	 */
+	private static final List<GrantedAuthority> DEFAULT_AUTHORITIES = ShibbolethAuthorities.DEFAULT_AUTHORITIES;
+	private static final String DEFAULT_ROLES_ATTRIBUTE = null;
+	private static final String DEFAULT_ROLES_SEPARATOR = ",";
+	private static final String DEFAULT_ROLES_PREFIX = "SHIB_";
+	private static final String DEFAULT_EMAIL_ATTRIBUTE = null;
+	private static final String DEFAULT_FULLNAME_ATTRIBUTE = null;
+	private static final int DEFAULT_REGISTERED_USERS_MAX_ENTRIES = 10000;
+	private static final long DEFAULT_REGISTERED_USERS_TIME_TO_LIVE = 28800;
+
+	/** Fail the login when a role source times out or fails */
+	static final String FAIL = "fail";
+	/** Log in without the roles of a role source that times out or fails */
+	static final String PARTIAL = "partial";
+
+	/**
+	 * The roles attribute settings, and the authentication method, identity
+	 * provider and IP address roles.  Setting any of them publishes a new snapshot.
+	 */
+	private final AtomicReference<RoleMappings> roleMappings = new AtomicReference<RoleMappings>(
+		new RoleMappings(DEFAULT_ROLES_ATTRIBUTE, DEFAULT_ROLES_SEPARATOR, DEFAULT_ROLES_PREFIX));
+	/** A file the role mappings are read from at startup, and reloaded from by {@link #reloadRoleMappings} */
+	private File roleMappingsFile;
+	/** The number of times the role mappings have been reloaded */
+	private final AtomicLong roleMappingsReloads = new AtomicLong();
+	/** The providers whose cached authentications are cleared when the role mappings are reloaded */
+	private final CopyOnWriteArrayList<ShibbolethAuthenticationProvider> authenticationProviders =
+		new CopyOnWriteArrayList<ShibbolethAuthenticationProvider>();
+	/** This is the optional attribute that contains the user's email address */
+	private String emailAttribute = DEFAULT_EMAIL_ATTRIBUTE;
+	/** This is the optional attribute that contains the user's full name */
+	private String fullNameAttribute = DEFAULT_FULLNAME_ATTRIBUTE;
+
+	/**
+	 * This is to support the {@code RememberMeService}
+	 */
+	private ExpiringCache<String, ShibbolethUserDetails> registeredUsers = new ExpiringCache<String, ShibbolethUserDetails>(
+		DEFAULT_REGISTERED_USERS_MAX_ENTRIES, DEFAULT_REGISTERED_USERS_TIME_TO_LIVE * 1000, 0);
+	/** The maximum number of users remembered for the {@code RememberMeService} */
+	private int registeredUsersMaxEntries = DEFAULT_REGISTERED_USERS_MAX_ENTRIES;
+	/** How long, in seconds after their Shibboleth authentication instant, users are remembered */
+	private long registeredUsersTimeToLive = DEFAULT_REGISTERED_USERS_TIME_TO_LIVE;
+
+	/**
+	 * This is to support loading roles from LDAP
+	 */
+	private String userDnBase;
+	private LdapUserDnResolver userDnResolver;
+	private DefaultLdapAuthoritiesPopulator ldapAuthoritiesPopulator;
+
+	/** The maximum number of users to cache LDAP roles for, 0 disables the cache */
+	private int ldapCacheMaxEntries = 0;
+	/** How long, in seconds, LDAP roles are cached for */
+	private long ldapCacheTimeToLive = 600;
+	/** How long, in seconds, before cached LDAP roles are reloaded in the background */
+	private long ldapCacheRefreshAfterWrite = 300;
+	/** Group membership roles loaded from an LDIF or CSV export, in place of LDAP */
+	private GroupMembershipIndex groupMembershipIndex;
+
+	/** LDAP group membership roles, keyed by username */
+	private ExpiringCache<String, Collection<GrantedAuthority>> ldapAuthoritiesCache = null;
+	private final ExpiringCache.Loader<String, Collection<GrantedAuthority>> ldapAuthoritiesLoader =
+		new ExpiringCache.Loader<String, Collection<GrantedAuthority>>() {
+			public Collection<GrantedAuthority> load(String username) {
+				return loadLdapAuthorities(username);
+			}
+		};
+
+	/** The prefix of the timers and rejection counters of the role sources */
+	static final String METRICS_PREFIX = "userDetails.";
+
+	private ShibbolethMetrics metrics;
+	private ShibbolethMetrics.Timer shibbolethRolesTimer;
+	private ShibbolethMetrics.Timer ipAddressRolesTimer;
+	private ShibbolethMetrics.Timer identityProviderRolesTimer;
+	private ShibbolethMetrics.Timer authenticationMethodRolesTimer;
+	private ShibbolethMetrics.Timer groupIndexRolesTimer;
+	private ShibbolethMetrics.Timer ldapRolesTimer;
+	private ShibbolethMetrics.Timer userDetailsServiceRolesTimer;
+
+	/**
+	 * This is to support loading roles from any userDetailsService, this includes
+	 * but is not limited to the DAO user details service that can load roles
+	 * from GORM.
+	 */
+	private UserDetailsService userDetailsService;
+
+	/** The number of threads to look up LDAP and user details service roles on, 0 looks them up on the request thread */
+	private int roleSourceThreads = 0;
+	/** The number of lookups that can wait for a thread, beyond which they fail */
+	private int roleSourceQueueSize = 100;
+	/** How long, in milliseconds, to wait for the LDAP roles, 0 waits for ever */
+	private long ldapTimeout = 5000;
+	/** How long, in milliseconds, to wait for the user details service roles, 0 waits for ever */
+	private long userDetailsServiceTimeout = 5000;
+	/** What to do when a role source times out or fails, {@link #FAIL} or {@link #PARTIAL} */
+	private String roleSourceFailurePolicy = FAIL;
+	/** Whether logins of the same user at the same time share one LDAP and one user details service lookup */
+	private boolean coalesceRoleLookups = true;
+	/** Runs the LDAP and user details service lookups, if {@code roleSourceThreads} is set */
+	private ThreadPoolExecutor roleSourceExecutor = null;
+
+	/** The number of failures in a row that open a role source's circuit breaker, 0 disables the breakers */
+	private int circuitBreakerFailureThreshold = 0;
+	/** How long, in milliseconds, a role source lookup can take before it counts as a failure, 0 for no limit */
+	private long circuitBreakerSlowCallThreshold = 0;
+	/** How long, in seconds, an open circuit breaker waits before letting a lookup through again */
+	private long circuitBreakerOpenDuration = 30;
+	/** The maximum number of users to keep the last known roles of, for when a role source is down */
+	private int staleRolesMaxEntries = 10000;
+	/** How long, in seconds, the last known roles of a user are kept */
+	private long staleRolesTimeToLive = 86400;
+
+	private final RoleSource ldapRoleSource = new RoleSource("ldap") {
+		Collection<GrantedAuthority> load(String username) { return loadLdapRoles(username); }
+		long timeout() { return ldapTimeout; }
+	};
+	private final RoleSource userDetailsServiceRoleSource = new RoleSource("userDetailsService") {
+		Collection<GrantedAuthority> load(String username) { return loadUserDetailsServiceRoles(username); }
+		long timeout() { return userDetailsServiceTimeout; }
+	};
+
+	/**
+	 * Reads the role mappings file if one is set, and builds the registered
+	 * users store, the LDAP roles cache if LDAP is configured and the cache is
+	 * enabled, and the role source threads
+	 */
+	public void afterPropertiesSet() {
+		Assert.isTrue(FAIL.equals(roleSourceFailurePolicy) || PARTIAL.equals(roleSourceFailurePolicy),
+			"roleSourceFailurePolicy must be '" + FAIL + "' or '" + PARTIAL + "'");
+
+		if (roleMappingsFile != null) {
+			synchronized (roleMappings) {
+				roleMappings.set(roleMappings.get().withConfig(roleMappingsFile));
+			}
+			if (metrics != null) {
+				metrics.operation("reloadRoleMappings", "Reloads the role mappings from " + roleMappingsFile,
+					new ShibbolethMetrics.Operation() {
+						public Object invoke() { return reloadRoleMappings(); }
+					});
+				metrics.gauge(METRICS_PREFIX + "roleMappings.reloads", new ShibbolethMetrics.Gauge() {
+					public Object getValue() { return Long.valueOf(roleMappingsReloads.get()); }
+				});
+			}
+		}
+
+		registeredUsers = new ExpiringCache<String, ShibbolethUserDetails>(
+			registeredUsersMaxEntries, registeredUsersTimeToLive * 1000, 0);
+
+		if (isLdapEnabled() && ldapCacheMaxEntries > 0) {
+			ldapAuthoritiesCache = new ExpiringCache<String, Collection<GrantedAuthority>>(
+				ldapCacheMaxEntries, ldapCacheTimeToLive * 1000, ldapCacheRefreshAfterWrite * 1000);
+		}
+
+		if (roleSourceThreads > 0 && roleSourceExecutor == null && (isLdapEnabled() || userDetailsService != null)) {
+			roleSourceExecutor = new ThreadPoolExecutor(roleSourceThreads, roleSourceThreads, 60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(roleSourceQueueSize, 1)),
+				new ExpiringCache.DaemonThreadFactory("shibboleth-role-source"));
+			roleSourceExecutor.allowCoreThreadTimeOut(true);
+		}
+
+		if (isLdapEnabled()) { ldapRoleSource.configure(); }
+		if (userDetailsService != null) { userDetailsServiceRoleSource.configure(); }
+	}
+
+	/** Stops the background refresh of the LDAP roles cache, and the role source threads */
+	public void destroy() {
+		if (ldapAuthoritiesCache != null) {
+			ldapAuthoritiesCache.shutdown();
+		}
+		if (roleSourceExecutor != null) {
+			roleSourceExecutor.shutdownNow();
+			roleSourceExecutor = null;
+		}
+	}
+
+	/** Returns the hit, miss and eviction statistics of the LDAP roles cache */
+	public String getLdapCacheStatistics() {
+		return (ldapAuthoritiesCache != null) ? ldapAuthoritiesCache.getStatistics() : null;
+	}
+
+	/**
+	 * Reads the role mappings file again, and swaps the new mappings in for
+	 * the logins that start after it returns.  The authentications the
+	 * providers cached and the last known roles of the role sources are
+	 * cleared, so no session keeps roles from the old mappings.  If the file
+	 * can't be read, or any of its settings are invalid, the current mappings
+	 * are kept.
+	 *
+	 * @return a summary of the new mappings
+	 * @throws IllegalStateException if no role mappings file is set
+	 * @throws IllegalArgumentException if the file can not be read, or a setting is not valid
+	 */
+	public String reloadRoleMappings() {
+		if (roleMappingsFile == null) { throw new IllegalStateException("no roleMappingsFile is set"); }
+
+		RoleMappings reloaded;
+		synchronized (roleMappings) {
+			try {
+				reloaded = roleMappings.get().withConfig(roleMappingsFile);
+			} catch (IllegalArgumentException ex) {
+				logger.error("unable to reload the role mappings, keeping the current ones", ex);
+				throw ex;
+			}
+			roleMappings.set(reloaded);
+		}
+		roleMappingsReloads.incrementAndGet();
+
+		ldapRoleSource.clearLastKnownRoles();
+		userDetailsServiceRoleSource.clearLastKnownRoles();
+		for (ShibbolethAuthenticationProvider provider : authenticationProviders) {
+			provider.clearAuthenticationCache();
+		}
+
+		logger.info("reloaded the role mappings from " + roleMappingsFile + ": " + reloaded);
+		return reloaded.toString();
+	}
+
+	/** Clears the provider's cached authentications whenever the role mappings are reloaded */
+	void addAuthenticationProvider(ShibbolethAuthenticationProvider provider) {
+		authenticationProviders.addIfAbsent(provider);
+	}
+
+	/** Returns the state of the LDAP and user details service circuit breakers */
+	public String getCircuitBreakerStatistics() {
+		return ldapRoleSource + ", " + userDetailsServiceRoleSource;
+	}
+
+	/**
+	 * This is to support the {@code RememberMeService}
+	 */
+	public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
+		// Look up the user via RememberMeService
+		UserDetails user = registeredUsers.get(username);
+
+		// If the user isn't found, throw an exception
+		if (user == null) { throw new UsernameNotFoundException(username); }
+
+		// else return the remembered UserDetails
+		return user;
+	}
+
+	/**
+	 * This loads the user details from the shibboleth attributes passed in the
+	 * {@code ShibbolethAuthenticationToken}
+	 */
+	public UserDetails loadUserDetails(Authentication authentication) {
+
+		// Exit if there is nothing to convert
+		if (authentication == null) { return null; }
+
+		// Make sure this is a ShibbolethAuthenticationToken
+		if (!(authentication instanceof ShibbolethAuthenticationToken)) {
+			logger.trace("unsupported authentication: " + authentication.getClass());
+			if (metrics != null) { metrics.reject(METRICS_PREFIX + "notShibbolethToken"); }
+			throw new BadCredentialsException("you must provide a ShibbolethAuthenticationToken");
+		}
+		ShibbolethAuthenticationToken shibAuthToken = (ShibbolethAuthenticationToken) authentication;
+
+		// set default values
+		final String username = shibAuthToken.getUsername();
+		String fullName = null;
+		String email = null;
+		String eppn = shibAuthToken.getEppn();
+		Map<String, String> attributes = shibAuthToken.getAttributes();
+
+		Set<GrantedAuthority> newAuthorities = new LinkedHashSet<GrantedAuthority>();
+		boolean rolesIncomplete = false;
+		// the same mappings are used for the whole login, even if new ones are swapped in part way through
+		final RoleMappings mappings = roleMappings.get();
+
+		ThreadPoolExecutor executor = roleSourceExecutor;
+		RoleSourceLookup ldapRoles = null;
+		RoleSourceLookup userDetailsServiceRoles = null;
+		try {
+			// start the LDAP and user details service lookups, so they run while the other sources are checked
+			if (isLdapEnabled()) { ldapRoles = ldapRoleSource.start(username, executor); }
+			if (userDetailsService != null) { userDetailsServiceRoles = userDetailsServiceRoleSource.start(username, executor); }
+
+			if (attributes != null) {
+				// Load Shibboleth roles if enabled
+				if (mappings.rolesTokenizer != null) {
+					long start = startTimer();
+					mappings.rolesTokenizer.addRoles(attributes.get(mappings.rolesAttribute), newAuthorities);
+					stopTimer(shibbolethRolesTimer, start);
+				}
+
+				// Get fullname if available, the first one if several were released
+				if (hasLength(fullNameAttribute)) {
+					fullName = firstValue(shibAuthToken.getAttributeValues(fullNameAttribute));
+				}
+
+				// Get email if available, the first one if several were released
+				if (hasLength(emailAttribute)) {
+					email = firstValue(shibAuthToken.getAttributeValues(emailAttribute));
+				}
+			}
+
+			// Load IP based roles if enabled
+			if (mappings.ipAddressRoleIndex != null && hasLength(shibAuthToken.getRemoteAddress())) {
+				long start = startTimer();
+				for (String role : mappings.ipAddressRoleIndex.findRoles(shibAuthToken.getRemoteAddress())) {
+					newAuthorities.add(ShibbolethAuthorities.register(role));
+				}
+				stopTimer(ipAddressRolesTimer, start);
+			}
+
+			// if identityProvider based roles are defined, assign them here
+			if (!mappings.identityProviderIndex.isEmpty()) {
+				long start = startTimer();
+				addIndexedRoles(mappings.identityProviderIndex, shibAuthToken.getIdentityProvider(), newAuthorities);
+				stopTimer(identityProviderRolesTimer, start);
+			}
+
+			// if authenticationMethod based roles are defined, assign them here
+			if (!mappings.authenticationMethodIndex.isEmpty()) {
+				long start = startTimer();
+				addIndexedRoles(mappings.authenticationMethodIndex, shibAuthToken.getAuthenticationMethod(), newAuthorities);
+				stopTimer(authenticationMethodRolesTimer, start);
+			}
+
+			// if a group membership index is loaded, look the user up in it
+			if (groupMembershipIndex != null) {
+				long start = startTimer();
+				for (GrantedAuthority role : groupMembershipIndex.findRoles(username)) {
+					newAuthorities.add(role);
+				}
+				stopTimer(groupIndexRolesTimer, start);
+			}
+
+			// if LDAP is configured and enabled, load LDAP roles
+			if (ldapRoles != null) {
+				Collection<GrantedAuthority> ldapAuthorities = ldapRoles.roles();
+				copyAuthorities(ldapAuthorities, newAuthorities);
+				rolesIncomplete |= ldapAuthorities == null || ldapRoles.stale;
+			}
+
+			// if userDetailsService is set, try to load roles from there too!
+			if (userDetailsServiceRoles != null) {
+				Collection<GrantedAuthority> userDetailsServiceAuthorities = userDetailsServiceRoles.roles();
+				copyAuthorities(userDetailsServiceAuthorities, newAuthorities);
+				rolesIncomplete |= userDetailsServiceAuthorities == null || userDetailsServiceRoles.stale;
+			}
+		} finally {
+			// if the login failed before it waited on both lookups, it gives up on the other one, so it
+			// doesn't hold a role source thread or leave other logins of the user joining an orphaned lookup
+			if (ldapRoles != null) { ldapRoles.release(); }
+			if (userDetailsServiceRoles != null) { userDetailsServiceRoles.release(); }
+		}
+
+		// If no newAuthorities were set, set the default
+		Collection<GrantedAuthority> authorities = newAuthorities;
+		if (newAuthorities.isEmpty()) { authorities = DEFAULT_AUTHORITIES; }
+
+		// return new ShibbolethUser (principal)
+		ShibbolethUserDetails userDetails = new ShibbolethUserDetails(username, email,
+			fullName, authorities, eppn, attributes, rolesIncomplete);
+
+		registerUser(userDetails, shibAuthToken);
+
+		return userDetails;
+	}
+
+	/** Returns true if LDAP is configured for the group membership roles */
+	private boolean isLdapEnabled() {
+		return (userDnResolver != null || hasLength(userDnBase)) && ldapAuthoritiesPopulator != null;
+	}
+
+	/** Loads the LDAP group membership roles, through the cache if it is enabled */
+	private Collection<GrantedAuthority> loadLdapRoles(String username) {
+		long start = startTimer();
+		Collection<GrantedAuthority> ldapAuthorities;
+		if (ldapAuthoritiesCache != null) {
+			try {
+				ldapAuthorities = ldapAuthoritiesCache.get(username, ldapAuthoritiesLoader);
+			} catch (RuntimeException ex) {
+				throw ex;
+			} catch (Exception ex) {
+				throw new IllegalStateException("unable to load LDAP roles for " + username, ex);
+			}
+		} else {
+			ldapAuthorities = loadLdapAuthorities(username);
+		}
+		stopTimer(ldapRolesTimer, start);
+		return ldapAuthorities;
+	}
+
+	/** Loads the roles of the user from the user details service */
+	private Collection<GrantedAuthority> loadUserDetailsServiceRoles(String username) {
+		long start = startTimer();
+		UserDetails userDetails = userDetailsService.loadUserByUsername(username);
+		stopTimer(userDetailsServiceRolesTimer, start);
+		return (userDetails != null) ? userDetails.getAuthorities() : Collections.<GrantedAuthority>emptyList();
+	}
+
+	/**
+	 * Counts the failure, and fails the login unless the {@link #PARTIAL} policy is set.
+	 * If the role source returned roles for the user before, they are used instead.
+	 */
+	private Collection<GrantedAuthority> roleSourceFailed(RoleSourceLookup lookup, RoleSourceFailure failure) {
+		String source = lookup.source.name;
+		if (metrics != null) { metrics.reject(METRICS_PREFIX + source + failure.reason); }
+
+		Collection<GrantedAuthority> lastKnownRoles = lookup.source.lastKnownRoles(lookup.username);
+		if (lastKnownRoles != null) {
+			logger.warn("logging in with the last known " + source + " roles: " + failure.getMessage());
+			lookup.stale = true;
+			return lastKnownRoles;
+		}
+
+		if (!PARTIAL.equals(roleSourceFailurePolicy)) {
+			throw new AuthenticationServiceException("unable to load the " + source + " roles: " + failure.getMessage(),
+				failure.getCause());
+		}
+		logger.warn("logging in without the " + source + " roles: " + failure.getMessage());
+		return null;
+	}
+
+	/** Returns the start time of a role source, if metrics are being recorded */
+	private long startTimer() {
+		return (metrics != null) ? System.nanoTime() : 0;
+	}
+
+	/** Records the time a role source took, if metrics are being recorded */
+	private void stopTimer(ShibbolethMetrics.Timer timer, long start) {
+		if (metrics != null) { timer.stop(start); }
+	}
+
+	/** Adds the roles mapped to the value, if there are any */
+	private static void addIndexedRoles(Map<String, GrantedAuthority[]> index, String value,
+			Set<GrantedAuthority> newAuthorities) {
+		if (value == null || index.isEmpty()) { return; }
+
+		GrantedAuthority[] roles = index.get(value);
+		if (roles != null) {
+			for (GrantedAuthority role : roles) {
+				newAuthorities.add(role);
+			}
+		}
+	}
+
+	/** Copies the shared instances of the authorities loaded from a trusted source, registering them */
+	private static void copyAuthorities(Collection<? extends GrantedAuthority> authorities,
+			Set<GrantedAuthority> newAuthorities) {
+		if (authorities == null) { return; }
+
+		for (GrantedAuthority role : authorities) {
+			newAuthorities.add(ShibbolethAuthorities.register(role));
+		}
+	}
+
+	/**
+	 * Remembers the user for the {@code RememberMeService} until their Shibboleth
+	 * authentication is older than {@code registeredUsersTimeToLive}
+	 */
+	private void registerUser(ShibbolethUserDetails userDetails, ShibbolethAuthenticationToken shibAuthToken) {
+		long now = System.currentTimeMillis();
+		long authenticated = shibAuthToken.getAuthenticationInstantTime();
+		if (authenticated < 0) { authenticated = now; }
+
+		long expiresAt = authenticated + registeredUsersTimeToLive * 1000;
+		if (expiresAt > now) {
+			registeredUsers.put(userDetails.getUsername(), userDetails, expiresAt);
+		}
+	}
+
+	/** Searches LDAP for the group membership roles of the user */
+	private Collection<GrantedAuthority> loadLdapAuthorities(String username) {
+		String userDn;
+		if (userDnResolver != null) {
+			userDn = userDnResolver.resolveDn(username);
+			// a user who isn't in the directory isn't in any of its groups either
+			if (userDn == null) { return Collections.<GrantedAuthority>emptyList(); }
+		} else {
+			userDn = "cn=" + username + "," + userDnBase;
+		}
+		return ldapAuthoritiesPopulator.getGroupMembershipRoles(userDn, username);
+	}
+
+	private static boolean hasLength(String value) {
+		return value != null && value.length() > 0;
+	}
+
+	private static String firstValue(List<String> values) {
+		return values.isEmpty() ? null : values.get(0);
+	}
+
+	public String getRolesAttribute() {
+		return roleMappings.get().rolesAttribute;
+	}
+
+	public void setRolesAttribute(final String rolesAttribute) {
+		synchronized (roleMappings) {
+			roleMappings.set(roleMappings.get().withRolesAttribute(rolesAttribute));
+		}
+	}
+
+	public String getRolesSeparator() {
+		return roleMappings.get().rolesSeparator;
+	}
+
+	/** Sets the literal roles separator, the attribute's {@code ;} separated values are always split */
+	public void setRolesSeparator(final String rolesSeparator) {
+		synchronized (roleMappings) {
+			roleMappings.set(roleMappings.get().withRolesSeparator(rolesSeparator));
+		}
+	}
+
+	public String getRolesPrefix() {
+		return roleMappings.get().rolesPrefix;
+	}
+
+	public void setRolesPrefix(final String rolesPrefix) {
+		synchronized (roleMappings) {
+			roleMappings.set(roleMappings.get().withRolesPrefix(rolesPrefix));
+		}
+	}
+
+	public String getEmailAttribute() {
+		return emailAttribute;
+	}
+
+	public void setEmailAttribute(final String emailAttribute) {
+		this.emailAttribute = emailAttribute;
+	}
+
+	public String getFullNameAttribute() {
+		return fullNameAttribute;
+	}
+
+	public void setFullNameAttribute(final String fullNameAttribute) {
+		this.fullNameAttribute = fullNameAttribute;
+	}
+
+	/**
+	 * This is a map of roles to apply when specific authentication methods are used.
+	 * This is primarily used to identify guest or two-factor authentication.
+	 */
+	public Map<String, String> getAuthenticationMethodRoles() {
+		return roleMappings.get().authenticationMethodRoles;
+	}
+
+	/** Sets the authentication method roles, and inverts them into an index */
+	public void setAuthenticationMethodRoles(final Map<String, String> authenticationMethodRoles) {
+		synchronized (roleMappings) {
+			roleMappings.set(roleMappings.get().withAuthenticationMethodRoles(authenticationMethodRoles));
+		}
+	}
+
+	/**
+	 * This is a map of roles, and an associated identity provider.
+	 * This can be used to identify the IdP that authenticated the logged in user.
+	 */
+	public Map<String, String> getIdentityProviderRoles() {
+		return roleMappings.get().identityProviderRoles;
+	}
+
+	/** Sets the identity provider roles, and inverts them into an index */
+	public void setIdentityProviderRoles(final Map<String, String> identityProviderRoles) {
+		synchronized (roleMappings) {
+			roleMappings.set(roleMappings.get().withIdentityProviderRoles(identityProviderRoles));
+		}
+	}
+
+	/**
+	 * This is a map of roles, and an associated collection of remote ip address
+	 * ranges that cause the role to be applied.
+	 * This can be used to identify when two-factor authentication is needed based on
+	 * the clients network.
+	 */
+	public Map<String, ? extends Object> getIpAddressRoles() {
+		return roleMappings.get().ipAddressRoles;
+	}
+
+	/**
+	 * Sets the IP address based roles, and compiles them into an index so the
+	 * ranges are only parsed once, rather than on every login.
+	 */
+	public void setIpAddressRoles(final Map<String, ? extends Object> ipAddressRoles) {
+		synchronized (roleMappings) {
+			roleMappings.set(roleMappings.get().withIpAddressRoles(ipAddressRoles));
+		}
+	}
+
+	/**
+	 * A file, in the layout of the plugin's security config, that the role
+	 * mappings are read from at startup and can be reloaded from without a restart
+	 */
+	public void setRoleMappingsFile(final File roleMappingsFile) {
+		this.roleMappingsFile = roleMappingsFile;
+	}
+
+	public void setRegisteredUsersMaxEntries(final int registeredUsersMaxEntries) {
+		this.registeredUsersMaxEntries = registeredUsersMaxEntries;
+	}
+
+	public void setRegisteredUsersTimeToLive(final long registeredUsersTimeToLive) {
+		this.registeredUsersTimeToLive = registeredUsersTimeToLive;
+	}
+
+	public void setUserDnBase(final String userDnBase) {
+		this.userDnBase = userDnBase;
+	}
+
+	/** Finds the DNs of users with the LDAP user search, in place of building them from {@code userDnBase} */
+	public void setUserDnResolver(final LdapUserDnResolver userDnResolver) {
+		this.userDnResolver = userDnResolver;
+	}
+
+	public void setLdapAuthoritiesPopulator(final DefaultLdapAuthoritiesPopulator ldapAuthoritiesPopulator) {
+		this.ldapAuthoritiesPopulator = ldapAuthoritiesPopulator;
+	}
+
+	/** An index of group membership roles to use instead of searching LDAP */
+	public void setGroupMembershipIndex(final GroupMembershipIndex groupMembershipIndex) {
+		this.groupMembershipIndex = groupMembershipIndex;
+	}
+
+	public void setLdapCacheMaxEntries(final int ldapCacheMaxEntries) {
+		this.ldapCacheMaxEntries = ldapCacheMaxEntries;
+	}
+
+	public void setLdapCacheTimeToLive(final long ldapCacheTimeToLive) {
+		this.ldapCacheTimeToLive = ldapCacheTimeToLive;
+	}
+
+	public void setLdapCacheRefreshAfterWrite(final long ldapCacheRefreshAfterWrite) {
+		this.ldapCacheRefreshAfterWrite = ldapCacheRefreshAfterWrite;
+	}
+
+	public void setUserDetailsService(final UserDetailsService userDetailsService) {
+		this.userDetailsService = userDetailsService;
+	}
+
+	/** The number of threads to look up LDAP and user details service roles on, 0 looks them up on the request thread */
+	public void setRoleSourceThreads(final int roleSourceThreads) {
+		this.roleSourceThreads = roleSourceThreads;
+	}
+
+	/** The number of role source lookups that can wait for a thread */
+	public void setRoleSourceQueueSize(final int roleSourceQueueSize) {
+		this.roleSourceQueueSize = roleSourceQueueSize;
+	}
+
+	/** How long, in milliseconds, to wait for the LDAP roles, 0 waits for ever */
+	public void setLdapTimeout(final long ldapTimeout) {
+		this.ldapTimeout = ldapTimeout;
+	}
+
+	/** How long, in milliseconds, to wait for the user details service roles, 0 waits for ever */
+	public void setUserDetailsServiceTimeout(final long userDetailsServiceTimeout) {
+		this.userDetailsServiceTimeout = userDetailsServiceTimeout;
+	}
+
+	/** What to do when a role source times out or fails, 'fail' or 'partial' */
+	public void setRoleSourceFailurePolicy(final String roleSourceFailurePolicy) {
+		this.roleSourceFailurePolicy = roleSourceFailurePolicy;
+	}
+
+	/** Whether logins of the same user at the same time share one lookup of each role source */
+	public void setCoalesceRoleLookups(final boolean coalesceRoleLookups) {
+		this.coalesceRoleLookups = coalesceRoleLookups;
+	}
+
+	/** The number of failures or slow lookups in a row that open a role source's circuit breaker, 0 disables them */
+	public void setCircuitBreakerFailureThreshold(final int circuitBreakerFailureThreshold) {
+		this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+	}
+
+	/** How long, in milliseconds, a role source lookup can take before it counts as a failure, 0 for no limit */
+	public void setCircuitBreakerSlowCallThreshold(final long circuitBreakerSlowCallThreshold) {
+		this.circuitBreakerSlowCallThreshold = circuitBreakerSlowCallThreshold;
+	}
+
+	/** How long, in seconds, an open circuit breaker waits before letting a lookup through again */
+	public void setCircuitBreakerOpenDuration(final long circuitBreakerOpenDuration) {
+		this.circuitBreakerOpenDuration = circuitBreakerOpenDuration;
+	}
+
+	/** The maximum number of users to keep the last known roles of, 0 keeps none */
+	public void setStaleRolesMaxEntries(final int staleRolesMaxEntries) {
+		this.staleRolesMaxEntries = staleRolesMaxEntries;
+	}
+
+	/** How long, in seconds, the last known roles of a user are kept */
+	public void setStaleRolesTimeToLive(final long staleRolesTimeToLive) {
+		this.staleRolesTimeToLive = staleRolesTimeToLive;
+	}
+
+	/** Records the time each role source takes */
+	public void setMetrics(final ShibbolethMetrics metrics) {
+		this.metrics = metrics;
+		if (metrics != null) {
+			this.shibbolethRolesTimer = metrics.timer(METRICS_PREFIX + "roles.shibbolethAttribute");
+			this.ipAddressRolesTimer = metrics.timer(METRICS_PREFIX + "roles.ipAddress");
+			this.identityProviderRolesTimer = metrics.timer(METRICS_PREFIX + "roles.identityProvider");
+			this.authenticationMethodRolesTimer = metrics.timer(METRICS_PREFIX + "roles.authenticationMethod");
+			this.groupIndexRolesTimer = metrics.timer(METRICS_PREFIX + "roles.groupIndex");
+			this.ldapRolesTimer = metrics.timer(METRICS_PREFIX + "roles.ldap");
+			this.userDetailsServiceRolesTimer = metrics.timer(METRICS_PREFIX + "roles.userDetailsService");
+			metrics.registerRejections(METRICS_PREFIX + "notShibbolethToken",
+				METRICS_PREFIX + "ldapTimeout", METRICS_PREFIX + "ldapFailed", METRICS_PREFIX + "ldapRejected",
+				METRICS_PREFIX + "userDetailsServiceTimeout", METRICS_PREFIX + "userDetailsServiceFailed",
+				METRICS_PREFIX + "userDetailsServiceRejected",
+				METRICS_PREFIX + "ldapCircuitOpen", METRICS_PREFIX + "userDetailsServiceCircuitOpen");
+		}
+	}
+
+	/** An LDAP or user details service role source, with its circuit breaker and the last roles it returned */
+	private abstract class RoleSource {
+		private final String name;
+		private RoleSourceCircuitBreaker circuitBreaker;
+		private ExpiringCache<String, Collection<GrantedAuthority>> lastKnownRoles;
+		/** The lookups in progress, keyed by username, that other logins of the same user wait on */
+		private final ConcurrentMap<String, SharedLookup> inFlight = new ConcurrentHashMap<String, SharedLookup>();
+		/** The number of logins that waited on another login's lookup */
+		private final AtomicLong coalesced = new AtomicLong();
+
+		private RoleSource(String name) {
+			this.name = name;
+		}
+
+		/** Loads the roles of the user */
+		abstract Collection<GrantedAuthority> load(String username);
+
+		/** How long, in milliseconds, to wait for the roles, 0 waits for ever */
+		abstract long timeout();
+
+		/**
+		 * Exposes the count of shared lookups, and builds the circuit breaker and
+		 * the last known roles, if circuit breakers are enabled
+		 */
+		private void configure() {
+			if (metrics != null && coalesceRoleLookups) {
+				metrics.gauge(METRICS_PREFIX + name + "Lookups.coalesced", new ShibbolethMetrics.Gauge() {
+					public Object getValue() { return Long.valueOf(coalesced.get()); }
+				});
+			}
+
+			if (circuitBreakerFailureThreshold <= 0) {
+				circuitBreaker = null;
+				lastKnownRoles = null;
+				return;
+			}
+
+			circuitBreaker = new RoleSourceCircuitBreaker(name, circuitBreakerFailureThreshold,
+				circuitBreakerSlowCallThreshold, circuitBreakerOpenDuration * 1000);
+			lastKnownRoles = (staleRolesMaxEntries > 0) ? new ExpiringCache<String, Collection<GrantedAuthority>>(
+				staleRolesMaxEntries, staleRolesTimeToLive * 1000, 0) : null;
+
+			if (metrics != null) {
+				final RoleSourceCircuitBreaker breaker = circuitBreaker;
+				metrics.gauge(METRICS_PREFIX + name + "Circuit.state", new ShibbolethMetrics.Gauge() {
+					public Object getValue() { return breaker.getState().name(); }
+				});
+				metrics.gauge(METRICS_PREFIX + name + "Circuit.opened", new ShibbolethMetrics.Gauge() {
+					public Object getValue() { return Long.valueOf(breaker.getOpenedCount()); }
+				});
+				metrics.gauge(METRICS_PREFIX + name + "Circuit.closed", new ShibbolethMetrics.Gauge() {
+					public Object getValue() { return Long.valueOf(breaker.getClosedCount()); }
+				});
+				metrics.gauge(METRICS_PREFIX + name + "Circuit.shortCircuited", new ShibbolethMetrics.Gauge() {
+					public Object getValue() { return Long.valueOf(breaker.getShortCircuitedCount()); }
+				});
+			}
+		}
+
+		/**
+		 * Starts looking up the roles of the user, on the role source threads if
+		 * there are any, or joins the lookup another login of the same user has
+		 * already started
+		 */
+		private RoleSourceLookup start(String username, ThreadPoolExecutor executor) {
+			RoleSourceLookup lookup = new RoleSourceLookup(this, username, executor);
+			if (!lookup.allowed) { return lookup; }
+
+			SharedLookup created = new SharedLookup(this, username);
+			SharedLookup task = coalesceRoleLookups ? share(username, created) : created;
+			lookup.task = task;
+			lookup.shared = task != created;
+			if (lookup.shared) {
+				coalesced.incrementAndGet();
+				return lookup;
+			}
+
+			if (executor == null) {
+				// there is nothing to wait for before it can run, so other logins can't deadlock on it
+				task.run();
+			} else {
+				try {
+					executor.execute(task);
+				} catch (RejectedExecutionException ex) {
+					// fails any logins that joined it, as this one is about to
+					task.cancel(false);
+					lookup.task = null;
+				}
+			}
+			return lookup;
+		}
+
+		/** Returns the lookup of the user in progress, or publishes the one created if there isn't one */
+		private SharedLookup share(String username, SharedLookup created) {
+			while (true) {
+				SharedLookup existing = inFlight.putIfAbsent(username, created);
+				if (existing == null) { return created; }
+				// a lookup that has finished may not have removed itself yet, and its outcome is already known
+				if (!existing.isDone() && existing.join()) { return existing; }
+				// every login waiting on it gave up and it is being cancelled, or it has finished
+				inFlight.remove(username, existing);
+			}
+		}
+
+		/** Forgets the last roles the source returned for every user */
+		private void clearLastKnownRoles() {
+			if (lastKnownRoles != null) { lastKnownRoles.invalidateAll(); }
+		}
+
+		/** Returns the last roles the source returned for the user, if they are kept */
+		private Collection<GrantedAuthority> lastKnownRoles(String username) {
+			return (lastKnownRoles != null) ? lastKnownRoles.get(username) : null;
+		}
+
+		/** Records a lookup the source answered */
+		private void succeeded(String username, Collection<GrantedAuthority> roles, long elapsed) {
+			if (circuitBreaker != null) { circuitBreaker.recordSuccess(elapsed); }
+			if (lastKnownRoles != null && roles != null) { lastKnownRoles.put(username, roles); }
+		}
+
+		/** Records a lookup that failed or timed out */
+		private void failed() {
+			if (circuitBreaker != null) { circuitBreaker.recordFailure(); }
+		}
+
+		@Override
+		public String toString() {
+			return (circuitBreaker != null) ? circuitBreaker.toString() : name + "=disabled";
+		}
+	}
+
+	/**
+	 * A lookup of the roles of one user from a role source, which the logins
+	 * of that user made while it runs wait on rather than start their own.
+	 * It is only cancelled once every login waiting on it has given up.
+	 */
+	private static final class SharedLookup extends FutureTask<Collection<GrantedAuthority>> {
+		private final RoleSource source;
+		private final String username;
+		private final AtomicInteger waiters = new AtomicInteger(1);
+
+		private SharedLookup(final RoleSource source, final String username) {
+			super(new Callable<Collection<GrantedAuthority>>() {
+				public Collection<GrantedAuthority> call() {
+					return source.load(username);
+				}
+			});
+			this.source = source;
+			this.username = username;
+		}
+
+		/** Adds a login waiting on the lookup, unless they all gave up and it is being cancelled */
+		private boolean join() {
+			while (true) {
+				int count = waiters.get();
+				if (count == 0) { return false; }
+				if (waiters.compareAndSet(count, count + 1)) { return true; }
+			}
+		}
+
+		/** Stops waiting on the lookup, and cancels it if no other login is */
+		private void abandon() {
+			if (waiters.decrementAndGet() == 0) { cancel(true); }
+		}
+
+		@Override
+		protected void done() {
+			// later logins start a lookup of their own
+			source.inFlight.remove(username, this);
+		}
+	}
+
+	/** A login's lookup of the roles of one user from a role source */
+	private final class RoleSourceLookup {
+		private final RoleSource source;
+		private final String username;
+		private final ThreadPoolExecutor executor;
+		private final boolean allowed;
+		private final long started = System.currentTimeMillis();
+		/** The lookup, which is null if the role source threads turned it away */
+		private SharedLookup task;
+		/** Whether another login started the lookup, and records how it went */
+		private boolean shared;
+		/** Whether the roles are the last known ones, because the source is down */
+		private boolean stale;
+		/** Whether this login is done with the lookup, having had its outcome or given up on it */
+		private boolean done;
+
+		private RoleSourceLookup(RoleSource source, String username, ThreadPoolExecutor executor) {
+			this.source = source;
+			this.username = username;
+			this.executor = executor;
+			this.allowed = source.circuitBreaker == null || source.circuitBreaker.allowRequest();
+		}
+
+		/**
+		 * Returns the roles of the user, the last known roles if the source failed or
+		 * its circuit breaker is open, or null if they can't be had and the login
+		 * carries on without them.  Authentication exceptions, e.g. a user the user
+		 * details service doesn't know, always fail the login.
+		 */
+		private Collection<GrantedAuthority> roles() {
+			if (!allowed) {
+				if (metrics != null) { metrics.reject(METRICS_PREFIX + source.name + "CircuitOpen"); }
+				// leave it to the other sources, rather than wait on one that is down
+				Collection<GrantedAuthority> lastKnownRoles = source.lastKnownRoles(username);
+				stale = lastKnownRoles != null;
+				return lastKnownRoles;
+			}
+
+			Collection<GrantedAuthority> roles;
+			try {
+				roles = await();
+			} catch (RoleSourceFailure failure) {
+				if (!shared) { source.failed(); }
+				return roleSourceFailed(this, failure);
+			} catch (AuthenticationException ex) {
+				if (!shared) { source.succeeded(username, null, System.currentTimeMillis() - started); }
+				throw ex;
+			}
+			// only the login that started the lookup tells the circuit breaker how it went
+			if (!shared) { source.succeeded(username, roles, System.currentTimeMillis() - started); }
+			return roles;
+		}
+
+		/**
+		 * Waits for the lookup, for as long as the role source's timeout if it
+		 * runs on the role source threads.  On the request thread, failures only
+		 * go to the circuit breaker if there is one.
+		 */
+		private Collection<GrantedAuthority> await() throws RoleSourceFailure {
+			if (task == null) {
+				throw new RoleSourceFailure("Rejected", "all " + roleSourceThreads + " role source threads are busy", null);
+			}
+
+			long timeout = (executor != null) ? source.timeout() : 0;
+			try {
+				Collection<GrantedAuthority> roles = (timeout > 0) ? task.get(timeout, TimeUnit.MILLISECONDS) : task.get();
+				done = true;
+				return roles;
+			} catch (TimeoutException ex) {
+				abandon();
+				throw new RoleSourceFailure("Timeout", "no answer after " + timeout + "ms", ex);
+			} catch (InterruptedException ex) {
+				abandon();
+				Thread.currentThread().interrupt();
+				throw new RoleSourceFailure("Failed", "interrupted", ex);
+			} catch (CancellationException ex) {
+				// the login that started it couldn't get a role source thread
+				done = true;
+				throw new RoleSourceFailure("Rejected", "all " + roleSourceThreads + " role source threads are busy", ex);
+			} catch (ExecutionException ex) {
+				done = true;
+				Throwable cause = ex.getCause();
+				if (cause instanceof AuthenticationException) { throw (AuthenticationException) cause; }
+				if (executor == null && source.circuitBreaker == null) {
+					if (cause instanceof RuntimeException) { throw (RuntimeException) cause; }
+					if (cause instanceof Error) { throw (Error) cause; }
+				}
+				throw new RoleSourceFailure("Failed", String.valueOf(cause), cause);
+			}
+		}
+
+		/** Gives up on the lookup if the login never had its outcome, e.g. because another role source failed it */
+		private void release() {
+			if (task != null && !done) { abandon(); }
+		}
+
+		/** Stops waiting on the lookup, and takes it off the role source queue if no other login is waiting on it */
+		private void abandon() {
+			done = true;
+			task.abandon();
+			if (executor != null && task.isCancelled()) { executor.remove(task); }
+		}
+	}
+
+	/** Why a role source lookup failed */
+	private static final class RoleSourceFailure extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		/** The suffix of the rejection counter, e.g. 'Timeout' */
+		private final String reason;
+
+		private RoleSourceFailure(String reason, String message, Throwable cause) {
+			super(message, cause);
+			this.reason = reason;
+		}
+	}
+}
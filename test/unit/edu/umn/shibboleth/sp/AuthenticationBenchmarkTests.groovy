@@ -0,0 +1,181 @@
+package edu.umn.shibboleth.sp
+
+import static org.junit.Assert.*
+
+import org.springframework.mock.web.MockHttpServletResponse
+import org.springframework.security.authentication.AuthenticationManager
+import org.springframework.security.authentication.InsufficientAuthenticationException
+import org.springframework.security.core.context.SecurityContextHolder
+
+import grails.test.mixin.*
+import grails.test.mixin.support.*
+import org.junit.*
+
+/**
+ * Benchmarks the authentication hot paths of the plugin, using the in-memory
+ * {@link BenchmarkFixtures} for the request, LDAP and user details service.
+ *
+ * Each path is run for the attribute, role, IP range and thread counts that
+ * apply to it, and reports the time, CPU time, bytes allocated and garbage
+ * collections per operation, so allocation regressions show up between releases.
+ *
+ * Run with {@code grails -Dshibboleth.benchmark=true test-app unit: AuthenticationBenchmark}
+ * for a quick set of parameters, or with {@code -Dshibboleth.benchmark.full=true}
+ * for the full set.
+ */
+@TestMixin(GrailsUnitTestMixin)
+class AuthenticationBenchmarkTests {
+
+	static final boolean FULL = MicroBenchmark.FULL
+
+	static final List<Integer> ATTRIBUTE_COUNTS = FULL ? [ 4, 16, 64 ] : [ 8 ]
+	static final List<Integer> ROLE_COUNTS = FULL ? [ 5, 50, 500 ] : [ 20 ]
+	static final List<Integer> IP_RANGE_COUNTS = FULL ? [ 10, 100, 1000 ] : [ 100 ]
+	static final List<Integer> THREAD_COUNTS = FULL ? [ 1, 2, 4, 8 ] : [ 1, 2 ]
+
+	def benchmark = new MicroBenchmark(
+		warmupIterations: FULL ? 5 : 2,
+		measurementIterations: FULL ? 5 : 2,
+		operationsPerIteration: FULL ? 5000 : 500)
+
+	void setUp() {
+		MicroBenchmark.assumeEnabled()
+	}
+
+	void tearDown() {
+		SecurityContextHolder.clearContext()
+	}
+
+	private ShibbolethUserDetailsService userDetailsService(int roleCount, int ipRangeCount) {
+		def service = new ShibbolethUserDetailsService(
+			rolesAttribute: 'Shib-Roles',
+			rolesSeparator: ',',
+			rolesPrefix: 'SHIB_',
+			identityProviderRoles: BenchmarkFixtures.identityProviderRoles(10),
+			authenticationMethodRoles: BenchmarkFixtures.authenticationMethodRoles(10),
+			ipAddressRoles: BenchmarkFixtures.ipAddressRoles(ipRangeCount),
+			userDnBase: 'ou=people,dc=example,dc=org',
+			ldapAuthoritiesPopulator: BenchmarkFixtures.ldapAuthoritiesPopulator(roleCount),
+			ldapCacheMaxEntries: 0,
+			userDetailsService: BenchmarkFixtures.userDetailsService(roleCount))
+		service.afterPropertiesSet()
+		return service
+	}
+
+	void testAttemptAuthentication() {
+		def results = []
+		ATTRIBUTE_COUNTS.each{ attributeCount ->
+			def filter = new ShibbolethAuthenticationFilter(
+				principalUsernameAttribute: 'EPPN',
+				usernameAttribute: 'EPPN',
+				authenticationMethodAttribute: 'Shib-Authentication-Method',
+				identityProviderAttribute: 'Shib-Identity-Provider',
+				authenticationInstantAttribute: 'Shib-Authentication-Instant',
+				extraAttributes: BenchmarkFixtures.extraAttributes(attributeCount),
+				// hand the token straight back, so only the filter is measured
+				authenticationManager: { it } as AuthenticationManager)
+			filter.afterPropertiesSet()
+			def request = BenchmarkFixtures.request(attributeCount, 20)
+			def response = new MockHttpServletResponse()
+
+			assert attributeCount + 2 == filter.attemptAuthentication(request, response).attributes.size()
+
+			THREAD_COUNTS.each{ threads ->
+				results << benchmark.runConcurrent("attributes=${attributeCount} threads=${threads}", threads) {
+					filter.attemptAuthentication(request, response)
+				}
+			}
+		}
+		MicroBenchmark.report('ShibbolethAuthenticationFilter.attemptAuthentication', results)
+	}
+
+	void testAuthenticate() {
+		def results = []
+		ROLE_COUNTS.each{ roleCount ->
+			def provider = new ShibbolethAuthenticationProvider(
+				authenticationUserDetailsService: userDetailsService(roleCount, 100))
+			def token = BenchmarkFixtures.token(8, roleCount)
+
+			assert provider.authenticate(token).authenticated
+
+			THREAD_COUNTS.each{ threads ->
+				results << benchmark.runConcurrent("roles=${roleCount} threads=${threads}", threads) {
+					provider.authenticate(token)
+				}
+			}
+		}
+		MicroBenchmark.report('ShibbolethAuthenticationProvider.authenticate', results)
+	}
+
+	void testLoadUserDetails() {
+		def results = []
+		ROLE_COUNTS.each{ roleCount ->
+			IP_RANGE_COUNTS.each{ ipRangeCount ->
+				def service = userDetailsService(roleCount, ipRangeCount)
+				def token = BenchmarkFixtures.token(8, roleCount)
+
+				def authorities = service.loadUserDetails(token).authorities*.authority
+				assert authorities.contains('ROLE_IP_UMN_CAMPUS')
+				assert authorities.contains('ROLE_IDP_UMN')
+				assert authorities.contains('ROLE_LDAP_GROUP_1')
+				assert authorities.contains('ROLE_GORM_1')
+
+				THREAD_COUNTS.each{ threads ->
+					results << benchmark.runConcurrent("roles=${roleCount} ranges=${ipRangeCount} threads=${threads}", threads) {
+						service.loadUserDetails(token)
+					}
+				}
+				service.destroy()
+			}
+		}
+		MicroBenchmark.report('ShibbolethUserDetailsService.loadUserDetails', results)
+	}
+
+	void testRequiresLogout() {
+		def filter = new ShibbolethLogoutFilter(
+			principalUsernameAttribute: 'EPPN',
+			authenticationMethodAttribute: 'Shib-Authentication-Method',
+			identityProviderAttribute: 'Shib-Identity-Provider',
+			handlers: [])
+		def request = BenchmarkFixtures.request(8, 20)
+		def response = new MockHttpServletResponse()
+		def token = new ShibbolethAuthenticationProvider(
+			authenticationUserDetailsService: userDetailsService(20, 100)).authenticate(BenchmarkFixtures.token(8, 20))
+
+		SecurityContextHolder.context.authentication = token
+		assertFalse filter.requiresLogout(request, response)
+
+		def results = THREAD_COUNTS.collect{ threads ->
+			benchmark.runConcurrent("threads=${threads}", threads) {
+				// the security context is per thread
+				if (SecurityContextHolder.context.authentication == null) {
+					SecurityContextHolder.context.authentication = token
+				}
+				filter.requiresLogout(request, response)
+			}
+		}
+		MicroBenchmark.report('ShibbolethLogoutFilter.requiresLogout', results)
+	}
+
+	void testCommence() {
+		def entryPoint = new ShibbolethAuthenticationEntryPoint(loginUrl: '/Shibboleth.sso/Login?target={0}')
+		entryPoint.afterPropertiesSet()
+		def request = BenchmarkFixtures.request(8, 20)
+		def exception = new InsufficientAuthenticationException('benchmark')
+		def responses = new ThreadLocal() {
+			protected Object initialValue() { new MockHttpServletResponse() }
+		}
+
+		entryPoint.commence(request, responses.get(), exception)
+		assert responses.get().redirectedUrl.startsWith('/Shibboleth.sso/Login?target=')
+
+		def results = THREAD_COUNTS.collect{ threads ->
+			benchmark.runConcurrent("threads=${threads}", threads) {
+				def response = responses.get()
+				response.committed = false
+				entryPoint.commence(request, response, exception)
+			}
+		}
+		MicroBenchmark.report('ShibbolethAuthenticationEntryPoint.commence', results)
+	}
+}
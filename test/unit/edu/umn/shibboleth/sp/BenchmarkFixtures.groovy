@@ -0,0 +1,151 @@
+package edu.umn.shibboleth.sp
+
+import java.util.concurrent.atomic.AtomicInteger
+
+import org.springframework.ldap.core.ContextSource
+import org.springframework.mock.web.MockHttpServletRequest
+import org.springframework.security.core.GrantedAuthority
+import org.springframework.security.core.authority.AuthorityUtils
+import org.springframework.security.core.authority.GrantedAuthorityImpl
+import org.springframework.security.core.userdetails.User
+import org.springframework.security.core.userdetails.UserDetailsService
+import org.springframework.security.ldap.userdetails.DefaultLdapAuthoritiesPopulator
+
+/**
+ * In-memory stand-ins for the request, LDAP and user details service, used by
+ * the benchmarks so they measure the plugin rather than the network, and by
+ * the tests that need a slow, counted or failing role source.
+ *
+ * @author <a href="mailto:ajz@umn.edu">Aaron J. Zirbes</a>
+ */
+class BenchmarkFixtures {
+
+	static final String EPPN = 'testuser@example.org'
+	static final String SESSION_ID = '_dd30caa5aaf4a09ef7335bb1ee1df54b'
+	static final String REMOTE_ADDRESS = '134.84.1.10'
+	static final String IDENTITY_PROVIDER = 'https://idp2.shib.umn.edu/idp/shibboleth'
+	static final String AUTHENTICATION_METHOD = 'urn:oasis:names:tc:SAML:2.0:ac:classes:unspecified'
+
+	/** The extra attribute names, including the roles attribute */
+	static List<String> extraAttributes(int attributeCount) {
+		[ 'Shib-Session-ID', 'Shib-Roles' ] + (1..attributeCount).collect{ "Shib-Attribute-${it}".toString() }
+	}
+
+	/** A request as the Shibboleth SP would pass it, with the roles attribute holding roleCount values */
+	static MockHttpServletRequest request(int attributeCount, int roleCount) {
+		def request = new MockHttpServletRequest('GET', '/j_spring_shibboleth_native_sp_security_check')
+		request.setAuthType('shibboleth')
+		request.setRemoteUser(EPPN)
+		request.setRemoteAddr(REMOTE_ADDRESS)
+		request.setAttribute('EPPN', EPPN)
+		request.setAttribute('Shib-Session-ID', SESSION_ID)
+		request.setAttribute('Shib-Authentication-Instant', '2012-01-16T03:52:19.890Z')
+		request.setAttribute('Shib-Authentication-Method', AUTHENTICATION_METHOD)
+		request.setAttribute('Shib-Identity-Provider', IDENTITY_PROVIDER)
+		request.setAttribute('Shib-Roles', roles(roleCount))
+		attributeCount.times{ request.setAttribute("Shib-Attribute-${it + 1}".toString(), "value ${it + 1}".toString()) }
+		return request
+	}
+
+	/** A roles attribute value with roleCount entitlements */
+	static String roles(int roleCount) {
+		(1..roleCount).collect{ "urn:mace:example.org:entitlement:group${it}" }.join(',')
+	}
+
+	/** The token the authentication filter builds from {@link #request} */
+	static ShibbolethAuthenticationToken token(int attributeCount, int roleCount) {
+		def attributes = [ 'Shib-Session-ID': SESSION_ID, 'Shib-Roles': roles(roleCount) ]
+		attributeCount.times{ attributes["Shib-Attribute-${it + 1}".toString()] = "value ${it + 1}".toString() }
+		def token = new ShibbolethAuthenticationToken(EPPN, 'testuser', 'shibboleth', AUTHENTICATION_METHOD,
+			IDENTITY_PROVIDER, '2012-01-16T03:52:19.890Z', REMOTE_ADDRESS, attributes)
+		token.sessionFingerprint = ShibbolethAuthenticationToken.sessionFingerprint(SESSION_ID, EPPN)
+		return token
+	}
+
+	/** IP address roles with rangeCount ranges, one of which holds {@link #REMOTE_ADDRESS} */
+	static Map<String, List<String>> ipAddressRoles(int rangeCount) {
+		def random = new Random(1)
+		def ipAddressRoles = [ 'ROLE_IP_UMN_CAMPUS': [ '134.84.0.0/16' ] ]
+		(rangeCount - 1).times{
+			def role = "ROLE_IP_RANGE_${it % 10}".toString()
+			if (!ipAddressRoles[role]) { ipAddressRoles[role] = [] }
+			ipAddressRoles[role] << "${random.nextInt(134)}.${random.nextInt(256)}.${random.nextInt(256)}.0/${16 + random.nextInt(9)}".toString()
+		}
+		return ipAddressRoles
+	}
+
+	/** Identity provider roles, one of which matches {@link #IDENTITY_PROVIDER} */
+	static Map<String, String> identityProviderRoles(int count) {
+		def roles = [ 'ROLE_IDP_UMN': IDENTITY_PROVIDER ]
+		(count - 1).times{ roles["ROLE_IDP_${it}".toString()] = "https://idp${it}.example.org/idp/shibboleth".toString() }
+		return roles
+	}
+
+	/** Authentication method roles, one of which matches {@link #AUTHENTICATION_METHOD} */
+	static Map<String, String> authenticationMethodRoles(int count) {
+		def roles = [ 'ROLE_AUTH_METHOD_STANDARD': AUTHENTICATION_METHOD ]
+		(count - 1).times{ roles["ROLE_AUTH_METHOD_${it}".toString()] = "urn:example:ac:classes:method${it}".toString() }
+		return roles
+	}
+
+	/** An LDAP populator that answers every search with roleCount groups, without a directory */
+	static DefaultLdapAuthoritiesPopulator ldapAuthoritiesPopulator(int roleCount) {
+		return ldapAuthoritiesPopulator(roleCount: roleCount)
+	}
+
+	/**
+	 * An LDAP populator that answers every search with the same groups, without a directory.  The options are
+	 * <ul>
+	 * <li>roles: the role names of the groups, or else roleCount: the number of groups, by default 1</li>
+	 * <li>latency: how many milliseconds each search takes</li>
+	 * <li>searches: an AtomicInteger that counts the searches</li>
+	 * <li>onSearch: a closure called with the username on each search, e.g. to wait on a latch or throw</li>
+	 * </ul>
+	 */
+	static DefaultLdapAuthoritiesPopulator ldapAuthoritiesPopulator(Map options) {
+		Set<GrantedAuthority> groups = roleNames(options, 'ROLE_LDAP_GROUP_').collect{ new GrantedAuthorityImpl(it) } as Set
+		long latency = options.latency ?: 0
+		AtomicInteger searches = options.searches
+		Closure onSearch = options.onSearch
+		return new DefaultLdapAuthoritiesPopulator([:] as ContextSource, 'ou=groups') {
+			Set<GrantedAuthority> getGroupMembershipRoles(String userDn, String username) {
+				searches?.incrementAndGet()
+				if (onSearch) { onSearch(username) }
+				if (latency > 0) { Thread.sleep(latency) }
+				return groups
+			}
+		}
+	}
+
+	/** A user details service that finds every user, with roleCount roles */
+	static UserDetailsService userDetailsService(int roleCount) {
+		return userDetailsService(roleCount: roleCount)
+	}
+
+	/**
+	 * A user details service that finds every user, with the same roles.  The options are
+	 * <ul>
+	 * <li>roles: the role names, or else roleCount: the number of roles, by default 1</li>
+	 * <li>latency: how many milliseconds each load takes</li>
+	 * <li>loads: an AtomicInteger that counts the loads</li>
+	 * <li>onLoad: a closure called with the username on each load, e.g. to wait on a latch or throw</li>
+	 * </ul>
+	 */
+	static UserDetailsService userDetailsService(Map options) {
+		def authorities = AuthorityUtils.createAuthorityList(roleNames(options, 'ROLE_GORM_') as String[])
+		long latency = options.latency ?: 0
+		AtomicInteger loads = options.loads
+		Closure onLoad = options.onLoad
+		return { String username ->
+			loads?.incrementAndGet()
+			if (onLoad) { onLoad(username) }
+			if (latency > 0) { Thread.sleep(latency) }
+			new User(username, '', true, true, true, true, authorities)
+		} as UserDetailsService
+	}
+
+	private static List<String> roleNames(Map options, String prefix) {
+		if (options.roles) { return options.roles as List<String> }
+		return (1..(options.roleCount ?: 1)).collect{ "${prefix}${it}".toString() }
+	}
+}
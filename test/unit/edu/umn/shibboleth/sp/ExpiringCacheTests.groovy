@@ -0,0 +1,105 @@
+package edu.umn.shibboleth.sp
+
+import static org.junit.Assert.*
+
+import java.util.concurrent.Executor
+
+import grails.test.mixin.*
+import grails.test.mixin.support.*
+import org.junit.*
+
+/**
+ * See the API for {@link grails.test.mixin.support.GrailsUnitTestMixin} for usage instructions
+ */
+@TestMixin(GrailsUnitTestMixin)
+class ExpiringCacheTests {
+
+	void testGetAndPut() {
+		def cache = new ExpiringCache<String, String>(10, 60000, 0)
+
+		assertNull cache.get('testuser')
+		cache.put('testuser', 'ROLE_A')
+
+		assert 'ROLE_A' == cache.get('testuser')
+		assert 1 == cache.hitCount
+		assert 1 == cache.missCount
+		assert 1 == cache.size()
+	}
+
+	void testLoader() {
+		def cache = new ExpiringCache<String, String>(10, 60000, 0)
+		int loads = 0
+		def loader = { String key -> loads++; key.toUpperCase() } as ExpiringCache.Loader
+
+		assert 'TESTUSER' == cache.get('testuser', loader)
+		assert 'TESTUSER' == cache.get('testuser', loader)
+		assert 1 == loads
+		assert 1 == cache.loadCount
+	}
+
+	void testNullsAreNotCached() {
+		def cache = new ExpiringCache<String, String>(10, 60000, 0)
+		def loader = { String key -> null } as ExpiringCache.Loader
+
+		assertNull cache.get('testuser', loader)
+		assert 0 == cache.size()
+	}
+
+	void testExpiry() {
+		def cache = new ExpiringCache<String, String>(10, 50, 0)
+		cache.put('testuser', 'ROLE_A')
+		cache.put('otheruser', 'ROLE_B', System.currentTimeMillis() + 60000)
+
+		Thread.sleep(100)
+
+		assertNull cache.get('testuser')
+		assert 'ROLE_B' == cache.get('otheruser')
+		assert 1 == cache.evictionCount
+	}
+
+	void testSizeEviction() {
+		def cache = new ExpiringCache<Integer, String>(32, 60000, 0)
+		1000.times{ cache.put(it, 'value' + it) }
+
+		assert cache.size() <= 32
+		assert cache.evictionCount >= 1000 - 32
+	}
+
+	void testInvalidate() {
+		def cache = new ExpiringCache<String, String>(10, 60000, 0)
+		cache.put('testuser', 'ROLE_A')
+		cache.put('otheruser', 'ROLE_B')
+
+		cache.invalidate('testuser')
+		assertNull cache.get('testuser')
+		assert 'ROLE_B' == cache.get('otheruser')
+
+		cache.invalidateAll()
+		assert 0 == cache.size()
+	}
+
+	void testBackgroundRefresh() {
+		def cache = new ExpiringCache<String, String>(10, 60000, 50)
+		// run refreshes on the calling thread to keep the test deterministic
+		cache.refreshExecutor = { Runnable runnable -> runnable.run() } as Executor
+		int loads = 0
+		def loader = { String key -> loads++; key + loads } as ExpiringCache.Loader
+
+		assert 'testuser1' == cache.get('testuser', loader)
+		Thread.sleep(100)
+
+		// the stale value is returned, and the refreshed value is loaded behind it
+		assert 'testuser1' == cache.get('testuser', loader)
+		assert 'testuser2' == cache.get('testuser', loader)
+		assert 1 == cache.refreshCount
+	}
+
+	void testInvalidSettings() {
+		shouldFail(IllegalArgumentException) {
+			new ExpiringCache<String, String>(0, 60000, 0)
+		}
+		shouldFail(IllegalArgumentException) {
+			new ExpiringCache<String, String>(10, 0, 0)
+		}
+	}
+}
@@ -13,20 +13,13 @@ import org.springframework.security.web.util.IpAddressMatcher
 import org.springframework.security.ldap.userdetails.DefaultLdapAuthoritiesPopulator
 
 /**
-	Abstract class for using the provided Shibboleth assertion to construct
-	a new {@link ShibbolethUser} object.  This generally is most useful when
-	combined with additional exposed attributes returned to the Shibboleth
-	native SP from the IdP.
-	<p/>
-	Reference Documentation
-	<ul>
-	<li><a href="http://static.springsource.org/spring-security/site/reference.html">Spring Security Documentation</a></li>
-	<li><a href="http://grails-plugins.github.com/grails-spring-security-core/">Grails Spring Security Core Documentation</a></li>
-	</ul>
-
-	@author <a href="mailto:ajz@umn.edu">Aaron J. Zirbes</a>
-*/
-class ShibbolethUserDetailsService implements UserDetailsService, AuthenticationUserDetailsService {
+ * The Groovy {@code ShibbolethUserDetailsService} exactly as it was before it
+ * was ported to Java, only renamed.  This is only kept as the baseline for
+ * {@link ShibbolethUserDetailsServiceBenchmarkTests}.
+ *
+ * @author <a href="mailto:ajz@umn.edu">Aaron J. Zirbes</a>
+ */
+class GroovyShibbolethUserDetailsService implements UserDetailsService, AuthenticationUserDetailsService {
 
 	/**
 	 * This is to support the {@code RememberMeService}
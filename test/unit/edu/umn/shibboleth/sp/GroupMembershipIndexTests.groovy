@@ -0,0 +1,236 @@
+package edu.umn.shibboleth.sp
+
+import static org.junit.Assert.*
+
+import grails.test.mixin.*
+import grails.test.mixin.support.*
+import org.junit.*
+
+/**
+ * See the API for {@link grails.test.mixin.support.GrailsUnitTestMixin} for usage instructions
+ */
+@TestMixin(GrailsUnitTestMixin)
+class GroupMembershipIndexTests {
+
+	File directory
+
+	void setUp() {
+		directory = File.createTempFile('group-index', '')
+		directory.delete()
+		directory.mkdirs()
+	}
+
+	void tearDown() {
+		directory.deleteDir()
+	}
+
+	def index(String fileName, String content, Map settings = [:]) {
+		def file = new File(directory, fileName)
+		file.text = content
+		def index = new GroupMembershipIndex(snapshotFile: file, reloadInterval: 0)
+		settings.each{ name, value -> index[name] = value }
+		index.afterPropertiesSet()
+		return index
+	}
+
+	def roles(index, username) {
+		return index.findRoles(username)*.authority
+	}
+
+	void testCsv() {
+		def index = index('groups.csv', '''# username, groups
+ajz,staff,"web developers"
+jdoe , students
+AJZ,shib-admins
+''')
+
+		assert 2 == index.size()
+		assert [ 'ROLE_STAFF', 'ROLE_WEB_DEVELOPERS', 'ROLE_SHIB_ADMINS' ] == roles(index, 'ajz')
+		assert [ 'ROLE_STUDENTS' ] == roles(index, 'JDoe')
+		assert [] == roles(index, 'nobody')
+		assert [] == roles(index, null)
+	}
+
+	void testLdif() {
+		def index = index('groups.ldif', """version: 1
+
+dn: cn=staff,ou=groups,dc=umn,dc=edu
+objectClass: groupOfNames
+cn: staff
+member: uid=ajz,ou=people,dc=umn,dc=edu
+member: uid=jdoe,ou=people,
+ dc=umn,dc=edu
+
+# a posix group
+dn: cn=web-developers,ou=groups,dc=umn,dc=edu
+cn: web-developers
+memberUid: ajz
+
+dn: cn=admins,ou=groups,dc=umn,dc=edu
+cn:: ${'shib admins'.bytes.encodeBase64()}
+uniqueMember: cn=ajz+sn=Zirbes,ou=people,dc=umn,dc=edu
+""")
+
+		assert 2 == index.size()
+		assert [ 'ROLE_STAFF', 'ROLE_WEB_DEVELOPERS', 'ROLE_SHIB_ADMINS' ] == roles(index, 'ajz')
+		assert [ 'ROLE_STAFF' ] == roles(index, 'jdoe')
+	}
+
+	void testDecodeBase64() {
+		[ '', 'a', 'ab', 'abc', 'shib admins', 'Zürich Ärzte', 'x' * 100 ].each{ text ->
+			assert text == GroupMembershipIndex.decodeBase64(text.getBytes('UTF-8').encodeBase64().toString())
+		}
+		assert 'shib admins' == GroupMembershipIndex.decodeBase64('c2hp YiBh\tZG1pbnM=')
+		assert null == GroupMembershipIndex.decodeBase64('not*base64')
+	}
+
+	void testRoleNames() {
+		def index = index('groups.txt', 'ajz,staff,ROLE_ADMIN\n', [ format: 'csv', rolePrefix: 'ROLE_GROUP_' ])
+
+		assert [ 'ROLE_GROUP_STAFF', 'ROLE_GROUP_ROLE_ADMIN' ] == roles(index, 'ajz')
+	}
+
+	void testSharedRoles() {
+		def index = index('groups.csv', 'ajz,staff,faculty\njdoe,staff,faculty\nbob,staff\n')
+
+		// users in the same groups share one array, and every user shares the authorities
+		assert index.findRoles('ajz').is(index.findRoles('jdoe'))
+		assert index.findRoles('ajz')[0].is(index.findRoles('bob')[0])
+		assert index.findRoles('bob')[0].is(ShibbolethAuthorities.get(index.findRoles('bob')[0].authority))
+		assert ShibbolethAuthorities.id(index.findRoles('bob')[0]) >= 0
+		assert index.statistics.contains('distinctRoleSets=2')
+	}
+
+	void testDeltas() {
+		def deltas = new File(directory, 'deltas')
+		deltas.mkdirs()
+		def file = new File(directory, 'groups.csv')
+		file.text = 'ajz,staff,faculty\nbob,faculty\n'
+		file.lastModified = System.currentTimeMillis() - 60000
+		new File(deltas, '001.delta').text = '+jdoe,staff\n-ajz,faculty\n'
+		def index = new GroupMembershipIndex(snapshotFile: file, deltaDirectory: deltas, reloadInterval: 0)
+		index.afterPropertiesSet()
+
+		assert [ 'ROLE_STAFF' ] == roles(index, 'ajz')
+		assert [ 'ROLE_STAFF' ] == roles(index, 'jdoe')
+		assert index.findRoles('jdoe')[0].is(index.findRoles('ajz')[0])
+
+		// new deltas are applied on refresh, in name order, without touching the loaded index
+		def loaded = index.findRoles('bob')
+		new File(deltas, '003.delta').text = 'bob,admins\n'
+		new File(deltas, '002.delta').text = '-bob,faculty\n# a comment\n-jdoe,staff\n'
+		index.refresh()
+
+		assert [ 'ROLE_ADMINS' ] == roles(index, 'bob')
+		assert [] == roles(index, 'jdoe')
+		assert [ 'ROLE_FACULTY' ] == loaded*.authority
+		assert 2 == index.size()
+		assert index.statistics.contains('deltasApplied=3')
+
+		// deltas already applied are not applied again
+		index.refresh()
+		assert index.statistics.contains('deltasApplied=3')
+
+		// the roles later deltas add share the snapshot's authorities
+		new File(deltas, '004.delta').text = '+jdoe,faculty\n'
+		index.refresh()
+		assert loaded[0].is(index.findRoles('jdoe')[0])
+	}
+
+	void testReload() {
+		def deltas = new File(directory, 'deltas')
+		deltas.mkdirs()
+		def index = index('groups.csv', 'ajz,staff\n', [ deltaDirectory: deltas ])
+		def file = new File(directory, 'groups.csv')
+
+		def delta = new File(deltas, '001.delta')
+		delta.text = '+ajz,admins\n'
+		delta.lastModified = file.lastModified() - 60000
+		index.refresh()
+
+		// a delta older than the snapshot is part of it
+		assert [ 'ROLE_STAFF' ] == roles(index, 'ajz')
+
+		// a new snapshot is reloaded in full, once it is the same at two refreshes in a row
+		file.text = 'ajz,faculty\n'
+		file.lastModified = file.lastModified() + 120000
+		index.refresh()
+
+		assert [ 'ROLE_STAFF' ] == roles(index, 'ajz')
+
+		index.refresh()
+
+		assert [ 'ROLE_FACULTY' ] == roles(index, 'ajz')
+	}
+
+	void testPartlyWrittenSnapshot() {
+		def index = index('groups.csv', 'ajz,staff\njdoe,students\nbob,faculty\n')
+		def file = new File(directory, 'groups.csv')
+		long lastModified = file.lastModified()
+
+		// the export is being written, and has grown between the refreshes
+		file.text = 'ajz,staff\n'
+		file.lastModified = lastModified + 60000
+		index.refresh()
+		file.text = 'ajz,staff\njdoe,stud'
+		file.lastModified = lastModified + 120000
+		index.refresh()
+
+		assert 3 == index.size()
+
+		// finished, and the same at the next refresh
+		file.text = 'ajz,staff\njdoe,students\nbob,faculty\nsue,staff\n'
+		file.lastModified = lastModified + 180000
+		index.refresh()
+		assert 3 == index.size()
+		index.refresh()
+
+		assert 4 == index.size()
+		assert [ 'ROLE_STAFF' ] == roles(index, 'sue')
+	}
+
+	void testParseErrorKeepsIndex() {
+		def index = index('groups.csv', 'ajz,staff\n')
+		def file = new File(directory, 'groups.csv')
+
+		file.text = 'ajz,"staff\njdoe,students\n'
+		file.lastModified = file.lastModified() + 60000
+		index.refresh()
+		def message = shouldFail(IOException) {
+			index.refresh()
+		}
+
+		assert message.contains('line 1')
+		assert [ 'ROLE_STAFF' ] == roles(index, 'ajz')
+		assert [] == roles(index, 'jdoe')
+
+		shouldFail(IOException) {
+			this.index('groups.ldif', 'dn: cn=staff,ou=groups,dc=umn,dc=edu\ncn:: not*base64\n')
+		}
+		shouldFail(IOException) {
+			this.index('broken.ldif', 'dn: cn=staff,ou=groups,dc=umn,dc=edu\nnot an attribute\n')
+		}
+	}
+
+	void testFailedReloadKeepsIndex() {
+		def index = index('groups.csv', 'ajz,staff\n')
+		def file = new File(directory, 'groups.csv')
+
+		file.delete()
+		index.refresh()
+		shouldFail(IOException) {
+			index.refresh()
+		}
+
+		assert [ 'ROLE_STAFF' ] == roles(index, 'ajz')
+	}
+
+	void testMissingSnapshot() {
+		shouldFail(IllegalArgumentException) {
+			new GroupMembershipIndex(reloadInterval: 0).afterPropertiesSet()
+		}
+		shouldFail(IOException) {
+			new GroupMembershipIndex(snapshotFile: new File(directory, 'missing.csv'), reloadInterval: 0).afterPropertiesSet()
+		}
+	}
+}
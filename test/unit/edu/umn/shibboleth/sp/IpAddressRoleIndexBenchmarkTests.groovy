@@ -0,0 +1,60 @@
+package edu.umn.shibboleth.sp
+
+import static org.junit.Assert.*
+
+import org.springframework.security.web.util.IpAddressMatcher
+
+import grails.test.mixin.*
+import grails.test.mixin.support.*
+import org.junit.*
+
+/**
+ * Compares the pre-compiled {@link IpAddressRoleIndex} with the previous
+ * loop that built an {@link IpAddressMatcher} for every range on every login.
+ *
+ * Run with {@code grails -Dshibboleth.benchmark=true test-app unit: IpAddressRoleIndexBenchmark}
+ */
+@TestMixin(GrailsUnitTestMixin)
+class IpAddressRoleIndexBenchmarkTests {
+
+	void setUp() {
+		MicroBenchmark.assumeEnabled()
+	}
+
+	void testIndexAgainstMatcherLoop() {
+		// a few hundred campus/VPN ranges spread across a handful of roles
+		def random = new Random(1)
+		def ipAddressRoles = [:]
+		10.times{ role ->
+			ipAddressRoles["ROLE_IP_RANGE_${role}".toString()] = (1..30).collect{
+				"${random.nextInt(224)}.${random.nextInt(256)}.${random.nextInt(256)}.0/${16 + random.nextInt(9)}".toString()
+			}
+		}
+		def addresses = (1..64).collect{ "${random.nextInt(224)}.${random.nextInt(256)}.${random.nextInt(256)}.${random.nextInt(256)}".toString() }
+
+		def index = new IpAddressRoleIndex(ipAddressRoles)
+		def legacyLoop = { String address ->
+			def roles = []
+			ipAddressRoles.each{ role, ipList ->
+				ipList.each{ ip ->
+					if (new IpAddressMatcher(ip).matches(address)) {
+						roles << role
+					}
+				}
+			}
+			roles
+		}
+
+		// both must agree before the numbers mean anything
+		addresses.each{ address ->
+			assertEquals legacyLoop(address) as Set, index.findRoles(address) as Set
+		}
+
+		def benchmark = new MicroBenchmark(operationsPerIteration: 2000)
+		int i = 0
+		def results = [
+			benchmark.run('IpAddressMatcher loop (300 ranges)') { legacyLoop(addresses[i++ & 63]) },
+			benchmark.run('IpAddressRoleIndex (300 ranges)') { index.findRoles(addresses[i++ & 63]) } ]
+		MicroBenchmark.report('remoteAddress.roles lookup', results)
+	}
+}
@@ -0,0 +1,81 @@
+package edu.umn.shibboleth.sp
+
+import static org.junit.Assert.*
+
+import org.springframework.security.web.util.IpAddressMatcher
+
+import grails.test.mixin.*
+import grails.test.mixin.support.*
+import org.junit.*
+
+/**
+ * See the API for {@link grails.test.mixin.support.GrailsUnitTestMixin} for usage instructions
+ */
+@TestMixin(GrailsUnitTestMixin)
+class IpAddressRoleIndexTests {
+
+	def ipAddressRoles
+
+	void setUp() {
+		ipAddressRoles = [
+			'ROLE_IP_UMN_VPN': ['134.84.0.0/23'],
+			'ROLE_IP_LOCALHOST': ['127.0.0.0/24', '::1'],
+			'ROLE_IP_UMN_CAMPUS': ['160.94.0.0/16', '128.101.0.0/16', '134.84.0.0/16'],
+			'ROLE_IP_UMN_DEPT': ['160.94.224.0/25', '128.101.60.128/25', '134.84.107.192/26'],
+			'ROLE_IP_V6_LAB': ['2607:ea00:101::/48'],
+			'ROLE_IP_EVERYWHERE': ['0.0.0.0/0'] ]
+	}
+
+	void testFindRoles() {
+		def index = new IpAddressRoleIndex(ipAddressRoles)
+
+		assert 11 == index.size()
+		assert ['ROLE_IP_EVERYWHERE', 'ROLE_IP_LOCALHOST'] as Set == index.findRoles('127.0.0.1') as Set
+		assert ['ROLE_IP_EVERYWHERE', 'ROLE_IP_UMN_CAMPUS', 'ROLE_IP_UMN_VPN'] as Set == index.findRoles('134.84.1.10') as Set
+		assert ['ROLE_IP_EVERYWHERE', 'ROLE_IP_UMN_CAMPUS', 'ROLE_IP_UMN_DEPT'] as Set == index.findRoles('134.84.107.200') as Set
+		assert ['ROLE_IP_EVERYWHERE'] == index.findRoles('8.8.8.8')
+		assert ['ROLE_IP_LOCALHOST'] == index.findRoles('::1')
+		assert ['ROLE_IP_V6_LAB'] == index.findRoles('2607:ea00:101:1::5')
+		assert [] == index.findRoles('2607:ea00:102::5')
+	}
+
+	void testEmptyIndex() {
+		def index = new IpAddressRoleIndex([:])
+
+		assertTrue index.isEmpty()
+		assert [] == index.findRoles('127.0.0.1')
+	}
+
+	void testInvalidRange() {
+		shouldFail(IllegalArgumentException) {
+			new IpAddressRoleIndex(['ROLE_BAD': ['10.0.0.0/33']])
+		}
+		shouldFail(IllegalArgumentException) {
+			new IpAddressRoleIndex(['ROLE_BAD': ['10.0.0.0/abc']])
+		}
+	}
+
+	void testMatchesIpAddressMatcher() {
+		def random = new Random(42)
+		def addresses = ['0.0.0.0', '255.255.255.255', '127.0.0.1', '::1', '2607:ea00:101::1']
+		500.times {
+			addresses << [ random.nextInt(256), random.nextInt(256), random.nextInt(256), random.nextInt(256) ].join('.')
+			addresses << '134.84.' + random.nextInt(256) + '.' + random.nextInt(256)
+			addresses << '160.94.224.' + random.nextInt(256)
+		}
+
+		def index = new IpAddressRoleIndex(ipAddressRoles)
+
+		addresses.each{ address ->
+			def expected = [] as Set
+			ipAddressRoles.each{ role, ipList ->
+				ipList.each{ ip ->
+					if (new IpAddressMatcher(ip).matches(address)) {
+						expected << role
+					}
+				}
+			}
+			assertEquals "roles for ${address}".toString(), expected, index.findRoles(address) as Set
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package edu.umn.shibboleth.sp
+
+import static org.junit.Assert.*
+
+import org.springframework.context.support.GenericApplicationContext
+import org.springframework.security.ldap.DefaultSpringSecurityContextSource
+import org.springframework.security.ldap.search.FilterBasedLdapUserSearch
+import org.springframework.security.ldap.search.LdapUserSearch
+import org.springframework.security.ldap.server.ApacheDSContainer
+import org.springframework.security.ldap.userdetails.DefaultLdapAuthoritiesPopulator
+
+import grails.test.mixin.*
+import grails.test.mixin.support.*
+import org.junit.*
+
+/**
+ * Runs the user search against an in-process ApacheDS server, with users in
+ * nested OUs that a DN built from {@code userDnBase} would not find.
+ */
+@TestMixin(GrailsUnitTestMixin)
+class LdapUserDnResolverTests {
+
+	static final String LDIF = '''dn: ou=people,dc=umn,dc=edu
+objectClass: top
+objectClass: organizationalUnit
+ou: people
+
+dn: ou=staff,ou=people,dc=umn,dc=edu
+objectClass: top
+objectClass: organizationalUnit
+ou: staff
+
+dn: ou=students,ou=people,dc=umn,dc=edu
+objectClass: top
+objectClass: organizationalUnit
+ou: students
+
+dn: uid=ajz,ou=staff,ou=people,dc=umn,dc=edu
+objectClass: top
+objectClass: person
+objectClass: organizationalPerson
+objectClass: inetOrgPerson
+uid: ajz
+cn: Aaron Zirbes
+sn: Zirbes
+
+dn: uid=jdoe,ou=students,ou=people,dc=umn,dc=edu
+objectClass: top
+objectClass: person
+objectClass: organizationalPerson
+objectClass: inetOrgPerson
+uid: jdoe
+cn: John Doe
+sn: Doe
+
+dn: ou=groups,dc=umn,dc=edu
+objectClass: top
+objectClass: organizationalUnit
+ou: groups
+
+dn: cn=developers,ou=groups,dc=umn,dc=edu
+objectClass: top
+objectClass: groupOfUniqueNames
+cn: developers
+uniqueMember: uid=ajz,ou=staff,ou=people,dc=umn,dc=edu
+
+dn: cn=students,ou=groups,dc=umn,dc=edu
+objectClass: top
+objectClass: groupOfUniqueNames
+cn: students
+uniqueMember: uid=jdoe,ou=students,ou=people,dc=umn,dc=edu
+'''
+
+	File directory
+	ApacheDSContainer server
+	DefaultSpringSecurityContextSource contextSource
+	int searches
+
+	void setUp() {
+		directory = File.createTempFile('ldap', '')
+		directory.delete()
+		directory.mkdirs()
+		def ldif = new File(directory, 'users.ldif')
+		ldif.text = LDIF
+
+		// a port that is free now, so parallel and repeated runs don't collide
+		int port = freePort()
+		server = new ApacheDSContainer('dc=umn,dc=edu', ldif.toURI().toString())
+		server.port = port
+		server.workingDirectory = new File(directory, 'server')
+		server.applicationContext = new GenericApplicationContext()
+		server.afterPropertiesSet()
+
+		contextSource = new DefaultSpringSecurityContextSource("ldap://127.0.0.1:${port}/dc=umn,dc=edu")
+		contextSource.afterPropertiesSet()
+		searches = 0
+	}
+
+	void tearDown() {
+		server?.destroy()
+		directory.deleteDir()
+	}
+
+	private static int freePort() {
+		def socket = new ServerSocket(0)
+		try {
+			return socket.localPort
+		} finally {
+			socket.close()
+		}
+	}
+
+	/** The LDAP plugin's user search, counting the searches it runs */
+	LdapUserSearch userSearch() {
+		def search = new FilterBasedLdapUserSearch('ou=people', '(uid={0})', contextSource)
+		search.searchSubtree = true
+		return [ searchForUser: { String username ->
+			searches++
+			search.searchForUser(username)
+		} ] as LdapUserSearch
+	}
+
+	def resolver(Map settings = [:]) {
+		def resolver = new LdapUserDnResolver(userSearch: userSearch())
+		settings.each{ name, value -> resolver[name] = value }
+		resolver.afterPropertiesSet()
+		return resolver
+	}
+
+	void testResolveDn() {
+		def resolver = resolver()
+
+		assert 'uid=ajz,ou=staff,ou=people,dc=umn,dc=edu' == resolver.resolveDn('ajz')
+		assert 'uid=jdoe,ou=students,ou=people,dc=umn,dc=edu' == resolver.resolveDn('jdoe')
+		assertNull resolver.resolveDn('nobody')
+	}
+
+	void testCachesDns() {
+		def resolver = resolver()
+
+		resolver.resolveDn('ajz')
+		resolver.resolveDn('ajz')
+		assertNull resolver.resolveDn('nobody')
+		assertNull resolver.resolveDn('nobody')
+
+		// unknown users are remembered too
+		assert 2 == searches
+		assertTrue resolver.statistics.contains('hits=2')
+
+		resolver.evict('ajz')
+		resolver.resolveDn('ajz')
+		assert 3 == searches
+	}
+
+	void testNotFoundTimeToLive() {
+		def resolver = resolver(notFoundTimeToLive: 0)
+
+		resolver.resolveDn('nobody')
+		resolver.resolveDn('nobody')
+
+		assert 2 == searches
+	}
+
+	void testCacheDisabled() {
+		def resolver = resolver(maxEntries: 0)
+
+		resolver.resolveDn('ajz')
+		resolver.resolveDn('ajz')
+
+		assert 2 == searches
+		assert 'disabled' == resolver.statistics
+	}
+
+	void testUserDetailsLdapRoles() {
+		def ldapAuthoritiesPopulator = new DefaultLdapAuthoritiesPopulator(contextSource, 'ou=groups')
+		ldapAuthoritiesPopulator.groupSearchFilter = 'uniqueMember={0}'
+
+		def shibbolethUserDetailsService = new ShibbolethUserDetailsService(
+			userDnResolver: resolver(),
+			ldapAuthoritiesPopulator: ldapAuthoritiesPopulator,
+			ldapCacheMaxEntries: 0)
+		shibbolethUserDetailsService.afterPropertiesSet()
+
+		def token = { username ->
+			new ShibbolethAuthenticationToken("${username}@umn.edu", username, 'shibboleth', 'fake.authentication.method',
+				'fake.IdP', '1234567890', '127.0.0.1', [:])
+		}
+
+		assert [ 'ROLE_DEVELOPERS' ] == shibbolethUserDetailsService.loadUserDetails(token('ajz')).authorities*.authority
+		assert [ 'ROLE_STUDENTS' ] == shibbolethUserDetailsService.loadUserDetails(token('jdoe')).authorities*.authority
+
+		// the DN is found once, after that each login only searches for the groups
+		shibbolethUserDetailsService.loadUserDetails(token('ajz'))
+		assert 2 == searches
+
+		// unknown users get the default role, without a group search
+		assert [ 'ROLE_USER' ] == shibbolethUserDetailsService.loadUserDetails(token('nobody')).authorities*.authority
+
+		shibbolethUserDetailsService.destroy()
+	}
+}
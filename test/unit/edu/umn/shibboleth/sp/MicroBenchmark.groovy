@@ -0,0 +1,142 @@
+package edu.umn.shibboleth.sp
+
+import java.lang.management.ManagementFactory
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicLong
+
+import org.apache.log4j.Logger
+import org.junit.Assume
+
+/**
+ * A very small benchmark harness used by the {@code *BenchmarkTests} classes.
+ *
+ * Each operation is warmed up, and then measured over several iterations.  The
+ * average wall clock and CPU time per operation is reported, along with the bytes
+ * allocated per operation when the JVM supports thread allocation counters, and
+ * the garbage collections that ran while measuring.
+ * These are comparisons between implementations on the same machine, not
+ * absolute numbers.
+ *
+ * The benchmarks and load tests are skipped by a plain {@code test-app}.  Run
+ * them with {@code grails -Dshibboleth.benchmark=true test-app unit: Benchmark}.
+ * Their reports are logged at INFO to the {@code edu.umn.shibboleth.sp.benchmark}
+ * logger.
+ *
+ * @author <a href="mailto:ajz@umn.edu">Aaron J. Zirbes</a>
+ */
+class MicroBenchmark {
+
+	/** Runs the larger parameter sets of the benchmarks and load tests, and implies {@link #ENABLED} */
+	static final boolean FULL = Boolean.getBoolean('shibboleth.benchmark.full')
+	static final boolean ENABLED = FULL || Boolean.getBoolean('shibboleth.benchmark')
+
+	/** The logger every benchmark and load test reports to */
+	static final Logger log = Logger.getLogger('edu.umn.shibboleth.sp.benchmark')
+
+	int warmupIterations = 5
+	int measurementIterations = 5
+	int operationsPerIteration = 10000
+
+	/** Runs the operation, and returns [name, threads, nanosPerOp, cpuNanosPerOp, bytesPerOp, gcCount, gcMillis] */
+	Map run(String name, Closure operation) {
+		return runConcurrent(name, 1, operation)
+	}
+
+	/**
+	 * Runs the operation on several threads at once.  The times are per operation
+	 * on each thread, and the CPU time and bytes allocated are summed over every thread.
+	 */
+	Map runConcurrent(String name, int threads, Closure operation) {
+		def threadBean = ManagementFactory.threadMXBean
+		boolean allocationSupported = threadBean.respondsTo('getThreadAllocatedBytes', [long] as Object[])
+		boolean cpuSupported = threadBean.currentThreadCpuTimeSupported
+
+		def cpu = new AtomicLong()
+		def allocated = new AtomicLong()
+
+		def warmup = {
+			warmupIterations.times {
+				operationsPerIteration.times(operation)
+			}
+		}
+		def measure = {
+			long threadId = Thread.currentThread().id
+			long allocatedBefore = allocationSupported ? threadBean.getThreadAllocatedBytes(threadId) : 0
+			long cpuBefore = cpuSupported ? threadBean.currentThreadCpuTime : 0
+			measurementIterations.times {
+				operationsPerIteration.times(operation)
+			}
+			if (cpuSupported) { cpu.addAndGet(threadBean.currentThreadCpuTime - cpuBefore) }
+			if (allocationSupported) { allocated.addAndGet(threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore) }
+		}
+
+		def warmedUp = new CountDownLatch(threads)
+		def start = new CountDownLatch(1)
+		def finished = new CountDownLatch(threads)
+		def failures = [].asSynchronized()
+		if (threads > 1) {
+			threads.times{
+				Thread.start("${name}-${it}") {
+					try {
+						warmup()
+						warmedUp.countDown()
+						start.await()
+						measure()
+					} catch (Throwable ex) {
+						failures << ex
+						warmedUp.countDown()
+					} finally {
+						finished.countDown()
+					}
+				}
+			}
+			warmedUp.await()
+		} else {
+			warmup()
+		}
+
+		long gcCountBefore = gcCount()
+		long gcMillisBefore = gcMillis()
+		long startNanos = System.nanoTime()
+		if (threads > 1) {
+			start.countDown()
+			finished.await()
+		} else {
+			measure()
+		}
+		long elapsed = System.nanoTime() - startNanos
+		if (failures) { throw failures[0] }
+
+		long operations = (long) measurementIterations * operationsPerIteration
+		return [ name: name,
+			threads: threads,
+			nanosPerOp: elapsed / operations,
+			cpuNanosPerOp: cpuSupported ? cpu.get() / (operations * threads) : -1,
+			bytesPerOp: allocationSupported ? allocated.get() / (operations * threads) : -1,
+			gcCount: gcCount() - gcCountBefore,
+			gcMillis: gcMillis() - gcMillisBefore ]
+	}
+
+	/** Skips the calling test unless the benchmarks are enabled */
+	static void assumeEnabled() {
+		Assume.assumeTrue(ENABLED)
+	}
+
+	/** Logs a comparison table of benchmark results */
+	static void report(String title, List<Map> results) {
+		log.info("=== ${title} ===")
+		results.each{ result ->
+			log.info String.format('%-40s %12.1f ns/op %12.1f cpu ns/op %12.1f B/op %6d gc %6d gc ms',
+				result.name, result.nanosPerOp as double, result.cpuNanosPerOp as double,
+				result.bytesPerOp as double, result.gcCount as long, result.gcMillis as long)
+		}
+	}
+
+	private static long gcCount() {
+		ManagementFactory.garbageCollectorMXBeans.inject(0L) { total, gc -> total + Math.max(gc.collectionCount, 0L) }
+	}
+
+	private static long gcMillis() {
+		ManagementFactory.garbageCollectorMXBeans.inject(0L) { total, gc -> total + Math.max(gc.collectionTime, 0L) }
+	}
+}
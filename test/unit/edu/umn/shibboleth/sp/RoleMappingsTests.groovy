@@ -0,0 +1,70 @@
+package edu.umn.shibboleth.sp
+
+import static org.junit.Assert.*
+
+import grails.test.mixin.*
+import grails.test.mixin.support.*
+import org.junit.*
+
+/**
+ * See the API for {@link grails.test.mixin.support.GrailsUnitTestMixin} for usage instructions
+ */
+@TestMixin(GrailsUnitTestMixin)
+class RoleMappingsTests {
+
+	def mappings
+
+	void setUp() {
+		mappings = new RoleMappings('Shib-Roles', ',', 'SHIB_')
+			.withIdentityProviderRoles([ 'ROLE_IDP_UMN': 'https://idp2.shib.umn.edu/idp/shibboleth' ])
+			.withIpAddressRoles([ 'ROLE_IP_LOCALHOST': [ '127.0.0.0/24' ] ])
+	}
+
+	void testSnapshotsAreNotChanged() {
+		def updated = mappings.withRolesPrefix('OTHER_')
+
+		assert 'SHIB_' == mappings.rolesPrefix
+		assert 'OTHER_' == updated.rolesPrefix
+		assert mappings.identityProviderRoles == updated.identityProviderRoles
+		assertNotNull updated.ipAddressRoleIndex
+
+		shouldFail(UnsupportedOperationException) {
+			mappings.identityProviderRoles['ROLE_IDP_OTHER'] = 'other'
+		}
+	}
+
+	void testRolesTokenizerNeedsEverySetting() {
+		assertNotNull mappings.rolesTokenizer
+		assertNull mappings.withRolesAttribute(null).rolesTokenizer
+		assertNull mappings.withRolesSeparator('').rolesTokenizer
+	}
+
+	void testWithConfig() {
+		def file = File.createTempFile('roleMappings', '.groovy')
+		file.text = '''
+authenticationMethod.roles = [ ROLE_MKEY: "https://www.umn.edu/shibboleth/classes/authncontext/${'mkey'}" ]
+roles.separator = ';'
+'''
+		def updated = mappings.withConfig(file)
+
+		assert [ ROLE_MKEY: 'https://www.umn.edu/shibboleth/classes/authncontext/mkey' ] == updated.authenticationMethodRoles
+		assert 'ROLE_MKEY' == updated.authenticationMethodIndex['https://www.umn.edu/shibboleth/classes/authncontext/mkey'][0].authority
+		assert ';' == updated.rolesSeparator
+		assert 'Shib-Roles' == updated.rolesAttribute
+		assert mappings.identityProviderRoles == updated.identityProviderRoles
+
+		// a setting can be cleared
+		file.text = 'remoteAddress.roles = null'
+		assertNull mappings.withConfig(file).ipAddressRoleIndex
+
+		file.text = 'identityProvider.roles = "not a map"'
+		shouldFail(IllegalArgumentException) {
+			mappings.withConfig(file)
+		}
+
+		file.delete()
+		shouldFail(IllegalArgumentException) {
+			mappings.withConfig(file)
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package edu.umn.shibboleth.sp
+
+import static org.junit.Assert.*
+
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+import grails.test.mixin.*
+import grails.test.mixin.support.*
+import org.junit.*
+
+/**
+ * A burst of logins like the one after an IdP outage, where every user logs
+ * in again at once with several requests each, against an LDAP server and
+ * user details service that take a few milliseconds to answer.
+ *
+ * The users log in a batch at a time.  The directory and user details service
+ * hold each batch's lookups until every login of the batch has started a
+ * lookup or joined one, so the logins of a user always overlap and the number
+ * of queries doesn't depend on how the threads are scheduled.
+ *
+ * Reports the number of directory and user details service queries, and how
+ * long the burst took, with and without the lookups of the same user being
+ * shared.
+ *
+ * Run with {@code grails -Dshibboleth.benchmark=true test-app unit: RoleSourceBurstLoad},
+ * or for a bigger burst with {@code -Dshibboleth.benchmark.full=true}
+ */
+@TestMixin(GrailsUnitTestMixin)
+class RoleSourceBurstLoadTests {
+
+	static final boolean FULL = MicroBenchmark.FULL
+
+	static final int USERS = FULL ? 2000 : 200
+	static final int USERS_PER_BATCH = 16
+	static final int REQUESTS_PER_USER = 4
+	static final int THREADS = USERS_PER_BATCH * REQUESTS_PER_USER
+	static final long LDAP_LATENCY = 20
+	static final long USER_DETAILS_SERVICE_LATENCY = 10
+
+	void setUp() {
+		MicroBenchmark.assumeEnabled()
+	}
+
+	void testBurst() {
+		def results = [ burst(false), burst(true) ]
+
+		MicroBenchmark.log.info("=== ${USERS} users, ${REQUESTS_PER_USER} requests each, ${USERS_PER_BATCH} users at a time ===")
+		results.each{ result ->
+			MicroBenchmark.log.info String.format('%-30s %8d LDAP searches %8d user details service loads %8d ms',
+				result.name, result.searches, result.loads, result.millis)
+		}
+
+		def (uncoalesced, coalesced) = results
+		assert USERS * REQUESTS_PER_USER == uncoalesced.searches
+		assert USERS * REQUESTS_PER_USER == uncoalesced.loads
+		assert USERS == coalesced.searches
+		assert USERS == coalesced.loads
+	}
+
+	private Map burst(boolean coalesceRoleLookups) {
+		def searches = new AtomicInteger()
+		def loads = new AtomicInteger()
+		CountDownLatch gate
+		def metrics = new ShibbolethMetrics()
+		def service = new ShibbolethUserDetailsService(
+			rolesAttribute: 'Shib-Roles',
+			identityProviderRoles: BenchmarkFixtures.identityProviderRoles(10),
+			userDnBase: 'ou=people,dc=example,dc=org',
+			ldapAuthoritiesPopulator: BenchmarkFixtures.ldapAuthoritiesPopulator(roles: [ 'ROLE_LDAP_GROUP' ],
+				latency: LDAP_LATENCY, searches: searches, onSearch: { gate.await() }),
+			ldapCacheMaxEntries: 0,
+			userDetailsService: BenchmarkFixtures.userDetailsService(roles: [ 'ROLE_GORM_USER' ],
+				latency: USER_DETAILS_SERVICE_LATENCY, loads: loads, onLoad: { gate.await() }),
+			// a thread for each lookup of the batch, so none of them wait in the queue
+			roleSourceThreads: 2 * THREADS,
+			roleSourceQueueSize: 2 * THREADS,
+			coalesceRoleLookups: coalesceRoleLookups,
+			metrics: metrics)
+		service.afterPropertiesSet()
+
+		def executor = Executors.newFixedThreadPool(THREADS)
+		long started = System.nanoTime()
+		for (int first = 0; first < USERS; first += USERS_PER_BATCH) {
+			gate = new CountDownLatch(1)
+			int batchUsers = Math.min(USERS_PER_BATCH, USERS - first)
+			def logins = []
+			(first..<(first + batchUsers)).each{ user ->
+				def token = new ShibbolethAuthenticationToken("user${user}@example.org", "user${user}", 'shibboleth',
+					BenchmarkFixtures.AUTHENTICATION_METHOD, BenchmarkFixtures.IDENTITY_PROVIDER, '2012-01-16T03:52:19.890Z',
+					BenchmarkFixtures.REMOTE_ADDRESS, [ 'Shib-Roles': 'students' ])
+				REQUESTS_PER_USER.times{
+					logins << executor.submit({ service.loadUserDetails(token) } as Callable)
+				}
+			}
+
+			// every login of the batch has started its own lookups, or joined another login's
+			int expected = (first + batchUsers) * REQUESTS_PER_USER
+			awaitLookups(expected, searches, metrics, 'userDetails.ldapLookups.coalesced')
+			awaitLookups(expected, loads, metrics, 'userDetails.userDetailsServiceLookups.coalesced')
+			gate.countDown()
+
+			logins.each{ assert 'ROLE_LDAP_GROUP' in it.get(60, TimeUnit.SECONDS).authorities*.authority }
+		}
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)
+
+		executor.shutdown()
+		service.destroy()
+		return [ name: coalesceRoleLookups ? 'shared lookups' : 'a lookup per login',
+			searches: searches.get(), loads: loads.get(), millis: millis ]
+	}
+
+	/** Waits until as many logins as expected have started a lookup of the role source, or joined one */
+	private static void awaitLookups(int expected, AtomicInteger started, ShibbolethMetrics metrics, String coalesced) {
+		long deadline = System.currentTimeMillis() + 30000
+		while (started.get() + (metrics.value(coalesced) ?: 0L) < expected) {
+			assert System.currentTimeMillis() < deadline, "only ${started.get()} lookups started and " +
+				"${metrics.value(coalesced) ?: 0L} joined, of ${expected}"
+			Thread.sleep(1)
+		}
+	}
+}
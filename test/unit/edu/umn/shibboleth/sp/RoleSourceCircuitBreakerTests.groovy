@@ -0,0 +1,76 @@
+package edu.umn.shibboleth.sp
+
+import static org.junit.Assert.*
+
+import grails.test.mixin.*
+import grails.test.mixin.support.*
+import org.junit.*
+
+/**
+ * See the API for {@link grails.test.mixin.support.GrailsUnitTestMixin} for usage instructions
+ */
+@TestMixin(GrailsUnitTestMixin)
+class RoleSourceCircuitBreakerTests {
+
+	void testOpensAfterFailures() {
+		def breaker = new RoleSourceCircuitBreaker('ldap', 3, 0, 60000)
+
+		2.times{ breaker.recordFailure() }
+		assert RoleSourceCircuitBreaker.State.CLOSED == breaker.state
+
+		// a success starts the count again
+		breaker.recordSuccess(10)
+		2.times{ breaker.recordFailure() }
+		assert RoleSourceCircuitBreaker.State.CLOSED == breaker.state
+
+		breaker.recordFailure()
+		assert RoleSourceCircuitBreaker.State.OPEN == breaker.state
+		assertFalse breaker.allowRequest()
+		assert 1 == breaker.openedCount
+		assert 1 == breaker.shortCircuitedCount
+	}
+
+	void testSlowCallsAreFailures() {
+		def breaker = new RoleSourceCircuitBreaker('ldap', 2, 100, 60000)
+
+		breaker.recordSuccess(50)
+		breaker.recordSuccess(500)
+		breaker.recordSuccess(500)
+
+		assert RoleSourceCircuitBreaker.State.OPEN == breaker.state
+	}
+
+	void testHalfOpenProbe() {
+		def breaker = new RoleSourceCircuitBreaker('ldap', 1, 0, 50)
+
+		breaker.recordFailure()
+		assertFalse breaker.allowRequest()
+		Thread.sleep(60)
+
+		// one probe is let through, and a failed probe opens the breaker again
+		assertTrue breaker.allowRequest()
+		assert RoleSourceCircuitBreaker.State.HALF_OPEN == breaker.state
+		assertFalse breaker.allowRequest()
+		breaker.recordFailure()
+		assert RoleSourceCircuitBreaker.State.OPEN == breaker.state
+		assertFalse breaker.allowRequest()
+
+		// a successful probe closes it
+		Thread.sleep(60)
+		assertTrue breaker.allowRequest()
+		breaker.recordSuccess(10)
+		assert RoleSourceCircuitBreaker.State.CLOSED == breaker.state
+		assertTrue breaker.allowRequest()
+		assert 2 == breaker.openedCount
+		assert 1 == breaker.closedCount
+	}
+
+	void testSettings() {
+		shouldFail(IllegalArgumentException) {
+			new RoleSourceCircuitBreaker('ldap', 0, 0, 1000)
+		}
+		shouldFail(IllegalArgumentException) {
+			new RoleSourceCircuitBreaker('ldap', 5, 0, 0)
+		}
+	}
+}
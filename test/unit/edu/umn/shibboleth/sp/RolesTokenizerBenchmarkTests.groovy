@@ -0,0 +1,56 @@
+package edu.umn.shibboleth.sp
+
+import static org.junit.Assert.*
+
+import org.springframework.security.core.GrantedAuthority
+import org.springframework.security.core.authority.GrantedAuthorityImpl
+
+import grails.test.mixin.*
+import grails.test.mixin.support.*
+import org.junit.*
+
+/**
+ * Compares the {@link RolesTokenizer} with the {@code String.split} it replaced,
+ * for a roles attribute with 500 values.
+ *
+ * Run with {@code grails -Dshibboleth.benchmark=true test-app unit: RolesTokenizerBenchmark}
+ */
+@TestMixin(GrailsUnitTestMixin)
+class RolesTokenizerBenchmarkTests {
+
+	void setUp() {
+		MicroBenchmark.assumeEnabled()
+	}
+
+	void testTokenizerAgainstSplit() {
+		String rolesString = (1..500).collect{ "urn:mace:example.org:entitlement:group${it}" }.join(',')
+		String rolesSeparator = ','
+		String rolesPrefix = 'SHIB_'
+		def tokenizer = new RolesTokenizer(rolesSeparator, rolesPrefix)
+
+		// the way the roles were split before the tokenizer
+		def split = { Set<GrantedAuthority> authorities ->
+			Collection<String> rolesCollection = new ArrayList<String>()
+			rolesCollection.addAll(rolesString.split(rolesSeparator))
+			for (String role : rolesCollection) {
+				authorities.add(new GrantedAuthorityImpl('ROLE_' + rolesPrefix + role.toUpperCase()))
+			}
+		}
+		def tokenize = { Set<GrantedAuthority> authorities ->
+			tokenizer.addRoles(rolesString, authorities)
+		}
+
+		def expected = new LinkedHashSet<GrantedAuthority>()
+		split(expected)
+		def actual = new LinkedHashSet<GrantedAuthority>()
+		tokenize(actual)
+		assert 500 == actual.size()
+		assertEquals expected*.authority, actual*.authority
+
+		def benchmark = new MicroBenchmark(operationsPerIteration: 200)
+		def results = [
+			benchmark.run('String.split, 500 values') { split(new LinkedHashSet<GrantedAuthority>(1024)) },
+			benchmark.run('RolesTokenizer, 500 values') { tokenize(new LinkedHashSet<GrantedAuthority>(1024)) } ]
+		MicroBenchmark.report('Roles attribute tokenizing', results)
+	}
+}
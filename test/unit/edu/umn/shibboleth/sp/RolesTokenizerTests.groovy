@@ -0,0 +1,78 @@
+package edu.umn.shibboleth.sp
+
+import static org.junit.Assert.*
+
+import grails.test.mixin.*
+import grails.test.mixin.support.*
+import org.junit.*
+
+/**
+ * See the API for {@link grails.test.mixin.support.GrailsUnitTestMixin} for usage instructions
+ */
+@TestMixin(GrailsUnitTestMixin)
+class RolesTokenizerTests {
+
+	private roles(String separator, String value) {
+		def authorities = new LinkedHashSet()
+		new RolesTokenizer(separator, 'SHIB_').addRoles(value, authorities)
+		return authorities*.authority
+	}
+
+	void testSeparator() {
+		assert ['ROLE_SHIB_STUDENTS', 'ROLE_SHIB_STAFF', 'ROLE_SHIB_FACULTY'] == roles(',', 'students,staff,faculty')
+		assert ['ROLE_SHIB_A', 'ROLE_SHIB_B'] == roles('::', 'a::b')
+	}
+
+	void testSeparatorIsNotARegex() {
+		assert ['ROLE_SHIB_A.B', 'ROLE_SHIB_C'] == roles('|', 'a.b|c')
+		assert ['ROLE_SHIB_A', 'ROLE_SHIB_B'] == roles('.', 'a.b')
+	}
+
+	void testMultipleValues() {
+		assert ['ROLE_SHIB_A', 'ROLE_SHIB_B', 'ROLE_SHIB_C', 'ROLE_SHIB_D'] == roles(',', 'a,b;c,d')
+		assert ['ROLE_SHIB_A', 'ROLE_SHIB_B'] == roles(';', 'a;b')
+	}
+
+	void testEscapedSemicolon() {
+		assert ['ROLE_SHIB_A;B', 'ROLE_SHIB_C'] == roles(',', 'a\\;b;c')
+		assert ['ROLE_SHIB_A\\B'] == roles(',', 'a\\b')
+	}
+
+	void testTrimsAndSkipsEmptyValues() {
+		assert ['ROLE_SHIB_STUDENTS', 'ROLE_SHIB_STAFF'] == roles(',', ' students ,, staff ,')
+		assert [] == roles(',', '')
+		assert [] == roles(',', ' ; ')
+		assert [] == roles(',', null)
+	}
+
+	void testUpperCase() {
+		assert ['ROLE_SHIB_MIXED_CASE-1', 'ROLE_SHIB_ÉCOLE'] == roles(',', 'Mixed_Case-1,école')
+	}
+
+	void testCountsValues() {
+		def authorities = new HashSet()
+		assert 3 == new RolesTokenizer(',', 'SHIB_').addRoles('a,b,a', authorities)
+		assert 2 == authorities.size()
+	}
+
+	void testSharedAuthorities() {
+		def mapped = ShibbolethAuthorities.register('ROLE_SHIB_TOKENIZER_MAPPED')
+		def authorities = []
+		new RolesTokenizer(',', 'SHIB_').addRoles('tokenizer_mapped,tokenizer_unmapped', authorities)
+
+		assert mapped.is(authorities[0])
+		assert 'ROLE_SHIB_TOKENIZER_UNMAPPED' == authorities[1].authority
+		assert -1 == ShibbolethAuthorities.id('ROLE_SHIB_TOKENIZER_UNMAPPED')
+
+		// roles that aren't registered are still shared between logins, without being numbered
+		def again = []
+		new RolesTokenizer(',', 'SHIB_').addRoles('tokenizer_unmapped', again)
+		assert authorities[1].is(again[0])
+	}
+
+	void testEmptySeparator() {
+		shouldFail(IllegalArgumentException) {
+			new RolesTokenizer('', 'SHIB_')
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package edu.umn.shibboleth.sp
+
+import static org.junit.Assert.*
+
+import grails.test.mixin.*
+import grails.test.mixin.support.*
+import org.junit.*
+
+/**
+ * See the API for {@link grails.test.mixin.support.GrailsUnitTestMixin} for usage instructions
+ */
+@TestMixin(GrailsUnitTestMixin)
+class ShibbolethAttributeMapTests {
+
+	def attributes
+
+	void setUp() {
+		String[] keys = [ 'Shib-Session-ID', 'Shib-Session-Index', 'Shib-Application-ID' ]
+		String[] values = [ '_dd30caa5aaf4a09ef7335bb1ee1df54b', null, 'default' ]
+		attributes = new ShibbolethAttributeMap(keys, values, 2)
+	}
+
+	void testGet() {
+		assert '_dd30caa5aaf4a09ef7335bb1ee1df54b' == attributes.get('Shib-Session-ID')
+		assert 'default' == attributes['Shib-Application-ID']
+		assertNull attributes.get('Shib-Session-Index')
+		assertNull attributes.get('unknown')
+		assertNull attributes.get(null)
+	}
+
+	void testContainsKey() {
+		assertTrue attributes.containsKey('Shib-Session-ID')
+		assertFalse attributes.containsKey('Shib-Session-Index')
+	}
+
+	void testEntries() {
+		assert 2 == attributes.size()
+		assert ['Shib-Session-ID', 'Shib-Application-ID'] == attributes.keySet() as List
+		assert [ 'Shib-Session-ID': '_dd30caa5aaf4a09ef7335bb1ee1df54b', 'Shib-Application-ID': 'default' ] == attributes
+	}
+
+	void testValues() {
+		String[] keys = [ 'eduPersonAffiliation', 'mail', 'displayName', 'Shib-Session-Index' ]
+		String[] values = [ 'member;staff;employee', 'ajz@umn.edu', 'Zirbes\\; Aaron', null ]
+		def multiValued = new ShibbolethAttributeMap(keys, values, 3)
+
+		assert [ 'member', 'staff', 'employee' ] == multiValued.getValues('eduPersonAffiliation')
+		assert [ 'ajz@umn.edu' ] == multiValued.getValues('mail')
+		assert [ 'Zirbes; Aaron' ] == multiValued.getValues('displayName')
+		assert [] == multiValued.getValues('Shib-Session-Index')
+		assert [] == multiValued.getValues('unknown')
+		assert [] == multiValued.getValues(null)
+
+		// split once, and kept
+		assert multiValued.getValues('eduPersonAffiliation').is(multiValued.getValues('eduPersonAffiliation'))
+		shouldFail(UnsupportedOperationException) {
+			multiValued.getValues('eduPersonAffiliation').add('faculty')
+		}
+
+		// the raw values are still what the SP sent
+		assert 'member;staff;employee' == multiValued['eduPersonAffiliation']
+	}
+
+	void testSplitValues() {
+		assert [ 'a', 'b', 'c' ] == ShibbolethAttributeMap.splitValues('a;b;c')
+		assert [ 'a', 'c' ] == ShibbolethAttributeMap.splitValues(';a;;c;')
+		assert [ 'a;b', 'c' ] == ShibbolethAttributeMap.splitValues('a\\;b;c')
+		assert [ 'a;b;c' ] == ShibbolethAttributeMap.splitValues('a\\;b\\;c')
+		assert [ 'single value' ] == ShibbolethAttributeMap.splitValues('single value')
+		assert [] == ShibbolethAttributeMap.splitValues('')
+		assert [] == ShibbolethAttributeMap.splitValues(null)
+	}
+
+	void testValuesOfOtherMaps() {
+		assert [ 'member', 'staff' ] == ShibbolethAttributeMap.getValues([ 'affiliation': 'member;staff' ], 'affiliation')
+		assert [] == ShibbolethAttributeMap.getValues([:], 'affiliation')
+		assert [] == ShibbolethAttributeMap.getValues(null, 'affiliation')
+	}
+
+	void testEmpty() {
+		assertTrue ShibbolethAttributeMap.EMPTY.isEmpty()
+		assert [:] == ShibbolethAttributeMap.EMPTY
+	}
+
+	void testImmutable() {
+		shouldFail(UnsupportedOperationException) {
+			attributes.put('Shib-Session-Index', 'index')
+		}
+		shouldFail(UnsupportedOperationException) {
+			attributes.entrySet().iterator().remove()
+		}
+	}
+
+	void testSerializable() {
+		def bytes = new ByteArrayOutputStream()
+		new ObjectOutputStream(bytes).writeObject(attributes)
+		def copy = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject()
+
+		assert attributes == copy
+		assert [ 'default' ] == copy.getValues('Shib-Application-ID')
+	}
+}
@@ -52,4 +52,51 @@ class ShibbolethAuthenticationEntryPointTests {
 		assertEquals url, response.redirectedUrl
 
     }
+
+	def redirect(entryPoint, String serverName, int serverPort = 443, String contextPath = '/app') {
+		def request = new MockHttpServletRequest('GET', contextPath + '/secure/page')
+		request.scheme = (serverPort == 443) ? 'https' : 'http'
+		request.serverName = serverName
+		request.serverPort = serverPort
+		request.contextPath = contextPath
+		def response = new MockHttpServletResponse()
+		entryPoint.commence(request, response, new InsufficientAuthenticationException('TEST'))
+		return response.redirectedUrl
+	}
+
+	void testRedirectCachedPerHost() {
+		def entryPoint = new ShibbolethAuthenticationEntryPoint(loginUrl: '/Shibboleth.sso/Login?target={0}')
+		entryPoint.afterPropertiesSet()
+
+		def first = redirect(entryPoint, 'www.umn.edu')
+		assert first.is(redirect(entryPoint, 'www.umn.edu'))
+		assert first == '/Shibboleth.sso/Login?target=' +
+			URLEncoder.encode('https://www.umn.edu:443/app/j_spring_shibboleth_native_sp_security_check', 'UTF-8')
+
+		// each host, port and context path gets its own redirect
+		assert redirect(entryPoint, 'www.umn.edu', 8443) != first
+		assert redirect(entryPoint, 'www.umn.edu', 443, '/other') != first
+		assert redirect(entryPoint, 'apps.umn.edu') != first
+		assertTrue entryPoint.redirectCacheStatistics.contains('hits=1')
+	}
+
+	void testVirtualHostLoginUrls() {
+		def entryPoint = new ShibbolethAuthenticationEntryPoint(
+			loginUrl: '/Shibboleth.sso/Login?target={0}',
+			loginUrls: [ 'Apps.UMN.edu': '/apps/Shibboleth.sso/Login?target={0}' ])
+		entryPoint.afterPropertiesSet()
+
+		assert redirect(entryPoint, 'apps.umn.edu').startsWith('/apps/Shibboleth.sso/Login?target=https%3A%2F%2Fapps.umn.edu')
+		assert redirect(entryPoint, 'www.umn.edu').startsWith('/Shibboleth.sso/Login?target=https%3A%2F%2Fwww.umn.edu')
+	}
+
+	void testLoginUrlTemplate() {
+		def target = URLEncoder.encode('https://www.umn.edu:443/app/j_spring_shibboleth_native_sp_security_check', 'UTF-8')
+
+		def entryPoint = new ShibbolethAuthenticationEntryPoint(loginUrl: '{0}|{0}')
+		assert "${target}|${target}".toString() == redirect(entryPoint, 'www.umn.edu')
+
+		entryPoint.loginUrl = '/Shibboleth.sso/Login'
+		assert '/Shibboleth.sso/Login' == redirect(entryPoint, 'www.umn.edu')
+	}
 }
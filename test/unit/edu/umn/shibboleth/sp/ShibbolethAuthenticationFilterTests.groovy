@@ -2,9 +2,14 @@ package edu.umn.shibboleth.sp
 
 import static org.junit.Assert.*
 
+import javax.servlet.FilterChain
+
 import org.springframework.mock.web.MockHttpServletRequest
 import org.springframework.mock.web.MockHttpServletResponse
 import org.springframework.security.authentication.ProviderManager
+import org.springframework.security.core.context.SecurityContextHolder
+import org.springframework.security.web.context.HttpSessionSecurityContextRepository
+import org.springframework.security.web.context.SecurityContextPersistenceFilter
 
 import grails.test.mixin.*
 import grails.test.mixin.support.*
@@ -206,4 +211,245 @@ class ShibbolethAuthenticationFilterTests {
 		assertTrue authentication.isAuthenticated()
 
     }
+
+    void testFilterAttributes() {
+
+		// Setup the Filter
+		def shibbolethAuthenticationFilter = new ShibbolethAuthenticationFilter(filterSettings)
+		shibbolethAuthenticationFilter.afterPropertiesSet()
+
+		// Mock up Request/Response
+		def request = new MockHttpServletRequest('GET', '/')
+		def response = new MockHttpServletResponse()
+
+		request.setAuthType('shibboleth')
+		request.setRemoteUser('ajz@umn.edu')
+		request.setRemoteAddr('127.0.0.1')
+		request.setAttribute('EPPN', 'ajz@umn.edu')
+		request.setAttribute('Shib-Application-ID', 'default')
+		request.setAttribute('Shib-Session-ID', '_dd30caa5aaf4a09ef7335bb1ee1df54b')
+		request.setAttribute('Shib-Not-Configured', 'ignored')
+
+		def authentication = shibbolethAuthenticationFilter.attemptAuthentication(request, response)
+
+		// only the configured attributes that are set are kept
+		assert [ 'Shib-Session-ID': '_dd30caa5aaf4a09ef7335bb1ee1df54b', 'Shib-Application-ID': 'default' ] ==
+			authentication.attributes
+		assert authentication.attributes instanceof ShibbolethAttributeMap
+		assertTrue authentication.matchesSessionFingerprint('_dd30caa5aaf4a09ef7335bb1ee1df54b', 'ajz@umn.edu')
+    }
+
+    void testFilterMetrics() {
+
+		def metrics = new ShibbolethMetrics()
+		def shibbolethAuthenticationFilter = new ShibbolethAuthenticationFilter(filterSettings)
+		shibbolethAuthenticationFilter.metrics = metrics
+
+		// no Shibboleth session
+		def request = new MockHttpServletRequest('GET', '/')
+		assertNull shibbolethAuthenticationFilter.attemptAuthentication(request, new MockHttpServletResponse())
+
+		// a session that isn't from Shibboleth
+		request.setRemoteUser('ajz@umn.edu')
+		request.setAuthType('BASIC')
+		assertNull shibbolethAuthenticationFilter.attemptAuthentication(request, new MockHttpServletResponse())
+
+		assert 1 == metrics.getRejections('filter.eppnNull')
+		assert 1 == metrics.getRejections('filter.authTypeNotShibboleth')
+		assert 2 == metrics.timer('filter.attributeExtraction').count
+    }
+
+    void testStatelessFilter() {
+
+		def shibbolethAuthenticationFilter = new ShibbolethAuthenticationFilter(filterSettings)
+		shibbolethAuthenticationFilter.stateless = true
+		shibbolethAuthenticationFilter.afterPropertiesSet()
+
+		def request = new MockHttpServletRequest('GET', '/api/items')
+		request.setAuthType('shibboleth')
+		request.setRemoteUser('ajz@umn.edu')
+		request.setRemoteAddr('127.0.0.1')
+		request.setAttribute('EPPN', 'ajz@umn.edu')
+		request.setAttribute('Shib-Authentication-Instant', '2012-01-16T03:52:19.890Z')
+		request.setAttribute('Shib-Authentication-Method', 'urn:oasis:names:tc:SAML:2.0:ac:classes:unspecified')
+		request.setAttribute('Shib-Identity-Provider', 'https://idp2.shib.umn.edu/idp/shibboleth')
+		request.setAttribute('Shib-Session-ID', '_dd30caa5aaf4a09ef7335bb1ee1df54b')
+
+		def authentication = null
+		def chain = { req, res -> authentication = SecurityContextHolder.context.authentication } as javax.servlet.FilterChain
+
+		// the request is authenticated while it runs, and nothing is left behind
+		shibbolethAuthenticationFilter.doFilter(request, new MockHttpServletResponse(), chain)
+		assert 'ajz@umn.edu' == authentication.eppn
+		assertTrue authentication.isAuthenticated()
+		assert 'ROLE_IDP_UMN' in authentication.authorities*.authority
+		assertNull SecurityContextHolder.context.authentication
+		assertNull request.getSession(false)
+
+		// a request without a Shibboleth user carries on unauthenticated
+		def anonymous = new MockHttpServletRequest('GET', '/api/items')
+		authentication = null
+		shibbolethAuthenticationFilter.doFilter(anonymous, new MockHttpServletResponse(), chain)
+		assertNull authentication
+		assertNull anonymous.getSession(false)
+    }
+
+    void testStatelessFilterNeverSavesContext() {
+
+		def shibbolethAuthenticationFilter = new ShibbolethAuthenticationFilter(filterSettings)
+		shibbolethAuthenticationFilter.stateless = true
+		shibbolethAuthenticationFilter.afterPropertiesSet()
+		def repository = new ShibbolethSecurityContextRepository(
+			sessionRepository: new HttpSessionSecurityContextRepository(),
+			authenticationFilter: shibbolethAuthenticationFilter)
+		repository.afterPropertiesSet()
+		def persistenceFilter = new SecurityContextPersistenceFilter(securityContextRepository: repository)
+
+		def authentication = null
+		def committingChain = { req, res ->
+			authentication = SecurityContextHolder.context.authentication
+			res.sendError(403)
+		} as FilterChain
+		def filterChain = { chain ->
+			{ req, res -> shibbolethAuthenticationFilter.doFilter(req, res, chain) } as FilterChain
+		}
+
+		// a response committed in the chain neither creates a session, nor saves the context in one
+		def request = shibbolethRequest('ajz@umn.edu', '_session1')
+		persistenceFilter.doFilter(request, new MockHttpServletResponse(), filterChain(committingChain))
+		assert 'ajz@umn.edu' == authentication.eppn
+		assertNull request.getSession(false)
+
+		request = shibbolethRequest('ajz@umn.edu', '_session1')
+		def session = request.getSession(true)
+		persistenceFilter.doFilter(request, new MockHttpServletResponse(), filterChain(committingChain))
+		assert 'ajz@umn.edu' == authentication.eppn
+		assertNull session.getAttribute(HttpSessionSecurityContextRepository.SPRING_SECURITY_CONTEXT_KEY)
+		assertNull SecurityContextHolder.context.authentication
+
+		// a matching login already in the session is used as it is, and isn't authenticated again
+		def loggedIn = authentication
+		def context = SecurityContextHolder.createEmptyContext()
+		context.authentication = loggedIn
+		session.setAttribute(HttpSessionSecurityContextRepository.SPRING_SECURITY_CONTEXT_KEY, context)
+		int authentications = 0
+		shibbolethAuthenticationFilter.authenticationManager = { token ->
+			authentications++
+			authenticationManager.authenticate(token)
+		} as org.springframework.security.authentication.AuthenticationManager
+		request = shibbolethRequest('ajz@umn.edu', '_session1')
+		request.session = session
+		persistenceFilter.doFilter(request, new MockHttpServletResponse(), filterChain(committingChain))
+		assert loggedIn.is(authentication)
+		assert 0 == authentications
+		assert context.is(session.getAttribute(HttpSessionSecurityContextRepository.SPRING_SECURITY_CONTEXT_KEY))
+
+		// another user's request is authenticated on its own, and leaves the login in the session alone
+		request = shibbolethRequest('jdoe@umn.edu', '_session2')
+		request.session = session
+		persistenceFilter.doFilter(request, new MockHttpServletResponse(), filterChain(committingChain))
+		assert 'jdoe@umn.edu' == authentication.eppn
+		assert 1 == authentications
+		assert loggedIn.is(session.getAttribute(HttpSessionSecurityContextRepository.SPRING_SECURITY_CONTEXT_KEY).authentication)
+		assertNull SecurityContextHolder.context.authentication
+
+		// and when that request's login fails, it runs as nobody rather than as the login in the session
+		shibbolethAuthenticationFilter.authenticationManager = { token ->
+			authentications++
+			throw new org.springframework.security.authentication.AuthenticationServiceException('LDAP is down')
+		} as org.springframework.security.authentication.AuthenticationManager
+		request = shibbolethRequest('jdoe@umn.edu', '_session2')
+		request.session = session
+		persistenceFilter.doFilter(request, new MockHttpServletResponse(), filterChain(committingChain))
+		assertNull authentication
+		assert 2 == authentications
+		assert loggedIn.is(session.getAttribute(HttpSessionSecurityContextRepository.SPRING_SECURITY_CONTEXT_KEY).authentication)
+		assertNull SecurityContextHolder.context.authentication
+    }
+
+	def shibbolethRequest(String eppn, String sessionId) {
+		def request = new MockHttpServletRequest('GET', '/secure/page')
+		request.setAuthType('shibboleth')
+		request.setRemoteUser(eppn)
+		request.setRemoteAddr('127.0.0.1')
+		request.setAttribute('EPPN', eppn)
+		request.setAttribute('Shib-Authentication-Instant', '2012-01-16T03:52:19.890Z')
+		request.setAttribute('Shib-Authentication-Method', 'urn:oasis:names:tc:SAML:2.0:ac:classes:unspecified')
+		request.setAttribute('Shib-Identity-Provider', 'https://idp2.shib.umn.edu/idp/shibboleth')
+		request.setAttribute('Shib-Session-ID', sessionId)
+		return request
+	}
+
+    void testPassiveFilter() {
+
+		def shibbolethAuthenticationFilter = new ShibbolethAuthenticationFilter(filterSettings)
+		shibbolethAuthenticationFilter.passive = true
+		shibbolethAuthenticationFilter.afterPropertiesSet()
+
+		int sessionStrategyCalls = 0
+		shibbolethAuthenticationFilter.sessionAuthenticationStrategy = { authentication, req, res ->
+			sessionStrategyCalls++ } as org.springframework.security.web.authentication.session.SessionAuthenticationStrategy
+
+		int chainCalls = 0
+		def chain = { req, res -> chainCalls++ } as javax.servlet.FilterChain
+
+		// logged in where they are, without a redirect, and the authentication is kept
+		def response = new MockHttpServletResponse()
+		shibbolethAuthenticationFilter.doFilter(shibbolethRequest('ajz@umn.edu', '_session1'), response, chain)
+		def authentication = SecurityContextHolder.context.authentication
+		assert 'ajz@umn.edu' == authentication.eppn
+		assert 1 == chainCalls
+		assertNull response.redirectedUrl
+		assert 1 == sessionStrategyCalls
+
+		// the same Shibboleth session is not logged in again
+		shibbolethAuthenticationFilter.doFilter(shibbolethRequest('ajz@umn.edu', '_session1'), response, chain)
+		assert authentication.is(SecurityContextHolder.context.authentication)
+		assert 2 == chainCalls
+		assert 1 == sessionStrategyCalls
+
+		// a new Shibboleth session is
+		shibbolethAuthenticationFilter.doFilter(shibbolethRequest('jdoe@umn.edu', '_session2'), response, chain)
+		assert 'jdoe@umn.edu' == SecurityContextHolder.context.authentication.eppn
+		assert 3 == chainCalls
+
+		// requests without a Shibboleth session carry on as they are
+		SecurityContextHolder.clearContext()
+		shibbolethAuthenticationFilter.doFilter(new MockHttpServletRequest('GET', '/secure/page'), response, chain)
+		assertNull SecurityContextHolder.context.authentication
+		assert 4 == chainCalls
+
+		SecurityContextHolder.clearContext()
+    }
+
+    void testPassiveFilterUserChangedAndLoginFails() {
+
+		def shibbolethAuthenticationFilter = new ShibbolethAuthenticationFilter(filterSettings)
+		shibbolethAuthenticationFilter.passive = true
+		shibbolethAuthenticationFilter.authenticationManager = { token ->
+			if (token.eppn == 'jdoe@umn.edu') {
+				throw new org.springframework.security.authentication.AuthenticationServiceException('LDAP is down')
+			}
+			authenticationManager.authenticate(token)
+		} as org.springframework.security.authentication.AuthenticationManager
+		shibbolethAuthenticationFilter.afterPropertiesSet()
+
+		def authentication = null
+		def chain = { req, res -> authentication = SecurityContextHolder.context.authentication } as FilterChain
+
+		def request = shibbolethRequest('ajz@umn.edu', '_session1')
+		def session = request.getSession(true)
+		shibbolethAuthenticationFilter.doFilter(request, new MockHttpServletResponse(), chain)
+		assert 'ajz@umn.edu' == authentication.eppn
+
+		// another user logged in to the SP, and their login fails, so the request runs as nobody
+		request = shibbolethRequest('jdoe@umn.edu', '_session2')
+		request.session = session
+		shibbolethAuthenticationFilter.doFilter(request, new MockHttpServletResponse(), chain)
+		assertNull authentication
+		assertNull SecurityContextHolder.context.authentication
+		assertTrue session.invalid
+
+		SecurityContextHolder.clearContext()
+    }
 }
@@ -88,4 +88,104 @@ class ShibbolethAuthenticationProviderTests {
 		assert true == newToken.isAuthenticated()
 
     }
+
+    void testMetrics() {
+		def metrics = new ShibbolethMetrics()
+		shibbolethUserDetailsService.metrics = metrics
+		def shibbolethAuthenticationProvider = new ShibbolethAuthenticationProvider(
+			authenticationUserDetailsService: shibbolethUserDetailsService, metrics: metrics)
+
+		assert shibbolethAuthenticationProvider.authenticate(shibbolethToken).authenticated
+
+		def badToken = new ShibbolethAuthenticationToken(
+			'testuser@example.org', 'testuser', 'shibboleth', 'fake.authentication.method',
+			'', '1234567890', '127.0.0.1', [:])
+		shouldFail(org.springframework.security.authentication.BadCredentialsException) {
+			shibbolethAuthenticationProvider.authenticate(badToken)
+		}
+
+		assert 2 == metrics.timer('provider.authenticate').count
+		assert 1 == metrics.timer('provider.validation').count
+		assert 1 == metrics.getRejections('provider.identityProviderEmpty')
+		assert 1 == metrics.timer('userDetails.roles.ipAddress').count
+		assert 1 == metrics.timer('userDetails.roles.identityProvider').count
+		assert 0 == metrics.timer('userDetails.roles.ldap').count
+    }
+
+	void testAuthenticationCache() {
+		int loads = 0
+		def countingUserDetailsService = { token ->
+			loads++
+			shibbolethUserDetailsService.loadUserDetails(token)
+		} as org.springframework.security.core.userdetails.AuthenticationUserDetailsService
+		def shibbolethAuthenticationProvider = new ShibbolethAuthenticationProvider(
+			authenticationUserDetailsService: countingUserDetailsService,
+			authenticationCacheMaxEntries: 10)
+		shibbolethAuthenticationProvider.afterPropertiesSet()
+
+		def sessionToken = { String sessionId, String remoteAddress ->
+			def token = new ShibbolethAuthenticationToken(
+				'testuser@example.org', 'testuser', 'shibboleth', 'fake.authentication.method',
+				'fake.IdP', '1234567890', remoteAddress, [ 'Shib-Session-ID': sessionId ])
+			token.sessionFingerprint = ShibbolethAuthenticationToken.sessionFingerprint(sessionId, token.eppn)
+			return token
+		}
+
+		def first = shibbolethAuthenticationProvider.authenticate(sessionToken('_session1', '134.84.0.10'))
+		def second = shibbolethAuthenticationProvider.authenticate(sessionToken('_session1', '134.84.0.10'))
+		assert 1 == loads
+		assert first.principal.is(second.principal)
+		assert first.authorities == second.authorities
+		assert 'ROLE_IP_UMN_VPN' in second.authorities*.authority
+		assert !first.is(second)
+		assert first.sessionFingerprint == second.sessionFingerprint
+
+		// a new Shibboleth session, or a new remote address, loads the user details again
+		shibbolethAuthenticationProvider.authenticate(sessionToken('_session2', '134.84.0.10'))
+		assert 2 == loads
+		def moved = shibbolethAuthenticationProvider.authenticate(sessionToken('_session1', '10.0.0.1'))
+		assert 3 == loads
+		assert !('ROLE_IP_UMN_VPN' in moved.authorities*.authority)
+
+		// tokens without a Shibboleth session are never cached
+		shibbolethAuthenticationProvider.authenticate(shibbolethToken)
+		shibbolethAuthenticationProvider.authenticate(shibbolethToken)
+		assert 5 == loads
+
+		shibbolethAuthenticationProvider.clearAuthenticationCache()
+		shibbolethAuthenticationProvider.authenticate(sessionToken('_session1', '134.84.0.10'))
+		assert 6 == loads
+	}
+
+	void testReloadRoleMappingsClearsAuthenticationCache() {
+		def file = File.createTempFile('roleMappings', '.groovy')
+		file.text = "identityProvider.roles = [ 'ROLE_IDP_BEFORE': 'fake.IdP' ]"
+		shibbolethUserDetailsService.roleMappingsFile = file
+		shibbolethUserDetailsService.afterPropertiesSet()
+		def shibbolethAuthenticationProvider = new ShibbolethAuthenticationProvider(
+			authenticationUserDetailsService: shibbolethUserDetailsService,
+			authenticationCacheMaxEntries: 10)
+		shibbolethAuthenticationProvider.afterPropertiesSet()
+
+		def sessionToken = {
+			def token = new ShibbolethAuthenticationToken(
+				'testuser@example.org', 'testuser', 'shibboleth', 'fake.authentication.method',
+				'fake.IdP', '1234567890', '134.84.0.10', [ 'Shib-Session-ID': '_session1' ])
+			token.sessionFingerprint = ShibbolethAuthenticationToken.sessionFingerprint('_session1', token.eppn)
+			return token
+		}
+
+		def before = shibbolethAuthenticationProvider.authenticate(sessionToken())
+		assert 'ROLE_IDP_BEFORE' in before.authorities*.authority
+
+		// the cached authentication of the session is dropped, and the new mappings apply to it
+		file.text = "identityProvider.roles = [ 'ROLE_IDP_AFTER': 'fake.IdP' ]"
+		shibbolethUserDetailsService.reloadRoleMappings()
+		def after = shibbolethAuthenticationProvider.authenticate(sessionToken())
+		assert 'ROLE_IDP_AFTER' in after.authorities*.authority
+		assert !('ROLE_IDP_BEFORE' in after.authorities*.authority)
+
+		shibbolethUserDetailsService.destroy()
+		file.delete()
+	}
 }
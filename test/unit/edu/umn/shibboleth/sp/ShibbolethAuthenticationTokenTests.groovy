@@ -2,6 +2,8 @@ package edu.umn.shibboleth.sp
 
 import static org.junit.Assert.*
 
+import org.springframework.security.core.authority.AuthorityUtils
+
 import grails.test.mixin.*
 import grails.test.mixin.support.*
 import org.junit.*
@@ -69,10 +71,71 @@ class ShibbolethAuthenticationTokenTests {
 		assert attributes == token.getAttributes()
 		assert eppn == token.getEppn()
 		assert principal == token.getPrincipal()
-		assert authorities == token.getAuthorities()
+		assert authorities as Set == token.getAuthorities()
 		assert details == token.getDetails()
 		assertNull token.getCredentials()
 		
 		assertTrue token.isAuthenticated()
     }
+
+    void testAuthoritiesAreSharedWithUserDetails() {
+		def userDetails = new ShibbolethUserDetails('testuser', 'testuser@example.org', 'Test P. User',
+			AuthorityUtils.createAuthorityList('ROLE_TOKEN_STAFF', 'ROLE_USER'), 'testuser@example.org', [:])
+		def token = new ShibbolethAuthenticationToken(userDetails.authorities, null, userDetails,
+			'testuser@example.org', 'testuser', 'shibboleth', 'fake.authentication.method', 'fake.IdP',
+			'1234567890', '127.0.0.1', [:])
+
+		assert userDetails.authorities.is(token.authorities)
+		assert token.authorities.contains(ShibbolethAuthorities.get('ROLE_TOKEN_STAFF'))
+		assert token.toString().contains('Granted Authorities: [')
+		assert [ 'ROLE_USER' ] == new ShibbolethAuthenticationToken('testuser@example.org', 'testuser', 'shibboleth',
+			null, null, null, null, null).authorities*.authority
+    }
+
+    void testAttributeValues() {
+		def token = new ShibbolethAuthenticationToken('testuser@example.org', 'testuser', 'shibboleth',
+			null, null, null, null, [ 'eduPersonAffiliation': 'member;staff' ])
+
+		assert [ 'member', 'staff' ] == token.getAttributeValues('eduPersonAffiliation')
+		assert [] == token.getAttributeValues('mail')
+		assert [] == new ShibbolethAuthenticationToken('testuser@example.org', 'testuser', 'shibboleth',
+			null, null, null, null, null).getAttributeValues('mail')
+    }
+
+    void testAuthenticationInstantTime() {
+
+		def token = new ShibbolethAuthenticationToken(
+			'testuser@example.org', 'testuser', 'shibboleth', 'fake.authentication.method',
+			'fake.IdP', '2012-01-16T03:52:19.890Z', '127.0.0.1', [:])
+
+		assert 1326685939890L == token.authenticationInstantTime
+
+		token = new ShibbolethAuthenticationToken(
+			'testuser@example.org', 'testuser', 'shibboleth', 'fake.authentication.method',
+			'fake.IdP', '1234567890', '127.0.0.1', [:])
+
+		assert -1L == token.authenticationInstantTime
+    }
+
+    void testSessionFingerprint() {
+
+		def token = new ShibbolethAuthenticationToken(
+			'testuser@example.org', 'testuser', 'shibboleth', 'fake.authentication.method',
+			'fake.IdP', '1234567890', '127.0.0.1', [:])
+
+		assertFalse token.matchesSessionFingerprint('_dd30caa5', 'testuser@example.org')
+
+		token.sessionFingerprint = ShibbolethAuthenticationToken.sessionFingerprint('_dd30caa5', 'testuser@example.org')
+		assert '_dd30caa5|testuser@example.org' == token.sessionFingerprint
+
+		assertTrue token.matchesSessionFingerprint('_dd30caa5', 'testuser@example.org')
+		assertFalse token.matchesSessionFingerprint('_dd30caa6', 'testuser@example.org')
+		assertFalse token.matchesSessionFingerprint('_dd30caa5', 'otheruser@example.org')
+		assertFalse token.matchesSessionFingerprint('_dd30caa5|testuser', '@example.org')
+		assertFalse token.matchesSessionFingerprint('_dd30caa5', 'testuser@example.or')
+		assertFalse token.matchesSessionFingerprint('', 'testuser@example.org')
+		assertFalse token.matchesSessionFingerprint(null, 'testuser@example.org')
+
+		assertNull ShibbolethAuthenticationToken.sessionFingerprint(null, 'testuser@example.org')
+    }
 }
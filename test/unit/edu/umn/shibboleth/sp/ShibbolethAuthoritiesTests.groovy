@@ -0,0 +1,81 @@
+package edu.umn.shibboleth.sp
+
+import static org.junit.Assert.*
+
+import org.springframework.security.core.GrantedAuthority
+import org.springframework.security.core.authority.GrantedAuthorityImpl
+
+import grails.test.mixin.*
+import grails.test.mixin.support.*
+import org.junit.*
+
+/**
+ * See the API for {@link grails.test.mixin.support.GrailsUnitTestMixin} for usage instructions
+ */
+@TestMixin(GrailsUnitTestMixin)
+class ShibbolethAuthoritiesTests {
+
+	void testSharedInstances() {
+		def role = ShibbolethAuthorities.register('ROLE_SHIB_STAFF')
+
+		assert 'ROLE_SHIB_STAFF' == role.authority
+		assert role.is(ShibbolethAuthorities.get('ROLE_' + 'SHIB_STAFF'))
+		assert role.is(ShibbolethAuthorities.get(new GrantedAuthorityImpl('ROLE_SHIB_STAFF')))
+		assert ShibbolethAuthorities.ROLE_USER.is(ShibbolethAuthorities.get('ROLE_USER'))
+		assert role.is(ShibbolethAuthorities.register('ROLE_SHIB_STAFF'))
+	}
+
+	void testUnregisteredRoles() {
+		int size = ShibbolethAuthorities.size()
+		def role = ShibbolethAuthorities.get('ROLE_SHIB_UNMAPPED')
+		def authority = new GrantedAuthorityImpl('ROLE_SHIB_UNMAPPED')
+
+		// roles only the IdP, the user or a role source named are equal, but neither shared nor numbered
+		assert 'ROLE_SHIB_UNMAPPED' == role.authority
+		assert role == ShibbolethAuthorities.get('ROLE_SHIB_UNMAPPED')
+		assertFalse role.is(ShibbolethAuthorities.get('ROLE_SHIB_UNMAPPED'))
+		assert authority.is(ShibbolethAuthorities.get(authority))
+		assert -1 == ShibbolethAuthorities.id(authority)
+		assert size == ShibbolethAuthorities.size()
+	}
+
+	void testOtherAuthoritiesAreKept() {
+		def custom = [ getAuthority: { 'ROLE_SHIB_CUSTOM' } ] as GrantedAuthority
+
+		assert custom.is(ShibbolethAuthorities.get(custom))
+	}
+
+	void testCanonicalize() {
+		ShibbolethAuthorities.register('ROLE_SHIB_FACULTY')
+		def authorities = [ new GrantedAuthorityImpl('ROLE_SHIB_FACULTY'), new GrantedAuthorityImpl('ROLE_USER') ]
+		def shared = ShibbolethAuthorities.canonicalize(authorities)
+
+		assert authorities == shared
+		assert ShibbolethAuthorities.get('ROLE_SHIB_FACULTY').is(shared[0])
+		assert ShibbolethAuthorities.ROLE_USER.is(shared[1])
+		assertNull ShibbolethAuthorities.canonicalize(null)
+	}
+
+	void testNumbers() {
+		def role = ShibbolethAuthorities.register('ROLE_SHIB_NUMBERED')
+		int id = ShibbolethAuthorities.id('ROLE_SHIB_NUMBERED')
+
+		assert id >= 0
+		assert role.is(ShibbolethAuthorities.get(id))
+		assert id == ShibbolethAuthorities.id(new GrantedAuthorityImpl('ROLE_SHIB_NUMBERED'))
+		assert -1 == ShibbolethAuthorities.id('ROLE_SHIB_NEVER_REGISTERED')
+		assert -1 == ShibbolethAuthorities.id([ getAuthority: { 'ROLE_SHIB_NUMBERED' } ] as GrantedAuthority)
+
+		ShibbolethAuthorities.register('ROLE_SHIB_NUMBERED_NEXT')
+		int next = ShibbolethAuthorities.id(new GrantedAuthorityImpl('ROLE_SHIB_NUMBERED_NEXT'))
+		assert next > id
+		assert 'ROLE_SHIB_NUMBERED_NEXT' == ShibbolethAuthorities.get(next).authority
+	}
+
+	void testDefaultAuthoritiesAreUnmodifiable() {
+		shouldFail(UnsupportedOperationException) {
+			ShibbolethAuthorities.DEFAULT_AUTHORITIES.add(new GrantedAuthorityImpl('ROLE_ADMIN'))
+		}
+	}
+
+}
@@ -0,0 +1,99 @@
+package edu.umn.shibboleth.sp
+
+import static org.junit.Assert.*
+
+import org.springframework.security.core.GrantedAuthority
+import org.springframework.security.core.authority.GrantedAuthorityImpl
+
+import grails.test.mixin.*
+import grails.test.mixin.support.*
+import org.junit.*
+
+/**
+ * See the API for {@link grails.test.mixin.support.GrailsUnitTestMixin} for usage instructions
+ */
+@TestMixin(GrailsUnitTestMixin)
+class ShibbolethAuthoritySetTests {
+
+	void testSharedRoles() {
+		ShibbolethAuthorities.register('ROLE_SET_STAFF')
+		ShibbolethAuthorities.register('ROLE_SET_FACULTY')
+		def authorities = ShibbolethAuthoritySet.of([ new GrantedAuthorityImpl('ROLE_SET_STAFF'),
+			new GrantedAuthorityImpl('ROLE_SET_FACULTY'), new GrantedAuthorityImpl('ROLE_SET_STAFF') ])
+
+		assert 2 == authorities.size()
+		assert [ 'ROLE_SET_FACULTY', 'ROLE_SET_STAFF' ] as Set == authorities*.authority as Set
+		assert authorities.every{ it.is(ShibbolethAuthorities.get(it.authority)) }
+		assert authorities.contains(new GrantedAuthorityImpl('ROLE_SET_STAFF'))
+		assert authorities.containsRole('ROLE_SET_FACULTY')
+		assertFalse authorities.contains(new GrantedAuthorityImpl('ROLE_SET_ADMIN'))
+		assertFalse authorities.containsRole('ROLE_SET_ADMIN')
+		assertFalse authorities.containsRole(null)
+		assertFalse authorities.contains('ROLE_SET_STAFF')
+	}
+
+	void testRolesFarApart() {
+		def first = ShibbolethAuthorities.register('ROLE_SET_FIRST')
+		def roles = (1..200).collect{ ShibbolethAuthorities.register("ROLE_SET_SPREAD_${it}".toString()) }
+		def authorities = ShibbolethAuthoritySet.of([ roles[-1], first, roles[100] ])
+
+		assert 3 == authorities.size()
+		assert [ first, roles[100], roles[-1] ] == authorities as List
+		assertFalse authorities.contains(roles[0])
+		assertFalse authorities.contains(roles[199 - 64])
+	}
+
+	void testOtherAuthorities() {
+		def custom = [ getAuthority: { 'ROLE_SET_CUSTOM' } ] as GrantedAuthority
+		def unmapped = new GrantedAuthorityImpl('ROLE_SET_UNMAPPED')
+		def authorities = ShibbolethAuthoritySet.of([ custom, unmapped, ShibbolethAuthorities.ROLE_USER ])
+
+		assert 3 == authorities.size()
+		assert [ ShibbolethAuthorities.ROLE_USER, custom, unmapped ] == authorities as List
+		assert authorities.contains(custom)
+		assert authorities.containsRole('ROLE_SET_CUSTOM')
+		assert -1 == ShibbolethAuthorities.id('ROLE_SET_CUSTOM')
+
+		// roles that aren't registered are held apart from the bits, and not registered by the set
+		assert authorities.contains(new GrantedAuthorityImpl('ROLE_SET_UNMAPPED'))
+		assert authorities.containsRole('ROLE_SET_UNMAPPED')
+		assert -1 == ShibbolethAuthorities.id('ROLE_SET_UNMAPPED')
+	}
+
+	void testSetContract() {
+		def authorities = ShibbolethAuthoritySet.of([ new GrantedAuthorityImpl('ROLE_SET_STAFF'), ShibbolethAuthorities.ROLE_USER ])
+		def hashSet = [ ShibbolethAuthorities.ROLE_USER, new GrantedAuthorityImpl('ROLE_SET_STAFF') ] as HashSet
+
+		assert hashSet == authorities
+		assert authorities == hashSet
+		assert hashSet.hashCode() == authorities.hashCode()
+		assert authorities.is(ShibbolethAuthoritySet.of(authorities))
+		assert ShibbolethAuthoritySet.EMPTY.is(ShibbolethAuthoritySet.of([]))
+		assert ShibbolethAuthoritySet.EMPTY.isEmpty()
+		assertFalse ShibbolethAuthoritySet.EMPTY.iterator().hasNext()
+
+		shouldFail(UnsupportedOperationException) {
+			authorities.add(new GrantedAuthorityImpl('ROLE_ADMIN'))
+		}
+		shouldFail(IllegalArgumentException) {
+			ShibbolethAuthoritySet.of(null)
+		}
+		shouldFail(IllegalArgumentException) {
+			ShibbolethAuthoritySet.of([ null ])
+		}
+	}
+
+	void testSerialization() {
+		ShibbolethAuthorities.register('ROLE_SET_STAFF')
+		def authorities = ShibbolethAuthoritySet.of([ new GrantedAuthorityImpl('ROLE_SET_STAFF'), ShibbolethAuthorities.ROLE_USER ])
+
+		def bytes = new ByteArrayOutputStream()
+		new ObjectOutputStream(bytes).withStream{ it.writeObject(authorities) }
+		def copy = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject()
+
+		assert copy instanceof ShibbolethAuthoritySet
+		assert authorities == copy
+		assert copy.every{ it.is(ShibbolethAuthorities.get(it.authority)) }
+	}
+
+}
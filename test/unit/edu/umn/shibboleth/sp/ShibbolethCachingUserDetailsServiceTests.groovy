@@ -0,0 +1,84 @@
+package edu.umn.shibboleth.sp
+
+import static org.junit.Assert.*
+
+import org.springframework.security.core.authority.AuthorityUtils
+import org.springframework.security.core.userdetails.User
+import org.springframework.security.core.userdetails.UserDetailsService
+import org.springframework.security.core.userdetails.UsernameNotFoundException
+
+import grails.test.mixin.*
+import grails.test.mixin.support.*
+import org.junit.*
+
+/**
+ * See the API for {@link grails.test.mixin.support.GrailsUnitTestMixin} for usage instructions
+ */
+@TestMixin(GrailsUnitTestMixin)
+class ShibbolethCachingUserDetailsServiceTests {
+
+	def lookups
+	def userDetailsService
+
+	void setUp() {
+		lookups = []
+		userDetailsService = { String username ->
+			lookups << username
+			if (username == 'unknown') {
+				throw new UsernameNotFoundException(username)
+			}
+			new User(username, '', true, true, true, true, AuthorityUtils.createAuthorityList('ROLE_GORM'))
+		} as UserDetailsService
+	}
+
+	void testAfterPropertiesSet() {
+		shouldFail {
+			new ShibbolethCachingUserDetailsService().afterPropertiesSet()
+		}
+	}
+
+	void testCachedUser() {
+		def cachingService = new ShibbolethCachingUserDetailsService(userDetailsService: userDetailsService)
+		cachingService.afterPropertiesSet()
+
+		def user = cachingService.loadUserByUsername('testuser')
+		assert user.is(cachingService.loadUserByUsername('testuser'))
+		assert ['testuser'] == lookups
+		assertTrue cachingService.statistics.contains('hits=1')
+	}
+
+	void testNotFoundIsCached() {
+		def cachingService = new ShibbolethCachingUserDetailsService(userDetailsService: userDetailsService)
+		cachingService.afterPropertiesSet()
+
+		shouldFail(UsernameNotFoundException) { cachingService.loadUserByUsername('unknown') }
+		shouldFail(UsernameNotFoundException) { cachingService.loadUserByUsername('unknown') }
+		assert ['unknown'] == lookups
+	}
+
+	void testNotFoundCachingDisabled() {
+		def cachingService = new ShibbolethCachingUserDetailsService(userDetailsService: userDetailsService,
+			notFoundTimeToLive: 0)
+		cachingService.afterPropertiesSet()
+
+		shouldFail(UsernameNotFoundException) { cachingService.loadUserByUsername('unknown') }
+		shouldFail(UsernameNotFoundException) { cachingService.loadUserByUsername('unknown') }
+		assert ['unknown', 'unknown'] == lookups
+	}
+
+	void testEvict() {
+		def cachingService = new ShibbolethCachingUserDetailsService(userDetailsService: userDetailsService)
+		cachingService.afterPropertiesSet()
+
+		cachingService.loadUserByUsername('testuser')
+		cachingService.loadUserByUsername('otheruser')
+		cachingService.evict('testuser')
+		cachingService.loadUserByUsername('testuser')
+		cachingService.loadUserByUsername('otheruser')
+		assert ['testuser', 'otheruser', 'testuser'] == lookups
+
+		cachingService.evictAll()
+		cachingService.loadUserByUsername('otheruser')
+		assert ['testuser', 'otheruser', 'testuser', 'otheruser'] == lookups
+	}
+}
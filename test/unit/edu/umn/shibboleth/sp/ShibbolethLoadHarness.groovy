@@ -0,0 +1,473 @@
+package edu.umn.shibboleth.sp
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+
+import javax.servlet.Filter
+import javax.servlet.FilterChain
+import javax.servlet.FilterConfig
+import javax.servlet.ServletException
+import javax.servlet.ServletRequest
+import javax.servlet.ServletResponse
+import javax.servlet.http.Cookie
+import javax.servlet.http.HttpServlet
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletRequestWrapper
+import javax.servlet.http.HttpServletResponse
+
+import org.eclipse.jetty.server.Server
+import org.eclipse.jetty.server.nio.SelectChannelConnector
+import org.eclipse.jetty.servlet.ServletContextHandler
+import org.eclipse.jetty.servlet.ServletHolder
+import org.eclipse.jetty.util.thread.QueuedThreadPool
+
+import org.springframework.security.authentication.AuthenticationProvider
+import org.springframework.security.authentication.InsufficientAuthenticationException
+import org.springframework.security.authentication.ProviderManager
+import org.springframework.security.core.context.SecurityContextHolder
+import org.springframework.security.core.userdetails.AuthenticationUserDetailsService
+import org.springframework.security.web.AuthenticationEntryPoint
+import org.springframework.security.web.access.ExceptionTranslationFilter
+import org.springframework.security.web.authentication.logout.SecurityContextLogoutHandler
+import org.springframework.security.web.authentication.session.SessionFixationProtectionStrategy
+import org.springframework.security.web.context.HttpSessionSecurityContextRepository
+import org.springframework.security.web.context.SecurityContextPersistenceFilter
+import org.springframework.security.web.savedrequest.HttpSessionRequestCache
+
+/**
+ * A load test of the whole login through a real servlet container.  It shows
+ * the contention that the micro benchmarks can't.
+ *
+ * An embedded Jetty server stands in for Apache, mod_shib and mod_jk.  Its
+ * {@code /Shibboleth.sso/Login} handler starts an SP session.  Any request with
+ * the session's cookie then gets {@code REMOTE_USER}, {@code AUTH_TYPE=shibboleth},
+ * the user's address and the Shibboleth attributes as request attributes, the
+ * way mod_jk passes them over AJP.  Behind the stand-in is the Spring Security
+ * filter chain, in the order the plugin registers its filters, with the
+ * plugin's entry point, logout filter, authentication filter, provider and
+ * user details service.
+ *
+ * Each synthetic user
+ * <ol>
+ * <li>asks for a secured page, and the entry point sends them to the SP</li>
+ * <li>logs in to the stand-in SP, which sends them back to the security check</li>
+ * <li>is logged in by the filter, provider and user details service, and sent back to the page</li>
+ * <li>asks for {@code requestsPerUser} more pages in their session</li>
+ * </ol>
+ * A pool of client threads, {@code concurrentUsers} in size, works through the
+ * users.  The harness reports throughput and p50, p99 and p999 latency for
+ * each step as the client sees it.  It reports the same for each of the
+ * plugin's stages as timed inside the server.
+ *
+ * Everything runs in this JVM on the loopback interface, so it needs no
+ * network.  The LDAP and user details service stand-ins take a few
+ * milliseconds to answer.  With more than a few hundred concurrent users,
+ * raise the open file limit ({@code ulimit -n}).
+ *
+ * @author <a href="mailto:ajz@umn.edu">Aaron J. Zirbes</a>
+ */
+class ShibbolethLoadHarness {
+
+	static final String LOGIN_PATH = '/Shibboleth.sso/Login'
+	static final String SECURITY_CHECK = '/j_spring_shibboleth_native_sp_security_check'
+	static final String SP_SESSION_COOKIE = '_shibsession_load'
+	/** Tells the stand-in SP which user logged in at the IdP */
+	static final String USER_HEADER = 'X-Load-User'
+
+	static final String ENTRY_POINT_STEP = 'client: secured page -> SP'
+	static final String SP_LOGIN_STEP = 'client: SP login (stand-in)'
+	static final String SECURITY_CHECK_STEP = 'client: security check -> page'
+	static final String PAGE_STEP = 'client: authenticated page'
+	static final String ENTRY_POINT_STAGE = 'server: ShibbolethAuthenticationEntryPoint'
+	static final String FILTER_STAGE = 'server: ShibbolethAuthenticationFilter'
+	static final String PROVIDER_STAGE = 'server: ShibbolethAuthenticationProvider'
+	static final String USER_DETAILS_STAGE = 'server: ShibbolethUserDetailsService'
+
+	int users = 1000
+	int concurrentUsers = 100
+	int requestsPerUser = 5
+	int serverThreads = 200
+	int rolesPerUser = 10
+	int ldapGroups = 20
+	long ldapLatency = 5
+	long userDetailsServiceLatency = 2
+
+	/** The stand-in SP's sessions, session ID to the user's number */
+	final Map<String, Integer> spSessions = new ConcurrentHashMap<String, Integer>()
+
+	/** The steps and stages, in the order they are reported */
+	private final Map<String, Stage> stages = [ ENTRY_POINT_STEP, SP_LOGIN_STEP, SECURITY_CHECK_STEP, PAGE_STEP,
+		ENTRY_POINT_STAGE, FILTER_STAGE, PROVIDER_STAGE, USER_DETAILS_STAGE ].collectEntries{ [ it, new Stage() ] }
+
+	/**
+	 * Runs every user's session, and returns [users, failures, firstFailure, nanos, stages], where
+	 * stages maps each step and stage name to its {@link Stage}
+	 */
+	Map run() {
+		// keep a connection alive for each client thread, rather than the default of 5,
+		// and put the setting back afterwards so it doesn't leak into other tests
+		String maxConnections = System.getProperty('http.maxConnections')
+		if (maxConnections == null) {
+			System.setProperty('http.maxConnections', String.valueOf(concurrentUsers))
+		}
+
+		def userDetailsService = userDetailsService()
+		def connector = new SelectChannelConnector(host: '127.0.0.1', port: 0, acceptQueueSize: concurrentUsers)
+		def server = new Server()
+		server.threadPool = new QueuedThreadPool(serverThreads)
+		server.addConnector(connector)
+		def context = new ServletContextHandler(ServletContextHandler.SESSIONS)
+		context.contextPath = '/'
+		context.addServlet(new ServletHolder(new FilterChainServlet(filters(userDetailsService))), '/*')
+		server.handler = context
+
+		try {
+			server.start()
+			String base = "http://127.0.0.1:${connector.localPort}"
+			def failures = new AtomicInteger()
+			def firstFailure = new AtomicReference<Throwable>()
+			def nextUser = new AtomicInteger()
+
+			def executor = Executors.newFixedThreadPool(concurrentUsers)
+			long started = System.nanoTime()
+			concurrentUsers.times{
+				executor.execute({
+					int user
+					while ((user = nextUser.getAndIncrement()) < users) {
+						try {
+							session(base, user)
+						} catch (Throwable ex) {
+							failures.incrementAndGet()
+							firstFailure.compareAndSet(null, ex)
+						}
+					}
+				} as Runnable)
+			}
+			executor.shutdown()
+			executor.awaitTermination(1, TimeUnit.HOURS)
+			long elapsed = System.nanoTime() - started
+
+			return [ users: users, failures: failures.get(), firstFailure: firstFailure.get(),
+				nanos: elapsed, stages: stages ]
+		} finally {
+			server.stop()
+			userDetailsService.destroy()
+			if (maxConnections == null) {
+				System.clearProperty('http.maxConnections')
+			}
+		}
+	}
+
+	/** Logs the throughput and latency percentiles of each step and stage */
+	static void report(String title, Map result) {
+		double seconds = result.nanos / 1e9d
+		MicroBenchmark.log.info("=== ${title}: ${result.users} users in ${String.format('%.1f', seconds)} s, ${result.failures} failed ===")
+		if (result.firstFailure) { MicroBenchmark.log.info("first failure: ${result.firstFailure}") }
+		result.stages.each{ String name, Stage stage ->
+			long[] nanos = stage.sortedNanos()
+			MicroBenchmark.log.info String.format('%-45s %8d ops %9.1f ops/s %8.2f p50 ms %8.2f p99 ms %8.2f p999 ms %8.2f max ms',
+				name, nanos.length, nanos.length / seconds, millis(nanos, 0.50d), millis(nanos, 0.99d),
+				millis(nanos, 0.999d), millis(nanos, 1.0d))
+		}
+	}
+
+	/** Returns a percentile, between 0 and 1, of the sorted times in milliseconds */
+	static double millis(long[] sortedNanos, double percentile) {
+		if (sortedNanos.length == 0) { return 0.0d }
+
+		int rank = Math.max((int) Math.ceil(percentile * sortedNanos.length), 1)
+		return sortedNanos[rank - 1] / 1e6d
+	}
+
+	/** One user's visit, from the first secured page to the last */
+	private void session(String base, int user) {
+		Map<String, String> cookies = [:]
+
+		def response = get(stages[ENTRY_POINT_STEP], "${base}/secure/home", cookies, null)
+		expect(302, response, LOGIN_PATH)
+
+		response = get(stages[SP_LOGIN_STEP], response.location, cookies, user)
+		expect(302, response, SECURITY_CHECK)
+
+		response = get(stages[SECURITY_CHECK_STEP], response.location, cookies, null)
+		expect(302, response, '/secure/home')
+
+		requestsPerUser.times{
+			response = get(stages[PAGE_STEP], "${base}/secure/page${it}", cookies, null)
+			expect(200, response, null)
+		}
+	}
+
+	private static void expect(int status, Map response, String location) {
+		if (response.status != status || (location != null && !response.location?.contains(location))) {
+			throw new IllegalStateException("expected a ${status} to ${location ?: 'the page'} from ${response.url}, "
+				+ "but got a ${response.status} to ${response.location}")
+		}
+	}
+
+	/** Requests the URL with the user's cookies, and keeps any it is sent */
+	private static Map get(Stage stage, String url, Map<String, String> cookies, Integer user) {
+		long start = System.nanoTime()
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection()
+		connection.instanceFollowRedirects = false
+		connection.useCaches = false
+		if (cookies) { connection.setRequestProperty('Cookie', cookies.collect{ name, value -> "${name}=${value}" }.join('; ')) }
+		if (user != null) { connection.setRequestProperty(USER_HEADER, user.toString()) }
+
+		int status = connection.responseCode
+		// read the whole body, so the connection can be used again
+		InputStream body = (status < 400) ? connection.inputStream : connection.errorStream
+		if (body != null) {
+			try {
+				body.bytes
+			} finally {
+				body.close()
+			}
+		}
+		stage.record(System.nanoTime() - start)
+
+		connection.headerFields.each{ name, values ->
+			if ('Set-Cookie'.equalsIgnoreCase(name)) {
+				values.each{
+					String[] cookie = it.split(';')[0].split('=', 2)
+					cookies[cookie[0].trim()] = (cookie.length > 1) ? cookie[1] : ''
+				}
+			}
+		}
+		String location = connection.getHeaderField('Location')
+		return [ url: url, status: status, location: (location != null) ? new URL(new URL(url), location).toString() : null ]
+	}
+
+	/** The Spring Security filter chain, with the plugin's filters where it registers them */
+	private List<Filter> filters(ShibbolethUserDetailsService userDetailsService) {
+		def timedUserDetailsService = { authentication ->
+			stages[USER_DETAILS_STAGE].time{ userDetailsService.loadUserDetails(authentication) }
+		} as AuthenticationUserDetailsService
+
+		def provider = new ShibbolethAuthenticationProvider(authenticationUserDetailsService: timedUserDetailsService)
+		provider.afterPropertiesSet()
+		def timedProvider = [
+			authenticate: { authentication -> stages[PROVIDER_STAGE].time{ provider.authenticate(authentication) } },
+			supports: { Class authentication -> provider.supports(authentication) } ] as AuthenticationProvider
+		def authenticationManager = new ProviderManager(providers: [ timedProvider ])
+		authenticationManager.afterPropertiesSet()
+
+		def entryPoint = new ShibbolethAuthenticationEntryPoint(loginUrl: LOGIN_PATH + '?target={0}')
+		entryPoint.afterPropertiesSet()
+		def timedEntryPoint = { request, response, exception ->
+			stages[ENTRY_POINT_STAGE].time{ entryPoint.commence(request, response, exception) }
+		} as AuthenticationEntryPoint
+
+		def requestCache = new HttpSessionRequestCache()
+		def securityContextFilter = new SecurityContextPersistenceFilter(
+			securityContextRepository: new HttpSessionSecurityContextRepository())
+
+		def logoutFilter = new ShibbolethLogoutFilter(
+			handlers: [ new SecurityContextLogoutHandler() ],
+			principalUsernameAttribute: 'eppn',
+			authenticationMethodAttribute: 'Shib-Authentication-Method',
+			identityProviderAttribute: 'Shib-Identity-Provider',
+			sessionIdAttribute: 'Shib-Session-ID')
+		logoutFilter.afterPropertiesSet()
+
+		def authenticationFilter = new ShibbolethAuthenticationFilter(SECURITY_CHECK)
+		authenticationFilter.authenticationManager = authenticationManager
+		authenticationFilter.sessionAuthenticationStrategy = new SessionFixationProtectionStrategy()
+		authenticationFilter.principalUsernameAttribute = 'eppn'
+		authenticationFilter.usernameAttribute = 'eppn'
+		authenticationFilter.authenticationMethodAttribute = 'Shib-Authentication-Method'
+		authenticationFilter.identityProviderAttribute = 'Shib-Identity-Provider'
+		authenticationFilter.authenticationInstantAttribute = 'Shib-Authentication-Instant'
+		authenticationFilter.sessionIdAttribute = 'Shib-Session-ID'
+		authenticationFilter.extraAttributes = BenchmarkFixtures.extraAttributes(4)
+		authenticationFilter.afterPropertiesSet()
+		def timedAuthenticationFilter = [
+			init: { FilterConfig config -> },
+			doFilter: { ServletRequest request, ServletResponse response, FilterChain chain ->
+				if (((HttpServletRequest) request).requestURI == SECURITY_CHECK) {
+					stages[FILTER_STAGE].time{ authenticationFilter.doFilter(request, response, chain) }
+				} else {
+					authenticationFilter.doFilter(request, response, chain)
+				}
+			},
+			destroy: { } ] as Filter
+
+		def exceptionTranslationFilter = new ExceptionTranslationFilter(
+			authenticationEntryPoint: timedEntryPoint, requestCache: requestCache)
+		exceptionTranslationFilter.afterPropertiesSet()
+
+		// stands in for the access rules, every page needs a Shibboleth login
+		def accessRules = [
+			init: { FilterConfig config -> },
+			doFilter: { ServletRequest request, ServletResponse response, FilterChain chain ->
+				if (!(SecurityContextHolder.context.authentication instanceof ShibbolethAuthenticationToken)) {
+					throw new InsufficientAuthenticationException('a Shibboleth login is needed')
+				}
+				chain.doFilter(request, response)
+			},
+			destroy: { } ] as Filter
+
+		return [ new ServiceProviderStandIn(this), securityContextFilter, logoutFilter, timedAuthenticationFilter,
+			exceptionTranslationFilter, accessRules ]
+	}
+
+	/** The user details service, with LDAP and user details service stand-ins that take a while to answer */
+	private ShibbolethUserDetailsService userDetailsService() {
+		def ldapAuthoritiesPopulator = BenchmarkFixtures.ldapAuthoritiesPopulator(roleCount: ldapGroups, latency: ldapLatency)
+		def gormUserDetailsService = BenchmarkFixtures.userDetailsService(roles: [ 'ROLE_GORM_USER' ], latency: userDetailsServiceLatency)
+
+		def service = new ShibbolethUserDetailsService(
+			rolesAttribute: 'Shib-Roles',
+			rolesSeparator: ',',
+			rolesPrefix: 'SHIB_',
+			identityProviderRoles: BenchmarkFixtures.identityProviderRoles(10),
+			authenticationMethodRoles: BenchmarkFixtures.authenticationMethodRoles(10),
+			ipAddressRoles: BenchmarkFixtures.ipAddressRoles(100),
+			userDnBase: 'ou=people,dc=example,dc=org',
+			ldapAuthoritiesPopulator: ldapAuthoritiesPopulator,
+			userDetailsService: gormUserDetailsService)
+		service.afterPropertiesSet()
+		return service
+	}
+
+	/** The Shibboleth attributes mod_shib would release for the user */
+	Map<String, String> attributes(int user, String sessionId) {
+		def attributes = [
+			'eppn': eppn(user),
+			'Shib-Session-ID': sessionId,
+			'Shib-Identity-Provider': BenchmarkFixtures.IDENTITY_PROVIDER,
+			'Shib-Authentication-Method': BenchmarkFixtures.AUTHENTICATION_METHOD,
+			'Shib-Authentication-Instant': '2012-01-16T03:52:19.890Z',
+			'Shib-Roles': (0..<rolesPerUser).collect{ "urn:mace:example.org:entitlement:group${(user + it) % 100}" }.join(',') ]
+		4.times{ attributes["Shib-Attribute-${it + 1}".toString()] = "value ${user}-${it + 1}".toString() }
+		return attributes
+	}
+
+	private static String eppn(int user) {
+		return "user${user}@example.org"
+	}
+
+	/** Each user comes from their own address on the campus network */
+	private static String remoteAddress(int user) {
+		return "134.84.${(user >> 8) & 0xff}.${user & 0xff}"
+	}
+
+	/**
+	 * Stands in for Apache, mod_shib and mod_jk.  The login handler starts an
+	 * SP session for the user named in the {@link #USER_HEADER}.  Requests in a
+	 * session carry its user and attributes, and other requests are passed on as they are.
+	 */
+	private static class ServiceProviderStandIn implements Filter {
+
+		private final ShibbolethLoadHarness harness
+
+		ServiceProviderStandIn(ShibbolethLoadHarness harness) {
+			this.harness = harness
+		}
+
+		void init(FilterConfig config) { }
+
+		void destroy() { }
+
+		void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) throws IOException, ServletException {
+			HttpServletRequest request = (HttpServletRequest) req
+			HttpServletResponse response = (HttpServletResponse) res
+
+			if (request.requestURI == LOGIN_PATH) {
+				String sessionId = '_' + UUID.randomUUID().toString().replace('-', '')
+				harness.spSessions[sessionId] = Integer.valueOf(request.getHeader(USER_HEADER))
+				def cookie = new Cookie(SP_SESSION_COOKIE, sessionId)
+				cookie.path = '/'
+				response.addCookie(cookie)
+				response.sendRedirect(request.getParameter('target'))
+				return
+			}
+
+			String sessionId = request.cookies?.find{ it.name == SP_SESSION_COOKIE }?.value
+			Integer user = (sessionId != null) ? harness.spSessions[sessionId] : null
+			chain.doFilter((user != null) ? new ShibbolethRequest(request, user, harness.attributes(user, sessionId)) : request,
+				response)
+		}
+	}
+
+	/** A request as mod_jk passes it on for a user with an SP session */
+	private static class ShibbolethRequest extends HttpServletRequestWrapper {
+
+		private final int user
+		private final Map<String, String> shibbolethAttributes
+
+		ShibbolethRequest(HttpServletRequest request, int user, Map<String, String> shibbolethAttributes) {
+			super(request)
+			this.user = user
+			this.shibbolethAttributes = shibbolethAttributes
+		}
+
+		String getAuthType() { 'shibboleth' }
+
+		String getRemoteUser() { eppn(user) }
+
+		String getRemoteAddr() { remoteAddress(user) }
+
+		Object getAttribute(String name) {
+			return shibbolethAttributes.containsKey(name) ? shibbolethAttributes[name] : super.getAttribute(name)
+		}
+
+		Enumeration getAttributeNames() {
+			return Collections.enumeration(shibbolethAttributes.keySet() + Collections.list(super.getAttributeNames()))
+		}
+	}
+
+	/** Runs the filters in order, as the container would, and then the secured page */
+	private static class FilterChainServlet extends HttpServlet {
+
+		private final List<Filter> filters
+
+		FilterChainServlet(List<Filter> filters) {
+			this.filters = filters
+		}
+
+		protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+			int position = 0
+			def chain
+			chain = [ doFilter: { ServletRequest req, ServletResponse res ->
+				if (position < filters.size()) {
+					filters[position++].doFilter(req, res, chain)
+				} else {
+					res.contentType = 'text/plain'
+					res.writer.write("${SecurityContextHolder.context.authentication.name}: ${req.requestURI}")
+				}
+			} ] as FilterChain
+			chain.doFilter(request, response)
+		}
+	}
+
+	/** The times of a step or stage */
+	static class Stage {
+
+		private final ConcurrentLinkedQueue<Long> nanos = new ConcurrentLinkedQueue<Long>()
+
+		void record(long elapsed) {
+			nanos.add(elapsed)
+		}
+
+		/** Runs the work, and records how long it took, even if it failed */
+		def time(Closure work) {
+			long start = System.nanoTime()
+			try {
+				return work()
+			} finally {
+				record(System.nanoTime() - start)
+			}
+		}
+
+		long[] sortedNanos() {
+			long[] sorted = nanos.toArray() as long[]
+			Arrays.sort(sorted)
+			return sorted
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package edu.umn.shibboleth.sp
+
+import static org.junit.Assert.*
+
+import grails.test.mixin.*
+import grails.test.mixin.support.*
+import org.junit.*
+
+/**
+ * Drives the {@link ShibbolethLoadHarness}, i.e. whole logins through an
+ * embedded servlet container, and reports the throughput and latency of each
+ * step and stage.
+ *
+ * Run with {@code grails -Dshibboleth.benchmark=true test-app unit: ShibbolethLoad},
+ * or for thousands of users with {@code -Dshibboleth.benchmark.full=true}
+ */
+@TestMixin(GrailsUnitTestMixin)
+class ShibbolethLoadTests {
+
+	static final boolean FULL = MicroBenchmark.FULL
+
+	void testLoad() {
+		MicroBenchmark.assumeEnabled()
+
+		def harness = new ShibbolethLoadHarness(
+			users: FULL ? 10000 : 200,
+			concurrentUsers: FULL ? 1000 : 20,
+			requestsPerUser: FULL ? 10 : 3,
+			serverThreads: FULL ? 400 : 40)
+
+		def result = harness.run()
+		ShibbolethLoadHarness.report("${harness.concurrentUsers} concurrent users, "
+			+ "${harness.requestsPerUser} pages each, ${harness.serverThreads} server threads", result)
+
+		assert 0 == result.failures
+		def stages = result.stages
+		assert harness.users == stages[ShibbolethLoadHarness.ENTRY_POINT_STAGE].sortedNanos().length
+		assert harness.users == stages[ShibbolethLoadHarness.FILTER_STAGE].sortedNanos().length
+		assert harness.users == stages[ShibbolethLoadHarness.PROVIDER_STAGE].sortedNanos().length
+		assert harness.users == stages[ShibbolethLoadHarness.USER_DETAILS_STAGE].sortedNanos().length
+		assert harness.users * harness.requestsPerUser == stages[ShibbolethLoadHarness.PAGE_STEP].sortedNanos().length
+	}
+
+	void testPercentiles() {
+		long[] nanos = (1..1000).collect{ it * 1000000L } as long[]
+
+		assert 500.0d == ShibbolethLoadHarness.millis(nanos, 0.50d)
+		assert 990.0d == ShibbolethLoadHarness.millis(nanos, 0.99d)
+		assert 999.0d == ShibbolethLoadHarness.millis(nanos, 0.999d)
+		assert 1000.0d == ShibbolethLoadHarness.millis(nanos, 1.0d)
+		assert 0.0d == ShibbolethLoadHarness.millis(new long[0], 0.99d)
+	}
+}
@@ -0,0 +1,69 @@
+package edu.umn.shibboleth.sp
+
+import static org.junit.Assert.*
+
+import org.springframework.mock.web.MockHttpServletRequest
+import org.springframework.mock.web.MockHttpServletResponse
+import org.springframework.security.core.context.SecurityContextHolder
+
+import grails.test.mixin.*
+import grails.test.mixin.support.*
+import org.junit.*
+
+/**
+ * Measures the per request cost of the {@link ShibbolethLogoutFilter} check,
+ * with the session fingerprint and with the full attribute comparison.
+ *
+ * Run with {@code grails -Dshibboleth.benchmark=true test-app unit: ShibbolethLogoutFilterBenchmark}
+ */
+@TestMixin(GrailsUnitTestMixin)
+class ShibbolethLogoutFilterBenchmarkTests {
+
+	void setUp() {
+		MicroBenchmark.assumeEnabled()
+	}
+
+	void tearDown() {
+		SecurityContextHolder.clearContext()
+	}
+
+	void testFingerprintAgainstFullComparison() {
+		def shibbolethLogoutFilter = new ShibbolethLogoutFilter(
+			principalUsernameAttribute: 'EPPN',
+			authenticationMethodAttribute: 'Shib-Authentication-Method',
+			identityProviderAttribute: 'Shib-Identity-Provider',
+			handlers: [])
+
+		def request = new MockHttpServletRequest('GET', '/')
+		def response = new MockHttpServletResponse()
+		request.setAuthType('shibboleth')
+		request.setRemoteUser('testuser@example.org')
+		request.setAttribute('EPPN', 'testuser@example.org')
+		request.setAttribute('Shib-Session-ID', '_dd30caa5aaf4a09ef7335bb1ee1df54b')
+		request.setAttribute('Shib-Authentication-Method', 'urn:oasis:names:tc:SAML:2.0:ac:classes:unspecified')
+		request.setAttribute('Shib-Identity-Provider', 'https://idp2.shib.umn.edu/idp/shibboleth')
+
+		def newToken = {
+			new ShibbolethAuthenticationToken([], null, 'testuser@example.org', 'testuser@example.org', 'testuser',
+				'shibboleth', 'urn:oasis:names:tc:SAML:2.0:ac:classes:unspecified',
+				'https://idp2.shib.umn.edu/idp/shibboleth', '2012-01-16T03:52:19.890Z', '127.0.0.1', [:])
+		}
+		def fullToken = newToken()
+		def fingerprintToken = newToken()
+		fingerprintToken.sessionFingerprint = ShibbolethAuthenticationToken.sessionFingerprint(
+			'_dd30caa5aaf4a09ef7335bb1ee1df54b', 'testuser@example.org')
+
+		// both keep the user logged in
+		SecurityContextHolder.context.authentication = fullToken
+		assertFalse shibbolethLogoutFilter.requiresLogout(request, response)
+		SecurityContextHolder.context.authentication = fingerprintToken
+		assertFalse shibbolethLogoutFilter.requiresLogout(request, response)
+
+		def benchmark = new MicroBenchmark(operationsPerIteration: 100000)
+		SecurityContextHolder.context.authentication = fullToken
+		def full = benchmark.run('full comparison') { shibbolethLogoutFilter.requiresLogout(request, response) }
+		SecurityContextHolder.context.authentication = fingerprintToken
+		def fingerprint = benchmark.run('session fingerprint') { shibbolethLogoutFilter.requiresLogout(request, response) }
+		MicroBenchmark.report('ShibbolethLogoutFilter.requiresLogout per request', [ full, fingerprint ])
+	}
+}
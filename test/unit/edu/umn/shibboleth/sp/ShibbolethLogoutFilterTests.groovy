@@ -186,4 +186,42 @@ class ShibbolethLogoutFilterTests {
 		// make sure it was cleared
 		assert auth == null
 	}
+
+	void testFilterShibSessionFingerprint() {
+		def shibbolethLogoutFilter = new ShibbolethLogoutFilter(filterParams)
+		shibbolethAuthenticationToken.sessionFingerprint =
+			ShibbolethAuthenticationToken.sessionFingerprint('_dd30caa5', 'testuser@example.org')
+
+		// same session and user, without any of the other attributes
+		def request = new MockHttpServletRequest('GET', '/')
+		request.setAttribute('EPPN', 'testuser@example.org')
+		request.setAttribute('Shib-Session-ID', '_dd30caa5')
+		SecurityContextHolder.getContext().setAuthentication(shibbolethAuthenticationToken)
+
+		assertFalse shibbolethLogoutFilter.requiresLogout(request, new MockHttpServletResponse())
+
+		// a different user in the same session
+		request.setAttribute('EPPN', 'me@example.org')
+		assertTrue shibbolethLogoutFilter.requiresLogout(request, new MockHttpServletResponse())
+	}
+
+	void testFilterShibNewSessionSameUser() {
+		def shibbolethLogoutFilter = new ShibbolethLogoutFilter(filterParams)
+		shibbolethAuthenticationToken.sessionFingerprint =
+			ShibbolethAuthenticationToken.sessionFingerprint('_dd30caa5', 'testuser@example.org')
+
+		// a new session falls back to comparing everything, which still matches
+		def request = new MockHttpServletRequest('GET', '/')
+		request.setAuthType('shibboleth')
+		request.setRemoteUser('testuser@example.org')
+		request.setAttribute('EPPN', 'testuser@example.org')
+		request.setAttribute('Shib-Session-ID', '_ee41dbb6')
+		request.setAttribute('Shib-Authentication-Method', 'fake.authentication.method')
+		request.setAttribute('Shib-Identity-Provider', 'fake.IdP')
+		SecurityContextHolder.getContext().setAuthentication(shibbolethAuthenticationToken)
+
+		shibbolethLogoutFilter.doFilter(request, new MockHttpServletResponse(), new MockFilterChain())
+
+		assert shibbolethAuthenticationToken == SecurityContextHolder.getContext().getAuthentication()
+	}
 }
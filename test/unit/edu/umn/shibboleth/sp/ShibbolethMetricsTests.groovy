@@ -0,0 +1,116 @@
+package edu.umn.shibboleth.sp
+
+import static org.junit.Assert.*
+
+import java.lang.management.ManagementFactory
+import javax.management.AttributeNotFoundException
+import javax.management.ObjectName
+
+import grails.test.mixin.*
+import grails.test.mixin.support.*
+import org.junit.*
+
+/**
+ * See the API for {@link grails.test.mixin.support.GrailsUnitTestMixin} for usage instructions
+ */
+@TestMixin(GrailsUnitTestMixin)
+class ShibbolethMetricsTests {
+
+	void testTimer() {
+		def timer = new ShibbolethMetrics().timer('provider.authenticate')
+
+		98.times{ timer.record(10000) } // 10 microseconds
+		timer.record(1000000) // 1 millisecond
+		timer.record(2000000)
+
+		assert 100 == timer.count
+		assert 2000.0d == timer.maxMicros
+		assert 39.8d == timer.meanMicros
+		// the upper bound of the 8 - 16 microsecond bucket
+		assert 16.0d == timer.getPercentileMicros(0.50)
+		assert 16.0d == timer.getPercentileMicros(0.95)
+		assert 1024.0d == timer.getPercentileMicros(0.99)
+		assert 2000.0d == timer.getPercentileMicros(1.0)
+	}
+
+	void testTimersAreShared() {
+		def metrics = new ShibbolethMetrics()
+		assert metrics.timer('filter.attributeExtraction').is(metrics.timer('filter.attributeExtraction'))
+	}
+
+	void testRejections() {
+		def metrics = new ShibbolethMetrics()
+		metrics.registerRejections('filter.eppnNull', 'filter.authTypeNull')
+		metrics.reject('filter.eppnNull')
+		metrics.reject('filter.eppnNull')
+
+		assert 2 == metrics.getRejections('filter.eppnNull')
+		assert 0 == metrics.getRejections('filter.authTypeNull')
+		assert 0L == metrics.snapshot()['rejected.filter.authTypeNull']
+	}
+
+	void testAttributes() {
+		def metrics = new ShibbolethMetrics()
+		metrics.timer('provider.authenticate').record(5000)
+		metrics.reject('filter.eppnNull')
+		int gaugeReads = 0
+		metrics.gauge('userDetails.ldapCircuit.state', { gaugeReads++; 'CLOSED' } as ShibbolethMetrics.Gauge)
+
+		// each attribute is read on its own, the same as in the snapshot
+		metrics.snapshot().each{ name, value ->
+			assert value == metrics.getAttribute(name)
+		}
+		gaugeReads = 0
+
+		assert 1L == metrics.getAttribute('provider.authenticate.count')
+		assert 5.0d == metrics.getAttribute('provider.authenticate.maxMicros')
+		assert 1L == metrics.getAttribute('rejected.filter.eppnNull')
+		assert [ 'provider.authenticate.count', 'rejected.filter.eppnNull' ] ==
+			metrics.getAttributes([ 'provider.authenticate.count', 'rejected.filter.eppnNull', 'unknown' ] as String[])*.name
+		assert 0 == gaugeReads
+		assert 'CLOSED' == metrics.getAttribute('userDetails.ldapCircuit.state')
+		assert 1 == gaugeReads
+
+		[ 'unknown', 'provider.authenticate', 'provider.authenticate.p42Micros', 'rejected.unknown' ].each{ name ->
+			shouldFail(AttributeNotFoundException) { metrics.getAttribute(name) }
+		}
+	}
+
+	void testReset() {
+		def metrics = new ShibbolethMetrics()
+		metrics.timer('provider.authenticate').record(1000)
+		metrics.reject('filter.eppnNull')
+
+		metrics.reset()
+
+		assert 0 == metrics.timer('provider.authenticate').count
+		assert 0 == metrics.getRejections('filter.eppnNull')
+	}
+
+	void testMBean() {
+		def name = 'edu.umn.shibboleth.sp:type=ShibbolethMetrics,application=metricsTest'
+		def metrics = new ShibbolethMetrics(objectName: name)
+		metrics.timer('provider.authenticate').record(5000)
+		metrics.reject('provider.eppnNull')
+		metrics.afterPropertiesSet()
+
+		try {
+			def server = ManagementFactory.platformMBeanServer
+			def objectName = new ObjectName(name)
+
+			assert 1L == server.getAttribute(objectName, 'provider.authenticate.count')
+			assert 1L == server.getAttribute(objectName, 'rejected.provider.eppnNull')
+			assert server.getMBeanInfo(objectName).attributes*.name.contains('provider.authenticate.p99Micros')
+
+			server.invoke(objectName, 'reset', null, null)
+			assert 0L == server.getAttribute(objectName, 'provider.authenticate.count')
+
+			// a second registration under the same name is skipped, not fatal
+			new ShibbolethMetrics(objectName: name).afterPropertiesSet()
+		} finally {
+			metrics.destroy()
+		}
+
+		assertFalse ManagementFactory.platformMBeanServer.isRegistered(new ObjectName(name))
+	}
+}
@@ -0,0 +1,66 @@
+package edu.umn.shibboleth.sp
+
+import static org.junit.Assert.*
+
+import org.springframework.security.core.authority.GrantedAuthorityImpl
+
+import grails.test.mixin.*
+import grails.test.mixin.support.*
+import org.junit.*
+
+/**
+ * Reports the serialized size of an authenticated token, and how fast it is
+ * written and read, in the {@link ShibbolethSerializedForm} and with default
+ * serialization of the same fields: a map of the attributes, and a list of
+ * {@code GrantedAuthorityImpl}s for the token and for its user details.
+ *
+ * Run with {@code grails -Dshibboleth.benchmark=true test-app unit: ShibbolethSerializedFormBenchmark}
+ */
+@TestMixin(GrailsUnitTestMixin)
+class ShibbolethSerializedFormBenchmarkTests {
+
+	void setUp() {
+		MicroBenchmark.assumeEnabled()
+	}
+
+	void testSerializedForm() {
+		def benchmark = new MicroBenchmark(operationsPerIteration: 1000)
+		def results = []
+		def sizes = []
+
+		[ [ 8, 5 ], [ 8, 50 ], [ 32, 500 ] ].each{ attributeCount, roleCount ->
+			def token = new ShibbolethAuthenticationProvider(
+				authenticationUserDetailsService: new ShibbolethUserDetailsService(
+					rolesAttribute: 'Shib-Roles',
+					ipAddressRoles: BenchmarkFixtures.ipAddressRoles(10),
+					identityProviderRoles: BenchmarkFixtures.identityProviderRoles(10)))
+				.authenticate(BenchmarkFixtures.token(attributeCount, roleCount))
+
+			// what default serialization wrote for the same fields
+			def fields = [ token.eppn, token.username, token.authenticationType, token.authenticationMethod,
+				token.identityProvider, token.authenticationInstant, token.remoteAddress, token.sessionFingerprint,
+				new HashMap(token.attributes),
+				token.authorities.collect{ new GrantedAuthorityImpl(it.authority) },
+				token.principal.username, token.principal.eppn, new HashMap(token.principal.attributes),
+				token.principal.authorities.collect{ new GrantedAuthorityImpl(it.authority) } ]
+
+			byte[] compact = ShibbolethSerializedFormTests.serialize(token)
+			byte[] standard = ShibbolethSerializedFormTests.serialize(fields)
+			assert token.authorities*.authority == ShibbolethSerializedFormTests.deserialize(compact).authorities*.authority
+			assert compact.length < standard.length
+
+			String name = "${attributeCount} attributes, ${roleCount} roles"
+			sizes << String.format('%-40s %8d bytes default %8d bytes compact', name, standard.length, compact.length)
+			results << benchmark.run("default, ${name}") {
+				ShibbolethSerializedFormTests.deserialize(ShibbolethSerializedFormTests.serialize(fields))
+			}
+			results << benchmark.run("compact, ${name}") {
+				ShibbolethSerializedFormTests.deserialize(ShibbolethSerializedFormTests.serialize(token))
+			}
+		}
+
+		MicroBenchmark.log.info('=== Serialized token size ===')
+		sizes.each{ MicroBenchmark.log.info(it) }
+		MicroBenchmark.report('Serialized token write and read', results)
+	}
+}
@@ -0,0 +1,206 @@
+package edu.umn.shibboleth.sp
+
+import static org.junit.Assert.*
+
+import org.springframework.security.core.authority.GrantedAuthorityImpl
+
+import grails.test.mixin.*
+import grails.test.mixin.support.*
+import org.junit.*
+
+/**
+ * See the API for {@link grails.test.mixin.support.GrailsUnitTestMixin} for usage instructions
+ */
+@TestMixin(GrailsUnitTestMixin)
+class ShibbolethSerializedFormTests {
+
+	static byte[] serialize(Object object) {
+		def bytes = new ByteArrayOutputStream()
+		def out = new ObjectOutputStream(bytes)
+		out.writeObject(object)
+		out.close()
+		return bytes.toByteArray()
+	}
+
+	static Object deserialize(byte[] bytes) {
+		return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject()
+	}
+
+	def authenticatedToken() {
+		def attributes = [ 'Shib-Session-ID': '_dd30caa5aaf4a09ef7335bb1ee1df54b', 'Shib-Roles': 'staff;faculty' ]
+		def authorities = [ new GrantedAuthorityImpl('ROLE_SHIB_STAFF'), new GrantedAuthorityImpl('ROLE_SHIB_FACULTY') ]
+		def userDetails = new ShibbolethUserDetails('ajz@umn.edu', 'zirbes@umn.edu', 'Aaron J. Zirbes',
+			authorities, 'ajz@umn.edu', attributes)
+		def token = new ShibbolethAuthenticationToken(userDetails.authorities, 'details', userDetails,
+			'ajz@umn.edu', 'ajz@umn.edu', 'shibboleth', 'urn:oasis:names:tc:SAML:2.0:ac:classes:unspecified',
+			'https://idp2.shib.umn.edu/idp/shibboleth', '2012-01-16T03:52:19.890Z', '134.84.0.10', attributes)
+		token.sessionFingerprint = ShibbolethAuthenticationToken.sessionFingerprint('_dd30caa5aaf4a09ef7335bb1ee1df54b', 'ajz@umn.edu')
+		return token
+	}
+
+	void testAuthenticatedTokenRoundTrip() {
+		def token = authenticatedToken()
+
+		def copy = deserialize(serialize(token))
+
+		assert copy instanceof ShibbolethAuthenticationToken
+		assertTrue copy.isAuthenticated()
+		assert token.eppn == copy.eppn
+		assert token.username == copy.username
+		assert token.authenticationType == copy.authenticationType
+		assert token.authenticationMethod == copy.authenticationMethod
+		assert token.identityProvider == copy.identityProvider
+		assert token.authenticationInstant == copy.authenticationInstant
+		assert token.remoteAddress == copy.remoteAddress
+		assert token.attributes == copy.attributes
+		assert token.details == copy.details
+		assert token.sessionFingerprint == copy.sessionFingerprint
+		assert token.authorities*.authority == copy.authorities*.authority
+
+		// registered authorities are shared again, and the user details share the token's attributes
+		assert copy.authorities.every{ ShibbolethAuthorities.id(it) < 0 || it.is(ShibbolethAuthorities.get(it.authority)) }
+		assert copy.principal instanceof ShibbolethUserDetails
+		assert 'Aaron J. Zirbes' == copy.principal.fullName
+		assert 'zirbes@umn.edu' == copy.principal.email
+		assert 'ajz@umn.edu' == copy.principal.eppn
+		assert copy.principal.attributes.is(copy.attributes)
+		assert token.principal.authorities*.authority == copy.principal.authorities*.authority
+		assert copy.principal.authorities.is(copy.authorities)
+	}
+
+	void testFilterTokenRoundTrip() {
+		def token = new ShibbolethAuthenticationToken('ajz@umn.edu', 'ajz', 'shibboleth', 'fake.authentication.method',
+			'fake.IdP', '1234567890', null, null)
+
+		def copy = deserialize(serialize(token))
+
+		assertFalse copy.isAuthenticated()
+		assert 'ajz' == copy.username
+		assert 'ajz' == copy.principal
+		assertNull copy.remoteAddress
+		assertNull copy.attributes
+		assertNull copy.sessionFingerprint
+		assert [ 'ROLE_USER' ] == copy.authorities*.authority
+	}
+
+	void testUserDetailsRoundTrip() {
+		def userDetails = authenticatedToken().principal
+
+		def copy = deserialize(serialize(userDetails))
+
+		assert copy instanceof ShibbolethUserDetails
+		assert userDetails.username == copy.username
+		assert userDetails.eppn == copy.eppn
+		assert userDetails.fullName == copy.fullName
+		assert userDetails.attributes == copy.attributes
+		assert userDetails.authorities*.authority == copy.authorities*.authority
+	}
+
+	void testCompactForm() {
+		def token = authenticatedToken()
+		byte[] bytes = serialize(token)
+
+		// the eppn, shared attributes and authorities are written once
+		def text = new String(bytes, 'ISO-8859-1')
+		assert 1 == text.count('ajz@umn.edu')
+		assert 1 == text.count('Shib-Roles')
+		assert 1 == text.count('ROLE_SHIB_STAFF')
+		assertFalse text.contains('GrantedAuthorityImpl')
+	}
+
+	void testLongValues() {
+		def attributes = [ 'Shib-Roles': 'x' * 100000 ]
+		def token = new ShibbolethAuthenticationToken('ajz@umn.edu', 'ajz@umn.edu', 'shibboleth', 'fake.authentication.method',
+			'fake.IdP', '1234567890', '127.0.0.1', attributes)
+
+		assert attributes == deserialize(serialize(token)).attributes
+	}
+
+	/** A version 1 token, written out field by field, must always be readable */
+	void testReadsVersion1() {
+		def bytes = new ByteArrayOutputStream()
+		def out = new ObjectOutputStream(bytes)
+		out.writeByte(1) // version
+		out.writeByte(1) // token
+		out.writeByte(1 | 4) // authenticated, 'shibboleth', username is not the eppn
+		[ 'ajz@umn.edu', 'ajz', 'fake.authentication.method', 'fake.IdP', '1234567890', '127.0.0.1', '_session' ].each{
+			out.writeByte(1)
+			out.writeUTF(it)
+		}
+		out.writeInt(1) // attributes
+		out.writeByte(1); out.writeUTF('Shib-Session-ID')
+		out.writeByte(1); out.writeUTF('_session')
+		out.writeInt(2) // authorities
+		out.writeByte(0); out.writeByte(1); out.writeUTF('ROLE_SHIB_STAFF')
+		out.writeByte(0); out.writeByte(1); out.writeUTF('ROLE_IP_UMN_CAMPUS')
+		out.writeObject(null) // details
+		out.writeByte(1) // principal is the username
+		out.close()
+
+		def form = new ShibbolethSerializedForm()
+		form.readExternal(new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())))
+		def token = form.readResolve()
+
+		assertTrue token.isAuthenticated()
+		assert 'ajz@umn.edu' == token.eppn
+		assert 'ajz' == token.username
+		assert 'ajz' == token.principal
+		assert 'shibboleth' == token.authenticationType
+		assert 'fake.authentication.method' == token.authenticationMethod
+		assert 'fake.IdP' == token.identityProvider
+		assert '1234567890' == token.authenticationInstant
+		assert '127.0.0.1' == token.remoteAddress
+		assert [ 'Shib-Session-ID': '_session' ] == token.attributes
+		assert [ 'ROLE_SHIB_STAFF', 'ROLE_IP_UMN_CAMPUS' ] as Set == token.authorities*.authority as Set
+		assertTrue token.matchesSessionFingerprint('_session', 'ajz@umn.edu')
+	}
+
+	void testRolesIncomplete() {
+		def userDetails = new ShibbolethUserDetails('ajz', null, null,
+			[ new GrantedAuthorityImpl('ROLE_USER') ], 'ajz@umn.edu', [:], true)
+
+		def bytes = serialize(userDetails)
+
+		// the flag is new in version 2, so a version 1 reader must not read the stream
+		assert ShibbolethSerializedForm.VERSION == 2
+		assertTrue deserialize(bytes).rolesIncomplete
+		assertFalse deserialize(serialize(new ShibbolethUserDetails('ajz', null, null,
+			[ new GrantedAuthorityImpl('ROLE_USER') ], 'ajz@umn.edu', [:], false))).rolesIncomplete
+	}
+
+	void testReadsVersion1UserDetails() {
+		def bytes = new ByteArrayOutputStream()
+		def out = new ObjectOutputStream(bytes)
+		out.writeByte(1) // version
+		out.writeByte(2) // user details
+		out.writeByte(2 | 64) // username is the eppn, and a bit version 1 didn't define
+		out.writeByte(1); out.writeUTF('ajz@umn.edu')
+		out.writeByte(0) // email
+		out.writeByte(0) // full name
+		out.writeInt(-1) // attributes
+		out.writeInt(1) // authorities
+		out.writeByte(0); out.writeByte(1); out.writeUTF('ROLE_USER')
+		out.close()
+
+		def form = new ShibbolethSerializedForm()
+		form.readExternal(new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())))
+		def userDetails = form.readResolve()
+
+		assert 'ajz@umn.edu' == userDetails.username
+		assert [ 'ROLE_USER' ] == userDetails.authorities*.authority
+		assertFalse userDetails.rolesIncomplete
+	}
+
+	void testUnknownVersion() {
+		[ 0, ShibbolethSerializedForm.VERSION + 1, 99 ].each{ version ->
+			def bytes = new ByteArrayOutputStream()
+			def out = new ObjectOutputStream(bytes)
+			out.writeByte(version)
+			out.close()
+
+			shouldFail(InvalidObjectException) {
+				new ShibbolethSerializedForm().readExternal(new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())))
+			}
+		}
+	}
+}
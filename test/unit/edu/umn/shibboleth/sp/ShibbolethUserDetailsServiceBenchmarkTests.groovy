@@ -0,0 +1,60 @@
+package edu.umn.shibboleth.sp
+
+import static org.junit.Assert.*
+
+import grails.test.mixin.*
+import grails.test.mixin.support.*
+import org.junit.*
+
+/**
+ * Compares the per-login CPU time and allocation of the Java
+ * {@link ShibbolethUserDetailsService} with the Groovy version it replaced.
+ *
+ * Run with {@code grails -Dshibboleth.benchmark=true test-app unit: ShibbolethUserDetailsServiceBenchmark}
+ */
+@TestMixin(GrailsUnitTestMixin)
+class ShibbolethUserDetailsServiceBenchmarkTests {
+
+	void setUp() {
+		MicroBenchmark.assumeEnabled()
+	}
+
+	void testJavaAgainstGroovy() {
+		def identityProviderRoles = [:]
+		def authenticationMethodRoles = [:]
+		50.times{
+			identityProviderRoles["ROLE_IDP_${it}".toString()] = "https://idp${it}.example.org/idp/shibboleth".toString()
+			authenticationMethodRoles["ROLE_AUTH_METHOD_${it}".toString()] = "urn:example:ac:classes:method${it}".toString()
+		}
+		def settings = [
+			rolesAttribute: 'Shib-Roles',
+			rolesSeparator: ',',
+			rolesPrefix: 'SHIBTEST_',
+			emailAttribute: 'mail',
+			fullNameAttribute: 'displayName',
+			authenticationMethodRoles: authenticationMethodRoles,
+			identityProviderRoles: identityProviderRoles,
+			ipAddressRoles: [
+				'ROLE_IP_UMN_VPN': ['134.84.0.0/23'],
+				'ROLE_IP_UMN_CAMPUS': ['160.94.0.0/16', '128.101.0.0/16', '134.84.0.0/16'] ] ]
+
+		def token = new ShibbolethAuthenticationToken(
+			'testuser@example.org', 'testuser', 'shibboleth', 'urn:example:ac:classes:method42',
+			'https://idp7.example.org/idp/shibboleth', '1234567890', '134.84.1.10',
+			[ 'Shib-Roles': 'students,staff,faculty,alumni', 'mail': 'testuser@example.org',
+				'displayName': 'Test P. User' ])
+
+		def javaService = new ShibbolethUserDetailsService(settings)
+		def groovyService = new GroovyShibbolethUserDetailsService(settings)
+
+		// both must agree before the numbers mean anything
+		def expected = groovyService.loadUserDetails(token).authorities*.authority as Set
+		assertEquals expected, javaService.loadUserDetails(token).authorities*.authority as Set
+
+		def benchmark = new MicroBenchmark(operationsPerIteration: 5000)
+		def results = [
+			benchmark.run('Groovy loadUserDetails') { groovyService.loadUserDetails(token) },
+			benchmark.run('Java loadUserDetails') { javaService.loadUserDetails(token) } ]
+		MicroBenchmark.report('ShibbolethUserDetailsService per login', results)
+	}
+}
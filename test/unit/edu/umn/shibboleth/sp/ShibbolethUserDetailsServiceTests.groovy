@@ -2,6 +2,16 @@ package edu.umn.shibboleth.sp
 
 import static org.junit.Assert.*
 
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+import org.springframework.security.authentication.AuthenticationServiceException
+import org.springframework.security.core.userdetails.UserDetailsService
+import org.springframework.security.core.userdetails.UsernameNotFoundException
+
 import grails.test.mixin.*
 import grails.test.mixin.support.*
 import org.junit.*
@@ -62,6 +72,24 @@ class ShibbolethUserDetailsServiceTests {
 		assert "some value" == userDetails.attributes['someattribute']
     }
 
+    void testUserDetailsMultiValuedAttributes() {
+
+		def shibbolethUserDetailsService = new ShibbolethUserDetailsService(detailsServiceSettings +
+			[ emailAttribute: 'mail', fullNameAttribute: 'displayName' ])
+
+		def token = new ShibbolethAuthenticationToken(
+			shibbolethToken.eppn, shibbolethToken.username, 'shibboleth', 'fake.authentication.method',
+			'fake.IdP', '1234567890', '134.84.0.1',
+			[ 'mail': 'ajz@umn.edu;aaron@example.org', 'displayName': 'Aaron J. Zirbes' ])
+
+		def userDetails = shibbolethUserDetailsService.loadUserDetails(token)
+
+		assert 'ajz@umn.edu' == userDetails.email
+		assert 'Aaron J. Zirbes' == userDetails.fullName
+		assert [ 'ajz@umn.edu', 'aaron@example.org' ] == userDetails.getAttributeValues('mail')
+		assert 'ajz@umn.edu;aaron@example.org' == userDetails.attributes['mail']
+    }
+
     void testUserDetailsIdpRoles() {
 
 		def shibbolethUserDetailsService = new ShibbolethUserDetailsService(detailsServiceSettings)
@@ -94,5 +122,390 @@ class ShibbolethUserDetailsServiceTests {
 		assertFalse userDetails.authorities.collect{ it.toString() }.contains('ROLE_IP_UMN_CAMPUS')
 		assertFalse userDetails.authorities.collect{ it.toString() }.contains('ROLE_IP_UMN_VPN')
     }
+
+    void testUserDetailsLdapRolesCached() {
+
+		def searches = new AtomicInteger()
+		def ldapAuthoritiesPopulator = BenchmarkFixtures.ldapAuthoritiesPopulator(roles: [ 'ROLE_LDAP_GROUP' ], searches: searches)
+
+		def shibbolethUserDetailsService = new ShibbolethUserDetailsService(detailsServiceSettings)
+		shibbolethUserDetailsService.userDnBase = 'ou=people,dc=example,dc=com'
+		shibbolethUserDetailsService.ldapAuthoritiesPopulator = ldapAuthoritiesPopulator
+		shibbolethUserDetailsService.ldapCacheMaxEntries = 100
+		shibbolethUserDetailsService.afterPropertiesSet()
+
+		def userDetails = shibbolethUserDetailsService.loadUserDetails(shibbolethToken)
+		shibbolethUserDetailsService.loadUserDetails(shibbolethToken)
+
+		assertTrue userDetails.authorities.collect{ it.toString() }.contains('ROLE_LDAP_GROUP')
+		assert 1 == searches.get()
+		assertTrue shibbolethUserDetailsService.ldapCacheStatistics.contains('hits=1')
+
+		shibbolethUserDetailsService.destroy()
+    }
+
+    void testUserDetailsGroupIndexRoles() {
+
+		def file = File.createTempFile('groups', '.csv')
+		file.text = 'testuser,web developers\nother,staff\n'
+		def groupMembershipIndex = new GroupMembershipIndex(snapshotFile: file, reloadInterval: 0)
+		groupMembershipIndex.afterPropertiesSet()
+
+		def shibbolethUserDetailsService = new ShibbolethUserDetailsService(detailsServiceSettings)
+		shibbolethUserDetailsService.groupMembershipIndex = groupMembershipIndex
+
+		def userDetails = shibbolethUserDetailsService.loadUserDetails(shibbolethToken)
+
+		assertTrue userDetails.authorities.collect{ it.toString() }.contains('ROLE_WEB_DEVELOPERS')
+		assertFalse userDetails.authorities.collect{ it.toString() }.contains('ROLE_STAFF')
+
+		file.delete()
+    }
+
+    void testReloadRoleMappings() {
+
+		def file = File.createTempFile('roleMappings', '.groovy')
+		file.text = '''
+identityProvider.roles = [ 'ROLE_IDP_TEST': 'fake.IdP' ]
+'''
+		def metrics = new ShibbolethMetrics()
+		def shibbolethUserDetailsService = new ShibbolethUserDetailsService(detailsServiceSettings)
+		shibbolethUserDetailsService.identityProviderRoles = [:]
+		shibbolethUserDetailsService.roleMappingsFile = file
+		shibbolethUserDetailsService.metrics = metrics
+		shibbolethUserDetailsService.afterPropertiesSet()
+
+		// the file is read at startup, and the settings it leaves out are kept
+		def roles = shibbolethUserDetailsService.loadUserDetails(shibbolethToken).authorities*.authority
+		assertTrue roles.contains('ROLE_IDP_TEST')
+		assertTrue roles.contains('ROLE_IP_LOCALHOST')
+
+		file.text = '''
+identityProvider.roles = [ 'ROLE_IDP_RELOADED': 'fake.IdP' ]
+remoteAddress.roles = [ 'ROLE_IP_RELOADED': [ '127.0.0.1' ] ]
+roles {
+	attribute = 'Shib-Roles'
+	prefix = 'RELOADED_'
 }
+'''
+		shibbolethToken.attributes['Shib-Roles'] = 'staff'
+		assert 'authenticationMethodRoles=3, identityProviderRoles=1, ipAddressRoles=1, rolesAttribute=Shib-Roles' ==
+			metrics.invoke('reloadRoleMappings', null, null)
 
+		roles = shibbolethUserDetailsService.loadUserDetails(shibbolethToken).authorities*.authority
+		assert [ 'ROLE_RELOADED_STAFF', 'ROLE_IP_RELOADED', 'ROLE_IDP_RELOADED', 'ROLE_AUTH_METHOD_FAKE' ] as Set == roles as Set
+		assert 1L == metrics.snapshot()['userDetails.roleMappings.reloads']
+
+		// a bad file keeps the current mappings
+		file.text = "remoteAddress.roles = [ 'ROLE_IP_BAD': [ 'not an address' ] ]"
+		shouldFail(IllegalArgumentException) {
+			shibbolethUserDetailsService.reloadRoleMappings()
+		}
+		assert roles == shibbolethUserDetailsService.loadUserDetails(shibbolethToken).authorities*.authority
+
+		file.delete()
+    }
+
+    void testRegisteredUsers() {
+
+		def shibbolethUserDetailsService = new ShibbolethUserDetailsService(detailsServiceSettings)
+
+		shouldFail(UsernameNotFoundException) {
+			shibbolethUserDetailsService.loadUserByUsername('testuser')
+		}
+
+		def userDetails = shibbolethUserDetailsService.loadUserDetails(shibbolethToken)
+
+		assert userDetails.is(shibbolethUserDetailsService.loadUserByUsername('testuser'))
+    }
+
+    void testRegisteredUsersExpireWithAuthenticationInstant() {
+
+		def shibbolethUserDetailsService = new ShibbolethUserDetailsService(detailsServiceSettings)
+		shibbolethUserDetailsService.registeredUsersTimeToLive = 3600
+		shibbolethUserDetailsService.afterPropertiesSet()
+
+		def oldToken = new ShibbolethAuthenticationToken(
+			'olduser@example.org', 'olduser', 'shibboleth', 'fake.authentication.method',
+			'fake.IdP', '2012-01-16T03:52:19.890Z', '127.0.0.1', [:])
+
+		shibbolethUserDetailsService.loadUserDetails(oldToken)
+
+		shouldFail(UsernameNotFoundException) {
+			shibbolethUserDetailsService.loadUserByUsername('olduser')
+		}
+    }
+
+    void testUserDetailsShareMappedAuthorities() {
+
+		def shibbolethUserDetailsService = new ShibbolethUserDetailsService(detailsServiceSettings)
+		shibbolethToken.attributes['Shib-Roles'] = 'students,staff'
+
+		def first = shibbolethUserDetailsService.loadUserDetails(shibbolethToken).authorities.sort{ it.authority }
+		def second = shibbolethUserDetailsService.loadUserDetails(shibbolethToken).authorities.sort{ it.authority }
+
+		// the roles of the configured mappings are shared, and those named by the roles attribute aren't registered
+		assert first == second
+		def (attributeRoles, mappedRoles) = first.split{ it.authority.startsWith('ROLE_SHIBTEST_') }
+		assert [ 'ROLE_SHIBTEST_STAFF', 'ROLE_SHIBTEST_STUDENTS' ] == attributeRoles*.authority
+		attributeRoles.each{ assert -1 == ShibbolethAuthorities.id(it) }
+		assert mappedRoles
+		mappedRoles.eachWithIndex{ authority, i ->
+			assert authority.is(second[i])
+			assert authority.is(ShibbolethAuthorities.get(authority.authority))
+			assert ShibbolethAuthorities.id(authority) >= 0
+		}
+    }
+
+    void testTrustedRoleSourcesAreRegistered() {
+
+		def shibbolethUserDetailsService = roleSourcesService(0, 0)
+		shibbolethToken.attributes['Shib-Roles'] = 'students'
+
+		def first = shibbolethUserDetailsService.loadUserDetails(shibbolethToken).authorities
+		def second = shibbolethUserDetailsService.loadUserDetails(shibbolethToken).authorities
+
+		// LDAP and user details service roles are numbered and shared, the roles attribute's aren't numbered
+		[ 'ROLE_LDAP_GROUP', 'ROLE_GORM_USER' ].each{ name ->
+			def role = first.find{ it.authority == name }
+			assert ShibbolethAuthorities.id(role) >= 0
+			assert role.is(second.find{ it.authority == name })
+			assert role.is(ShibbolethAuthorities.get(name))
+		}
+		assert -1 == ShibbolethAuthorities.id('ROLE_SHIBTEST_STUDENTS')
+
+		shibbolethUserDetailsService.destroy()
+    }
+
+	/** A user details service, with LDAP and user details service role sources that take delay milliseconds */
+	def roleSourcesService(long ldapDelay, long userDetailsServiceDelay, Map settings = [:]) {
+		def ldapAuthoritiesPopulator = BenchmarkFixtures.ldapAuthoritiesPopulator(roles: [ 'ROLE_LDAP_GROUP' ], latency: ldapDelay)
+		def userDetailsService = BenchmarkFixtures.userDetailsService(roles: [ 'ROLE_GORM_USER' ], latency: userDetailsServiceDelay)
+
+		def shibbolethUserDetailsService = new ShibbolethUserDetailsService(detailsServiceSettings + [
+			userDnBase: 'ou=people,dc=example,dc=com',
+			ldapAuthoritiesPopulator: ldapAuthoritiesPopulator,
+			userDetailsService: userDetailsService,
+			roleSourceThreads: 4 ] + settings)
+		shibbolethUserDetailsService.afterPropertiesSet()
+		return shibbolethUserDetailsService
+	}
+
+    void testRoleSourcesInParallel() {
+
+		def shibbolethUserDetailsService = roleSourcesService(500, 500)
+
+		long start = System.currentTimeMillis()
+		def userDetails = shibbolethUserDetailsService.loadUserDetails(shibbolethToken)
+		long elapsed = System.currentTimeMillis() - start
+
+		def roles = userDetails.authorities*.authority
+		assert 'ROLE_LDAP_GROUP' in roles
+		assert 'ROLE_GORM_USER' in roles
+		assert 'ROLE_IDP_TEST' in roles
+		assertFalse userDetails.rolesIncomplete
+		assert elapsed < 900
+
+		shibbolethUserDetailsService.destroy()
+    }
+
+    void testRoleSourceTimeoutFailsLogin() {
+
+		def shibbolethUserDetailsService = roleSourcesService(2000, 0, [ ldapTimeout: 100 ])
+
+		shouldFail(AuthenticationServiceException) {
+			shibbolethUserDetailsService.loadUserDetails(shibbolethToken)
+		}
+
+		shibbolethUserDetailsService.destroy()
+    }
+
+    void testRoleSourceTimeoutPartialRoles() {
+
+		def metrics = new ShibbolethMetrics()
+		def shibbolethUserDetailsService = roleSourcesService(2000, 0,
+			[ ldapTimeout: 100, roleSourceFailurePolicy: 'partial', metrics: metrics ])
+
+		long start = System.currentTimeMillis()
+		def userDetails = shibbolethUserDetailsService.loadUserDetails(shibbolethToken)
+
+		def roles = userDetails.authorities*.authority
+		assertFalse 'ROLE_LDAP_GROUP' in roles
+		assert 'ROLE_GORM_USER' in roles
+		assertTrue userDetails.rolesIncomplete
+		assert System.currentTimeMillis() - start < 1000
+		assert 1 == metrics.getRejections('userDetails.ldapTimeout')
+
+		shibbolethUserDetailsService.destroy()
+    }
+
+    void testFailedLoginGivesUpOnOtherRoleSource() {
+
+		boolean ldapDown = true
+		def loading = new CountDownLatch(1)
+		def interrupted = new CountDownLatch(1)
+		def release = new CountDownLatch(1)
+		def loads = new AtomicInteger()
+		def shibbolethUserDetailsService = roleSourcesService(0, 0, [
+			ldapAuthoritiesPopulator: BenchmarkFixtures.ldapAuthoritiesPopulator(roles: [ 'ROLE_LDAP_GROUP' ], onSearch: {
+				loading.await(5, TimeUnit.SECONDS)
+				if (ldapDown) { throw new IllegalStateException('LDAP is down') }
+			}),
+			userDetailsService: BenchmarkFixtures.userDetailsService(roles: [ 'ROLE_GORM_USER' ], loads: loads, onLoad: {
+				loading.countDown()
+				try {
+					release.await()
+				} catch (InterruptedException ex) {
+					interrupted.countDown()
+					throw ex
+				}
+			}) ])
+
+		// LDAP fails the login while the user details service lookup is still running, which is given up on
+		shouldFail(AuthenticationServiceException) {
+			shibbolethUserDetailsService.loadUserDetails(shibbolethToken)
+		}
+		assertTrue interrupted.await(5, TimeUnit.SECONDS)
+
+		// so the next login of the user starts its own lookup, rather than joining the orphaned one
+		ldapDown = false
+		release.countDown()
+		def roles = shibbolethUserDetailsService.loadUserDetails(shibbolethToken).authorities*.authority
+		assert 'ROLE_LDAP_GROUP' in roles
+		assert 'ROLE_GORM_USER' in roles
+		assert 2 == loads.get()
+
+		shibbolethUserDetailsService.destroy()
+    }
+
+    void testRoleSourceUnknownUserFailsLogin() {
+
+		def shibbolethUserDetailsService = roleSourcesService(0, 0, [
+			roleSourceFailurePolicy: 'partial',
+			userDetailsService: { String username -> throw new UsernameNotFoundException(username) } as UserDetailsService ])
+
+		shouldFail(UsernameNotFoundException) {
+			shibbolethUserDetailsService.loadUserDetails(shibbolethToken)
+		}
+
+		shibbolethUserDetailsService.destroy()
+    }
+
+    void testRoleSourceCircuitBreaker() {
+
+		boolean ldapDown = false
+		def searches = new AtomicInteger()
+		def ldapAuthoritiesPopulator = BenchmarkFixtures.ldapAuthoritiesPopulator(roles: [ 'ROLE_LDAP_GROUP' ], searches: searches,
+			onSearch: { if (ldapDown) { throw new IllegalStateException('LDAP is down') } })
+		def metrics = new ShibbolethMetrics()
+		def shibbolethUserDetailsService = new ShibbolethUserDetailsService(detailsServiceSettings + [
+			userDnBase: 'ou=people,dc=example,dc=com',
+			ldapAuthoritiesPopulator: ldapAuthoritiesPopulator,
+			circuitBreakerFailureThreshold: 2,
+			circuitBreakerOpenDuration: 1,
+			metrics: metrics ])
+		shibbolethUserDetailsService.afterPropertiesSet()
+
+		def otherToken = new ShibbolethAuthenticationToken('other@example.org', 'other', 'shibboleth',
+			'fake.authentication.method', 'fake.IdP', '1234567890', '127.0.0.1', [:])
+
+		assertFalse shibbolethUserDetailsService.loadUserDetails(shibbolethToken).rolesIncomplete
+
+		// while LDAP fails, known users get their last LDAP roles, marked incomplete
+		ldapDown = true
+		def userDetails = shibbolethUserDetailsService.loadUserDetails(shibbolethToken)
+		assert 'ROLE_LDAP_GROUP' in userDetails.authorities*.authority
+		assertTrue userDetails.rolesIncomplete
+
+		// unknown users still fail the login until the breaker opens
+		shouldFail(AuthenticationServiceException) {
+			shibbolethUserDetailsService.loadUserDetails(otherToken)
+		}
+		assert 'OPEN' == metrics.snapshot()['userDetails.ldapCircuit.state']
+
+		// then LDAP is left alone, and unknown users get the attribute roles
+		searches.set(0)
+		userDetails = shibbolethUserDetailsService.loadUserDetails(otherToken)
+		assertTrue userDetails.authorities*.authority.contains('ROLE_IDP_TEST')
+		assertFalse userDetails.authorities*.authority.contains('ROLE_LDAP_GROUP')
+		assertTrue userDetails.rolesIncomplete
+		assert 'ROLE_LDAP_GROUP' in shibbolethUserDetailsService.loadUserDetails(shibbolethToken).authorities*.authority
+		assert 0 == searches.get()
+		assert 2 == metrics.getRejections('userDetails.ldapCircuitOpen')
+
+		// once LDAP is back, the next probe closes the breaker
+		ldapDown = false
+		Thread.sleep(1100)
+		assertFalse shibbolethUserDetailsService.loadUserDetails(otherToken).rolesIncomplete
+		assert 'CLOSED' == metrics.snapshot()['userDetails.ldapCircuit.state']
+		assertTrue shibbolethUserDetailsService.circuitBreakerStatistics.contains('ldap=CLOSED')
+    }
+
+    void testConcurrentLoginsShareRoleLookups() {
+
+		[ 0, 4 ].each{ threads ->
+			def searching = new CountDownLatch(1)
+			def release = new CountDownLatch(1)
+			def searches = new AtomicInteger()
+			def ldapAuthoritiesPopulator = BenchmarkFixtures.ldapAuthoritiesPopulator(roles: [ 'ROLE_LDAP_GROUP' ], searches: searches,
+				onSearch: { searching.countDown(); release.await() })
+			def metrics = new ShibbolethMetrics()
+			def shibbolethUserDetailsService = new ShibbolethUserDetailsService(detailsServiceSettings + [
+				userDnBase: 'ou=people,dc=example,dc=com',
+				ldapAuthoritiesPopulator: ldapAuthoritiesPopulator,
+				roleSourceThreads: threads,
+				metrics: metrics ])
+			shibbolethUserDetailsService.afterPropertiesSet()
+
+			// the first login starts the search, and the other four wait on it
+			def executor = Executors.newFixedThreadPool(5)
+			def logins = [ executor.submit({ shibbolethUserDetailsService.loadUserDetails(shibbolethToken) } as Callable) ]
+			assertTrue searching.await(5, TimeUnit.SECONDS)
+			4.times{ logins << executor.submit({ shibbolethUserDetailsService.loadUserDetails(shibbolethToken) } as Callable) }
+			for (int i = 0; i < 100 && metrics.snapshot()['userDetails.ldapLookups.coalesced'] < 4; i++) {
+				Thread.sleep(10)
+			}
+			release.countDown()
+
+			logins.each{ assert 'ROLE_LDAP_GROUP' in it.get(5, TimeUnit.SECONDS).authorities*.authority }
+			assert 1 == searches.get()
+			assert 4L == metrics.snapshot()['userDetails.ldapLookups.coalesced']
+
+			// once it is done, the next login searches again
+			shibbolethUserDetailsService.loadUserDetails(shibbolethToken)
+			assert 2 == searches.get()
+
+			executor.shutdown()
+			shibbolethUserDetailsService.destroy()
+		}
+    }
+
+    void testSharedRoleLookupOutlivesATimeout() {
+
+		def metrics = new ShibbolethMetrics()
+		def shibbolethUserDetailsService = roleSourcesService(500, 0,
+			[ ldapTimeout: 400, roleSourceFailurePolicy: 'partial', metrics: metrics ])
+
+		// the first login gives up on LDAP, but the lookup carries on for the second
+		def executor = Executors.newFixedThreadPool(2)
+		def first = executor.submit({ shibbolethUserDetailsService.loadUserDetails(shibbolethToken) } as Callable)
+		Thread.sleep(200)
+		def second = executor.submit({ shibbolethUserDetailsService.loadUserDetails(shibbolethToken) } as Callable)
+
+		assertTrue first.get().rolesIncomplete
+		assert 'ROLE_LDAP_GROUP' in second.get().authorities*.authority
+		assert 1 == metrics.getRejections('userDetails.ldapTimeout')
+
+		executor.shutdown()
+		shibbolethUserDetailsService.destroy()
+    }
+
+    void testRoleSourceFailurePolicy() {
+
+		def shibbolethUserDetailsService = new ShibbolethUserDetailsService(roleSourceFailurePolicy: 'ignore')
+
+		shouldFail(IllegalArgumentException) {
+			shibbolethUserDetailsService.afterPropertiesSet()
+		}
+    }
+}
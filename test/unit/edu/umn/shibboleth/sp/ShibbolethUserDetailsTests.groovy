@@ -31,5 +31,8 @@ class ShibbolethUserDetailsTests {
 		assert "some value" == shibbolethUser.attributes['someattribute']
 		assertTrue shibbolethUser.enabled
 		assertTrue shibbolethUser.authorities.collect{ it.toString() }.contains('ROLE_USER')
+		assertTrue shibbolethUser.hasRole('ROLE_USER')
+		assertFalse shibbolethUser.hasRole('ROLE_ADMIN')
+		assert shibbolethUser.toString().endsWith('Granted Authorities: [ROLE_USER]')
     }
 }